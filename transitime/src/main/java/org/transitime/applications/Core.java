@@ -102,6 +102,48 @@ public class Core {
 	 * @param agencyId
 	 */
 	private Core(String agencyId) {
+		this(readConfigData(agencyId));
+	}
+	
+	/**
+	 * Construct the Core object using the already read in config data. This
+	 * is private so that the createCore() factory methods must be used.
+	 * 
+	 * @param configData
+	 */
+	private Core(DbConfig configData) {
+		this.configData = configData;
+		
+		// Create the DataDBLogger so that generated data can be stored
+		// to database via a robust queue. But don't actually log data
+		// if in playback mode since then would be writing data again 
+		// that was first written when predictor was run in real time.
+		// Note: DataDbLogger needs to be started after the timezone is set.
+		// Otherwise when running for a different timezone than what the
+		// computer is setup for then can log data using the wrong time!
+		// This is strange since setting TimeZone.setDefault() is supposed
+		// to work across all threads it appears that sometimes it wouldn't
+		// work if Db logger started first.
+		dataDbLogger = DataDbLogger.getDataDbLogger(configData.getAgencyId(),
+				CoreConfig.storeDataInDatabase(),
+				CoreConfig.pauseIfDbQueueFilling());
+		
+		// Start mandatory modules
+		timeoutHandlerModule = new TimeoutHandlerModule(AgencyConfig.getAgencyId());
+		timeoutHandlerModule.start();
+		
+		service = new ServiceUtils(configData);
+		time = new Time(configData);
+	}
+	
+	/**
+	 * Reads in the config data from the database. Also sets the default
+	 * timezone to that of the agency.
+	 * 
+	 * @param agencyId
+	 * @return the config data
+	 */
+	private static DbConfig readConfigData(String agencyId) {
 		// Determine configuration rev to use. If one specified on command
 		// line, use it. If not, then use revision stored in db.
 		int configRev;
@@ -143,29 +185,9 @@ public class Core {
 		HibernateUtils.clearSessionFactory();
 		
 		// Read in all GTFS based config data from the database
-		configData = new DbConfig(agencyId);
+		DbConfig configData = new DbConfig(agencyId);
 		configData.read(configRev);
-		
-		// Create the DataDBLogger so that generated data can be stored
-		// to database via a robust queue. But don't actually log data
-		// if in playback mode since then would be writing data again 
-		// that was first written when predictor was run in real time.
-		// Note: DataDbLogger needs to be started after the timezone is set.
-		// Otherwise when running for a different timezone than what the
-		// computer is setup for then can log data using the wrong time!
-		// This is strange since setting TimeZone.setDefault() is supposed
-		// to work across all threads it appears that sometimes it wouldn't
-		// work if Db logger started first.
-		dataDbLogger = DataDbLogger.getDataDbLogger(agencyId,
-				CoreConfig.storeDataInDatabase(),
-				CoreConfig.pauseIfDbQueueFilling());
-		
-		// Start mandatory modules
-		timeoutHandlerModule = new TimeoutHandlerModule(AgencyConfig.getAgencyId());
-		timeoutHandlerModule.start();
-		
-		service = new ServiceUtils(configData);
-		time = new Time(configData);
+		return configData;
 	}
 	
 	/**
@@ -202,6 +224,35 @@ public class Core {
 		return core;
 	}
 	
+	/**
+	 * Creates the Core object using config data that has already been read
+	 * in, such as config data for a synthetic agency set via
+	 * DbConfig.setData(). Useful for when there is no database, such as for
+	 * benchmarking. Sets the default timezone to that of the agency. Should
+	 * be used with transitime.db.storeDataInDatabase set to false since
+	 * there is no database to write generated data to.
+	 * <p>
+	 * Synchronized to ensure that don't create more than a single Core.
+	 * 
+	 * @param configData
+	 *            The already read in config data
+	 * @return The Core singleton, or null if could not create it
+	 */
+	synchronized public static Core createCore(DbConfig configData) {
+		// Make sure only can have a single Core object
+		if (Core.singleton != null) {
+			logger.error("Core singleton already created. Cannot create another one.");
+			return null;
+		}
+		
+		// Set the timezone so that dates are processed properly
+		TimeZone.setDefault(configData.getFirstAgency().getTimeZone());
+		
+		Core core = new Core(configData);
+		Core.singleton = core;
+		return core;
+	}
+	
 	/**
 	 * For obtaining singleton Core object
 	 * 
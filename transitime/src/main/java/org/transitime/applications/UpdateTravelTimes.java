@@ -28,7 +28,9 @@ import org.hibernate.Session;
 import org.hibernate.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.ConfigFileReader;
+import org.transitime.config.DoubleConfigValue;
 import org.transitime.configData.AgencyConfig;
 import org.transitime.core.travelTimes.TravelTimeInfoMap;
 import org.transitime.core.travelTimes.TravelTimeInfoWithHowSet;
@@ -36,6 +38,7 @@ import org.transitime.core.travelTimes.TravelTimesProcessor;
 import org.transitime.db.hibernate.HibernateUtils;
 import org.transitime.db.structs.ActiveRevisions;
 import org.transitime.db.structs.Agency;
+import org.transitime.db.structs.TravelTimeAggregate;
 import org.transitime.db.structs.TravelTimesForStopPath;
 import org.transitime.db.structs.TravelTimesForTrip;
 import org.transitime.db.structs.Trip;
@@ -46,12 +49,13 @@ import org.transitime.utils.Time;
  * Uses AVL based data of arrival/departure times and matches from the database
  * to update the expected travel and stop times.
  * <p>
- * NOTE: This could probably be made less resource/memory intensive by
- * processing a days worth of data at a time. Another possibility would be to
- * try to process the data while it is being read in instead of reading it all
- * in at the beginning. But that would likely be quite difficult to implement.
- * Processing one day of data at a time would likely be far simpler and
- * therefore a better choice.
+ * If transitime.traveltimes.incremental is set then instead of determining
+ * the travel times from just the data for the specified dates the data is
+ * folded into running aggregates, TravelTimeAggregates, that are stored in
+ * the database. The travel times are then determined from the aggregates.
+ * This way can run the program nightly for just the previous day instead of
+ * having to reprocess weeks of data each time. The aggregates can be
+ * initialized by running the program once for a longer range of dates.
  * 
  * @author SkiBu Smith
  * 
@@ -66,6 +70,27 @@ public class UpdateTravelTimes {
 		ConfigFileReader.processConfig();
 	}
 	
+	private static BooleanConfigValue incremental =
+			new BooleanConfigValue("transitime.traveltimes.incremental", 
+					false,
+					"If true then the data for the specified dates is folded "
+					+ "into the running travel time aggregates stored in the "
+					+ "database and the travel times are determined from the "
+					+ "aggregates. This way only the new data, such as for "
+					+ "the previous day, needs to be processed. If false "
+					+ "then travel times are determined from just the data "
+					+ "for the specified dates.");
+	
+	private static DoubleConfigValue incrementalDecayFactor =
+			new DoubleConfigValue("transitime.traveltimes.incrementalDecayFactor", 
+					0.95,
+					"When transitime.traveltimes.incremental is true the "
+					+ "existing aggregated data is multiplied by this factor "
+					+ "before the new data is folded in so that older data "
+					+ "counts for less. A value of 1.0 means that old data "
+					+ "never expires. With 0.95 data from a month ago counts "
+					+ "about a fifth as much as new data.");
+	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(UpdateTravelTimes.class);
 
@@ -280,6 +305,61 @@ public class UpdateTravelTimes {
 		return tripMap;
 	}
 	
+	/**
+	 * Folds the historic data that was read in into the TravelTimeAggregates
+	 * stored in the database and then determines the travel times from the
+	 * aggregates. Aggregates that no longer contain any data because it has
+	 * all decayed away are deleted.
+	 * 
+	 * @param session
+	 * @param processor
+	 *            Contains the historic data for the specified dates
+	 * @param tripMap
+	 * @param beginTime
+	 * @param endTime
+	 * @return The travel times determined from the aggregates
+	 * @throws IllegalStateException
+	 *             If the data for beginTime has already been folded into the
+	 *             aggregates. Don't want to count the same data twice.
+	 */
+	private static TravelTimeInfoMap updateAggregates(Session session,
+			TravelTimesProcessor processor, Map<String, Trip> tripMap,
+			Date beginTime, Date endTime) {
+		List<TravelTimeAggregate> existingAggregates = 
+				TravelTimeAggregate.getTravelTimeAggregates(session);
+		
+		// Make sure not folding in the same data twice
+		for (TravelTimeAggregate aggregate : existingAggregates) {
+			Date dataEndTime = aggregate.getDataEndTime();
+			if (dataEndTime != null && beginTime.before(dataEndTime))
+				throw new IllegalStateException("Data up to " + dataEndTime
+						+ " has already been folded into the travel time "
+						+ "aggregates so cannot process data starting at "
+						+ beginTime);
+		}
+		
+		List<TravelTimeAggregate> aggregates = 
+				processor.foldIntoAggregates(existingAggregates, tripMap, 
+						incrementalDecayFactor.getValue(), endTime);
+		
+		// Store the updated aggregates
+		int numberStored = 0;
+		int numberDeleted = 0;
+		for (TravelTimeAggregate aggregate : aggregates) {
+			if (!aggregate.isEmpty()) {
+				session.saveOrUpdate(aggregate);
+				++numberStored;
+			} else if (session.contains(aggregate)) {
+				session.delete(aggregate);
+				++numberDeleted;
+			}
+		}
+		logger.info("Storing {} travel time aggregates and deleting {} "
+				+ "empty ones", numberStored, numberDeleted);
+		
+		return processor.createTravelTimesFromAggregates(aggregates, tripMap);
+	}
+	
 	/**
 	 * Reads historic data from db and processes it, putting it all into a
 	 * TravelTimeInfoMap. Then stores the travel times for all of the trips.
@@ -307,8 +387,13 @@ public class UpdateTravelTimes {
 		Map<String, Trip> tripMap = readTripsFromDb(agencyId, session);
 		
 		// Process the historic data into a simple TravelTimeInfoMap
-		TravelTimeInfoMap travelTimeInfoMap = 
-				processor.createTravelTimesFromMaps(tripMap);
+		TravelTimeInfoMap travelTimeInfoMap;
+		if (incremental.getValue()) {
+			travelTimeInfoMap = updateAggregates(session, processor, tripMap, 
+					beginTime, endTime);
+		} else {
+			travelTimeInfoMap = processor.createTravelTimesFromMaps(tripMap);
+		}
 		
 		// Update all the Trip objects with the new travel times
 		setTravelTimesForAllTrips(session, tripMap, travelTimeInfoMap);
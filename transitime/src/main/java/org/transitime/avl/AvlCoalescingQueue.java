@@ -0,0 +1,232 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.db.structs.AvlReport;
+
+/**
+ * A queue of AvlClient runnables that can be used with a ThreadPoolExecutor
+ * but that holds at most one pending AVL report per vehicle. When a new AVL
+ * report is offered for a vehicle that already has a pending report then the
+ * pending report is replaced in place, keeping its position in the queue. This
+ * way the amount of memory used is bounded by the number of vehicles instead
+ * of by the size of a burst of AVL data, and offering data never blocks nor is
+ * rejected. This is useful when catching up on an AVL feed since there is no
+ * point processing old AVL reports for a vehicle when new data is available.
+ * <p>
+ * Implemented using a map of the pending AvlClient per vehicle plus a FIFO
+ * queue of the vehicle IDs that have a pending report. A vehicle ID is only
+ * added to the FIFO queue when there wasn't already a pending report for the
+ * vehicle.
+ * <p>
+ * Since offer() never fails a ThreadPoolExecutor using this queue will never
+ * create more than its core number of threads.
+ */
+public class AvlCoalescingQueue extends AbstractQueue<Runnable> implements
+		BlockingQueue<Runnable> {
+
+	// The pending AvlClient for each vehicle. Keyed on vehicle ID.
+	private final ConcurrentMap<String, AvlClient> pendingPerVehicleMap =
+			new ConcurrentHashMap<String, AvlClient>();
+
+	// The vehicle IDs that have a pending AvlClient, in the order that they
+	// were first added.
+	private final LinkedBlockingQueue<String> vehicleIdsQueue =
+			new LinkedBlockingQueue<String>();
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(AvlCoalescingQueue.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Casts the runnable to an AvlClient.
+	 *
+	 * @param runnable
+	 * @return the AvlClient
+	 */
+	private static AvlClient toAvlClient(Runnable runnable) {
+		if (!(runnable instanceof AvlClient))
+			throw new IllegalArgumentException("Runnable must be AvlClient.");
+
+		return (AvlClient) runnable;
+	}
+
+	/**
+	 * Adds the AvlClient as the pending one for the vehicle. If there already
+	 * is a pending one that is not newer then it is replaced. Never blocks
+	 * and always succeeds.
+	 *
+	 * @param runnable
+	 *            the AvlClient
+	 * @return true
+	 */
+	@Override
+	public boolean offer(Runnable runnable) {
+		AvlClient avlClient = toAvlClient(runnable);
+		AvlReport avlReport = avlClient.getAvlReport();
+		String vehicleId = avlReport.getVehicleId();
+
+		while (true) {
+			AvlClient pending =
+					pendingPerVehicleMap.putIfAbsent(vehicleId, avlClient);
+			if (pending == null) {
+				// Wasn't a pending report for the vehicle so add the vehicle
+				// to the end of the queue
+				vehicleIdsQueue.offer(vehicleId);
+				return true;
+			}
+
+			// There is already a pending report. Only replace it if the new
+			// one is not older.
+			AvlReport pendingAvlReport = pending.getAvlReport();
+			if (avlReport.getTime() < pendingAvlReport.getTime()) {
+				logger.debug("Offered AVL report is older than the pending "
+						+ "one for the vehicle so ignoring it. Offered {}. "
+						+ "Pending {}", avlReport, pendingAvlReport);
+				return true;
+			}
+			if (pendingPerVehicleMap.replace(vehicleId, pending, avlClient)) {
+				logger.debug("Replaced pending AVL report {} with newer one {}",
+						pendingAvlReport, avlReport);
+				return true;
+			}
+
+			// The pending report was taken or replaced by another thread
+			// while doing this so try again
+		}
+	}
+
+	/**
+	 * Same as offer() since never blocks
+	 */
+	@Override
+	public void put(Runnable runnable) {
+		offer(runnable);
+	}
+
+	/**
+	 * Same as offer() since never blocks
+	 */
+	@Override
+	public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+		return offer(runnable);
+	}
+
+	/**
+	 * Removes the pending AvlClient for the vehicle ID taken from the queue.
+	 *
+	 * @param vehicleId
+	 *            vehicle ID from the queue, or null
+	 * @return the pending AvlClient, or null if vehicleId was null
+	 */
+	private AvlClient removePending(String vehicleId) {
+		if (vehicleId == null)
+			return null;
+
+		// Since a vehicle ID is only added to the queue when a pending
+		// AvlClient was added to the map the remove() will find it
+		return pendingPerVehicleMap.remove(vehicleId);
+	}
+
+	@Override
+	public Runnable poll() {
+		return removePending(vehicleIdsQueue.poll());
+	}
+
+	/**
+	 * Used by ThreadPoolExecutor.
+	 */
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return removePending(vehicleIdsQueue.poll(timeout, unit));
+	}
+
+	/**
+	 * Used by ThreadPoolExecutor.
+	 */
+	@Override
+	public Runnable take() throws InterruptedException {
+		return removePending(vehicleIdsQueue.take());
+	}
+
+	@Override
+	public Runnable peek() {
+		String vehicleId = vehicleIdsQueue.peek();
+		return vehicleId != null ? pendingPerVehicleMap.get(vehicleId) : null;
+	}
+
+	/**
+	 * Since the queue only contains at most one report per vehicle there
+	 * is no capacity limit
+	 */
+	@Override
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int size() {
+		return vehicleIdsQueue.size();
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c, int maxElements) {
+		int count = 0;
+		Runnable runnable;
+		while (count < maxElements && (runnable = poll()) != null) {
+			c.add(runnable);
+			++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns iterator of a snapshot of the pending AvlClients, in queue
+	 * order. Removing via the iterator is not supported.
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		List<Runnable> snapshot = new ArrayList<Runnable>();
+		for (String vehicleId : vehicleIdsQueue) {
+			AvlClient avlClient = pendingPerVehicleMap.get(vehicleId);
+			if (avlClient != null)
+				snapshot.add(avlClient);
+		}
+		return Collections.unmodifiableList(snapshot).iterator();
+	}
+}
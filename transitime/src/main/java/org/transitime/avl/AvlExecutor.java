@@ -23,6 +23,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.configData.AgencyConfig;
 import org.transitime.db.structs.AvlReport;
@@ -37,6 +38,15 @@ import org.transitime.utils.threading.NamedThreadFactory;
  * of threads is specified using the Java property transitime.avl.numThreads .
  * The queue size is set using the Java property transitime.avl.queueSize .
  * <p>
+ * By default the executor is sharded by vehicle. Each thread gets its own
+ * lane, consisting of a single consumer thread and its own AvlQueue, and the
+ * lane for an AVL report is determined by hashing the vehicle ID. This way the
+ * AVL reports for a vehicle are always processed in order, and by the same
+ * thread, even when multiple threads are used. If sharding is disabled via
+ * transitime.avl.shardByVehicle then a single shared queue is used, which
+ * means that the reports for a vehicle could be processed out of order when
+ * there are multiple threads.
+ * <p>
  * Causes AvlClient.run() to be called on each AvlReport, unless using test
  * executor, in which case the AvlClientTester() is called.
  * 
@@ -45,8 +55,10 @@ import org.transitime.utils.threading.NamedThreadFactory;
  */
 public class AvlExecutor {
 	
-	// The actual executor
-	ThreadPoolExecutor avlClientExecutor = null;
+	// The actual executors. If sharding by vehicle then there is one single
+	// threaded executor per lane. Otherwise there is just a single executor
+	// that can use multiple threads.
+	private final ThreadPoolExecutor[] avlClientExecutors;
 	
 	// Singleton class
 	private static AvlExecutor singleton;
@@ -76,6 +88,29 @@ public class AvlExecutor {
 					"multiple threads, such as 3-15 so that more of the cores " +
 					"are used.");
 	
+	private static BooleanConfigValue shardByVehicle =
+			new BooleanConfigValue("transitime.avl.shardByVehicle", true,
+					"If true then each of the transitime.avl.numThreads "
+					+ "threads gets its own queue and the AVL reports are "
+					+ "assigned to a thread by hashing the vehicle ID. This "
+					+ "guarantees that the reports for a vehicle are processed "
+					+ "in order even when using multiple threads. The "
+					+ "transitime.avl.queueSize is divided among the threads. "
+					+ "If false then a single queue is shared by all the "
+					+ "threads.");
+	
+	private static BooleanConfigValue coalesceByVehicle =
+			new BooleanConfigValue("transitime.avl.coalesceByVehicle", false,
+					"If true then instead of a bounded AvlQueue an "
+					+ "AvlCoalescingQueue is used, which holds at most one "
+					+ "pending AVL report per vehicle and replaces it when a "
+					+ "newer report arrives. The queue size is then bounded by "
+					+ "the number of vehicles so transitime.avl.queueSize is "
+					+ "not used and AVL reports are never rejected. Since the "
+					+ "queue never fills only one thread is used per queue, so "
+					+ "should be used with transitime.avl.shardByVehicle in "
+					+ "order to use multiple threads.");
+	
 	private static final Logger logger= 
 			LoggerFactory.getLogger(AvlExecutor.class);	
 
@@ -104,24 +139,57 @@ public class AvlExecutor {
 		}
 
 		logger.info("Starting AvlExecutor for directly handling AVL reports " +
-				"via a queue instead of JMS. maxAVLQueueSize={} and "
-				+ "numberThreads={}", 
-				maxAVLQueueSize, numberThreads);
+				"via a queue instead of JMS. maxAVLQueueSize={} "
+				+ "numberThreads={} shardByVehicle={} coalesceByVehicle={}", 
+				maxAVLQueueSize, numberThreads, shardByVehicle.getValue(),
+				coalesceByVehicle.getValue());
 
-		// Start up the ThreadPoolExecutor
+		if (shardByVehicle.getValue()) {
+			// Create a single threaded executor for each lane so that the
+			// AVL reports for a vehicle are always handled in order. The
+			// queue capacity is divided among the lanes.
+			int laneQueueSize = 
+					Math.max(1, (maxAVLQueueSize + numberThreads - 1)
+							/ numberThreads);
+			avlClientExecutors = new ThreadPoolExecutor[numberThreads];
+			for (int lane = 0; lane < numberThreads; ++lane) {
+				avlClientExecutors[lane] =
+						createExecutor(1, laneQueueSize, "avlClient" + lane);
+			}
+		} else {
+			avlClientExecutors = new ThreadPoolExecutor[] { 
+					createExecutor(numberThreads, maxAVLQueueSize, "avlClient") };
+		}
+	}
+	
+	/**
+	 * Creates a ThreadPoolExecutor that uses an AvlQueue so that obsolete AVL
+	 * reports are discarded, or an AvlCoalescingQueue if configured to
+	 * coalesce AVL reports by vehicle.
+	 * 
+	 * @param maximumPoolSize
+	 *            Max number of threads for the executor
+	 * @param queueSize
+	 *            Capacity of the AvlQueue
+	 * @param threadName
+	 *            Name used for the threads
+	 * @return the new executor
+	 */
+	private static ThreadPoolExecutor createExecutor(int maximumPoolSize,
+			final int queueSize, String threadName) {
 		int corePoolSize = 1;
-		int maximumPoolSize = numberThreads;
 		long keepAliveTime = 1; /* 1 hour */
-		BlockingQueue<Runnable> workQueue = new AvlQueue(maxAVLQueueSize);
+		BlockingQueue<Runnable> workQueue = coalesceByVehicle.getValue() ?
+				new AvlCoalescingQueue() : new AvlQueue(queueSize);
 		NamedThreadFactory avlClientThreadFactory =
-				new NamedThreadFactory("avlClient");
+				new NamedThreadFactory(threadName);
 		// Called when queue fills up
 		RejectedExecutionHandler rejectedHandler = new RejectedExecutionHandler() {
 			@Override
 			public void	rejectedExecution(Runnable arg0, ThreadPoolExecutor arg1) {
 				String message = "Rejected AVL report in AvlExecutor for agencyId=" 
 						+ AgencyConfig.getAgencyId() + ". The work "
-						+ "queue with capacity " + maxAVLQueueSize 
+						+ "queue with capacity " + queueSize 
 						+ " must be full. " + ((AvlClient) arg0).getAvlReport();
 				// If first one then send out an e-mail message since this can 
 				// be a serious issue indicating that system is locked up. This
@@ -135,11 +203,26 @@ public class AvlExecutor {
 				}
 			}};
 		
-		avlClientExecutor =
-				new ThreadPoolExecutor(corePoolSize, maximumPoolSize,
-						keepAliveTime, TimeUnit.HOURS, workQueue,
-						avlClientThreadFactory,
-						rejectedHandler);
+		return new ThreadPoolExecutor(corePoolSize, maximumPoolSize,
+				keepAliveTime, TimeUnit.HOURS, workQueue,
+				avlClientThreadFactory, rejectedHandler);
+	}
+	
+	/**
+	 * Returns the executor to use for the vehicle. If sharding by vehicle then
+	 * the lane is determined by hashing the vehicle ID so that all reports for
+	 * a vehicle go to the same single threaded executor.
+	 * 
+	 * @param vehicleId
+	 * @return executor for the vehicle
+	 */
+	private ThreadPoolExecutor getExecutor(String vehicleId) {
+		if (avlClientExecutors.length == 1)
+			return avlClientExecutors[0];
+		
+		int lane = (vehicleId.hashCode() & Integer.MAX_VALUE) 
+				% avlClientExecutors.length;
+		return avlClientExecutors[lane];
 	}
 	
 	/**
@@ -170,6 +253,9 @@ public class AvlExecutor {
 	 * previous one is removed since there is no point processing an old AVL
 	 * report for a vehicle when new data is available.
 	 * <p>
+	 * When sharding by vehicle the report is queued on the lane for its
+	 * vehicle so that reports for a vehicle are processed in order.
+	 * <p>
 	 * Causes AvlClient.run() to be called on each AvlReport, unless using test
 	 * executor, in which case the AvlClientTester() is called.
 	 * 
@@ -185,7 +271,7 @@ public class AvlExecutor {
 		Runnable avlClient = !testing ? 
 				new AvlClient(newAvlReport) : new AvlClientTester(newAvlReport);
 
-		avlClientExecutor.execute(avlClient);		
+		getExecutor(newAvlReport.getVehicleId()).execute(avlClient);
 	}
 
 	/**
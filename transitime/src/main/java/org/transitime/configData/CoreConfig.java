@@ -172,6 +172,84 @@ public class CoreConfig {
 					+ "maxDistanceFromSegmentForAutoAssigning should be less"
 					+ "than or equal to maxDistanceFromSegment.");
 	
+	/**
+	 * Whether a spatial index of the stop path segments should be created
+	 * when the configuration is read in so that spatial matching only needs
+	 * to look at segments that are near the AVL location.
+	 * 
+	 * @return
+	 */
+	public static boolean useSpatialIndexForMatching() {
+		return useSpatialIndexForMatching.getValue();
+	}
+	private static BooleanConfigValue useSpatialIndexForMatching =
+			new BooleanConfigValue("transitime.core.useSpatialIndexForMatching",
+					true,
+					"Whether a grid based spatial index of the stop path "
+					+ "segments of all trip patterns should be created when "
+					+ "the configuration is read in. If true then spatial "
+					+ "matching only computes the distance to segments that "
+					+ "are near the AVL location instead of to every segment "
+					+ "of the trips being investigated.");
+	
+	/**
+	 * Size of the grid cells in meters for the spatial index of stop path
+	 * segments.
+	 * 
+	 * @return
+	 */
+	public static double getSpatialIndexCellSize() {
+		return spatialIndexCellSize.getValue();
+	}
+	private static DoubleConfigValue spatialIndexCellSize =
+			new DoubleConfigValue("transitime.core.spatialIndexCellSize",
+					250.0,
+					"Size of the grid cells in meters for the spatial index "
+					+ "of stop path segments. Should be a few times larger "
+					+ "than transitime.core.maxDistanceFromSegment. If too "
+					+ "small then segments are put into many cells which "
+					+ "wastes memory. If too large then more segments than "
+					+ "necessary are looked at when matching.");
+	
+	/**
+	 * Whether all of the schedule data for the blocks should be read in at
+	 * startup, in parallel, instead of being lazy loaded when a block is first
+	 * used.
+	 * 
+	 * @return
+	 */
+	public static boolean preloadSchedule() {
+		return preloadSchedule.getValue();
+	}
+	private static BooleanConfigValue preloadSchedule =
+			new BooleanConfigValue("transitime.core.preloadSchedule",
+					false,
+					"If true then at startup all blocks are read in along with "
+					+ "all of their trips, trip patterns, stop paths, schedule "
+					+ "times, and travel times. The data is read in using "
+					+ "multiple threads and is fully detached from the "
+					+ "database so that matching never needs to lazy load "
+					+ "data, which is done serially. Makes startup take "
+					+ "longer and use more memory but means that the system "
+					+ "is fast right away instead of being slow as each "
+					+ "block is first used.");
+	
+	/**
+	 * Number of threads to use for reading in the schedule data when
+	 * transitime.core.preloadSchedule is true.
+	 * 
+	 * @return
+	 */
+	public static int getPreloadScheduleThreads() {
+		return preloadScheduleThreads.getValue();
+	}
+	private static IntegerConfigValue preloadScheduleThreads =
+			new IntegerConfigValue("transitime.core.preloadScheduleThreads",
+					4,
+					"Number of threads, each with its own database session, "
+					+ "to use for reading in the schedule data at startup "
+					+ "when transitime.core.preloadSchedule is true.");
+	
 	/**
 	 * How many bad spatial/temporal matches a predictable vehicle can have in a
 	 * row before the vehicle is made unpredictable.
@@ -36,6 +36,7 @@ import org.transitime.core.autoAssigner.AutoBlockAssigner;
 import org.transitime.core.dataCache.PredictionDataCache;
 import org.transitime.core.dataCache.VehicleDataCache;
 import org.transitime.core.dataCache.VehicleStateManager;
+import org.transitime.core.schedBasedPreds.SchedBasedPredsGenerator;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.db.structs.Block;
 import org.transitime.db.structs.Location;
@@ -526,6 +527,13 @@ public class AvlProcessor {
 		// block.
 		if (bestMatch != null) {
 			unassignOtherVehiclesFromBlock(bestMatch.getBlock(), vehicleId);
+			
+			// If schedule based predictions were generated directly for the
+			// block then they are no longer needed
+			if (!avlReport.isForSchedBasedPreds())
+				SchedBasedPredsGenerator.getInstance().removePredictions(
+						bestMatch.getBlock().getId(),
+						"vehicleId=" + vehicleId + " was assigned to it");
 		}
 
 		// If got a valid match then keep track of state
@@ -24,6 +24,7 @@ import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
 import org.transitime.configData.AvlConfig;
 import org.transitime.configData.CoreConfig;
 import org.transitime.db.structs.AvlReport;
@@ -34,6 +35,7 @@ import org.transitime.db.structs.Route;
 import org.transitime.db.structs.StopPath;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.VectorWithHeading;
+import org.transitime.gtfs.DbConfig;
 import org.transitime.utils.Geo;
 import org.transitime.utils.Time;
 
@@ -94,6 +96,25 @@ public class SpatialMatcher {
 		this.startSearchSpatialMatch = startSearchSpatialMatch;
 	}
 
+	/**
+	 * Returns the spatial index of the trip patterns. Returns null if there
+	 * isn't one or if not running within a Core, such as when the matcher is
+	 * used in tests or tools. In that case all of the segments of a trip
+	 * pattern are looked at.
+	 * 
+	 * @return the spatial index or null
+	 */
+	private static TripPatternSpatialIndex getTripPatternSpatialIndex() {
+		if (!Core.isCoreApplication())
+			return null;
+		
+		DbConfig dbConfig = Core.getInstance().getDbConfig();
+		if (dbConfig == null)
+			return null;
+		
+		return dbConfig.getTripPatternSpatialIndex();
+	}
+
 	/**
 	 * Goes through entire TripPattern for specified Trip and determines spatial
 	 * matches. Matches must be within getMaxAllowableDistanceFromSegment()
@@ -126,20 +147,31 @@ public class SpatialMatcher {
 				allowableDistance))
 			return spatialMatches;
 		
-		// Start looking for matches at the beginning of the trip.
-		Indices indices = new Indices(block, block.getTripIndex(trip), 
-				0, // stopPathIndex
-				0); // segmentIndex
-
-		// Loop through stopPaths and segments until reach end of trip and
-		// add them to spatialMatches member
-		do {
-			processPossiblePotentialMatch(avlReport, indices, spatialMatches,
-					matchingType);
-
-			// For next iteration through while loop
-			indices.increment(avlReport.getTime());
-		} while (!indices.atBeginningOfTrip());
+		// If there is a spatial index then only need to look at the segments
+		// that are near the AVL report
+		TripPatternSpatialIndex spatialIndex = getTripPatternSpatialIndex();
+		int[] nearbySegments = spatialIndex == null ? null : 
+			spatialIndex.getNearbySegments(trip.getTripPattern().getId(),
+					avlReport.getLocation(), allowableDistance);
+		if (nearbySegments != null) {
+			processNearbySegments(avlReport, trip, nearbySegments, 
+					spatialMatches, matchingType);
+		} else {
+			// Start looking for matches at the beginning of the trip.
+			Indices indices = new Indices(block, block.getTripIndex(trip), 
+					0, // stopPathIndex
+					0); // segmentIndex
+	
+			// Loop through stopPaths and segments until reach end of trip and
+			// add them to spatialMatches member
+			do {
+				processPossiblePotentialMatch(avlReport, indices, spatialMatches,
+						matchingType);
+	
+				// For next iteration through while loop
+				indices.increment(avlReport.getTime());
+			} while (!indices.atBeginningOfTrip());
+		}
 
 		// Need to handle boundary condition. Done looking ahead but
 		// the end match might be a potential one even if was continuing
@@ -156,6 +188,87 @@ public class SpatialMatcher {
 		return spatialMatches;
 	}
 
+	/**
+	 * Like going through every segment of the trip and calling
+	 * processPossiblePotentialMatch() but only the segments from the spatial
+	 * index, which are the ones that could be within the allowable distance
+	 * plus the layover segments, are actually looked at. The segments in
+	 * between are known to be further away than the allowable distance and
+	 * are therefore handled by skippedFarAwaySegments().
+	 * 
+	 * @param avlReport
+	 * @param trip
+	 * @param nearbySegments
+	 *            Sorted packed segment indices from TripPatternSpatialIndex
+	 * @param spatialMatches
+	 *            The list of spatial matches that should add any additional
+	 *            matches to
+	 * @param matchingType
+	 *            for keeping track of what kind of spatial matching being done
+	 */
+	private void processNearbySegments(AvlReport avlReport, Trip trip,
+			int[] nearbySegments, List<SpatialMatch> spatialMatches,
+			MatchingType matchingType) {
+		Block block = trip.getBlock();
+		int tripIndex = block.getTripIndex(trip);
+		int numStopPaths = trip.getNumberStopPaths();
+		
+		// The stop path and segment that would be looked at next if going
+		// through every segment of the trip
+		int expectedStopPathIndex = 0;
+		int expectedSegmentIndex = 0;
+		for (int packed : nearbySegments) {
+			int stopPathIndex = TripPatternSpatialIndex.stopPathIndex(packed);
+			int segmentIndex = TripPatternSpatialIndex.segmentIndex(packed);
+			if (stopPathIndex != expectedStopPathIndex
+					|| segmentIndex != expectedSegmentIndex)
+				skippedFarAwaySegments(avlReport, spatialMatches);
+			
+			Indices indices = 
+					new Indices(block, tripIndex, stopPathIndex, segmentIndex);
+			processPossiblePotentialMatch(avlReport, indices, spatialMatches,
+					matchingType);
+			
+			// Determine what the next segment would be
+			if (segmentIndex + 1 < block.numSegments(tripIndex, stopPathIndex)) {
+				expectedStopPathIndex = stopPathIndex;
+				expectedSegmentIndex = segmentIndex + 1;
+			} else {
+				expectedStopPathIndex = stopPathIndex + 1;
+				expectedSegmentIndex = 0;
+			}
+		}
+		
+		// Handle the segments at the end of the trip that were skipped
+		if (expectedStopPathIndex < numStopPaths)
+			skippedFarAwaySegments(avlReport, spatialMatches);
+	}
+	
+	/**
+	 * Updates the state of the matcher the same way that calling
+	 * processPossiblePotentialMatch() for a series of non-layover segments
+	 * that are all further away than the allowable distance would. Since
+	 * the distance to such segments is increasing from any potential match
+	 * the potential match is a local minimum and is added to the list. And
+	 * since the next segment that is within the allowable distance will be
+	 * closer than the far away segments the previous distance is reset.
+	 * 
+	 * @param avlReport
+	 * @param spatialMatches
+	 */
+	private void skippedFarAwaySegments(AvlReport avlReport,
+			List<SpatialMatch> spatialMatches) {
+		if (previousPotentialSpatialMatch != null) {
+			logger.debug("For vehicleId={} skipping segments that are not "
+					+ "near the AVL report so adding the previous spatial "
+					+ "match to the list. {}", avlReport.getVehicleId(),
+					previousPotentialSpatialMatch);
+			spatialMatches.add(previousPotentialSpatialMatch);
+			previousPotentialSpatialMatch = null;
+		}
+		previousDistanceToSegment = Double.MAX_VALUE;
+	}
+	
 	/**
 	 * For list of spatial matches passed in returns the first non-layover
 	 * one. This is needed because for a trip always get a layover match
@@ -16,8 +16,8 @@
  */
 package org.transitime.core;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +37,15 @@ import org.transitime.utils.Time;
  * For handling when a vehicle doesn't report its position for too long. Makes
  * the vehicle unpredictable if a timeout occurs.
  * <p>
+ * Instead of looking at every vehicle each polling cycle a deadline is
+ * queued for each AVL report, the time at which the vehicle should be
+ * examined if it hasn't reported again. Each polling cycle only the
+ * vehicles whose deadlines have passed are examined. Deadlines for AVL
+ * reports that have since been superseded by a newer report are simply
+ * discarded when they reach the head of the queue. The map and the queue
+ * are concurrent so that storing an AVL report never blocks on a polling
+ * cycle.
+ * <p>
  * Note: only predictable vehicles are timed out. This is because vehicles that
  * are not in service are likely to get turned off and not report their position
  * for a long period of time. Plus since they are already not predictable there
@@ -48,10 +57,16 @@ import org.transitime.utils.Time;
 public class TimeoutHandlerModule extends Module {
 
 	// For keeping track of the last AVL report for each vehicle. Keyed on 
-	// vehicle ID. Synchronize map modifications since elsewhere the elements 
-	// can be removed from the map.
-	private HashMap<String, AvlReport> avlReportsMap = 
-			new HashMap<String, AvlReport>();
+	// vehicle ID. Concurrent since elements are removed by the polling
+	// thread while AVL reports are being stored.
+	private final ConcurrentHashMap<String, AvlReport> avlReportsMap = 
+			new ConcurrentHashMap<String, AvlReport>();
+
+	// When each vehicle needs to be examined next, ordered by deadline. Can
+	// contain stale entries for AVL reports that are no longer the latest
+	// one for the vehicle. Those are ignored.
+	private final PriorityBlockingQueue<TimeoutDeadline> deadlines =
+			new PriorityBlockingQueue<TimeoutDeadline>();
 
 	/********************* Parameters *********************************/
 
@@ -60,11 +75,11 @@ public class TimeoutHandlerModule extends Module {
 					"transitime.timeout.pollingRateSecs", 
 					30,
 					"Specifies in seconds how frequently the TimeoutHandler "
-					+ "should actually look for timeouts. Don't want to do "
-					+ "this too frequently because because "
-					+ "TimeoutHandler.handlePossibleTimeout() is called with "
-					+ "every new AVL report and it has to look at every "
-					+ "vehicle to see if has been timed out.");
+					+ "should actually look for timeouts. Only vehicles "
+					+ "that have not reported within their allowable time "
+					+ "are examined. Vehicles that have passed that time but "
+					+ "have not yet been timed out, such as ones at a wait "
+					+ "stop, are examined again every polling cycle.");
 
 	private static IntegerConfigValue allowableNoAvlSecs =
 			new IntegerConfigValue(
@@ -94,6 +109,27 @@ public class TimeoutHandlerModule extends Module {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * The time at which a vehicle should be examined to see if it has timed
+	 * out, along with the AVL report that the deadline is for so that stale
+	 * deadlines can be recognized.
+	 */
+	private static class TimeoutDeadline implements Comparable<TimeoutDeadline> {
+		private final long deadline;
+		private final AvlReport avlReport;
+		
+		private TimeoutDeadline(long deadline, AvlReport avlReport) {
+			this.deadline = deadline;
+			this.avlReport = avlReport;
+		}
+
+		@Override
+		public int compareTo(TimeoutDeadline other) {
+			return deadline < other.deadline ? 
+					-1 : (deadline == other.deadline ? 0 : 1);
+		}
+	}
+	
 	/**
 	 * Constructor
 	 */
@@ -103,17 +139,23 @@ public class TimeoutHandlerModule extends Module {
 
 	/**
 	 * Stores the specified AVL report into map so know the last time received
-	 * AVL data for the vehicle.
+	 * AVL data for the vehicle and queues the deadline for when the vehicle
+	 * should be examined if it doesn't report again. Schedule based vehicles
+	 * can time out at any time, not just when AVL reports stop, so they are
+	 * examined starting with the next polling cycle.
 	 * 
 	 * @param avlReport
 	 *            AVL report to store
 	 */
 	public void storeAvlReport(AvlReport avlReport) {
-		// Synchronize map modifications since elsewhere the elements can be removed
-		// from the map.
-		synchronized (avlReportsMap) {
-			avlReportsMap.put(avlReport.getVehicleId(), avlReport);
-		}
+		// Put the report into the map before queuing the deadline so that
+		// when the deadline is handled the map is already up to date
+		avlReportsMap.put(avlReport.getVehicleId(), avlReport);
+		
+		long deadline = avlReport.getTime();
+		if (!avlReport.isForSchedBasedPreds())
+			deadline += allowableNoAvlSecs.getValue() * Time.MS_PER_SEC;
+		deadlines.add(new TimeoutDeadline(deadline, avlReport));
 	}
 	
 	/**
@@ -123,9 +165,10 @@ public class TimeoutHandlerModule extends Module {
 	 * 
 	 * @param vehicleState
 	 * @param now
-	 * @param mapIterator
+	 * @return true if the vehicle was timed out
 	 */
-	private void handlePredictablePossibleTimeout(VehicleState vehicleState, long now, Iterator<AvlReport> mapIterator) {
+	private boolean handlePredictablePossibleTimeout(VehicleState vehicleState,
+			long now) {
 		// If haven't reported in too long...
 		long maxNoAvl = allowableNoAvlSecs.getValue() * Time.MS_PER_SEC;
 		if (now > vehicleState.getAvlReport().getTime() + maxNoAvl) {
@@ -145,24 +188,12 @@ public class TimeoutHandlerModule extends Module {
 			logger.info("For vehicleId={} {}", 
 					vehicleState.getVehicleId(), eventDescription);
 			
-			// Remove vehicle from map for next time looking for timeouts
-			mapIterator.remove();
-			
+			return true;
 		}
+		
+		return false;
 	}
 	
-	/**
-	 * Don't need to worry about vehicles that are not predictable. But might as
-	 * well remove vehicle from map so don't examine vehicle every
-	 * TimeoutHandleModule polling cycle
-	 * 
-	 * @param mapIterator
-	 *            So can remove AVL report from map
-	 */
-	private void handleNotPredictablePossibleTimeout(Iterator<AvlReport> mapIterator) {
-		mapIterator.remove();
-	}
-
 	/**
 	 * For schedule based predictions. If past the scheduled departure time by
 	 * more than allowed amount then the schedule based vehicle is removed.
@@ -172,10 +203,10 @@ public class TimeoutHandlerModule extends Module {
 	 * 
 	 * @param vehicleState
 	 * @param now
-	 * @param mapIterator
+	 * @return true if the vehicle was timed out
 	 */
-	private void handleSchedBasedPredsPossibleTimeout(VehicleState vehicleState,
-					long now, Iterator<AvlReport> mapIterator) {
+	private boolean handleSchedBasedPredsPossibleTimeout(
+			VehicleState vehicleState, long now) {
 		// If should timeout the schedule based vehicle...
 		String shouldTimeoutEventDescription =
 				SchedBasedPredsModule.shouldTimeoutVehicle(vehicleState, now);				
@@ -189,9 +220,10 @@ public class TimeoutHandlerModule extends Module {
 					+ "event. {}", 
 					vehicleState.getVehicleId(), shouldTimeoutEventDescription);
 			
-			// Remove vehicle from map for next time looking for timeouts
-			mapIterator.remove();			
+			return true;
 		}
+		
+		return false;
 	}
 	
 	/**
@@ -201,15 +233,15 @@ public class TimeoutHandlerModule extends Module {
 	 * 
 	 * @param vehicleState
 	 * @param now
-	 * @param mapIterator
+	 * @return true if the vehicle was timed out
 	 */
-	private void handleWaitStopPossibleTimeout(VehicleState vehicleState,
-			long now, Iterator<AvlReport> mapIterator) {
+	private boolean handleWaitStopPossibleTimeout(VehicleState vehicleState,
+			long now) {
 		// If hasn't been too long between AVL reports then everything is fine
 		// and simply return
 		long maxNoAvl = allowableNoAvlSecs.getValue() * Time.MS_PER_SEC;
 		if (now < vehicleState.getAvlReport().getTime() + maxNoAvl)
-			return;
+			return false;
 
 		// It has been a long time since an AVL report so see if also past the 
 		// scheduled time for the wait stop
@@ -253,55 +285,79 @@ public class TimeoutHandlerModule extends Module {
 				logger.info("For vehicleId={} {}", 
 						vehicleState.getVehicleId(), eventDescription);
 				
-				// Remove vehicle from map for next time looking for timeouts
-				mapIterator.remove();
+				return true;
 			}
 		}
+		
+		return false;
 	}
 
 	/**
-	 * Goes through all vehicles and finds ones that have timed out
+	 * Determines if the vehicle has timed out and if so makes it
+	 * unpredictable.
+	 * 
+	 * @param avlReport
+	 *            The last AVL report for the vehicle
+	 * @param now
+	 * @return true if vehicle no longer needs to be examined, either because
+	 *         it was timed out or because it is not predictable
+	 */
+	private boolean handlePossibleTimeout(AvlReport avlReport, long now) {
+		// Get state of vehicle and handle based on it
+		VehicleState vehicleState = VehicleStateManager.getInstance()
+				.getVehicleState(avlReport.getVehicleId());
+
+		// Need to synchronize on vehicleState since it might be getting
+		// modified via a separate main AVL processing executor thread.
+		synchronized (vehicleState) {
+			if (!vehicleState.isPredictable()) {
+				// Vehicle is not predictable so don't need to worry about it
+				return true;
+			} else if (vehicleState.isForSchedBasedPreds()) {
+				// Handle schedule based predictions vehicle
+				return handleSchedBasedPredsPossibleTimeout(vehicleState, now);
+			} else if (vehicleState.isWaitStop()) {
+				// Handle where vehicle is at a wait stop
+				return handleWaitStopPossibleTimeout(vehicleState, now);
+			} else {
+				// Not a special case. Simply determine if vehicle 
+				// timed out
+				return handlePredictablePossibleTimeout(vehicleState, now);
+			}
+		}
+	}
+	
+	/**
+	 * Examines the vehicles whose deadlines have passed and finds ones that
+	 * have timed out. Vehicles that have not timed out are examined again
+	 * in the next polling cycle.
 	 */
 	public void handlePossibleTimeouts() {
 		// Determine what now is. Don't use System.currentTimeMillis() since
 		// that doesn't work for playback.
 		long now = Core.getInstance().getSystemTime();
+		long nextCheckTime = now + pollingRateSecs.getValue() * Time.MS_PER_SEC;
 
-		// Sync access to avlReportsMap since it can be simultaneously 
-		// modified elsewhere
-		synchronized (avlReportsMap) {				
-			// Using an Iterator instead of for(AvlReport a : map.values()) 
-			// because removing elements while iterating. Way to do this without
-			// getting concurrent access exception is to use an Iterator.
-			Iterator<AvlReport> mapIterator = avlReportsMap.values().iterator();
-			while (mapIterator.hasNext()) {
-				AvlReport avlReport = mapIterator.next();
-	
-				// Get state of vehicle and handle based on it
-				VehicleState vehicleState = VehicleStateManager.getInstance()
-						.getVehicleState(avlReport.getVehicleId());
-	
-				// Need to synchronize on vehicleState since it might be getting
-				// modified via a separate main AVL processing executor thread.
-				synchronized (vehicleState) {
-					if (!vehicleState.isPredictable()) {
-						// Vehicle is not predictable
-						handleNotPredictablePossibleTimeout(mapIterator);
-					} else if (vehicleState.isForSchedBasedPreds()) {
-						// Handle schedule based predictions vehicle
-						handleSchedBasedPredsPossibleTimeout(vehicleState, now,
-								mapIterator);
-					} else if (vehicleState.isWaitStop()) {
-						// Handle where vehicle is at a wait stop
-						handleWaitStopPossibleTimeout(vehicleState, now,
-								mapIterator);
-					} else {
-						// Not a special case. Simply determine if vehicle 
-						// timed out
-						handlePredictablePossibleTimeout(vehicleState, now,
-								mapIterator);
-					}
-				}
+		TimeoutDeadline timeoutDeadline;
+		while ((timeoutDeadline = deadlines.peek()) != null
+				&& timeoutDeadline.deadline <= now) {
+			// Only this thread removes from the queue so the head can only
+			// have changed to an even earlier deadline
+			timeoutDeadline = deadlines.poll();
+			
+			// If vehicle has reported since the deadline was queued then 
+			// the deadline is stale. There is a newer one for the vehicle.
+			AvlReport avlReport = timeoutDeadline.avlReport;
+			if (avlReportsMap.get(avlReport.getVehicleId()) != avlReport)
+				continue;
+
+			if (handlePossibleTimeout(avlReport, now)) {
+				// Remove vehicle from map so it isn't examined again. Only
+				// removed if a new AVL report hasn't come in meanwhile.
+				avlReportsMap.remove(avlReport.getVehicleId(), avlReport);
+			} else {
+				// Not timed out yet so examine again next polling cycle
+				deadlines.add(new TimeoutDeadline(nextCheckTime, avlReport));
 			}
 		}
 	}
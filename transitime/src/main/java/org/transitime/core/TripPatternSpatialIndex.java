@@ -0,0 +1,424 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.utils.Geo;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * A uniform grid index of all of the StopPath segments of the TripPatterns
+ * for a configuration. Built once when the configuration is read in and
+ * then only read so it is thread safe. Allows the SpatialMatcher to only look
+ * at the segments that are near an AVL location instead of having to
+ * determine the distance to every segment of a trip.
+ * <p>
+ * Locations are projected onto a plane using an equirectangular projection
+ * centered on the latitude of the agency. Each segment is added to every grid
+ * cell that its bounding box overlaps. Since the projection is not exactly
+ * the same as the one used by Geo.distance() the query distance is padded so
+ * that a segment that is within the specified distance of a location is
+ * always returned. Segments that are returned can of course still be further
+ * away than the specified distance so the caller needs to check the actual
+ * distance.
+ * <p>
+ * A segment within a trip pattern is identified by its stop path index and
+ * segment index packed into a single int, with the stop path index in the
+ * upper bits. This way sorting the packed values orders the segments the same
+ * way as traversing the trip pattern.
+ *
+ */
+public class TripPatternSpatialIndex {
+
+	// Size of grid cells in meters
+	private final double cellSize;
+
+	// For projecting latitude/longitudes onto a plane
+	private final double cosReferenceLatitude;
+
+	// Keyed on grid cell. The values are maps keyed on trip pattern ID
+	// of the sorted packed segment indices within the cell.
+	private final Map<Long, Map<String, int[]>> segmentsByCellMap;
+
+	// The packed indices of the layover segments for each trip pattern.
+	// Keyed on trip pattern ID. Layovers are special because the vehicle is
+	// allowed to be away from the path for a layover so they always need to
+	// be examined.
+	private final Map<String, int[]> layoverSegmentsByTripPatternMap;
+
+	// So that the query is certain to return all segments within the
+	// specified distance even though the projection is not exactly the same
+	// as the one used by Geo.distance().
+	private static final double DISTANCE_PADDING_FACTOR = 1.25;
+	private static final double DISTANCE_PADDING_METERS = 20.0;
+
+	// So can pack stop path and segment index into an int
+	private static final int SEGMENT_INDEX_BITS = 16;
+	private static final int MAX_INDEX = (1 << SEGMENT_INDEX_BITS) - 1;
+
+	private static final int[] EMPTY_ARRAY = new int[0];
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(TripPatternSpatialIndex.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Builds the index for all of the specified trip patterns.
+	 *
+	 * @param tripPatterns
+	 *            All of the trip patterns for the configuration
+	 * @param cellSize
+	 *            Size in meters of the grid cells. Should be a few times
+	 *            larger than the max distance that will be queried for.
+	 */
+	public TripPatternSpatialIndex(Collection<TripPattern> tripPatterns,
+			double cellSize) {
+		IntervalTimer timer = new IntervalTimer();
+
+		this.cellSize = cellSize;
+		this.cosReferenceLatitude =
+				Math.cos(Math.toRadians(referenceLatitude(tripPatterns)));
+
+		// Temporary structure for building up the lists of segments
+		Map<Long, Map<String, List<Integer>>> tempSegmentsByCellMap =
+				new HashMap<Long, Map<String, List<Integer>>>();
+		layoverSegmentsByTripPatternMap = new HashMap<String, int[]>();
+		int numSegments = 0;
+		for (TripPattern tripPattern : tripPatterns) {
+			List<StopPath> stopPaths = tripPattern.getStopPaths();
+			if (stopPaths.size() > MAX_INDEX) {
+				logger.error("Trip pattern {} has too many stop paths to be "
+						+ "spatially indexed so it will not be.",
+						tripPattern.getId());
+				continue;
+			}
+
+			// If any stop path has too many segments then don't index the
+			// trip pattern at all. Otherwise getNearbySegments() would
+			// return segments for the trip pattern that are missing the
+			// ones for that stop path instead of null, so the full scan
+			// wouldn't be done and the vehicle couldn't match there.
+			StopPath tooLongStopPath = null;
+			for (StopPath stopPath : stopPaths) {
+				if (stopPath.getLocations().size() - 1 > MAX_INDEX) {
+					tooLongStopPath = stopPath;
+					break;
+				}
+			}
+			if (tooLongStopPath != null) {
+				logger.error("Stop path {} has too many segments to be "
+						+ "spatially indexed so trip pattern {} will not be.",
+						tooLongStopPath, tripPattern.getId());
+				continue;
+			}
+
+			List<Integer> layoverSegments = new ArrayList<Integer>();
+			for (int stopPathIndex = 0;
+					stopPathIndex < stopPaths.size();
+					++stopPathIndex) {
+				StopPath stopPath = stopPaths.get(stopPathIndex);
+				List<Location> locs = stopPath.getLocations();
+				int numSegmentsInPath = locs.size() - 1;
+				for (int segmentIndex = 0;
+						segmentIndex < numSegmentsInPath;
+						++segmentIndex) {
+					int packed = pack(stopPathIndex, segmentIndex);
+					addSegment(tempSegmentsByCellMap, tripPattern.getId(),
+							packed, locs.get(segmentIndex),
+							locs.get(segmentIndex + 1));
+					++numSegments;
+				}
+
+				// Remember layover segments, which is the last segment
+				// of a layover stop path
+				if (stopPath.isLayoverStop() && numSegmentsInPath > 0)
+					layoverSegments.add(pack(stopPathIndex,
+							numSegmentsInPath - 1));
+			}
+			layoverSegmentsByTripPatternMap.put(tripPattern.getId(),
+					toSortedArray(layoverSegments));
+		}
+
+		// Convert the temporary lists into compact sorted arrays
+		segmentsByCellMap = new HashMap<Long, Map<String, int[]>>(
+				tempSegmentsByCellMap.size());
+		for (Map.Entry<Long, Map<String, List<Integer>>> cellEntry :
+				tempSegmentsByCellMap.entrySet()) {
+			Map<String, int[]> segmentsByTripPatternMap =
+					new HashMap<String, int[]>(cellEntry.getValue().size());
+			for (Map.Entry<String, List<Integer>> tripPatternEntry :
+					cellEntry.getValue().entrySet()) {
+				segmentsByTripPatternMap.put(tripPatternEntry.getKey(),
+						toSortedArray(tripPatternEntry.getValue()));
+			}
+			segmentsByCellMap.put(cellEntry.getKey(), segmentsByTripPatternMap);
+		}
+
+		logger.info("Created spatial index of {} segments for {} trip "
+				+ "patterns using {} cells of size {}m. Took {} msec.",
+				numSegments, layoverSegmentsByTripPatternMap.size(),
+				segmentsByCellMap.size(), cellSize, timer.elapsedMsec());
+	}
+
+	/**
+	 * Returns the latitude in the middle of the extents of the trip patterns
+	 * so that have a good reference latitude for the projection.
+	 *
+	 * @param tripPatterns
+	 * @return the reference latitude, or 0.0 if no trip patterns
+	 */
+	private static double referenceLatitude(
+			Collection<TripPattern> tripPatterns) {
+		double minLat = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		for (TripPattern tripPattern : tripPatterns) {
+			minLat = Math.min(minLat, tripPattern.getExtent().getMinLat());
+			maxLat = Math.max(maxLat, tripPattern.getExtent().getMaxLat());
+		}
+		if (minLat > maxLat)
+			return 0.0;
+		return (minLat + maxLat) / 2;
+	}
+
+	/**
+	 * Adds the segment specified by the two locations to all the cells that
+	 * its bounding box overlaps.
+	 */
+	private void addSegment(
+			Map<Long, Map<String, List<Integer>>> tempSegmentsByCellMap,
+			String tripPatternId, int packed, Location l1, Location l2) {
+		int minCellX = cellIndex(Math.min(x(l1), x(l2)));
+		int maxCellX = cellIndex(Math.max(x(l1), x(l2)));
+		int minCellY = cellIndex(Math.min(y(l1), y(l2)));
+		int maxCellY = cellIndex(Math.max(y(l1), y(l2)));
+		for (int cellX = minCellX; cellX <= maxCellX; ++cellX) {
+			for (int cellY = minCellY; cellY <= maxCellY; ++cellY) {
+				Long key = cellKey(cellX, cellY);
+				Map<String, List<Integer>> segmentsByTripPatternMap =
+						tempSegmentsByCellMap.get(key);
+				if (segmentsByTripPatternMap == null) {
+					segmentsByTripPatternMap =
+							new HashMap<String, List<Integer>>();
+					tempSegmentsByCellMap.put(key, segmentsByTripPatternMap);
+				}
+				List<Integer> segments =
+						segmentsByTripPatternMap.get(tripPatternId);
+				if (segments == null) {
+					segments = new ArrayList<Integer>();
+					segmentsByTripPatternMap.put(tripPatternId, segments);
+				}
+				segments.add(packed);
+			}
+		}
+	}
+
+	/**
+	 * Converts list of packed segment indices to a sorted array without
+	 * duplicates.
+	 */
+	private static int[] toSortedArray(List<Integer> list) {
+		if (list.isEmpty())
+			return EMPTY_ARRAY;
+
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; ++i)
+			array[i] = list.get(i);
+		Arrays.sort(array);
+		return removeDuplicates(array, array.length);
+	}
+
+	/**
+	 * Returns sorted array with duplicates removed
+	 *
+	 * @param sortedArray
+	 *            Sorted array, possibly with duplicates
+	 * @param length
+	 *            Number of elements in sortedArray to use
+	 * @return array without duplicates
+	 */
+	private static int[] removeDuplicates(int[] sortedArray, int length) {
+		int numUnique = 0;
+		for (int i = 0; i < length; ++i) {
+			if (numUnique == 0 || sortedArray[i] != sortedArray[numUnique-1])
+				sortedArray[numUnique++] = sortedArray[i];
+		}
+		return numUnique == sortedArray.length ?
+				sortedArray : Arrays.copyOf(sortedArray, numUnique);
+	}
+
+	private double x(Location loc) {
+		return Math.toRadians(loc.getLon()) * cosReferenceLatitude
+				* Geo.RADIUS_OF_EARTH_IN_METERS;
+	}
+
+	private double y(Location loc) {
+		return Math.toRadians(loc.getLat()) * Geo.RADIUS_OF_EARTH_IN_METERS;
+	}
+
+	private int cellIndex(double coordinate) {
+		return (int) Math.floor(coordinate / cellSize);
+	}
+
+	private static Long cellKey(int cellX, int cellY) {
+		return (((long) cellX) << 32) | (cellY & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns the cell keys for the cells that are within the padded
+	 * distance of the location.
+	 */
+	private List<Long> nearbyCellKeys(Location loc, double distance) {
+		double paddedDistance =
+				distance * DISTANCE_PADDING_FACTOR + DISTANCE_PADDING_METERS;
+		double x = x(loc);
+		double y = y(loc);
+		int minCellX = cellIndex(x - paddedDistance);
+		int maxCellX = cellIndex(x + paddedDistance);
+		int minCellY = cellIndex(y - paddedDistance);
+		int maxCellY = cellIndex(y + paddedDistance);
+
+		List<Long> keys = new ArrayList<Long>(
+				(maxCellX - minCellX + 1) * (maxCellY - minCellY + 1));
+		for (int cellX = minCellX; cellX <= maxCellX; ++cellX) {
+			for (int cellY = minCellY; cellY <= maxCellY; ++cellY) {
+				keys.add(cellKey(cellX, cellY));
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Packs the stop path index and segment index into a single int such
+	 * that sorting the packed values orders them along the trip pattern.
+	 */
+	private static int pack(int stopPathIndex, int segmentIndex) {
+		return (stopPathIndex << SEGMENT_INDEX_BITS) | segmentIndex;
+	}
+
+	/**
+	 * @param packed
+	 *            packed value from getNearbySegments()
+	 * @return the stop path index of the packed segment
+	 */
+	public static int stopPathIndex(int packed) {
+		return packed >>> SEGMENT_INDEX_BITS;
+	}
+
+	/**
+	 * @param packed
+	 *            packed value from getNearbySegments()
+	 * @return the segment index of the packed segment
+	 */
+	public static int segmentIndex(int packed) {
+		return packed & MAX_INDEX;
+	}
+
+	/**
+	 * Returns the segments of the trip pattern that might be within the
+	 * specified distance of the location, plus all of the layover segments of
+	 * the trip pattern since layovers always need to be looked at. Every
+	 * segment that is actually within the distance is guaranteed to be
+	 * included.
+	 *
+	 * @param tripPatternId
+	 * @param loc
+	 * @param distance
+	 *            in meters
+	 * @return Sorted array of packed segment indices, or null if the trip
+	 *         pattern is not in the index. Use stopPathIndex() and
+	 *         segmentIndex() to unpack the values.
+	 */
+	public int[] getNearbySegments(String tripPatternId, Location loc,
+			double distance) {
+		int[] layoverSegments =
+				layoverSegmentsByTripPatternMap.get(tripPatternId);
+		if (layoverSegments == null)
+			return null;
+
+		// Gather the segments from each nearby cell
+		int[] result = layoverSegments;
+		int length = layoverSegments.length;
+		boolean copied = false;
+		for (Long key : nearbyCellKeys(loc, distance)) {
+			Map<String, int[]> segmentsByTripPatternMap =
+					segmentsByCellMap.get(key);
+			if (segmentsByTripPatternMap == null)
+				continue;
+			int[] segments = segmentsByTripPatternMap.get(tripPatternId);
+			if (segments == null)
+				continue;
+
+			if (!copied || length + segments.length > result.length) {
+				result = Arrays.copyOf(result,
+						Math.max(2 * result.length, length + segments.length));
+				copied = true;
+			}
+			System.arraycopy(segments, 0, result, length, segments.length);
+			length += segments.length;
+		}
+
+		if (!copied)
+			return layoverSegments;
+
+		Arrays.sort(result, 0, length);
+		return removeDuplicates(result, length);
+	}
+
+	/**
+	 * Returns the IDs of the trip patterns that have a segment that might be
+	 * within the specified distance of the location. Every trip pattern that
+	 * actually has a segment within the distance is guaranteed to be
+	 * included. Layovers are not taken into account.
+	 *
+	 * @param loc
+	 * @param distance
+	 *            in meters
+	 * @return Set of trip pattern IDs. Can be empty but not null.
+	 */
+	public Set<String> getNearbyTripPatternIds(Location loc, double distance) {
+		Set<String> tripPatternIds = null;
+		for (Long key : nearbyCellKeys(loc, distance)) {
+			Map<String, int[]> segmentsByTripPatternMap =
+					segmentsByCellMap.get(key);
+			if (segmentsByTripPatternMap == null)
+				continue;
+			if (tripPatternIds == null)
+				tripPatternIds = new HashSet<String>();
+			tripPatternIds.addAll(segmentsByTripPatternMap.keySet());
+		}
+
+		if (tripPatternIds == null)
+			return Collections.emptySet();
+		return tripPatternIds;
+	}
+
+}
@@ -0,0 +1,279 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.autoAssigner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.configData.CoreConfig;
+import org.transitime.core.BlocksInfo;
+import org.transitime.core.TripPatternSpatialIndex;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Trip;
+import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.Time;
+
+/**
+ * A fleet-wide index, shared by all vehicles, of which active blocks have
+ * trips for each trip pattern. Combined with the TripPatternSpatialIndex this
+ * allows the AutoBlockAssigner to only look at the active blocks that have a
+ * trip pattern near the AVL report instead of spatially matching the AVL
+ * report to every active block. This is especially important during pull-out
+ * time when many vehicles need to be auto assigned at once.
+ * <p>
+ * The index is rebuilt every transitime.autoBlockAssigner.activeTripPatternsIndexRefreshSecs
+ * and covers the trips that are active anytime within a window around the
+ * time it was built so that it doesn't miss any trips that become active
+ * before the next rebuild. The index is immutable once built and is replaced
+ * atomically so it can be safely used by multiple AVL threads at once.
+ *
+ */
+public class ActiveTripPatternsIndex {
+
+	// The current immutable snapshot. Replaced when it gets too old.
+	private volatile Snapshot snapshot = null;
+
+	private static final ActiveTripPatternsIndex singleton =
+			new ActiveTripPatternsIndex();
+
+	private static BooleanConfigValue useActiveTripPatternsIndex =
+			new BooleanConfigValue(
+					"transitime.autoBlockAssigner.useActiveTripPatternsIndex",
+					true,
+					"If true then the auto assigner only examines the active "
+					+ "blocks that have a trip pattern near the AVL report "
+					+ "instead of every active block. Requires "
+					+ "transitime.core.useSpatialIndexForMatching to be true.");
+
+	private static IntegerConfigValue refreshSecs =
+			new IntegerConfigValue(
+					"transitime.autoBlockAssigner.activeTripPatternsIndexRefreshSecs",
+					60,
+					"How frequently in seconds the index of active trip "
+					+ "patterns used by the auto assigner is rebuilt.");
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ActiveTripPatternsIndex.class);
+
+	/**
+	 * Immutable snapshot of the active blocks and which of them use each trip
+	 * pattern.
+	 */
+	private static class Snapshot {
+		// When the snapshot was built
+		private final long buildTime;
+		// Range of epoch times that the snapshot covers
+		private final long beginTime;
+		private final long endTime;
+		// The active blocks, in the order provided by BlocksInfo
+		private final List<Block> activeBlocks;
+		// The active blocks that have a trip for the trip pattern, keyed
+		// on trip pattern ID
+		private final Map<String, List<Block>> blocksByTripPatternMap;
+
+		private Snapshot(long buildTime, long beginTime, long endTime,
+				List<Block> activeBlocks,
+				Map<String, List<Block>> blocksByTripPatternMap) {
+			this.buildTime = buildTime;
+			this.beginTime = beginTime;
+			this.endTime = endTime;
+			this.activeBlocks = activeBlocks;
+			this.blocksByTripPatternMap = blocksByTripPatternMap;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Singleton class so constructor is private
+	 */
+	private ActiveTripPatternsIndex() {
+	}
+
+	/**
+	 * @return the singleton ActiveTripPatternsIndex
+	 */
+	public static ActiveTripPatternsIndex getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Returns true if the trip is active anytime between the specified times
+	 * of day. Uses the same definition of active as
+	 * Block.getTripsCurrentlyActive(), including handling trips that span
+	 * midnight.
+	 *
+	 * @param trip
+	 * @param beginSecsInDay
+	 * @param endSecsInDay
+	 * @return true if active during the time range
+	 */
+	private static boolean activeDuring(Trip trip, int beginSecsInDay,
+			int endSecsInDay) {
+		int activeBegin =
+				trip.getStartTime() - CoreConfig.getAllowableEarlyForLayoverSeconds();
+		int activeEnd = trip.getEndTime();
+		for (int offset = -Time.SEC_PER_DAY;
+				offset <= Time.SEC_PER_DAY;
+				offset += Time.SEC_PER_DAY) {
+			if (endSecsInDay + offset > activeBegin
+					&& beginSecsInDay + offset < activeEnd)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Builds a new snapshot covering the window around the specified time.
+	 * The window goes back one refresh period so that slightly old AVL
+	 * reports are covered, and forward two refresh periods so that trips
+	 * that become active before the next rebuild are covered.
+	 *
+	 * @param now
+	 * @return the new snapshot
+	 */
+	private static Snapshot build(long now) {
+		IntervalTimer timer = new IntervalTimer();
+
+		int refreshMsec = refreshSecs.getValue() * Time.MS_PER_SEC;
+		long beginTime = now - refreshMsec;
+		long endTime = now + 2 * refreshMsec;
+		int beginSecsInDay =
+				Core.getInstance().getTime().getSecondsIntoDay(beginTime);
+		int endSecsInDay = beginSecsInDay + 3 * refreshSecs.getValue();
+
+		List<Block> activeBlocks = BlocksInfo.getCurrentlyActiveBlocks(null,
+				null, 2 * refreshSecs.getValue(), -1);
+		Map<String, List<Block>> blocksByTripPatternMap =
+				new HashMap<String, List<Block>>();
+		for (Block block : activeBlocks) {
+			for (Trip trip : block.getTrips()) {
+				if (!activeDuring(trip, beginSecsInDay, endSecsInDay))
+					continue;
+
+				String tripPatternId = trip.getTripPattern().getId();
+				List<Block> blocks = blocksByTripPatternMap.get(tripPatternId);
+				if (blocks == null) {
+					blocks = new ArrayList<Block>();
+					blocksByTripPatternMap.put(tripPatternId, blocks);
+				}
+				// A block can have multiple trips for the same trip pattern
+				if (blocks.isEmpty() || blocks.get(blocks.size()-1) != block)
+					blocks.add(block);
+			}
+		}
+
+		logger.info("Built index of {} active trip patterns for {} active "
+				+ "blocks. Took {} msec.", blocksByTripPatternMap.size(),
+				activeBlocks.size(), timer.elapsedMsec());
+
+		return new Snapshot(now, beginTime, endTime, activeBlocks,
+				blocksByTripPatternMap);
+	}
+
+	/**
+	 * Returns the current snapshot, rebuilding it first if it is too old.
+	 * Only one thread rebuilds the snapshot.
+	 *
+	 * @return the current snapshot
+	 */
+	private Snapshot getSnapshot() {
+		long now = Core.getInstance().getSystemTime();
+		long refreshMsec = refreshSecs.getValue() * Time.MS_PER_SEC;
+		Snapshot current = snapshot;
+		if (current != null && now >= current.buildTime
+				&& now < current.buildTime + refreshMsec)
+			return current;
+
+		synchronized (this) {
+			// Another thread might have just rebuilt the snapshot
+			current = snapshot;
+			if (current == null || now < current.buildTime
+					|| now >= current.buildTime + refreshMsec) {
+				current = build(now);
+				snapshot = current;
+			}
+			return current;
+		}
+	}
+
+	/**
+	 * Returns the active blocks that have an active trip with a trip pattern
+	 * that is near the AVL report. Blocks that are not returned can't have a
+	 * non-layover spatial match within the specified distance of the AVL
+	 * report. The blocks are returned in the same order as
+	 * BlocksInfo.getCurrentlyActiveBlocks().
+	 *
+	 * @param avlReport
+	 * @param distance
+	 *            The max allowable distance from segment for auto assigning
+	 * @return List of blocks to examine, or null if the index is not enabled
+	 *         or doesn't cover the time of the AVL report and therefore all
+	 *         active blocks need to be examined.
+	 */
+	public List<Block> getActiveBlocksNear(AvlReport avlReport,
+			double distance) {
+		if (!useActiveTripPatternsIndex.getValue())
+			return null;
+
+		TripPatternSpatialIndex spatialIndex =
+				Core.getInstance().getDbConfig().getTripPatternSpatialIndex();
+		if (spatialIndex == null)
+			return null;
+
+		Snapshot current = getSnapshot();
+		if (avlReport.getTime() < current.beginTime
+				|| avlReport.getTime() > current.endTime) {
+			logger.debug("AVL report time is outside of the time range of "
+					+ "the active trip patterns index so cannot use it. {}",
+					avlReport);
+			return null;
+		}
+
+		// Determine the blocks that have a nearby active trip pattern
+		Set<Block> nearbyBlocks =
+				Collections.newSetFromMap(new IdentityHashMap<Block, Boolean>());
+		for (String tripPatternId : spatialIndex.getNearbyTripPatternIds(
+				avlReport.getLocation(), distance)) {
+			List<Block> blocks =
+					current.blocksByTripPatternMap.get(tripPatternId);
+			if (blocks != null)
+				nearbyBlocks.addAll(blocks);
+		}
+
+		// Return them in the same order as the active blocks
+		List<Block> result = new ArrayList<Block>(nearbyBlocks.size());
+		if (!nearbyBlocks.isEmpty()) {
+			for (Block block : current.activeBlocks) {
+				if (nearbyBlocks.contains(block))
+					result.add(block);
+			}
+		}
+		return result;
+	}
+}
@@ -22,6 +22,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,7 +61,9 @@ import org.transitime.utils.Time;
  * the current report. Even with all of this optimization it can take a while to
  * match a vehicle since have to look at every stop path for each available trip
  * pattern. For an agency with ~250 available blocks this can take about 1/2 a
- * second.
+ * second. Therefore, when the spatial index is available, the
+ * ActiveTripPatternsIndex is used so that only the active blocks with a trip
+ * pattern near the vehicle are examined.
  *
  * @author SkiBu Smith
  *
@@ -135,9 +138,10 @@ public class AutoBlockAssigner {
 					+ "frequently auto assigner called for vehicle");
 	
 	// For keeping track of last time vehicle auto assigned so that can limit 
-	// how frequently it is done. Keyed on vehicleId
-	private static HashMap<String, Long> timeVehicleLastAutoAssigned =
-			new HashMap<String, Long>();
+	// how frequently it is done. Keyed on vehicleId. Concurrent since 
+	// vehicles can be auto assigned by multiple AVL threads at once.
+	private static Map<String, Long> timeVehicleLastAutoAssigned =
+			new ConcurrentHashMap<String, Long>();
 	
 	/*********************** Logging **********************************/
 	
@@ -213,15 +217,34 @@ public class AutoBlockAssigner {
 	}
 
 	/**
-	 * Determines which blocks are currently active and are not assigned to a
-	 * vehicle, meaning that they are available for assignment.
+	 * Determines which blocks are currently active and worth examining. If
+	 * the ActiveTripPatternsIndex can be used then only the active blocks with
+	 * a trip pattern near the AVL report are returned. Otherwise all of the
+	 * currently active blocks are returned.
 	 * 
+	 * @return List of active blocks to examine. Can be empty but not null
+	 */
+	private List<Block> activeBlocks() {
+		List<Block> nearbyActiveBlocks = ActiveTripPatternsIndex.getInstance()
+				.getActiveBlocksNear(getAvlReport(),
+						CoreConfig.getMaxDistanceFromSegmentForAutoAssigning());
+		if (nearbyActiveBlocks != null)
+			return nearbyActiveBlocks;
+		
+		return BlocksInfo.getCurrentlyActiveBlocks();
+	}
+	
+	/**
+	 * Determines which of the active blocks are not assigned to a vehicle,
+	 * meaning that they are available for assignment.
+	 * 
+	 * @param activeBlocks
+	 *            The active blocks to look at
 	 * @return List of blocks that are available for assignment. Can be empty
 	 *         but not null
 	 */
-	private List<Block> unassignedActiveBlocks() {
+	private List<Block> unassignedActiveBlocks(List<Block> activeBlocks) {
 		List<Block> currentlyUnassignedBlocks = new ArrayList<Block>();
-		List<Block> activeBlocks = BlocksInfo.getCurrentlyActiveBlocks();
 		for (Block block : activeBlocks) {
 			if (isBlockUnassigned(block.getId())) {
 				// No vehicles assigned to this active block so should see
@@ -667,8 +690,9 @@ public class AutoBlockAssigner {
 		// blocks are to be exclusive then only look at the ones currently
 		// not used. But if not to be exclusive, such as for no schedule based
 		// routes, then look at all active blocks.
+		List<Block> activeBlocks = activeBlocks();
 		List<Block> blocksToExamine = CoreConfig.exclusiveBlockAssignments() ? 
-				unassignedActiveBlocks() : BlocksInfo.getCurrentlyActiveBlocks();
+				unassignedActiveBlocks(activeBlocks) : activeBlocks;
 		
 		if (blocksToExamine.isEmpty()) {
 			logger.info("No currently active blocks to assign vehicleId={} to.",
@@ -0,0 +1,151 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps track of which keys of a cache have changed so that clients can be
+ * sent just the changes since they last asked instead of all of the data.
+ * Each call to changed() assigns the next sequence number to the key. A
+ * client remembers the sequence number of the last changes it received and
+ * then asks for the keys changed since then.
+ * <p>
+ * A cache should first update its data and then call changed(). When
+ * determining the changes getSequence() should be called before
+ * getKeysChangedSince(). This way any change with a sequence number up to
+ * the one returned by getSequence() is guaranteed to be found. A change can
+ * be reported twice but is never missed.
+ * <p>
+ * Assigning the sequence number and recording it for the key are two
+ * separate steps. So that getSequence() never returns a sequence number whose
+ * key has not yet been recorded, changed() holds the read lock of a
+ * ReadWriteLock while doing both steps and getSequence() takes the write
+ * lock. Since many threads can hold the read lock at once calls to changed()
+ * don't block each other.
+ * <p>
+ * The trackerId identifies this particular tracker. Since it is based on
+ * the time the tracker was created it changes when the core system is
+ * restarted, which is when the sequence numbers start over. If a client
+ * provides a different trackerId then it needs to be sent all of the data.
+ *
+ * @param <K>
+ *            Type of the key identifying the data that changed. Needs
+ *            proper equals() and hashCode() methods.
+ */
+public class ChangeTracker<K> {
+
+	// Identifies the tracker so that clients can tell if the sequence
+	// numbers start over because the core system was restarted
+	private final long trackerId = System.currentTimeMillis();
+
+	// The sequence number of the last change
+	private final AtomicLong sequence = new AtomicLong();
+
+	// The sequence number of the last change for each key
+	private final Map<K, Long> sequenceByKeyMap =
+			new ConcurrentHashMap<K, Long>();
+
+	// Read lock is held by changed() while a change is in progress. Write
+	// lock is taken by getSequence() so that it waits for those changes.
+	private final ReadWriteLock changeLock = new ReentrantReadWriteLock();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Records that the data for the key has changed. Should be called after
+	 * the data has actually been updated.
+	 *
+	 * @param key
+	 */
+	public void changed(K key) {
+		changeLock.readLock().lock();
+		try {
+			sequenceByKeyMap.put(key, sequence.incrementAndGet());
+		} finally {
+			changeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The ID of this tracker. Changes when system restarted.
+	 */
+	public long getTrackerId() {
+		return trackerId;
+	}
+
+	/**
+	 * Returns the sequence number of the latest change. Waits for changes
+	 * that are in progress so that all changes up to the returned sequence
+	 * number have been recorded for their keys.
+	 *
+	 * @return The sequence number of the latest change
+	 */
+	public long getSequence() {
+		changeLock.writeLock().lock();
+		try {
+			return sequence.get();
+		} finally {
+			changeLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns true if the client's trackerId and sequence number can be used
+	 * to determine the changes. If not then the client needs all of the data.
+	 *
+	 * @param clientTrackerId
+	 * @param clientSequence
+	 * @return true if can provide just the changes
+	 */
+	public boolean canProvideChangesSince(long clientTrackerId,
+			long clientSequence) {
+		return clientTrackerId == trackerId
+				&& clientSequence >= 0
+				&& clientSequence <= sequence.get();
+	}
+
+	/**
+	 * Returns the keys that have changed since the specified sequence number.
+	 *
+	 * @param clientSequence
+	 * @return List of keys changed since the sequence number
+	 */
+	public List<K> getKeysChangedSince(long clientSequence) {
+		List<K> keys = new ArrayList<K>();
+		for (Map.Entry<K, Long> entry : sequenceByKeyMap.entrySet()) {
+			if (entry.getValue() > clientSequence)
+				keys.add(entry.getKey());
+		}
+		return keys;
+	}
+
+	@Override
+	public String toString() {
+		return "ChangeTracker ["
+				+ "trackerId=" + trackerId
+				+ ", sequence=" + sequence.get()
+				+ ", keys=" + sequenceByKeyMap.size()
+				+ "]";
+	}
+}
@@ -23,6 +23,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,8 +34,10 @@ import org.transitime.db.structs.Route;
 import org.transitime.db.structs.Stop;
 import org.transitime.db.structs.Trip;
 import org.transitime.gtfs.DbConfig;
+import org.transitime.ipc.data.IpcChanges;
 import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.ipc.data.IpcPredictionsList;
 import org.transitime.ipc.interfaces.PredictionsInterface.RouteStop;
 import org.transitime.utils.MapKey;
 import org.transitime.utils.Time;
@@ -51,7 +54,13 @@ import org.transitime.utils.Time;
  * a prediction to be missed.
  * <p>
  * For concurrency and thread safety using ConcurrentHashMap instead of 
- * HashMap. 
+ * HashMap. The list of IpcPredictionsForRouteStopDest for each route/stop is
+ * a CopyOnWriteArrayList since a destination is only rarely added but the
+ * list is read for every request. And each IpcPredictionsForRouteStopDest
+ * keeps its predictions as a copy-on-write snapshot that is atomically
+ * replaced when the predictions are updated. Therefore reading predictions
+ * doesn't require any locking and doesn't contend with the threads
+ * updating predictions.
  * <p> 
  * getPredictions() returns a copy of the list of predictions for the
  * route/stop. This way the contents will always be coherent and the 
@@ -79,16 +88,49 @@ public class PredictionDataCache {
 	// Keyed by MapKey using routeId/stopId.
 	// ConcurrentHashMap is used so that can associate a route/stop with a 
 	// PredictionsForRouteStop in a threadsafe way. Will always use same 
-	// PredictionsForRouteStop for a route/stop and synchronize any changes and 
-	// access to it so if multiple threads are making changes on a route/stop 
-	// those changes will be coherent and information will not be lost.
+	// PredictionsForRouteStop for a route/stop. The lists are
+	// CopyOnWriteArrayLists so that they can be iterated without locking 
+	// while a destination is being added. Adding a destination is
+	// synchronized on the list so that the same destination isn't added
+	// twice.
 	private final ConcurrentHashMap<MapKey, List<IpcPredictionsForRouteStopDest>> 
 		predictionsMap =
 			new ConcurrentHashMap<MapKey, List<IpcPredictionsForRouteStopDest>>(1000);
 	
+	// So that clients can be sent just the route/stops whose predictions
+	// have changed
+	private final ChangeTracker<RouteStopKey> changeTracker =
+			new ChangeTracker<RouteStopKey>();
+	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(PredictionDataCache.class);
 
+	/**
+	 * Key for the change tracker so that the route and stop can be determined
+	 * from the key.
+	 */
+	private static class RouteStopKey extends MapKey {
+		private RouteStopKey(String routeShortName, String stopId) {
+			super(routeShortName, stopId);
+		}
+		
+		private String getRouteShortName() {
+			return (String) o1;
+		}
+		
+		private String getStopId() {
+			return (String) o2;
+		}
+		
+		@Override
+		public String toString() {
+			return "RouteStopKey [" 
+					+ "routeShortName=" + o1 
+					+ ", stopId=" + o2 
+					+ "]";
+		}
+	}
+
 	/********************** Member Functions **************************/
 	
 	/**
@@ -114,10 +156,10 @@ public class PredictionDataCache {
 	/**
 	 * Returns copy of the PredictionsForRouteStop object. This is the low-level
 	 * method that actually gets the appropriate predictions. A clone is used so
-	 * that it can be accessed as needed without worrying about another thread
-	 * writing to it. The list of predictions should be relatively small so
-	 * cloning is not very costly. And this way the caller of this method
-	 * doesn't have to synchronize or such.
+	 * that the number of predictions can be limited and the distanceToStop
+	 * set. Since the predictions are copy-on-write snapshots the clone simply
+	 * shares the immutable list of predictions when possible, and the caller
+	 * of this method doesn't have to synchronize or such.
 	 * 
 	 * @param routeIdOrShortName  
 	 *            route_id or route_short_name, or null to specify all routes
@@ -216,10 +258,9 @@ public class PredictionDataCache {
 		boolean shouldFilterOutEndOfTripPreds = 
 				endOfTripPredFound && nonEndOfTripPredFound;
 		
-		// Make a copy of the prediction objects so that they cannot be
-		// modified by another thread while they are being accessed. This
-		// is important because when the predictions are modified they are
-		// temporarily not coherent. 
+		// Make a copy of the prediction objects with the limits applied.
+		// The predictions themselves are coherent snapshots so copying
+		// them doesn't require locking.
 		List<IpcPredictionsForRouteStopDest> clonedPredictions = 
 				new ArrayList<IpcPredictionsForRouteStopDest>(
 						predictionsForRouteStop.size());
@@ -558,6 +599,9 @@ public class PredictionDataCache {
 		IpcPredictionsForRouteStopDest predictions = 
 				getPredictionsForRouteStopDestination(oldPrediction);
 		predictions.removePrediction(oldPrediction);
+		
+		changeTracker.changed(new RouteStopKey(
+				oldPrediction.getRouteShortName(), oldPrediction.getStopId()));
 	}
 
 	/**
@@ -589,6 +633,81 @@ public class PredictionDataCache {
 		// Update the predictions for the route/stop/destination
 		currentPredsForRouteStopDest.updatePredictionsForVehicle(
 				newPredsForVehicleForRouteStopDest, getSystemTime());
+		
+		changeTracker.changed(
+				new RouteStopKey(pred.getRouteShortName(), pred.getStopId()));
+	}
+	
+	/**
+	 * Returns the predictions for the route/stops whose predictions have
+	 * changed since the sequence number that the client last received. This
+	 * way a client can keep a mirror of all predictions up to date without
+	 * having to get all the predictions each time. For each changed
+	 * route/stop the predictions for all of its destinations are returned, so
+	 * the client should replace what it has for the route/stop. If a
+	 * route/stop no longer has any predictions then its key, as determined by
+	 * IpcPredictionsForRouteStopDest.getRouteStopKey(), is in the removed
+	 * keys. If the client's tracker ID
+	 * and sequence number can't be used then all predictions are returned and
+	 * the IpcChanges is marked as complete.
+	 * <p>
+	 * Predictions are not limited by how far they are in the future and
+	 * expired predictions are not necessarily removed so the client should
+	 * filter them when using the predictions.
+	 * 
+	 * @param clientTrackerId
+	 *            The tracker ID from the last IpcChanges received by client.
+	 *            Use 0 for first request.
+	 * @param clientSequence
+	 *            The sequence number from the last IpcChanges received by
+	 *            client. Use 0 for first request.
+	 * @return The predictions for changed route/stops
+	 */
+	public IpcChanges<IpcPredictionsForRouteStopDest> getPredictionChangesSince(
+			long clientTrackerId, long clientSequence) {
+		// Need to get sequence before determining changes so that no
+		// changes are missed
+		long sequence = changeTracker.getSequence();
+		
+		// If can't provide just the changes then provide all predictions
+		if (!changeTracker.canProvideChangesSince(clientTrackerId, 
+				clientSequence)) {
+			return new IpcChanges<IpcPredictionsForRouteStopDest>(
+					changeTracker.getTrackerId(), sequence, true,
+					new IpcPredictionsList(getAllPredictions(
+							Integer.MAX_VALUE, Long.MAX_VALUE)),
+					new ArrayList<String>(0));
+		}
+		
+		List<IpcPredictionsForRouteStopDest> changed = new IpcPredictionsList();
+		List<String> removedKeys = new ArrayList<String>();
+		for (RouteStopKey key : 
+				changeTracker.getKeysChangedSince(clientSequence)) {
+			boolean hasPredictions = false;
+			List<IpcPredictionsForRouteStopDest> predsForRouteStop = 
+					predictionsMap.get(MapKey.create(key.getRouteShortName(), 
+							key.getStopId()));
+			if (predsForRouteStop != null) {
+				for (IpcPredictionsForRouteStopDest preds : predsForRouteStop) {
+					IpcPredictionsForRouteStopDest clone = 
+							preds.getClone(Integer.MAX_VALUE, Long.MAX_VALUE,
+									Double.NaN);
+					if (!clone.getPredictionsForRouteStop().isEmpty()) {
+						changed.add(clone);
+						hasPredictions = true;
+					}
+				}
+			}
+			
+			if (!hasPredictions) {
+				removedKeys.add(IpcPredictionsForRouteStopDest.getRouteStopKey(
+						key.getRouteShortName(), key.getStopId()));
+			}
+		}
+		
+		return new IpcChanges<IpcPredictionsForRouteStopDest>(
+				changeTracker.getTrackerId(), sequence, false, changed,
+				removedKeys);
 	}
 	
 	/**
@@ -617,13 +736,17 @@ public class PredictionDataCache {
 			if (predictionsForStop == null) {
 				// No predictions so return empty array instead of null
 				predictionsForStop = 
-						new ArrayList<IpcPredictionsForRouteStopDest>(1);
+						new CopyOnWriteArrayList<IpcPredictionsForRouteStopDest>();
 				
 				// Need to update the predictions map with the 
 				// predictionsForStop list for this route/stop so that
 				// when this list of predictions is updated it will be
-				// kept around.
-				predictionsMap.putIfAbsent(key, predictionsForStop);
+				// kept around. If another thread just added a list then
+				// use that one instead so that updates are not lost.
+				List<IpcPredictionsForRouteStopDest> existing =
+						predictionsMap.putIfAbsent(key, predictionsForStop);
+				if (existing != null)
+					predictionsForStop = existing;
 			}
 		} else {
 			// No route specified so get predictions for all routes for the stop
@@ -647,9 +770,9 @@ public class PredictionDataCache {
 	 * Returns PredictionsForRouteStop object associated with the specified
 	 * route/stop/destination specified by the trip and stopId parameters.
 	 * <p>
-	 * The returned PredictionsForRouteStop objects needs to be synchronized
-	 * when predictions accessed. Otherwise might access temporarily corrupt
-	 * state when a prediction is being updated.
+	 * The returned PredictionsForRouteStop object handles its own
+	 * synchronization for updates and provides snapshots of its predictions
+	 * to readers so it doesn't need to be synchronized by the caller.
 	 * 
 	 * @param trip
 	 * @param stopId
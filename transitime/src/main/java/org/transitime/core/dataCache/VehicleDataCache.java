@@ -36,7 +36,9 @@ import org.transitime.db.hibernate.HibernateUtils;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.db.structs.Route;
 import org.transitime.db.structs.VehicleConfig;
+import org.transitime.ipc.data.IpcChanges;
 import org.transitime.ipc.data.IpcVehicleComplete;
+import org.transitime.ipc.data.IpcVehicleCompleteList;
 import org.transitime.utils.ConcurrentHashMapNullKeyOk;
 import org.transitime.utils.Time;
 
@@ -87,6 +89,10 @@ public class VehicleDataCache {
     // So can determine how long since data was read from db
     private long dbReadTime;
     
+    // So that clients can be sent just the vehicles that have changed
+    private final ChangeTracker<String> changeTracker = 
+    		new ChangeTracker<String>();
+    
 	// For filtering out info more than MAX_AGE since it means that the AVL info is
 	// obsolete and shouldn't be displayed.
     private static final int MAX_AGE_MSEC = 15 * Time.MS_PER_MIN;
@@ -545,5 +551,57 @@ public class VehicleDataCache {
 		updateVehiclesByRouteMap(originalVehicle, vehicle);
 		updateVehicleIdsByBlockMap(originalVehicle, vehicle);
 		updateVehiclesMap(vehicle);
+		
+		// Record that vehicle changed. Needs to be done after the maps are
+		// updated so that the change is available when requested.
+		changeTracker.changed(vehicle.getId());
+	}
+	
+	/**
+	 * Returns the vehicles that have changed since the sequence number that
+	 * the client last received. This way a client can keep a mirror of the
+	 * vehicles up to date without having to get all of the vehicles each
+	 * time. Like getVehicles() schedule based vehicles are not included. If
+	 * the client's tracker ID and sequence number can't be used, such as when
+	 * core system was restarted, then all of the vehicles are returned and
+	 * the returned IpcChanges is marked as complete.
+	 * 
+	 * @param clientTrackerId
+	 *            The tracker ID from the last IpcChanges received by client.
+	 *            Use 0 for first request.
+	 * @param clientSequence
+	 *            The sequence number from the last IpcChanges received by
+	 *            client. Use 0 for first request.
+	 * @return The changed vehicles and the IDs of the removed vehicles
+	 */
+	public IpcChanges<IpcVehicleComplete> getVehicleChangesSince(
+			long clientTrackerId, long clientSequence) {
+		// Need to get sequence before determining changes so that no
+		// changes are missed
+		long sequence = changeTracker.getSequence();
+		
+		List<IpcVehicleComplete> changed = new IpcVehicleCompleteList();
+		List<String> removedKeys = new ArrayList<String>();
+		
+		// If can't provide just the changes then provide all vehicles
+		if (!changeTracker.canProvideChangesSince(clientTrackerId, 
+				clientSequence)) {
+			changed.addAll(getVehicles());
+			return new IpcChanges<IpcVehicleComplete>(
+					changeTracker.getTrackerId(), sequence, true, changed,
+					removedKeys);
+		}
+		
+		for (String vehicleId : 
+				changeTracker.getKeysChangedSince(clientSequence)) {
+			IpcVehicleComplete vehicle = vehiclesMap.get(vehicleId);
+			if (vehicle == null || vehicle.isForSchedBasedPred())
+				removedKeys.add(vehicleId);
+			else
+				changed.add(vehicle);
+		}
+		return new IpcChanges<IpcVehicleComplete>(
+				changeTracker.getTrackerId(), sequence, false, changed,
+				removedKeys);
 	}
 }
@@ -0,0 +1,280 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.schedBasedPreds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.core.PredictionGeneratorDefaultImpl;
+import org.transitime.core.dataCache.PredictionDataCache;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.AvlReport.AssignmentType;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.ScheduleTime;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.Trip;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.ipc.data.IpcPrediction.ArrivalOrDeparture;
+import org.transitime.utils.Time;
+
+/**
+ * Generates schedule based predictions for a block directly from the
+ * schedule times of its trips and puts them into the PredictionDataCache.
+ * This is an alternative to creating a schedule based vehicle with a fake
+ * AVL report and running it through the whole AvlProcessor pipeline. The
+ * predictions for a block are generated when the block first needs them and
+ * are kept until they are removed because a real vehicle was assigned to the
+ * block or because the block is no longer active. Like regular predictions
+ * they only go out transitime.core.maxPredictionsTimeSecs into the future.
+ * Therefore they are regenerated periodically so that predictions for the
+ * later stops of the block are added as time goes on.
+ * <p>
+ * The predictions are for a pseudo vehicle ID for the block but no vehicle
+ * is created, so the block doesn't show up as a vehicle in the vehicle
+ * feeds.
+ */
+public class SchedBasedPredsGenerator {
+
+	// The predictions that have been generated, keyed on block ID.
+	// Concurrent since predictions are removed by the AVL processing threads
+	// when a real vehicle is assigned to a block.
+	private final ConcurrentHashMap<String, BlockPredictions> predictionsByBlock =
+			new ConcurrentHashMap<String, BlockPredictions>();
+
+	private static final SchedBasedPredsGenerator singleton =
+			new SchedBasedPredsGenerator();
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(SchedBasedPredsGenerator.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * The block and the predictions generated for it
+	 */
+	static class BlockPredictions {
+		private final Block block;
+		private final List<IpcPrediction> predictions;
+
+		private BlockPredictions(Block block, List<IpcPrediction> predictions) {
+			this.block = block;
+			this.predictions = predictions;
+		}
+
+		Block getBlock() {
+			return block;
+		}
+	}
+
+	/**
+	 * Constructor declared private to enforce only access to this singleton
+	 * class being getInstance()
+	 */
+	private SchedBasedPredsGenerator() {
+	}
+
+	/**
+	 * Returns the singleton SchedBasedPredsGenerator
+	 *
+	 * @return
+	 */
+	public static SchedBasedPredsGenerator getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Returns the pseudo vehicle ID used for the schedule based predictions
+	 * for the block.
+	 *
+	 * @param block
+	 * @return the vehicle ID
+	 */
+	static String getVehicleId(Block block) {
+		return "block_" + block.getId() + "_schedBasedVehicle";
+	}
+
+	/**
+	 * @return The blocks that currently have schedule based predictions
+	 */
+	Collection<BlockPredictions> getBlockPredictions() {
+		return predictionsByBlock.values();
+	}
+
+	/**
+	 * @param blockId
+	 * @return true if schedule based predictions have been generated for the
+	 *         block
+	 */
+	boolean hasPredictions(String blockId) {
+		return predictionsByBlock.containsKey(blockId);
+	}
+
+	/**
+	 * Generates the schedule based predictions for the block and adds them to
+	 * the PredictionDataCache. Predictions are generated for the remaining
+	 * stops of the block up to transitime.core.maxPredictionsTimeSecs into
+	 * the future.
+	 *
+	 * @param block
+	 */
+	void createPredictions(Block block) {
+		if (block.isNoSchedule()) {
+			logger.debug("Not creating schedule based predictions for "
+					+ "blockId={} because it doesn't have a schedule.",
+					block.getId());
+			return;
+		}
+
+		List<IpcPrediction> predictions = generatePredictions(block,
+				Core.getInstance().getSystemTime());
+		logger.info("Created {} schedule based predictions for blockId={}. {}",
+				predictions.size(), block.getId(), block.toShortString());
+
+		// Only add the predictions if they haven't been created already
+		if (predictionsByBlock.putIfAbsent(block.getId(),
+				new BlockPredictions(block, predictions)) == null)
+			PredictionDataCache.getInstance().updatePredictions(null,
+					predictions);
+	}
+
+	/**
+	 * Regenerates the schedule based predictions for a block that already
+	 * has them so that predictions for the stops that are now within
+	 * transitime.core.maxPredictionsTimeSecs are added and the ones for
+	 * stops that have been passed are removed.
+	 *
+	 * @param blockId
+	 */
+	void refreshPredictions(String blockId) {
+		BlockPredictions oldBlockPredictions = predictionsByBlock.get(blockId);
+		if (oldBlockPredictions == null)
+			return;
+
+		Block block = oldBlockPredictions.block;
+		List<IpcPrediction> predictions = generatePredictions(block,
+				Core.getInstance().getSystemTime());
+		logger.debug("Refreshed schedule based predictions for blockId={}. "
+				+ "Now have {} predictions.", blockId, predictions.size());
+
+		// Only replace the predictions if they weren't removed in the
+		// meantime because a vehicle was assigned to the block
+		if (predictionsByBlock.replace(blockId, oldBlockPredictions,
+				new BlockPredictions(block, predictions)))
+			PredictionDataCache.getInstance().updatePredictions(
+					oldBlockPredictions.predictions, predictions);
+	}
+
+	/**
+	 * Removes the schedule based predictions for the block, if there are
+	 * any. Called when a real vehicle is assigned to the block or when the
+	 * block is no longer active.
+	 *
+	 * @param blockId
+	 * @param reason
+	 *            For logging
+	 */
+	public void removePredictions(String blockId, String reason) {
+		BlockPredictions blockPredictions = predictionsByBlock.remove(blockId);
+		if (blockPredictions == null)
+			return;
+
+		logger.info("Removing schedule based predictions for blockId={} "
+				+ "because {}", blockId, reason);
+		PredictionDataCache.getInstance().updatePredictions(
+				blockPredictions.predictions, null);
+	}
+
+	/**
+	 * Creates a prediction for each stop of the block that has a schedule
+	 * time that is after now but not more than
+	 * transitime.core.maxPredictionsTimeSecs after now, the same limit as
+	 * for regular predictions. Departure times are used except for the last
+	 * stop of a trip where the arrival time is used.
+	 *
+	 * @param block
+	 * @param now
+	 * @return the predictions
+	 */
+	private static List<IpcPrediction> generatePredictions(Block block,
+			long now) {
+		// Create a fake AVL report for the start of the block. Needed because
+		// predictions get info such as the vehicle ID from the AVL report.
+		long blockStartEpochTime = Core.getInstance().getTime()
+				.getEpochTime(block.getStartTime(), now);
+		AvlReport avlReport = new AvlReport(getVehicleId(block),
+				blockStartEpochTime, block.getStartLoc(), "Schedule");
+		avlReport.setAssignment(block.getId(),
+				AssignmentType.BLOCK_FOR_SCHED_BASED_PREDS);
+		avlReport.setTimeProcessed();
+
+		// Schedule times are seconds into the service day, which can be
+		// greater than 24 hours, so determine times relative to the
+		// start of the service day of the block.
+		long serviceDayStartEpochTime =
+				blockStartEpochTime - block.getStartTime() * Time.MS_PER_SEC;
+
+		// Don't generate predictions further into the future than for
+		// regular predictions
+		long maxPredictionTime = now
+				+ PredictionGeneratorDefaultImpl.getMaxPredictionsTimeSecs()
+				* Time.MS_PER_SEC;
+
+		List<IpcPrediction> predictions = new ArrayList<IpcPrediction>();
+		for (Trip trip : block.getTrips()) {
+			int numberStopPaths = trip.getNumberStopPaths();
+			for (int i = 0; i < numberStopPaths; ++i) {
+				ScheduleTime scheduleTime = trip.getScheduleTime(i);
+				if (scheduleTime == null)
+					continue;
+
+				StopPath stopPath = trip.getStopPath(i);
+				boolean atEndOfTrip = i == numberStopPaths - 1;
+				Integer secsIntoDay = atEndOfTrip &&
+						scheduleTime.getArrivalTime() != null ?
+								scheduleTime.getArrivalTime() :
+								scheduleTime.getTime();
+				if (secsIntoDay == null)
+					continue;
+
+				long predictionTime =
+						serviceDayStartEpochTime + secsIntoDay * Time.MS_PER_SEC;
+				if (predictionTime <= now)
+					continue;
+
+				// Schedule times of the block only increase so done once
+				// past the max prediction time
+				if (predictionTime > maxPredictionTime)
+					return predictions;
+
+				predictions.add(new IpcPrediction(avlReport,
+						stopPath.getStopId(), stopPath.getGtfsStopSeq(), trip,
+						predictionTime, predictionTime, atEndOfTrip,
+						stopPath.isWaitStop(), false, false,
+						atEndOfTrip ? ArrivalOrDeparture.ARRIVAL
+								: ArrivalOrDeparture.DEPARTURE));
+			}
+		}
+
+		return predictions;
+	}
+}
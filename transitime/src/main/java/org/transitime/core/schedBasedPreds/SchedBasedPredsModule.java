@@ -60,6 +60,11 @@ import org.transitime.utils.Time;
  * the block or the schedule based vehicle is timed out via TimeoutHandlerModule
  * due to it being transitime.timeout.allowableNoAvlForSchedBasedPredictions
  * after the scheduled departure time for the assignment.
+ * <p>
+ * If transitime.schedBasedPreds.directFromSchedule is set then instead of
+ * creating schedule based vehicles the predictions are generated directly
+ * from the schedule by SchedBasedPredsGenerator and this module removes
+ * them once they are no longer needed.
  * 
  * @author SkiBu Smith
  *
@@ -111,6 +116,20 @@ public class SchedBasedPredsModule extends Module {
 					+ "important when using the automatic assignment method "
 					+ "because it can take a few minutes.");
 
+	private static final BooleanConfigValue directFromSchedule =
+			new BooleanConfigValue(
+					"transitime.schedBasedPreds.directFromSchedule",
+					false,
+					"If true then schedule based predictions are generated "
+					+ "directly from the schedule times of the block, once "
+					+ "per block, instead of creating a schedule based "
+					+ "vehicle and processing a fake AVL report for it "
+					+ "through the whole AVL processing pipeline. Much less "
+					+ "processing for large agencies. But the predictions "
+					+ "are then the scheduled times instead of being based "
+					+ "on travel times and no schedule based vehicle is "
+					+ "shown in the vehicle feeds.");
+
 
 	/********************** Member Functions **************************/
 
@@ -187,6 +206,105 @@ public class SchedBasedPredsModule extends Module {
 		}
 	}
 	
+	/**
+	 * For when generating schedule based predictions directly from the
+	 * schedule. First removes the predictions for blocks that now have a
+	 * vehicle or that are no longer active, and refreshes the predictions
+	 * of the other blocks so that they extend to the max prediction time.
+	 * Then creates predictions for the active blocks that do not have a
+	 * vehicle nor predictions yet.
+	 */
+	private void updateDirectSchedBasedPreds() {
+		SchedBasedPredsGenerator generator =
+				SchedBasedPredsGenerator.getInstance();
+		VehicleDataCache vehicleDataCache = VehicleDataCache.getInstance();
+		long now = Core.getInstance().getSystemTime();
+		
+		// Remove predictions that are no longer needed and refresh the
+		// others
+		for (SchedBasedPredsGenerator.BlockPredictions blockPredictions : 
+				generator.getBlockPredictions()) {
+			Block block = blockPredictions.getBlock();
+			Collection<String> vehiclesForBlock =
+					vehicleDataCache.getVehiclesByBlockId(block.getId());
+			if (vehiclesForBlock != null && !vehiclesForBlock.isEmpty()) {
+				generator.removePredictions(block.getId(), 
+						"a vehicle is now assigned to the block");
+				continue;
+			}
+			String timeoutDescription = shouldTimeoutBlock(block, now);
+			if (timeoutDescription != null)
+				generator.removePredictions(block.getId(), timeoutDescription);
+			else
+				generator.refreshPredictions(block.getId());
+		}
+		
+		// Determine the blocks that don't need to be looked at because they
+		// already have a vehicle or already have predictions
+		Set<String> blockIdsToIgnore = new HashSet<String>();
+		for (IpcVehicle vehicle : 
+				vehicleDataCache.getVehiclesIncludingSchedBasedOnes()) {
+			String blockId = vehicle.getBlockId();
+			if (blockId != null)
+				blockIdsToIgnore.add(blockId);
+		}
+		for (SchedBasedPredsGenerator.BlockPredictions blockPredictions : 
+				generator.getBlockPredictions()) {
+			blockIdsToIgnore.add(blockPredictions.getBlock().getId());
+		}
+
+		// Create predictions for the remaining active blocks
+		List<Block> activeBlocks =
+				BlocksInfo.getCurrentlyActiveBlocks(null, // Get for all routes
+						blockIdsToIgnore, 
+						beforeStartTimeMinutes.getValue() * Time.SEC_PER_MIN,
+						afterStartTimeMinutes.getValue() * Time.SEC_PER_MIN);
+		for (Block block : activeBlocks) {
+			Collection<String> vehiclesForBlock =
+					vehicleDataCache.getVehiclesByBlockId(block.getId());
+			if ((vehiclesForBlock == null || vehiclesForBlock.isEmpty())
+					&& !generator.hasPredictions(block.getId()))
+				generator.createPredictions(block);
+		}
+	}
+	
+	/**
+	 * Determines if the schedule based predictions generated directly for a
+	 * block should be removed because the block is no longer active or
+	 * because it is past the block start time by more than the allowable
+	 * number of minutes. Same criteria as for shouldTimeoutVehicle().
+	 * 
+	 * @param block
+	 * @param now
+	 * @return A description if predictions should be removed, otherwise null
+	 */
+	private static String shouldTimeoutBlock(Block block, long now) {
+		if (!block.isActive(now,
+				beforeStartTimeMinutes.getValue() * Time.SEC_PER_MIN)) {
+			return "the block is no longer active. Block start time is " 
+					+ Time.timeOfDayShortStr(block.getStartTime())
+					+ " and block end time is " 
+					+ Time.timeOfDayShortStr(block.getEndTime());
+		}
+		
+		if (afterStartTimeMinutes.getValue() >= 0) {
+			long blockStartEpochTime = Core.getInstance().getTime()
+					.getEpochTime(block.getStartTime(), now);
+			long maxAfterStart = 
+					afterStartTimeMinutes.getValue() * Time.MS_PER_MIN;
+			if (now > blockStartEpochTime + maxAfterStart) {
+				return "it is now " 
+						+ Time.elapsedTimeStr(now - blockStartEpochTime)
+						+ " since the scheduled start time for the block "
+						+ Time.dateTimeStr(blockStartEpochTime)
+						+ " while allowable time is "
+						+ Time.elapsedTimeStr(maxAfterStart) + ".";
+			}
+		}
+		
+		return null;
+	}
+	
 	/**
 	 * Determines if schedule based vehicle should be timed out. A schedule
 	 * based vehicle should be timed out if the block is now over (now is passed
@@ -284,7 +402,10 @@ public class SchedBasedPredsModule extends Module {
 
 			try {
 				// Do the actual work
-				createSchedBasedPredsAsNecessary();				
+				if (directFromSchedule.getValue())
+					updateDirectSchedBasedPreds();
+				else
+					createSchedBasedPredsAsNecessary();				
 			} catch (Exception e) {
 				logger.error(Markers.email(),
 						"Error with SchedBasedPredsModule for agencyId={}", 
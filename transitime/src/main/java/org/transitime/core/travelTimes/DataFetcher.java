@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -44,12 +45,37 @@ import org.transitime.utils.Time;
  */
 public class DataFetcher {
 
-	// The data ends up in arrivalDepartureMap and matchesMap.
-	// It is keyed by DbDataMapKey which means that data is grouped
-	// per vehicle trip. This way can later subsequent arrivals/departures
-	// for a vehicle trip to determine travel and stop times.
-	private Map<DbDataMapKey, List<ArrivalDeparture>> arrivalDepartureMap;
+	// The data for the currently active trips ends up in openTripsMap and
+	// matchesMap. It is keyed by DbDataMapKey which means that data is
+	// grouped per vehicle trip. This way can later subsequent
+	// arrivals/departures for a vehicle trip to determine travel and stop
+	// times.
+	private Map<DbDataMapKey, List<ArrivalDeparture>> openTripsMap;
 	private Map<DbDataMapKey, List<Match>> matchesMap;
+	
+	// So can determine when vehicle has moved on to another trip
+	private Map<String, DbDataMapKey> openTripKeyByVehicleMap;
+
+	// For reading in matches a page at a time while streaming
+	private String agencyId;
+	private Date beginTime;
+	private Date endTime;
+	private List<Match> matchPage;
+	private int matchPageIndex;
+	private long matchesRead;
+	private long tripsProcessed;
+	
+	// Batch size of 50k found to be significantly faster than 10k, by about
+	// a factor of 2. Since using keyset pagination the pages don't get
+	// slower as more data is read so don't need really large pages.
+	private static final int BATCH_SIZE = 50000;
+	
+	// If no arrival/departure for a trip for this long then the trip is
+	// considered complete, such as when a vehicle stops reporting
+	private static final long MAX_TRIP_GAP_MSEC = 3 * Time.MS_PER_HOUR;
+	
+	// How often, in terms of the time of the data, to look for stale trips
+	private static final long STALE_CHECK_INTERVAL_MSEC = 15 * Time.MS_PER_MIN;
 
 //	private Map<String, Calendar> gtfsCalendars = null;
 	
@@ -62,6 +88,21 @@ public class DataFetcher {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For handling the data for a vehicle trip as soon as it has been read
+	 * in by streamData().
+	 */
+	public interface TripHandler {
+		/**
+		 * @param arrDepList
+		 *            Time ordered arrivals/departures for a vehicle trip
+		 * @param matches
+		 *            Time ordered matches for the vehicle trip. Never null.
+		 */
+		public void handleTrip(List<ArrivalDeparture> arrDepList,
+				List<Match> matches);
+	}
+
 	/**
 	 * Sets up needed calendar information if separating out data for special
 	 * days of the week, such as Fridays for weekday service.
@@ -195,197 +236,254 @@ public class DataFetcher {
 	}
 	
 	/**
-	 * Adds the arrival/departure to the map.
+	 * Adds the match to the matchesMap.
 	 * 
-	 * @param map
-	 * @param arrDep
+	 * @param match
 	 */
-	private void addArrivalDepartureToMap(
-			Map<DbDataMapKey, List<ArrivalDeparture>> map,
-			ArrivalDeparture arrDep) {
-		DbDataMapKey key = getKey(arrDep.getServiceId(), arrDep.getDate(),
-				arrDep.getTripId(), arrDep.getVehicleId());
-		List<ArrivalDeparture> list = map.get(key);
+	private void addMatchToMap(Match match) {
+		DbDataMapKey key = getKey(match.getServiceId(), match.getDate(),
+				match.getTripId(), match.getVehicleId());
+		List<Match> list = matchesMap.get(key);
 		if (list == null) {
-			list = new ArrayList<ArrivalDeparture>();
-			map.put(key, list);
+			list = new ArrayList<Match>();
+			matchesMap.put(key, list);
 		}
-		list.add(arrDep);
+		list.add(match);
 	}
 	
 	/**
-	 * Reads arrivals/departures from db into so can be processed.
+	 * Reads matches from the db, a page at a time, and adds them to the
+	 * matchesMap until all matches up to and including the specified time
+	 * have been read. Since the arrivals/departures are processed in time
+	 * order this means that by the time a trip is complete all of its
+	 * matches have been read.
 	 * 
-	 * @param dbName
-	 * @param beginTime
-	 * @param endTime
-	 * @return
+	 * @param time
+	 *            epoch time to read matches up to
 	 */
-	public Map<DbDataMapKey, List<ArrivalDeparture>> readArrivalsDepartures(
-			String dbName, Date beginTime, Date endTime) {
-		IntervalTimer timer = new IntervalTimer();
+	private void readMatchesUpTo(long time) {
+		while (true) {
+			// If current page has been processed then read in the next one
+			if (matchPageIndex >= matchPage.size()) {
+				if (matchPage.size() < BATCH_SIZE)
+					return;
 
-		// For returning the results
-		Map<DbDataMapKey, List<ArrivalDeparture>> resultsMap = 
-				new HashMap<DbDataMapKey, List<ArrivalDeparture>>();
-		
-		// For keeping track of which rows should be returned by the batch.
-		int firstResult = 0;
-		// Batch size of 50k found to be significantly faster than 10k,
-		// by about a factor of 2. Since sometimes using really large
-		// batches of data using 500k
-		int batchSize = 500000;  // Also known as maxResults
-		// The temporary list for the loop that contains a batch of results
-		List<ArrivalDeparture> arrDepBatchList;
-		// Read in batch of 50k rows of data and process it
-		do {				
-			arrDepBatchList = ArrivalDeparture.getArrivalsDeparturesFromDb(
-					dbName, 
-					beginTime, endTime, 
-					// Order results by time so that process them in the same
-					// way that a vehicle travels.
-					"ORDER BY time", // SQL clause
-					firstResult, batchSize,
-					null); // arrivalOrDeparture. Null means read in both
-			
-			// Add arrivals/departures to map
-			for (ArrivalDeparture arrDep : arrDepBatchList) {
-				addArrivalDepartureToMap(resultsMap, arrDep);
+				Match lastMatch = matchPage.get(matchPage.size() - 1);
+				matchPage = Match.getMatchesNotAtStopFromDbAfter(agencyId,
+						beginTime, endTime, lastMatch.getDate(),
+						lastMatch.getVehicleId(), BATCH_SIZE);
+				if (matchPage == null)
+					throw new RuntimeException("Could not read matches from "
+							+ "the database.");
+				matchPageIndex = 0;
+				matchesRead += matchPage.size();
+				logger.info("Read in total of {} matches", matchesRead);
+				continue;
 			}
-			
-			logger.info("Read in total of {} arrival/departures", 
-					firstResult+arrDepBatchList.size());
-			
-			// Update firstResult for reading next batch of data
-			firstResult += batchSize;
-		} while (arrDepBatchList.size() == batchSize);
-
-		logger.info("Reading arrival/departures took {} msec", 
-				timer.elapsedMsec());
 
-		// Return the resulting map of arrivals/departures
-		return resultsMap;
+			Match match = matchPage.get(matchPageIndex);
+			if (match.getTime() > time)
+				return;
+			addMatchToMap(match);
+			++matchPageIndex;
+		}
 	}
 	
 	/**
-	 * Adds the arrival/departure to the map.
+	 * Returns index just after the last arrival/departure in the page that
+	 * does not have the same time and vehicleId as the final one. Since the
+	 * pages are keyed on time and vehicleId the final group of
+	 * arrivals/departures with the same time and vehicleId might be split
+	 * across pages. Therefore the final group is not processed and is instead
+	 * read in again as part of the next page.
 	 * 
-	 * @param map
-	 * @param arrDep
+	 * @param page
+	 * @return number of arrivals/departures from the page to process
 	 */
-	private void addMatchToMap(Map<DbDataMapKey, List<Match>> map, Match match) {
-		DbDataMapKey key = getKey(match.getServiceId(), match.getDate(),
-				match.getTripId(), match.getVehicleId());
-		List<Match> list = map.get(key);
-		if (list == null) {
-			list = new ArrayList<Match>();
-			map.put(key, list);
+	private static int numberCompleteInPage(List<ArrivalDeparture> page) {
+		ArrivalDeparture last = page.get(page.size() - 1);
+		for (int i = page.size() - 2; i >= 0; --i) {
+			ArrivalDeparture arrDep = page.get(i);
+			if (arrDep.getTime() != last.getTime()
+					|| !arrDep.getVehicleId().equals(last.getVehicleId()))
+				return i + 1;
 		}
-		list.add(match);
+		
+		// Entire page has same time and vehicleId, which really shouldn't
+		// happen. Process it all so that don't get stuck.
+		return page.size();
 	}
 	
 	/**
-	 * Reads matches from db into so can be processed.
-     *
-	 * @param projectId
-	 * @param beginTime
-	 * @param endTime
-	 * @return
+	 * Hands the arrivals/departures for the trip to the handler and then
+	 * removes the trip and its matches from the maps so that memory is
+	 * freed up.
+	 * 
+	 * @param key
+	 * @param handler
 	 */
-	private Map<DbDataMapKey, List<Match>> readMatches(
-			String projectId, Date beginTime, Date endTime) {
-		IntervalTimer timer = new IntervalTimer();
+	private void completeTrip(DbDataMapKey key, TripHandler handler) {
+		List<ArrivalDeparture> arrDepList = openTripsMap.remove(key);
+		if (arrDepList == null)
+			return;
 		
-		// For returning the results
-		Map<DbDataMapKey, List<Match>> resultsMap = 
-				new HashMap<DbDataMapKey, List<Match>>();
+		List<Match> matches = matchesMap.remove(key);
+		if (matches == null)
+			matches = new ArrayList<Match>(0);
+		handler.handleTrip(arrDepList, matches);
+		++tripsProcessed;
 		
-		// For keeping track of which rows should be returned by the batch.
-		int firstResult = 0;
-		// Batch size of 50k found to be significantly faster than 10k,
-		// by about a factor of 2.  Since sometimes using really large
-		// batches of data using 500k
-		int batchSize = 500000;  // Also known as maxResults
-		// The temporary list for the loop that contains a batch of results
-		List<Match> matchBatchList;
-		// Read in batch of 50k rows of data and process it
-		do {				
-			matchBatchList = Match.getMatchesFromDb(
-					projectId, 
-					beginTime, endTime, 
-					// Only want matches that are not at a stop since for that
-					// situation instead using arrivals/departures. 
-					// Order results by time so that process them in the same
-					// way that a vehicle travels.
-					"AND atStop = false ORDER BY avlTime", // SQL clause
-					firstResult, batchSize);
-			
-			// Add arrivals/departures to map
-			for (Match match : matchBatchList) {
-				addMatchToMap(resultsMap, match);
-			}
-			
-			logger.info("Read in total of {} matches", 
-					firstResult+matchBatchList.size());
-			
-			// Update firstResult for reading next batch of data
-			firstResult += batchSize;
-		} while (matchBatchList.size() == batchSize);
-
-		logger.info("Reading matches took {} msec", timer.elapsedMsec());
-
-		// Return the resulting map of arrivals/departures
-		return resultsMap;
+		String vehicleId = arrDepList.get(0).getVehicleId();
+		if (key.equals(openTripKeyByVehicleMap.get(vehicleId)))
+			openTripKeyByVehicleMap.remove(vehicleId);
 	}
-
+	
 	/**
-	 * Reads arrival/departure times and matches from the db and puts the
-	 * data into the arrivalDepartureMap and matchesMap members.
+	 * Completes the trips that haven't had an arrival/departure for
+	 * MAX_TRIP_GAP_MSEC, such as when a vehicle stops reporting. Also
+	 * removes matches for which there never was a trip so that they don't
+	 * accumulate.
 	 * 
-	 * @param agencyId
-	 * @param beginTime
-	 * @param endTime
+	 * @param time
+	 *            time of the arrival/departure currently being processed
+	 * @param handler
 	 */
-	public void readData(String agencyId, Date beginTime, 
-			Date endTime) {
-		// Read in arrival/departure times and matches from db
-		logger.info("Reading historic data from db...");
-		matchesMap = readMatches(agencyId, beginTime, endTime);
-		arrivalDepartureMap = 
-				readArrivalsDepartures(agencyId, beginTime, endTime);
+	private void completeStaleTrips(long time, TripHandler handler) {
+		long cutoff = time - MAX_TRIP_GAP_MSEC;
+		
+		List<DbDataMapKey> staleKeys = new ArrayList<DbDataMapKey>();
+		for (Map.Entry<DbDataMapKey, List<ArrivalDeparture>> entry : 
+				openTripsMap.entrySet()) {
+			List<ArrivalDeparture> arrDepList = entry.getValue();
+			if (arrDepList.get(arrDepList.size() - 1).getTime() < cutoff)
+				staleKeys.add(entry.getKey());
+		}
+		for (DbDataMapKey key : staleKeys)
+			completeTrip(key, handler);
+		
+		Iterator<Map.Entry<DbDataMapKey, List<Match>>> iterator = 
+				matchesMap.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<DbDataMapKey, List<Match>> entry = iterator.next();
+			List<Match> matches = entry.getValue();
+			if (!openTripsMap.containsKey(entry.getKey())
+					&& matches.get(matches.size() - 1).getTime() < cutoff)
+				iterator.remove();
+		}
 	}
-
+	
 	/**
-	 * Provides the arrival/departure data in a map. The values in the map are
-	 * Lists of ArrivalDeparture times, one list for each trip where there was
-	 * historic data.
+	 * Reads arrival/departure times and matches from the db and hands the
+	 * arrivals/departures for each vehicle trip to the handler as soon as the
+	 * trip is complete. A trip is complete once the vehicle has an
+	 * arrival/departure for a different trip or once there hasn't been an
+	 * arrival/departure for the trip for MAX_TRIP_GAP_MSEC. The matches for
+	 * the trip are handed to the handler as well.
+	 * <p>
+	 * The data is read in time order a page at a time using keyset
+	 * pagination. Only the data for trips that are currently active is kept
+	 * in memory so that a very long time range can be processed without
+	 * running out of heap.
 	 * 
-	 * @return arrival/departure data
+	 * @param agencyId
+	 * @param beginTime
+	 * @param endTime
+	 * @param handler
+	 *            Called with the time ordered arrivals/departures for each
+	 *            vehicle trip
 	 */
-	public Map<DbDataMapKey, List<ArrivalDeparture>> getArrivalDepartureMap() {
-		// Make sure data was read in
-		if (arrivalDepartureMap == null)
-			throw new RuntimeException("Called getArrivalDepartureMap() before "
-					+ "data was read in using readData().");
+	public void streamData(String agencyId, Date beginTime, Date endTime,
+			TripHandler handler) {
+		IntervalTimer timer = new IntervalTimer();
+		logger.info("Streaming historic data from db...");
+
+		this.agencyId = agencyId;
+		this.beginTime = beginTime;
+		this.endTime = endTime;
+		matchesMap = new HashMap<DbDataMapKey, List<Match>>();
+		openTripsMap = new HashMap<DbDataMapKey, List<ArrivalDeparture>>();
+		openTripKeyByVehicleMap = new HashMap<String, DbDataMapKey>();
+		tripsProcessed = 0;
 		
-		return arrivalDepartureMap;
-	}
+		// Read in first page of matches
+		matchPage = Match.getMatchesNotAtStopFromDbAfter(agencyId, beginTime,
+				endTime, null, null, BATCH_SIZE);
+		if (matchPage == null)
+			throw new RuntimeException("Could not read matches from the "
+					+ "database.");
+		matchPageIndex = 0;
+		matchesRead = matchPage.size();
 
-	/**
-	 * Provides the Match data in a map. The values in the map are Lists of
-	 * Match objects, one list for each trip where there was historic data.
-	 * 
-	 * @return match data
-	 */
-	public Map<DbDataMapKey, List<Match>> getMatchesMap() {
-		// Make sure data was read in
-		if (matchesMap == null)
-			throw new RuntimeException("Called getMatchesMap() before "
-					+ "data was read in using readData().");
+		Date afterTime = null;
+		String afterVehicleId = null;
+		long arrDepsProcessed = 0;
+		long lastStaleCheckTime = 0;
+		boolean lastPage;
+		do {
+			List<ArrivalDeparture> arrDepPage = 
+					ArrivalDeparture.getArrivalsDeparturesFromDbAfter(agencyId,
+							beginTime, endTime, afterTime, afterVehicleId,
+							BATCH_SIZE);
+			if (arrDepPage == null)
+				throw new RuntimeException("Could not read arrivals/departures "
+						+ "from the database.");
+			if (arrDepPage.isEmpty())
+				break;
+			
+			lastPage = arrDepPage.size() < BATCH_SIZE;
+			int numberToProcess = lastPage ? 
+					arrDepPage.size() : numberCompleteInPage(arrDepPage);
+			for (int i = 0; i < numberToProcess; ++i) {
+				ArrivalDeparture arrDep = arrDepPage.get(i);
+				long time = arrDep.getTime();
 
-		return matchesMap;
-	}
+				// Make sure have all the matches for the trips that might
+				// be completed
+				readMatchesUpTo(time);
 
+				// If vehicle is now on a different trip then the previous
+				// trip is complete
+				DbDataMapKey key = getKey(arrDep.getServiceId(),
+						arrDep.getDate(), arrDep.getTripId(),
+						arrDep.getVehicleId());
+				DbDataMapKey previousKey = 
+						openTripKeyByVehicleMap.put(arrDep.getVehicleId(), key);
+				if (previousKey != null && !previousKey.equals(key))
+					completeTrip(previousKey, handler);
+				
+				List<ArrivalDeparture> arrDepList = openTripsMap.get(key);
+				if (arrDepList == null) {
+					arrDepList = new ArrayList<ArrivalDeparture>();
+					openTripsMap.put(key, arrDepList);
+				}
+				arrDepList.add(arrDep);
+				
+				if (time - lastStaleCheckTime > STALE_CHECK_INTERVAL_MSEC) {
+					completeStaleTrips(time, handler);
+					lastStaleCheckTime = time;
+				}
+			}
+			
+			ArrivalDeparture lastProcessed = arrDepPage.get(numberToProcess - 1);
+			afterTime = lastProcessed.getDate();
+			afterVehicleId = lastProcessed.getVehicleId();
+			arrDepsProcessed += numberToProcess;
+			logger.info("Read in total of {} arrival/departures. Processed "
+					+ "{} trips and {} trips still active.", arrDepsProcessed,
+					tripsProcessed, openTripsMap.size());
+		} while (!lastPage);
+		
+		// Whatever trips are left are complete since there is no more data
+		for (DbDataMapKey key : 
+				new ArrayList<DbDataMapKey>(openTripsMap.keySet())) {
+			completeTrip(key, handler);
+		}
+		matchesMap.clear();
+		matchPage = null;
+		
+		logger.info("Streaming {} arrival/departures and {} matches for {} "
+				+ "trips took {} msec", arrDepsProcessed, matchesRead, 
+				tripsProcessed, timer.elapsedMsec());
+	}
 
-	
 }
@@ -18,30 +18,40 @@
 package org.transitime.core.travelTimes;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.DoubleConfigValue;
+import org.transitime.config.IntegerConfigValue;
 import org.transitime.core.TemporalDifference;
-import org.transitime.core.travelTimes.DataFetcher.DbDataMapKey;
 import org.transitime.db.structs.ArrivalDeparture;
 import org.transitime.db.structs.Match;
 import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.TravelTimeAggregate;
 import org.transitime.db.structs.Trip;
 import org.transitime.statistics.Statistics;
+import org.transitime.statistics.TimeHistogram;
 import org.transitime.utils.Geo;
 import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.MapKey;
 import org.transitime.utils.StringUtils;
 import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
 
 import com.amazonaws.services.importexport.model.InvalidParameterException;
 
@@ -137,6 +147,23 @@ public class TravelTimesProcessor {
 					+ "to make sure that don't get invalid travel times due to "
 					+ "bad data.");
 	
+	private static int getNumThreads() {
+		return numThreads.getValue();
+	}
+	private static IntegerConfigValue numThreads =
+			new IntegerConfigValue("transitime.traveltimes.numThreads",
+					1,
+					"Number of threads to use for aggregating the historic "
+					+ "data and for then creating the travel times from the "
+					+ "aggregated data. The results are the same no matter "
+					+ "how many threads are used. A value of 1 means that "
+					+ "the data is processed serially.");
+	
+	// When aggregating in parallel this limits how many trips can be
+	// waiting to be processed so that memory use is bounded when the
+	// data is read in faster than it can be processed.
+	private final static int MAX_PENDING_TRIPS = 10000;
+	
 	// The aggregate data processed from the historic db data.
 	// ProcessedDataMapKey combines tripId and stopPathIndex in 
 	// order to combine data for a particular tripId and stopPathIndex.
@@ -201,39 +228,88 @@ public class TravelTimesProcessor {
 	}
 
 	/**
-	 * Adds stop times for a stop path for a single trip to the stopTimesMap.
-	 * 
-	 * @param mapKey
-	 * @param stopTimeMsec
-	 */
-	private static void addStopTimeToMap(ProcessedDataMapKey mapKey,
-			int stopTimeMsec) {
-		List<Integer> stopTimesForStop = stopTimesMap.get(mapKey);
-		if (stopTimesForStop == null) {
-			stopTimesForStop = new ArrayList<Integer>();
-			stopTimesMap.put(mapKey, stopTimesForStop);
-		}
-		stopTimesForStop.add(stopTimeMsec);
-	}
-	
-	/**
-	 * Adds travel times for stop path for a single trip to the travelTimesMap.
-	 * 
-	 * @param mapKey
-	 * @param travelTimesForStopPath
+	 * The stop times map and travel times map that the data for trips is
+	 * aggregated into. When processing serially these are the stopTimesMap
+	 * and travelTimesMap members. When processing in parallel each shard has
+	 * its own maps that are then merged into the members.
 	 */
-	private static void addTravelTimesToMap(ProcessedDataMapKey mapKey, 
-			List<Integer> travelTimesForStopPath) {
-		// If there is no data then simply return
-		if (travelTimesForStopPath == null || travelTimesForStopPath.isEmpty())
-			return;
+	private static class TravelTimeMaps {
+		private final Map<ProcessedDataMapKey, List<Integer>> stopTimes;
+		private final Map<ProcessedDataMapKey, List<List<Integer>>> travelTimes;
 		
-		List<List<Integer>> travelTimesForStop = travelTimesMap.get(mapKey);
-		if (travelTimesForStop == null) {
-			travelTimesForStop = new ArrayList<List<Integer>>();
-			travelTimesMap.put(mapKey, travelTimesForStop);
+		private TravelTimeMaps(
+				Map<ProcessedDataMapKey, List<Integer>> stopTimes,
+				Map<ProcessedDataMapKey, List<List<Integer>>> travelTimes) {
+			this.stopTimes = stopTimes;
+			this.travelTimes = travelTimes;
+		}
+		
+		private TravelTimeMaps() {
+			this(new HashMap<ProcessedDataMapKey, List<Integer>>(),
+					new HashMap<ProcessedDataMapKey, List<List<Integer>>>());
+		}
+		
+		/**
+		 * Adds stop times for a stop path for a single trip to the stop
+		 * times map.
+		 * 
+		 * @param mapKey
+		 * @param stopTimeMsec
+		 */
+		private void addStopTime(ProcessedDataMapKey mapKey, int stopTimeMsec) {
+			List<Integer> stopTimesForStop = stopTimes.get(mapKey);
+			if (stopTimesForStop == null) {
+				stopTimesForStop = new ArrayList<Integer>();
+				stopTimes.put(mapKey, stopTimesForStop);
+			}
+			stopTimesForStop.add(stopTimeMsec);
+		}
+		
+		/**
+		 * Adds travel times for stop path for a single trip to the travel
+		 * times map.
+		 * 
+		 * @param mapKey
+		 * @param travelTimesForStopPath
+		 */
+		private void addTravelTimes(ProcessedDataMapKey mapKey, 
+				List<Integer> travelTimesForStopPath) {
+			// If there is no data then simply return
+			if (travelTimesForStopPath == null 
+					|| travelTimesForStopPath.isEmpty())
+				return;
+			
+			List<List<Integer>> travelTimesForStop = travelTimes.get(mapKey);
+			if (travelTimesForStop == null) {
+				travelTimesForStop = new ArrayList<List<Integer>>();
+				travelTimes.put(mapKey, travelTimesForStop);
+			}
+			travelTimesForStop.add(travelTimesForStopPath);
+		}
+		
+		/**
+		 * Adds all the data from the other maps to these maps.
+		 * 
+		 * @param other
+		 */
+		private void addAll(TravelTimeMaps other) {
+			for (Map.Entry<ProcessedDataMapKey, List<Integer>> entry : 
+					other.stopTimes.entrySet()) {
+				List<Integer> list = stopTimes.get(entry.getKey());
+				if (list == null)
+					stopTimes.put(entry.getKey(), entry.getValue());
+				else
+					list.addAll(entry.getValue());
+			}
+			for (Map.Entry<ProcessedDataMapKey, List<List<Integer>>> entry : 
+					other.travelTimes.entrySet()) {
+				List<List<Integer>> list = travelTimes.get(entry.getKey());
+				if (list == null)
+					travelTimes.put(entry.getKey(), entry.getValue());
+				else
+					list.addAll(entry.getValue());
+			}
 		}
-		travelTimesForStop.add(travelTimesForStopPath);
 	}
 	
 	/**
@@ -253,8 +329,11 @@ public class TravelTimesProcessor {
 	 * adherence isn't too bad adds the stop time to the stop wait map.
 	 * 
 	 * @param arrDep
+	 * @param maps
+	 *            Where to put the stop time
 	 */
-	private static void processFirstStopOfTrip(ArrivalDeparture arrDep) {
+	private static void processFirstStopOfTrip(ArrivalDeparture arrDep,
+			TravelTimeMaps maps) {
 		// Only need to handle departure for first stop in trip
 		if (arrDep.getStopPathIndex() != 0) 
 			return;
@@ -287,7 +366,7 @@ public class TravelTimesProcessor {
 						arrDep.getStopId());
 
 		// Add this stop time to map so it can be averaged
-		addStopTimeToMap(mapKeyForTravelTimes, lateTimeMsec);		
+		maps.addStopTime(mapKeyForTravelTimes, lateTimeMsec);		
 	}
 	
 	/**
@@ -298,26 +377,17 @@ public class TravelTimesProcessor {
 	 * list of matches for the stopPath directly from the map instead of getting
 	 * all the matches for the trip and then filtering them.
 	 * 
-	 * @param dataFetcher
+	 * @param matchesForTrip
+	 *            The matches for the entire trip since that is how the data
+	 *            is available
 	 * @param arrDep
 	 * @return List of Match objects. Never returns null.
 	 */
-	private static List<Match> getMatchesForStopPath(DataFetcher dataFetcher,
+	private static List<Match> getMatchesForStopPath(List<Match> matchesForTrip,
 			ArrivalDeparture arrDep) {
 		// For returning the results
 		List<Match> matchesForStopPath = new ArrayList<Match>();
 
-		// Get the matches for the entire trip since that is
-		// how the data is available
-		DbDataMapKey mapKey = dataFetcher.getKey(arrDep.getServiceId(),
-				arrDep.getDate(), arrDep.getTripId(), arrDep.getVehicleId());
-		List<Match> matchesForTrip = dataFetcher.getMatchesMap().get(mapKey);
-		
-		// If no matches were found for this trip then return empty
-		// array (don't continue since would get NPE).
-		if (matchesForTrip == null)
-			return matchesForStopPath;
-		
 		for (Match match : matchesForTrip) {
 			if (match.getStopPathIndex() == arrDep.getStopPathIndex())
 				matchesForStopPath.add(match);
@@ -442,7 +512,7 @@ public class TravelTimesProcessor {
 	 * matches will include the departure time from the first stop (arrDep1), in
 	 * between matches, and the arrival time as the second stop (arrDep2).
 	 * 
-	 * @param dataFetcher
+	 * @param matchesForTrip
 	 * @param arrDep1
 	 *            The departure stop
 	 * @param arrDep2
@@ -450,7 +520,7 @@ public class TravelTimesProcessor {
 	 * @return List of MatchPoints, which contain the basic Match info needed
 	 *         for determining travel times.
 	 */
-	private static List<MatchPoint> getMatchPoints(DataFetcher dataFetcher,
+	private static List<MatchPoint> getMatchPoints(List<Match> matchesForTrip,
 			ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
 		// The array to be returned
 		List<MatchPoint> matchPoints = new ArrayList<MatchPoint>();
@@ -462,7 +532,7 @@ public class TravelTimesProcessor {
 		// Stop path is long enough such that have more than one travel
 		// time segment. Get the corresponding matches
 		List<Match> matchesForStopPath = 
-				getMatchesForStopPath(dataFetcher, arrDep2);
+				getMatchesForStopPath(matchesForTrip, arrDep2);
 
 		// Add the matches that are in between the arrival and the departure.
 		for (Match match : matchesForStopPath) {
@@ -493,7 +563,7 @@ public class TravelTimesProcessor {
 	 * path, to determine the travel time for each travel time segment for this
 	 * particular trip.
 	 * 
-	 * @param dataFetcher
+	 * @param matchesForTrip
 	 * @param arrDep1
 	 *            The departure stop
 	 * @param arrDep2
@@ -503,7 +573,7 @@ public class TravelTimesProcessor {
 	 *         backwards in time then null is returned.
 	 */
 	private List<Integer> determineTravelTimesForStopPath(
-			DataFetcher dataFetcher, ArrivalDeparture arrDep1,
+			List<Match> matchesForTrip, ArrivalDeparture arrDep1,
 			ArrivalDeparture arrDep2) {
 		// Determine departure time. If shouldn't use departures times
 		// for terminal departure that are earlier then schedule time
@@ -540,7 +610,7 @@ public class TravelTimesProcessor {
 		double travelTimeSegmentLength = getTravelTimeSegmentLength(arrDep2);
 
 		List<MatchPoint> matchPoints = 
-				getMatchPoints(dataFetcher, arrDep1, arrDep2);
+				getMatchPoints(matchesForTrip, arrDep1, arrDep2);
 		
 		// The times when a travel time segment vertex is crossed.
 		// Will include the departure time, the middle vertices, and
@@ -656,16 +726,18 @@ public class TravelTimesProcessor {
 	 * and stop/dwell times are put into the stopTimesMap and travelTimesMap
 	 * members for further processing.
 	 * 
-	 * @param dataFetcher
-	 *            Contains the AVL based historic data in maps
+	 * @param matchesForTrip
+	 *            The AVL based historic matches for the trip
 	 * @param arrDep1
 	 *            The first arrival/departure
 	 * @param arrDep2
 	 *            The second arrival/departure
+	 * @param maps
+	 *            Where to put the resulting stop and travel times
 	 */
 	private void processDataBetweenTwoArrivalDepartures(
-			DataFetcher dataFetcher, ArrivalDeparture arrDep1,
-			ArrivalDeparture arrDep2) {
+			List<Match> matchesForTrip, ArrivalDeparture arrDep1,
+			ArrivalDeparture arrDep2, TravelTimeMaps maps) {
 		// If schedule adherence is really far off then ignore the data
 		// point because it would skew the results.
 		TemporalDifference schedAdh = arrDep1.getScheduleAdherence();
@@ -692,7 +764,7 @@ public class TravelTimesProcessor {
 			int dwellTimeMsec = (int) (arrDep2.getTime() - arrDep1.getTime());
 
 			// Add this stop time to map so it can be averaged
-			addStopTimeToMap(mapKeyForTravelTimes, dwellTimeMsec);		
+			maps.addStopTime(mapKeyForTravelTimes, dwellTimeMsec);		
 
 			return;
 		}
@@ -704,25 +776,125 @@ public class TravelTimesProcessor {
 				&& arrDep2.isArrival()) {
 			// Determine the travel times and add them to the map
 			List<Integer> travelTimesForStopPath = 
-					determineTravelTimesForStopPath(dataFetcher, arrDep1, 
+					determineTravelTimesForStopPath(matchesForTrip, arrDep1, 
 							arrDep2);
-			addTravelTimesToMap(mapKeyForTravelTimes, travelTimesForStopPath);
+			maps.addTravelTimes(mapKeyForTravelTimes, travelTimesForStopPath);
 				
 			return;
 		}
 	}
 	
+	/**
+	 * For aggregating the data for trips in parallel. The trips are divided
+	 * into shards by tripId. Each shard has its own thread and its own maps so
+	 * no synchronization is needed. Since the keys of the maps contain the
+	 * tripId the shards have separate keys. And since a shard processes its
+	 * trips in the order that they were submitted the data for each key ends
+	 * up in the same order as when processing serially. Therefore merging
+	 * the maps of the shards gives identical results to processing serially.
+	 */
+	private class ShardedAggregator {
+		private final ExecutorService[] executors;
+		private final TravelTimeMaps[] shardMaps;
+		private final Semaphore pendingTrips = 
+				new Semaphore(MAX_PENDING_TRIPS);
+		private final AtomicReference<Throwable> exception = 
+				new AtomicReference<Throwable>();
+		
+		private ShardedAggregator(int numShards) {
+			executors = new ExecutorService[numShards];
+			shardMaps = new TravelTimeMaps[numShards];
+			NamedThreadFactory threadFactory = 
+					new NamedThreadFactory("aggregateTravelTimes");
+			for (int i = 0; i < numShards; ++i) {
+				executors[i] = Executors.newSingleThreadExecutor(threadFactory);
+				shardMaps[i] = new TravelTimeMaps();
+			}
+		}
+		
+		/**
+		 * Queues up the trip to be aggregated by the thread for its shard.
+		 * Blocks if there are already MAX_PENDING_TRIPS waiting to be
+		 * processed.
+		 * 
+		 * @param arrDepList
+		 * @param matches
+		 */
+		private void submit(final List<ArrivalDeparture> arrDepList,
+				final List<Match> matches) {
+			String tripId = arrDepList.get(0).getTripId();
+			int shard = (tripId.hashCode() & Integer.MAX_VALUE) 
+					% executors.length;
+			final TravelTimeMaps maps = shardMaps[shard];
+			
+			pendingTrips.acquireUninterruptibly();
+			executors[shard].execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// If already had a problem then don't bother
+						if (exception.get() == null) {
+							debugLogTrip(arrDepList);
+							aggregateTripDataIntoMaps(matches, arrDepList, 
+									maps);
+						}
+					} catch (Throwable t) {
+						exception.compareAndSet(null, t);
+					} finally {
+						pendingTrips.release();
+					}
+				}
+			});
+		}
+		
+		/**
+		 * Waits for all of the submitted trips to be processed and shuts down
+		 * the threads.
+		 */
+		private void finish() {
+			for (ExecutorService executor : executors)
+				executor.shutdown();
+			try {
+				for (ExecutorService executor : executors)
+					executor.awaitTermination(Long.MAX_VALUE, 
+							TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (ExecutorService executor : executors)
+					executor.shutdownNow();
+				throw new RuntimeException("Interrupted while aggregating "
+						+ "travel times", e);
+			}
+		}
+		
+		/**
+		 * Merges the data from all of the shards into the specified maps.
+		 * 
+		 * @param maps
+		 */
+		private void mergeInto(TravelTimeMaps maps) {
+			if (exception.get() != null)
+				throw new RuntimeException("Exception while aggregating "
+						+ "travel times", exception.get());
+			
+			for (TravelTimeMaps shard : shardMaps)
+				maps.addAll(shard);
+		}
+	}
+	
 	/**
 	 * Process historic data from database for single trip. Puts resulting data
-	 * into stopTimesMap and travelTimesMap.
+	 * into the stop times and travel times maps.
 	 * 
-	 * @param dataFetcher
-	 *            Contains arrival/departures and matches fetched from database
+	 * @param matchesForTrip
+	 *            Matches for the trip fetched from database
 	 * @param arrDepList
 	 *            List of ArrivalDepartures for vehicle for a trip
+	 * @param maps
+	 *            Where to put the resulting stop and travel times
 	 */
-	private void aggregateTripDataIntoMaps(DataFetcher dataFetcher,
-			List<ArrivalDeparture> arrDepList) {
+	private void aggregateTripDataIntoMaps(List<Match> matchesForTrip,
+			List<ArrivalDeparture> arrDepList, TravelTimeMaps maps) {
 		
 		for (int i=0; i<arrDepList.size()-1; ++i) {
 			ArrivalDeparture arrDep1 = arrDepList.get(i);
@@ -735,12 +907,13 @@ public class TravelTimesProcessor {
 					continue;
 
 				// Handle first stop
-				processFirstStopOfTrip(arrDep1);
+				processFirstStopOfTrip(arrDep1, maps);
 			} 
 			
 			// Deal with normal travel times
 			ArrivalDeparture arrDep2 = arrDepList.get(i+1);				
-			processDataBetweenTwoArrivalDepartures(dataFetcher, arrDep1, arrDep2);							
+			processDataBetweenTwoArrivalDepartures(matchesForTrip, arrDep1, 
+					arrDep2, maps);
 		}		
 	}
 		
@@ -817,10 +990,219 @@ public class TravelTimesProcessor {
 			return null;
 	}
 	
+	/**
+	 * Returns the configured trip for the historic data for a trip/stop
+	 * path. Makes sure that the stopPathIndex and stopId from the historic
+	 * data match the current trip configuration. This is important since
+	 * stops for a trip might have changed.
+	 * 
+	 * @param tripId
+	 * @param stopPathIndex
+	 * @param stopId
+	 * @param tripMap
+	 *            contains all the trips that are configured and that need
+	 *            travel times for.
+	 * @return The trip, or null if the historic data doesn't match the
+	 *         configuration
+	 */
+	private static Trip getTripIfConfigMatches(String tripId,
+			int stopPathIndex, String stopId, Map<String, Trip> tripMap) {
+		// Determine the associated Trip object for the data
+		Trip trip = tripMap.get(tripId);
+		if (trip == null) {
+			logger.error("No trip exists for trip ID={} in " +
+					"configuration data even though historic data was " +
+					"found for it.", 
+					tripId);
+			return null;
+		}
+
+		// Make sure stopPathIndex and stopId from historic data match
+		// the current trip configuration.
+		if (stopPathIndex >= trip.getStopPaths().size()) {
+			logger.error("Problem with stopPathIndex for historical data. "
+					+ "The stopPathIndex from the historical data {} is "
+					+ "greater than the number of stop paths for {}",
+					stopPathIndex, trip);
+			return null;
+		}
+		String stopIdFromTrip = trip.getStopPath(stopPathIndex).getStopId();
+		if (!stopId.equals(stopIdFromTrip)) {
+			logger.error("Problem with stopPathIndex for historical data. "
+					+ "The stopPathIndex from the historical data {} "
+					+ "corresponds to stopId={} but for the trip the "
+					+ "stopId={}. {}",
+					stopPathIndex, stopId, stopIdFromTrip, trip);
+			return null;
+		}
+		
+		return trip;
+	}
+	
+	/**
+	 * Takes the data from the stopTimesMap and travelTimesMap for a
+	 * trip/stop path and creates the corresponding travel times. Only reads
+	 * from the maps so can be called by multiple threads at once.
+	 * 
+	 * @param mapKey
+	 *            Specifies the trip/stop path
+	 * @param tripMap
+	 *            contains all the trips that are configured and that need
+	 *            travel times for.
+	 * @return The travel times, or null if the historic data doesn't match
+	 *         the configuration
+	 */
+	private static TravelTimeInfo createTravelTimeInfo(
+			ProcessedDataMapKey mapKey, Map<String, Trip> tripMap) {
+		Trip trip = getTripIfConfigMatches(mapKey.getTripId(),
+				mapKey.getStopPathIndex(), mapKey.getStopId(), tripMap);
+		if (trip == null)
+			return null;
+		
+		// Determine average travel times for this trip/stop path
+		List<List<Integer>> travelTimesForStopPathForTrip =
+				travelTimesMap.get(mapKey);
+		List<Integer> averageTravelTimes = new ArrayList<Integer>();
+		if (travelTimesForStopPathForTrip != null) {
+			// Get the travel times, grouped by segment
+			List<List<Integer>> travelTimesBySegment =
+					bySegment(travelTimesForStopPathForTrip, trip,
+							mapKey.getStopPathIndex());
+
+			// Only continue to process if some of the historic data for 
+			// the trip was actually valid
+			if (travelTimesBySegment != null) {
+				// For each segment, process travel times...
+				for (List<Integer> travelTimesByTripForSegment : 
+						travelTimesBySegment) {
+					int averageTravelTimeForSegment = Statistics
+							.filteredMean(travelTimesByTripForSegment, 
+									FRACTION_LIMIT_FOR_SEGMENT_TIMES);
+					averageTravelTimes.add(averageTravelTimeForSegment);
+				}
+			}
+		}
+		
+		// Determine average stop time for this trip/stop
+		int averagedStopTime;
+		List<Integer> stopTimesForStopPathForTrip = 
+				stopTimesMap.get(mapKey);
+		if (stopTimesForStopPathForTrip != null) { 
+			// For first stops of trip will be providing departure
+			// times so need to be conservative and bias the stop time
+			if (mapKey.getStopPathIndex() == 0) {
+				// First stop of trip so be extra conservative because
+				// don't want to determine that vehicles depart at 8:02
+				// when the doors actually shut at 8:01 and the vehicle
+				// starts moving slowly giving a slightly wrong departure
+				// time.
+				// Determine best stop time to use
+				averagedStopTime =
+						Statistics.biasedFilteredMean(
+								stopTimesForStopPathForTrip,
+								FRACTION_LIMIT_FOR_STOP_TIMES,
+								STD_DEV_BIAS_FOR_FIRST_STOP);
+				
+				// So far have determine when vehicle has departed. But should add
+				// a bit of a bias since passengers have to get on a few seconds
+				// before doors shut and vehicle starts moving.
+				averagedStopTime -= STOP_TIME_BIAS_FOR_FIRST_STOP;
+			} else {
+				// Not first stop of trip
+				averagedStopTime = Statistics.filteredMean(
+						stopTimesForStopPathForTrip,
+						FRACTION_LIMIT_FOR_STOP_TIMES);
+			}
+		} else {
+			// No arrival and corresponding departure time for the stop. 
+			averagedStopTime = TravelTimeInfo.STOP_TIME_NOT_VALID;
+
+			// Not having stop time indicates possible problem unless it 
+			// is the last stop path for the trip. So if not the last stop  
+			// path for trip then log the problem.
+			if (mapKey.getStopPathIndex() != trip.getNumberStopPaths()-1) {
+				logger.debug("No stop times for {} even though there are " +
+					"travel times for that map key", mapKey);
+			}
+		}
+		
+		// Determine the travel time segment length actually used
+		double travelTimeSegLength = 
+				getTravelTimeSegmentLength(trip, mapKey.getStopPathIndex());
+		
+		// Put the results into TravelTimeInfo object and put into 
+		// TravelTimeInfo map so can be used to find best travel times 
+		// when there is no data for particular trip.
+		return new TravelTimeInfo(trip,
+				mapKey.getStopPathIndex(), averagedStopTime,
+				averageTravelTimes, travelTimeSegLength);
+	}
+	
+	/**
+	 * Creates the travel times for each of the trip/stop paths. If configured
+	 * to use multiple threads then the keys are divided into chunks that are
+	 * processed in parallel.
+	 * 
+	 * @param mapKeys
+	 * @param tripMap
+	 * @return Array of travel times, in the same order as mapKeys. An element
+	 *         is null if travel times couldn't be created for the key.
+	 */
+	private static TravelTimeInfo[] createTravelTimeInfos(
+			final List<ProcessedDataMapKey> mapKeys, 
+			final Map<String, Trip> tripMap) {
+		final TravelTimeInfo[] results = new TravelTimeInfo[mapKeys.size()];
+		
+		int threads = getNumThreads();
+		if (threads <= 1) {
+			for (int i = 0; i < mapKeys.size(); ++i)
+				results[i] = createTravelTimeInfo(mapKeys.get(i), tripMap);
+			return results;
+		}
+		
+		// Use several chunks per thread so that the work is spread out evenly
+		int chunkSize = Math.max(1, mapKeys.size() / (4 * threads));
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new NamedThreadFactory("createTravelTimes"));
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int start = 0; start < mapKeys.size(); start += chunkSize) {
+			final int chunkStart = start;
+			final int chunkEnd = Math.min(start + chunkSize, mapKeys.size());
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = chunkStart; i < chunkEnd; ++i)
+						results[i] = 
+							createTravelTimeInfo(mapKeys.get(i), tripMap);
+					return null;
+				}
+			}));
+		}
+		
+		try {
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while creating travel "
+					+ "times", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Exception while creating travel "
+					+ "times", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		return results;
+	}
+	
 	/**
 	 * Takes the data from the stopTimesMap and travelTimesMap and creates
 	 * corresponding travel times. Puts those travel times into the
 	 * TravelTimeInfoMap that is returned.
+	 * <p>
+	 * The travel times are added to the TravelTimeInfoMap in the same order
+	 * no matter how many threads are used so that the results are the same.
 	 * 
 	 * @param tripMap
 	 *            contains all the trips that are configured and that need
@@ -829,7 +1211,8 @@ public class TravelTimesProcessor {
 	 */
 	public TravelTimeInfoMap createTravelTimesFromMaps(
 			Map<String, Trip> tripMap) {
-		logger.info("Processing data into a TravelTimeInfoMap...");
+		logger.info("Processing data into a TravelTimeInfoMap using {} "
+				+ "threads...", getNumThreads());
 		IntervalTimer intervalTimer = new IntervalTimer();
 
 		TravelTimeInfoMap travelTimeInfoMap = new TravelTimeInfoMap();
@@ -843,131 +1226,205 @@ public class TravelTimesProcessor {
 		
 		// For each trip/stop path that had historical arrivals/departures and 
 		// or matches in the database...
-		for (ProcessedDataMapKey mapKey : combinedKeySet) {
-			// Determine the associated Trip object for the data
-			Trip trip = tripMap.get(mapKey.getTripId());
-			if (trip == null) {
-				logger.error("No trip exists for trip ID={} in " +
-						"configuration data even though historic data was " +
-						"found for it.", 
-						mapKey.getTripId());
-				continue;
-			}
+		TravelTimeInfo[] travelTimeInfos = createTravelTimeInfos(
+				new ArrayList<ProcessedDataMapKey>(combinedKeySet), tripMap);
+		for (TravelTimeInfo travelTimeInfo : travelTimeInfos) {
+			if (travelTimeInfo != null)
+				travelTimeInfoMap.add(travelTimeInfo);
+		}
 
-			// Make sure stopPathIndex and stopId from historic data match
-			// the current trip configuration. This is important since stops
-			// for a trip might have changed.
-			if (mapKey.getStopPathIndex() >= trip.getStopPaths().size()) {
-				logger.error("Problem with stopPathIndex for historical data. "
-						+ "The stopPathIndex from the historical data {} is "
-						+ "greater than the number of stop paths for {}",
-						mapKey.getStopPathIndex(), trip);
-				continue;
-			}
-			String stopIdFromTrip = 
-					trip.getStopPath(mapKey.getStopPathIndex()).getStopId();
-			if (!mapKey.getStopId().equals(stopIdFromTrip)) {
-				logger.error("Problem with stopPathIndex for historical data. "
-						+ "The stopPathIndex from the historical data {} "
-						+ "corresponds to stopId={} but for the trip the "
-						+ "stopId={}. {}",
-						mapKey.getStopPathIndex(), mapKey.getStopId(), 
-						stopIdFromTrip, trip);
+		// Nice to log how long things took so can see progress and bottle necks
+		logger.info("Processing data into a TravelTimeInfoMap took {} msec.", 
+				intervalTimer.elapsedMsec());
+
+		// Return the map with all the processed travel time data in it
+		return travelTimeInfoMap;	
+	}
+	
+	/**
+	 * Folds the data from the stopTimesMap and travelTimesMap, which should
+	 * have been read in for just the new time period, into the running
+	 * aggregates. The existing aggregates are first decayed so that newer
+	 * data counts for more than older data. Aggregates are created for
+	 * trip/stop paths that don't have one yet.
+	 * 
+	 * @param existingAggregates
+	 *            The aggregates read in from the database
+	 * @param tripMap
+	 *            contains all the trips that are configured and that need
+	 *            travel times for.
+	 * @param decayFactor
+	 *            Between 0.0 and 1.0. A value of 1.0 means no decay.
+	 * @param dataEndTime
+	 *            End time of the data being folded in
+	 * @return All of the aggregates, both the existing ones and the new ones
+	 */
+	public List<TravelTimeAggregate> foldIntoAggregates(
+			List<TravelTimeAggregate> existingAggregates,
+			Map<String, Trip> tripMap, double decayFactor, Date dataEndTime) {
+		logger.info("Folding data into {} existing travel time aggregates "
+				+ "using decayFactor={}...", existingAggregates.size(),
+				decayFactor);
+		IntervalTimer intervalTimer = new IntervalTimer();
+
+		// Decay the existing data and put it into a map so can find the
+		// aggregate for a trip/stop path
+		Map<ProcessedDataMapKey, TravelTimeAggregate> aggregatesMap =
+				new HashMap<ProcessedDataMapKey, TravelTimeAggregate>();
+		for (TravelTimeAggregate aggregate : existingAggregates) {
+			aggregate.decay(decayFactor);
+			aggregatesMap.put(getKey(aggregate.getTripId(),
+					aggregate.getStopPathIndex(), aggregate.getStopId()),
+					aggregate);
+		}
+		
+		// Need to look at all trips that have data for. Therefore need
+		// to combine keys from both stopTimesMap and travelTimesMap.
+		Set<ProcessedDataMapKey> combinedKeySet = 
+				new HashSet<ProcessedDataMapKey>();
+		combinedKeySet.addAll(travelTimesMap.keySet());
+		combinedKeySet.addAll(stopTimesMap.keySet());
+		
+		// Fold in the new data for each trip/stop path
+		for (ProcessedDataMapKey mapKey : combinedKeySet) {
+			Trip trip = getTripIfConfigMatches(mapKey.getTripId(),
+					mapKey.getStopPathIndex(), mapKey.getStopId(), tripMap);
+			if (trip == null)
 				continue;
+			
+			TravelTimeAggregate aggregate = aggregatesMap.get(mapKey);
+			if (aggregate == null) {
+				aggregate = new TravelTimeAggregate(mapKey.getTripId(),
+						mapKey.getStopPathIndex(), mapKey.getStopId());
+				aggregatesMap.put(mapKey, aggregate);
 			}
 			
-			// Determine average travel times for this trip/stop path
+			List<Integer> stopTimesForStopPathForTrip = 
+					stopTimesMap.get(mapKey);
+			if (stopTimesForStopPathForTrip != null)
+				aggregate.addStopTimes(stopTimesForStopPathForTrip);
+			
 			List<List<Integer>> travelTimesForStopPathForTrip =
 					travelTimesMap.get(mapKey);
-			List<Integer> averageTravelTimes = new ArrayList<Integer>();
 			if (travelTimesForStopPathForTrip != null) {
-				// Get the travel times, grouped by segment
 				List<List<Integer>> travelTimesBySegment =
 						bySegment(travelTimesForStopPathForTrip, trip,
 								mapKey.getStopPathIndex());
-
-				// Only continue to process if some of the historic data for 
-				// the trip was actually valid
-				if (travelTimesBySegment != null) {
-					// For each segment, process travel times...
-					for (List<Integer> travelTimesByTripForSegment : 
-							travelTimesBySegment) {
-						int averageTravelTimeForSegment = Statistics
-								.filteredMean(travelTimesByTripForSegment, 
-										FRACTION_LIMIT_FOR_SEGMENT_TIMES);
-						averageTravelTimes.add(averageTravelTimeForSegment);
-					}
-				}
+				if (travelTimesBySegment != null)
+					aggregate.addTravelTimes(travelTimesBySegment);
 			}
-			
-			// Determine average stop time for this trip/stop
-			int averagedStopTime;
-			List<Integer> stopTimesForStopPathForTrip = 
-					stopTimesMap.get(mapKey);
-			if (stopTimesForStopPathForTrip != null) { 
-				// For first stops of trip will be providing departure
-				// times so need to be conservative and bias the stop time
-				if (mapKey.getStopPathIndex() == 0) {
-					// First stop of trip so be extra conservative because
-					// don't want to determine that vehicles depart at 8:02
-					// when the doors actually shut at 8:01 and the vehicle
-					// starts moving slowly giving a slightly wrong departure
-					// time.
-					// Determine best stop time to use
-					averagedStopTime =
-							Statistics.biasedFilteredMean(
-									stopTimesForStopPathForTrip,
-									FRACTION_LIMIT_FOR_STOP_TIMES,
-									STD_DEV_BIAS_FOR_FIRST_STOP);
-					
-					// So far have determine when vehicle has departed. But should add
-					// a bit of a bias since passengers have to get on a few seconds
-					// before doors shut and vehicle starts moving.
-					averagedStopTime -= STOP_TIME_BIAS_FOR_FIRST_STOP;
-				} else {
-					// Not first stop of trip
-					averagedStopTime = Statistics.filteredMean(
-							stopTimesForStopPathForTrip,
-							FRACTION_LIMIT_FOR_STOP_TIMES);
-				}
+		}
+		
+		for (TravelTimeAggregate aggregate : aggregatesMap.values())
+			aggregate.setDataEndTime(dataEndTime);
+		
+		logger.info("Folding data into travel time aggregates took {} msec. "
+				+ "There are now {} aggregates.", 
+				intervalTimer.elapsedMsec(), aggregatesMap.size());
+		
+		return new ArrayList<TravelTimeAggregate>(aggregatesMap.values());
+	}
+	
+	/**
+	 * Creates the travel times for a trip/stop path from the running
+	 * aggregate. Same as createTravelTimeInfo() but uses the histograms of
+	 * the aggregate instead of the individual data points.
+	 * 
+	 * @param aggregate
+	 * @param tripMap
+	 *            contains all the trips that are configured and that need
+	 *            travel times for.
+	 * @return The travel times, or null if the aggregate doesn't match the
+	 *         configuration
+	 */
+	private static TravelTimeInfo createTravelTimeInfo(
+			TravelTimeAggregate aggregate, Map<String, Trip> tripMap) {
+		int stopPathIndex = aggregate.getStopPathIndex();
+		Trip trip = getTripIfConfigMatches(aggregate.getTripId(),
+				stopPathIndex, aggregate.getStopId(), tripMap);
+		if (trip == null)
+			return null;
+		
+		// Determine average travel times. Only valid if the number of travel
+		// time segments matches the current configuration of the trip.
+		List<Integer> averageTravelTimes = new ArrayList<Integer>();
+		if (aggregate.hasTravelTimes()
+				&& aggregate.getTravelTimesBySegment().size() == 
+					getNumTravelTimeSegments(trip, stopPathIndex)) {
+			for (TimeHistogram histogram : 
+					aggregate.getTravelTimesBySegment()) {
+				averageTravelTimes.add(histogram.filteredMean(
+						FRACTION_LIMIT_FOR_SEGMENT_TIMES));
+			}
+		}
+		
+		// Determine average stop time. For first stop of trip be extra
+		// conservative, same as for createTravelTimeInfo(ProcessedDataMapKey)
+		int averagedStopTime;
+		TimeHistogram stopTimes = aggregate.getStopTimes();
+		if (!stopTimes.isEmpty()) {
+			if (stopPathIndex == 0) {
+				averagedStopTime = stopTimes.biasedFilteredMean(
+						FRACTION_LIMIT_FOR_STOP_TIMES,
+						STD_DEV_BIAS_FOR_FIRST_STOP);
+				averagedStopTime -= STOP_TIME_BIAS_FOR_FIRST_STOP;
 			} else {
-				// No arrival and corresponding departure time for the stop. 
-				averagedStopTime = TravelTimeInfo.STOP_TIME_NOT_VALID;
-
-				// Not having stop time indicates possible problem unless it 
-				// is the last stop path for the trip. So if not the last stop  
-				// path for trip then log the problem.
-				if (mapKey.getStopPathIndex() != trip.getNumberStopPaths()-1) {
-					logger.debug("No stop times for {} even though there are " +
-						"travel times for that map key", mapKey);
-				}
+				averagedStopTime = stopTimes.filteredMean(
+						FRACTION_LIMIT_FOR_STOP_TIMES);
 			}
-			
-			// Determine the travel time segment length actually used
-			double travelTimeSegLength = 
-					getTravelTimeSegmentLength(trip, mapKey.getStopPathIndex());
-			
-			// Put the results into TravelTimeInfo object and put into 
-			// TravelTimeInfo map so can be used to find best travel times 
-			// when there is no data for particular trip.
-			TravelTimeInfo travelTimeInfo = new TravelTimeInfo(trip,
-					mapKey.getStopPathIndex(), averagedStopTime,
-					averageTravelTimes, travelTimeSegLength);
-			travelTimeInfoMap.add(travelTimeInfo);
+		} else {
+			averagedStopTime = TravelTimeInfo.STOP_TIME_NOT_VALID;
 		}
+		
+		double travelTimeSegLength = 
+				getTravelTimeSegmentLength(trip, stopPathIndex);
+		return new TravelTimeInfo(trip, stopPathIndex, averagedStopTime,
+				averageTravelTimes, travelTimeSegLength);
+	}
+	
+	/**
+	 * Creates travel times from the running aggregates instead of from the
+	 * stopTimesMap and travelTimesMap. Used for incrementally updating the
+	 * travel times.
+	 * 
+	 * @param aggregates
+	 * @param tripMap
+	 *            contains all the trips that are configured and that need
+	 *            travel times for.
+	 * @return TravelTimeInfoMap The generated travel times
+	 */
+	public TravelTimeInfoMap createTravelTimesFromAggregates(
+			List<TravelTimeAggregate> aggregates, Map<String, Trip> tripMap) {
+		logger.info("Processing travel time aggregates into a "
+				+ "TravelTimeInfoMap...");
+		IntervalTimer intervalTimer = new IntervalTimer();
 
-		// Nice to log how long things took so can see progress and bottle necks
-		logger.info("Processing data into a TravelTimeInfoMap took {} msec.", 
+		TravelTimeInfoMap travelTimeInfoMap = new TravelTimeInfoMap();
+		for (TravelTimeAggregate aggregate : aggregates) {
+			if (aggregate.isEmpty())
+				continue;
+			
+			TravelTimeInfo travelTimeInfo = 
+					createTravelTimeInfo(aggregate, tripMap);
+			if (travelTimeInfo != null)
+				travelTimeInfoMap.add(travelTimeInfo);
+		}
+		
+		logger.info("Processing travel time aggregates into a "
+				+ "TravelTimeInfoMap took {} msec.", 
 				intervalTimer.elapsedMsec());
-
-		// Return the map with all the processed travel time data in it
-		return travelTimeInfoMap;	
+		
+		return travelTimeInfoMap;
 	}
 	
 	/**
 	 * Reads in the Matches and the ArrivalDepartures from the database for the
 	 * time specified. Puts the data into the stopTimesMap and the travelTimesMap 
 	 * for further processing.
+	 * <p>
+	 * The data is streamed from the database so that each vehicle trip is
+	 * processed as soon as all of its data has been read. This way don't
+	 * need to have all of the historic data in memory at once.
 	 * 
 	 * @param projectId
 	 * @param specialDaysOfWeek
@@ -976,19 +1433,43 @@ public class TravelTimesProcessor {
 	 */
 	public void readAndProcessHistoricData(String projectId, 
 			List<Integer> specialDaysOfWeek, Date beginTime, Date endTime) {
-		// Read the arrivals/departures and matches into a DataFetcher
-		DataFetcher dataFetcher = new DataFetcher(projectId, specialDaysOfWeek);
-		dataFetcher.readData(projectId, beginTime, endTime);
-		
 		// Process all the historic data read from the database. Puts 
 		// resulting data into stopTimesMap and travelTimesMap.
-		logger.info("Processing data into travel time maps...");
+		logger.info("Processing data into travel time maps using {} "
+				+ "threads...", getNumThreads());
 		IntervalTimer intervalTimer = new IntervalTimer();
-		Collection<List<ArrivalDeparture>> arrivalDepartures =
-				dataFetcher.getArrivalDepartureMap().values();
-		for (List<ArrivalDeparture> arrDepList : arrivalDepartures) {
-			debugLogTrip(arrDepList);
-			aggregateTripDataIntoMaps(dataFetcher, arrDepList);
+		DataFetcher dataFetcher = new DataFetcher(projectId, specialDaysOfWeek);
+		final TravelTimeMaps maps = 
+				new TravelTimeMaps(stopTimesMap, travelTimesMap);
+		if (getNumThreads() <= 1) {
+			dataFetcher.streamData(projectId, beginTime, endTime,
+					new DataFetcher.TripHandler() {
+						@Override
+						public void handleTrip(
+								List<ArrivalDeparture> arrDepList,
+								List<Match> matches) {
+							debugLogTrip(arrDepList);
+							aggregateTripDataIntoMaps(matches, arrDepList, 
+									maps);
+						}
+					});
+		} else {
+			final ShardedAggregator aggregator = 
+					new ShardedAggregator(getNumThreads());
+			try {
+				dataFetcher.streamData(projectId, beginTime, endTime,
+						new DataFetcher.TripHandler() {
+							@Override
+							public void handleTrip(
+									List<ArrivalDeparture> arrDepList,
+									List<Match> matches) {
+								aggregator.submit(arrDepList, matches);
+							}
+						});
+			} finally {
+				aggregator.finish();
+			}
+			aggregator.mergeInto(maps);
 		}
 		
 		// Nice to log how long things took so can see progress and bottle necks
@@ -39,6 +39,7 @@ import org.transitime.db.structs.Stop;
 import org.transitime.db.structs.Transfer;
 import org.transitime.db.structs.FareRule;
 import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.TravelTimeAggregate;
 import org.transitime.db.structs.TravelTimesForStopPath;
 import org.transitime.db.structs.TravelTimesForTrip;
 import org.transitime.db.structs.Trip;
@@ -92,6 +93,7 @@ public class AnnotatedClassesList {
 		Stop.class,
 		StopPath.class,
 		Transfer.class,
+		TravelTimeAggregate.class,
 		TravelTimesForStopPath.class,
 		TravelTimesForTrip.class,
 		Trip.class,
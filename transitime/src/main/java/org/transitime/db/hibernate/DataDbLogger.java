@@ -20,12 +20,17 @@ import java.net.SocketTimeoutException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
@@ -36,6 +41,9 @@ import org.hibernate.exception.JDBCConnectionException;
 import org.hibernate.exception.SQLGrammarException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.config.StringListConfigValue;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.logging.Markers;
 import org.transitime.utils.IntervalTimer;
@@ -55,9 +63,15 @@ import org.transitime.utils.threading.NamedThreadFactory;
  * to the queue. 
  * 
  * A separate thread is used to read from the queue and write the data to the 
- * database. If the queue starts filling up then error messages are e-mailed
- * to users alerting them that there is a problem. E-mail messages are also
- * sent out when the queue level is going down again.
+ * database. Classes listed in transitime.db.separateQueueClasses get their
+ * own queue and pool of writer threads, each with its own db connection, so
+ * that a slow or high volume table such as Match doesn't delay writing other
+ * data such as ArrivalDeparture. Classes listed in
+ * transitime.db.blockWhenFullClasses make the adding thread wait a limited
+ * time when their queue is full instead of dropping data. If the queue
+ * starts filling up then error messages are e-mailed to users alerting them
+ * that there is a problem. E-mail messages are also sent out when the queue
+ * level is going down again.
  * 
  * A goal with this class was to make the writing to the database is 
  * efficient as possible. Therefore the objects are written in batches.
@@ -66,6 +80,26 @@ import org.transitime.utils.threading.NamedThreadFactory;
  * with a batch then each item is individually written so that don't
  * lose any data.
  * 
+ * If transitime.db.groupByClassWriter is set then a different writer is used
+ * that is intended for high volumes of data. It collects a much larger batch
+ * of objects, until either transitime.db.groupByClassMaxBatchSize objects
+ * have been read from the queue or transitime.db.groupByClassMaxDelayMsec has
+ * elapsed, and groups the objects by class. The objects for each class are
+ * then saved and flushed together so that Hibernate writes them using JDBC
+ * batches that each contain inserts for only a single table. For this to be
+ * effective hibernate.jdbc.batch_size in the Hibernate config file should be
+ * set to a larger value. For MySQL HibernateUtils adds the JDBC URL parameter
+ * rewriteBatchedStatements=true so that the driver converts each JDBC batch
+ * into a multi-row insert.
+ * 
+ * Note that Hibernate doesn't batch inserts of entities with an IDENTITY
+ * generated id. Prediction uses GenerationType.AUTO, which is IDENTITY for
+ * MySQL, so for MySQL predictions are still inserted one row at a time, though
+ * within a single transaction.
+ * 
+ * For both writers the number of objects written per class is counted and
+ * the write throughput is periodically logged.
+ * 
  * When in playback mode then don't want to store the data because it would
  * interfere with data stored when the application was run in real time. 
  * Therefore when running in playback mode set shouldStoreToDb to true
@@ -79,15 +113,6 @@ public class DataDbLogger {
 	// For when cannot connect to data the length of time in msec between retries
 	private static final long TIME_BETWEEN_RETRIES = 2 * Time.MS_PER_SEC;
 	
-	private static final int QUEUE_CAPACITY = 100000;
-	
-	// The queue capacity levels when an error message should be e-mailed out. 
-	// The max value should be 1.0. 
-	private final double levels[] = { 0.5, 0.8, 1.00 };
-	
-	// The queue that objects to be stored are placed in
-	private BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>(QUEUE_CAPACITY);
-	
 	// When running in playback mode where getting AVLReports from database
 	// instead of from an AVL feed, then debugging and don't want to store
 	// derived data into the database because that would interfere with the
@@ -100,14 +125,100 @@ public class DataDbLogger {
 	// objects can be written out and not have the queue fill up.
 	private final boolean shouldPauseToReduceQueue;
 	
-	// For keeping track of index into levels, which level of capacity of
-	// queue being used. When level changes then an e-mail is sent out warning
-	// the operators.
-	private double indexOfLevelWhenMessageLogged = 0;
+	// The queue for all objects whose class doesn't have a separate queue
+	private final WriterQueue defaultQueue;
+	
+	// The separate queues, keyed on class simple name. Not modified after
+	// construction so doesn't need to be synchronized.
+	private final Map<String, WriterQueue> separateQueuesMap =
+			new LinkedHashMap<String, WriterQueue>();
+	
+	// For keeping track of how many objects of each class have been written.
+	// Keyed on class simple name. Updated by the writer threads and can
+	// be read by other threads.
+	private final ConcurrentMap<String, AtomicLong> writeCountsByClass =
+			new ConcurrentHashMap<String, AtomicLong>();
+	
+	// For periodically logging the write throughput per class
+	private Map<String, Long> writeCountsWhenLastLogged =
+			new HashMap<String, Long>();
+	private long timeThroughputLastLogged = System.currentTimeMillis();
+	
+	private static BooleanConfigValue groupByClassWriter =
+			new BooleanConfigValue("transitime.db.groupByClassWriter", 
+					false,
+					"If true then DataDbLogger collects larger batches of "
+					+ "objects from its queue, groups them by class, and "
+					+ "writes each class using JDBC batches. This is more "
+					+ "efficient for high volumes of data. Should also set "
+					+ "hibernate.jdbc.batch_size in the Hibernate config file "
+					+ "to a larger value. Note that for MySQL predictions are "
+					+ "not batched since their id is generated by the "
+					+ "database (IDENTITY), which prevents Hibernate from "
+					+ "batching inserts, though they are still written "
+					+ "within a single transaction.");
 	
-	// For keeping track of maximum capacity of queue that was used. 
-	// Used for logging when queue use is going down.
-	private double maxQueueLevel = 0.0;
+	private static IntegerConfigValue groupByClassMaxBatchSize =
+			new IntegerConfigValue("transitime.db.groupByClassMaxBatchSize", 
+					1000,
+					"When transitime.db.groupByClassWriter is true, the max "
+					+ "number of objects to read from the queue and write in "
+					+ "a single transaction.");
+	
+	private static IntegerConfigValue groupByClassMaxDelayMsec =
+			new IntegerConfigValue("transitime.db.groupByClassMaxDelayMsec", 
+					1000,
+					"When transitime.db.groupByClassWriter is true, the max "
+					+ "time in msec to wait for more objects to arrive in the "
+					+ "queue before writing the batch.");
+	
+	private static final int QUEUE_CAPACITY = 100000;
+	
+	private static StringListConfigValue separateQueueClasses =
+			new StringListConfigValue("transitime.db.separateQueueClasses", 
+					new ArrayList<String>(),
+					"Semicolon separated list of simple class names, such as "
+					+ "Match;ArrivalDeparture, of objects that should be "
+					+ "written using their own queue and writer threads "
+					+ "instead of the default queue. This way a slow or high "
+					+ "volume table doesn't delay writing the other data.");
+	
+	private static IntegerConfigValue separateQueueCapacity =
+			new IntegerConfigValue("transitime.db.separateQueueCapacity", 
+					QUEUE_CAPACITY,
+					"Max number of objects in each of the separate queues "
+					+ "specified by transitime.db.separateQueueClasses.");
+	
+	private static IntegerConfigValue separateQueueWriterThreads =
+			new IntegerConfigValue("transitime.db.separateQueueWriterThreads", 
+					1,
+					"Number of writer threads, and therefore db "
+					+ "connections, for each of the separate queues "
+					+ "specified by transitime.db.separateQueueClasses.");
+	
+	private static StringListConfigValue blockWhenFullClasses =
+			new StringListConfigValue("transitime.db.blockWhenFullClasses", 
+					new ArrayList<String>(),
+					"Semicolon separated list of simple class names whose "
+					+ "separate queue, as specified by "
+					+ "transitime.db.separateQueueClasses, should make the "
+					+ "thread adding an object wait for space when the queue "
+					+ "is full instead of dropping the object. Use \"default\" "
+					+ "for the default queue.");
+	
+	private static IntegerConfigValue blockingQueueMaxWaitMsec =
+			new IntegerConfigValue("transitime.db.blockingQueueMaxWaitMsec", 
+					5000,
+					"For queues specified by transitime.db.blockWhenFullClasses "
+					+ "the max time in msec that the thread adding an object "
+					+ "waits for space in a full queue before the object is "
+					+ "dropped.");
+	
+	private static IntegerConfigValue throughputLogIntervalSecs =
+			new IntegerConfigValue("transitime.db.throughputLogIntervalSecs", 
+					5 * Time.SEC_PER_MIN,
+					"How frequently in seconds DataDbLogger logs the number "
+					+ "of objects written per class and the write rate.");
 	
 	// This is a singleton class that only returns a single object per agencyId.
 	private static Map<String, DataDbLogger> dataDbLoggerMap = 
@@ -116,8 +227,9 @@ public class DataDbLogger {
 	// So can access agencyId for logging messages
 	private String agencyId;
 	
-	// The Session for writing data to db
-	private SessionFactory sessionFactory;
+	// The Session for writing data to db. Volatile since it is replaced by
+	// a writer thread if there is a connection problem.
+	private volatile SessionFactory sessionFactory;
 	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(DataDbLogger.class);
@@ -155,8 +267,9 @@ public class DataDbLogger {
 	
 	/**
 	 * Constructor. Private so that factory method getDataDbLogger() has to be
-	 * used. Starts up separate thread that actually reads from queue and stores
-	 * the data.
+	 * used. Creates the default queue and any separate queues configured by
+	 * transitime.db.separateQueueClasses. Each queue starts up separate
+	 * threads that actually read from the queue and store the data.
 	 * 
 	 * @param agencyId
 	 *            Id of database to be written to
@@ -175,201 +288,471 @@ public class DataDbLogger {
 		this.shouldStoreToDb = shouldStoreToDb;
 		this.shouldPauseToReduceQueue = shouldPauseToReduceQueue;
 		
-		// Create the reusable heavy weight session factory
-		sessionFactory = HibernateUtils.getSessionFactory(agencyId);
+		// Create the reusable heavy weight session factory. Not needed if
+		// not actually storing data, which means that a database doesn't
+		// even need to be available.
+		sessionFactory = shouldStoreToDb ? 
+				HibernateUtils.getSessionFactory(agencyId) : null;
 		
-		// Start up separate thread that reads from the queue and
-		// actually stores the data
-		NamedThreadFactory threadFactory = new NamedThreadFactory(getClass().getSimpleName());
-		ExecutorService executor = Executors.newSingleThreadExecutor(threadFactory);
-		executor.execute(new Runnable() {
-			public void run() {
-				processData();
-				}
-			});
-
+		// Create the queues. Each one starts up separate threads that read
+		// from the queue and actually store the data
+		List<String> blockingClasses = blockWhenFullClasses.getValue();
+		defaultQueue = new WriterQueue("default", QUEUE_CAPACITY,
+				blockingClasses.contains("default"), 1);
+		for (String className : separateQueueClasses.getValue()) {
+			if (separateQueuesMap.containsKey(className))
+				continue;
+			logger.info("Creating separate DataDbLogger queue for class {} "
+					+ "with {} writer threads.", className, 
+					separateQueueWriterThreads.getValue());
+			separateQueuesMap.put(className, new WriterQueue(className, 
+					separateQueueCapacity.getValue(),
+					blockingClasses.contains(className),
+					separateQueueWriterThreads.getValue()));
+		}
 	}
 	
 	/**
-	 * Returns how much capacity of the queue is being used up. 
+	 * Returns all of the queues, the default one first followed by any
+	 * separate queues. For monitoring.
 	 * 
-	 * @return a value between 0.0 and 1.0 indicating how much of queue being used
+	 * @return List of the queues
 	 */
-	public double queueLevel() {
-		int remainingCapacity = queue.remainingCapacity();
-		int totalCapacity = queue.size() + remainingCapacity;
-		double level = 1.0  - (double) remainingCapacity / totalCapacity;
-		return level;
+	public List<WriterQueue> getQueues() {
+		List<WriterQueue> queues = new ArrayList<WriterQueue>();
+		queues.add(defaultQueue);
+		queues.addAll(separateQueuesMap.values());
+		return queues;
 	}
 	
 	/**
-	 * Returns how many items are in queue to be processed
-	 * @return items in queue
+	 * Returns how much capacity of the fullest queue is being used up. 
+	 * 
+	 * @return a value between 0.0 and 1.0 indicating how much of queue being used
 	 */
-	public int queueSize() {
-		return queue.size();
+	public double queueLevel() {
+		double maxLevel = 0.0;
+		for (WriterQueue writerQueue : getQueues())
+			maxLevel = Math.max(maxLevel, writerQueue.queueLevel());
+		return maxLevel;
 	}
 	
 	/**
-	 * Returns the index into levels that the queue capacity is at.
-	 * For determining if should send e-mail warning message.
-	 * 
-	 * @param queueLevel
-	 * @return
+	 * Returns how many items are in all of the queues to be processed
+	 * @return items in queues
 	 */
-	private int indexOfLevel(double queueLevel) {
-		for (int i=0; i<levels.length; ++i) {
-			if (queueLevel < levels[i])
-				return i;
-		}
-		// Must be level of 1.0 so return full size of levels array
-		return levels.length;
+	public int queueSize() {
+		int size = 0;
+		for (WriterQueue writerQueue : getQueues())
+			size += writerQueue.queueSize();
+		return size;
 	}
 	
 	/**
-	 * Determines set of class names in the queue. Useful for logging
-	 * error message when queue getting filled up so know what kind of
-	 * objects are backing the system up.
-	 * 
-	 * @return Map of class names and their count of the objects in the queue
+	 * Returns whether any queue has any elements in it that should be stored.
+	 * @return true if a queue has data that should be stored to db
 	 */
-	private Map<String, Integer> getClassNamesInQueue() {
-		Map<String, Integer> classNamesMap = new HashMap<String, Integer>();
-		for (Object o : queue) {
-			String className = o.getClass().getName();
-			Integer count = classNamesMap.get(className);
-			if (count == null) {
-				count = new Integer(0);
-				classNamesMap.put(className, count);
-			}
-			++count;
+	private boolean queueHasData() {
+		for (WriterQueue writerQueue : getQueues()) {
+			if (writerQueue.hasData())
+				return true;
 		}
-		return classNamesMap;
+		return false;
 	}
 	
 	/**
-	 * Adds an object to be saved in the database to the queue. If queue is
-	 * getting filled up then an e-mail will be sent out indicating there is a
-	 * problem. The queue levels at which an e-mail is sent out is specified by
-	 * levels. If queue has reached capacity then an error message is logged.
+	 * Adds an object to be saved in the database to the queue for its class.
+	 * If the queue is getting filled up then an e-mail will be sent out
+	 * indicating there is a problem.
 	 * 
 	 * @param o
 	 *            The object that should be logged to the database
 	 * @return True if OK (object added to queue or logging disabled). False if
 	 *         queue was full.
 	 */
-	public boolean add(Object o) {	
+	public boolean add(Object o) {
 		// If in playback mode then don't want to store the
 		// derived data because it would interfere with the
 		// derived data already stored when was running in real time.
 		if (!shouldStoreToDb)
 			return true;
 		
-		// Add the object to the queue
-		boolean success = queue.offer(o);
-
-		double level = queueLevel();
-		int levelIndex = indexOfLevel(level);
-		// If reached a new level then output message e-mail to warn users
-		if (levelIndex > indexOfLevelWhenMessageLogged) {
-			indexOfLevelWhenMessageLogged = levelIndex;
-			String message = success ?
-					"DataDbLogger queue filling up " +
-					" for agencyId=" + agencyId +". It is now at " + 
-					String.format("%.1f", level*100) + "% capacity with " + 
-					queue.size() + " elements already in the queue."
-					:
-					"DataDbLogger queue is now completely full for agencyId=" + 
-					agencyId + ". LOSING DATA!!!";
+		WriterQueue writerQueue = separateQueuesMap.isEmpty() ? null 
+				: separateQueuesMap.get(o.getClass().getSimpleName());
+		if (writerQueue == null)
+			writerQueue = defaultQueue;
+		return writerQueue.add(o);
+	}
+	
+	/**
+	 * A queue of objects to be written to the database along with the writer
+	 * threads that read from it. By default all objects go into a single
+	 * queue. But classes listed in transitime.db.separateQueueClasses each
+	 * get their own queue and writer threads so that a slow or high volume
+	 * table doesn't hold up writes of the other data.
+	 */
+	public class WriterQueue {
+		// For identifying the queue in log messages and monitoring
+		private final String name;
+		
+		// The queue that objects to be stored are placed in
+		private final BlockingQueue<Object> queue;
+		
+		// If true then add() waits for space when queue is full instead of
+		// dropping the object
+		private final boolean blockWhenFull;
+		
+		// The queue capacity levels when an error message should be e-mailed
+		// out. The max value should be 1.0. 
+		private final double levels[] = { 0.5, 0.8, 1.00 };
+		
+		// For keeping track of index into levels, which level of capacity of
+		// queue being used. When level changes then an e-mail is sent out
+		// warning the operators.
+		private double indexOfLevelWhenMessageLogged = 0;
+		
+		// For keeping track of maximum capacity of queue that was used. 
+		// Used for logging when queue use is going down.
+		private double maxQueueLevel = 0.0;
+		
+		/**
+		 * Creates the queue and starts up the writer threads that read from
+		 * the queue and actually store the data.
+		 * 
+		 * @param name
+		 *            For identifying the queue in log messages
+		 * @param capacity
+		 *            Max number of objects in queue
+		 * @param blockWhenFull
+		 *            If true then add() waits for space when queue is full
+		 * @param numberWriterThreads
+		 *            Number of threads writing data from the queue
+		 */
+		private WriterQueue(String name, int capacity, boolean blockWhenFull,
+				int numberWriterThreads) {
+			this.name = name;
+			this.queue = new LinkedBlockingQueue<Object>(capacity);
+			this.blockWhenFull = blockWhenFull;
 			
-			// Add to message the class names of the objects in the queue so 
-			// can see what objects are causing the problem
-			Map<String, Integer> classNamesCount = getClassNamesInQueue();
-			for (String className : classNamesCount.keySet()) {
-				int count = classNamesCount.get(className);
-				message += " Class " + className + " count: " + count + ";";
+			NamedThreadFactory threadFactory = new NamedThreadFactory(
+					DataDbLogger.class.getSimpleName() + "-" + name);
+			ExecutorService executor = 
+					Executors.newFixedThreadPool(numberWriterThreads, 
+							threadFactory);
+			for (int i=0; i<numberWriterThreads; ++i) {
+				executor.execute(new Runnable() {
+					public void run() {
+						processData(WriterQueue.this);
+						}
+					});
 			}
-			
-			// Log and send out email since this is an important issue 
-			logger.error(Markers.email(), message);
 		}
 		
-		// If losing data then log such
-		if (!success) {
-			logger.error("DataDbLogger queue is now completely full for " +
-					"agencyId=" + agencyId + ". LOSING DATA!!! Failed to " +
-					"store object=[" + o + "]");
+		/**
+		 * @return Name of the queue, either the class name for a separate
+		 *         queue or "default"
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * Returns how much capacity of the queue is being used up. 
+		 * 
+		 * @return a value between 0.0 and 1.0 indicating how much of queue being used
+		 */
+		public double queueLevel() {
+			int remainingCapacity = queue.remainingCapacity();
+			int totalCapacity = queue.size() + remainingCapacity;
+			double level = 1.0  - (double) remainingCapacity / totalCapacity;
+			return level;
+		}
+	
+		/**
+		 * Returns how many items are in queue to be processed
+		 * @return items in queue
+		 */
+		public int queueSize() {
+			return queue.size();
+		}
+	
+		/**
+		 * Returns the index into levels that the queue capacity is at.
+		 * For determining if should send e-mail warning message.
+		 * 
+		 * @param queueLevel
+		 * @return
+		 */
+		private int indexOfLevel(double queueLevel) {
+			for (int i=0; i<levels.length; ++i) {
+				if (queueLevel < levels[i])
+					return i;
+			}
+			// Must be level of 1.0 so return full size of levels array
+			return levels.length;
+		}
+	
+		/**
+		 * Determines set of class names in the queue. Useful for logging
+		 * error message when queue getting filled up so know what kind of
+		 * objects are backing the system up.
+		 * 
+		 * @return Map of class names and their count of the objects in the queue
+		 */
+		private Map<String, Integer> getClassNamesInQueue() {
+			Map<String, Integer> classNamesMap = new HashMap<String, Integer>();
+			for (Object o : queue) {
+				String className = o.getClass().getName();
+				Integer count = classNamesMap.get(className);
+				if (count == null) {
+					count = new Integer(0);
+					classNamesMap.put(className, count);
+				}
+				++count;
+			}
+			return classNamesMap;
+		}
+	
+		/**
+		 * Adds an object to be saved in the database to the queue. If queue is
+		 * getting filled up then an e-mail will be sent out indicating there is a
+		 * problem. The queue levels at which an e-mail is sent out is specified by
+		 * levels. If queue has reached capacity then the calling thread waits a
+		 * limited time for space if the queue is configured to block when full.
+		 * Otherwise, or if the wait times out, an error message is logged.
+		 * 
+		 * @param o
+		 *            The object that should be logged to the database
+		 * @return True if OK (object added to queue or logging disabled). False if
+		 *         queue was full.
+		 */
+		private boolean add(Object o) {	
+			// Add the object to the queue. If this queue is configured to block
+			// when full then wait a limited time for there to be space so that
+			// the data is not lost.
+			boolean success = queue.offer(o);
+			if (!success && blockWhenFull) {
+				try {
+					success = queue.offer(o, blockingQueueMaxWaitMsec.getValue(),
+							TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					// Simply treat as a failure to add the object
+				}
+			}
+
+			double level = queueLevel();
+			int levelIndex = indexOfLevel(level);
+			// If reached a new level then output message e-mail to warn users
+			if (levelIndex > indexOfLevelWhenMessageLogged) {
+				indexOfLevelWhenMessageLogged = levelIndex;
+				String message = success ?
+						"DataDbLogger " + name + " queue filling up " +
+						" for agencyId=" + agencyId +". It is now at " + 
+						String.format("%.1f", level*100) + "% capacity with " + 
+						queue.size() + " elements already in the queue."
+						:
+						"DataDbLogger " + name + " queue is now completely full " +
+						"for agencyId=" + agencyId + ". LOSING DATA!!!";
+			
+				// Add to message the class names of the objects in the queue so 
+				// can see what objects are causing the problem
+				Map<String, Integer> classNamesCount = getClassNamesInQueue();
+				for (String className : classNamesCount.keySet()) {
+					int count = classNamesCount.get(className);
+					message += " Class " + className + " count: " + count + ";";
+				}
+			
+				// Log and send out email since this is an important issue 
+				logger.error(Markers.email(), message);
+			}
+		
+			// If losing data then log such
+			if (!success) {
+				logger.error("DataDbLogger " + name + " queue is now completely " +
+						"full for agencyId=" + agencyId + ". LOSING DATA!!! Failed to " +
+						"store object=[" + o + "]");
+			}
+		
+			// Keep track of max queue level so can log it when queue level 
+			// is decreasing again.
+			if (level > maxQueueLevel)
+				maxQueueLevel = level;
+		
+			// If shouldPauseToReduceQueue (because in batch mode or such) and
+			// if queue is starting to get more full then pause the calling
+			// thread for 10 seconds so that separate thread can clear out 
+			// queue a bit.
+			if (shouldPauseToReduceQueue && level > 0.2) {
+				logger.info("Pausing thread adding data to DataDbLogger {} queue " +
+						"so that queue can be cleared out. Level={}%", 
+						name, level*100.0);
+				Time.sleep(10 * Time.MS_PER_SEC);
+			}
+		
+			// Return whether was successful in adding object to queue
+			return success;
 		}
+	
+		/**
+		 * Gets the next object from the head of the queue, waiting if
+		 * necessary until an object becomes available. If the capacity
+		 * level drops significantly from when last logged then that
+		 * info is logged to indicate that the situation is getting better. 
+		 * When the queue level drops down below 10% of a specified level
+		 * then an e-mail mail message is sent out indicating such. That way
+		 * a supervisor can see that the queue is being cleared out.
+		 * @return The object to be stored in the database
+		 */
+		private Object get() {
+			// Get the next object from the head of the queue
+			Object o = null;
+			do {
+				try {
+					o = queue.take();
+				} catch (InterruptedException e) {
+					// If interrupted simply try again
+				}
+			} while (o == null);
 		
-		// Keep track of max queue level so can log it when queue level 
-		// is decreasing again.
-		if (level > maxQueueLevel)
-			maxQueueLevel = level;
-		
-		// If shouldPauseToReduceQueue (because in batch mode or such) and
-		// if queue is starting to get more full then pause the calling
-		// thread for 10 seconds so that separate thread can clear out 
-		// queue a bit.
-		if (shouldPauseToReduceQueue && level > 0.2) {
-			logger.info("Pausing thread adding data to DataDbLogger queue " +
-					"so that queue can be cleared out. Level={}%", 
-					level*100.0);
-			Time.sleep(10 * Time.MS_PER_SEC);
+			// Log if went below a capacity level
+			logIfQueueLevelDecreased();
+
+			// Return the result
+			return o;
+		}
+	
+		/**
+		 * If the capacity level drops significantly from when last logged then
+		 * that info is logged to indicate that the situation is getting better.
+		 */
+		private void logIfQueueLevelDecreased() {
+			// See if queue dropped to 10% less than the previously logged level.
+			// Use a margin of 10% so that don't get flood of messages if queue
+			// oscillating around a level.
+			double level = queueLevel();
+			int levelIndexIncludingMargin = indexOfLevel(level + 0.10);
+			if (levelIndexIncludingMargin < indexOfLevelWhenMessageLogged) {
+				logger.error(Markers.email(), "DataDbLogger " + name + " queue " +
+						"emptying out somewhat" +
+						" for agencyId=" + agencyId +". It is now at " + 
+						String.format("%.1f", level*100) + "% capacity with " + queue.size() + 
+						" elements already in the queue. The maximum capacity was " +
+						String.format("%.1f", maxQueueLevel*100) + "%.");
+				indexOfLevelWhenMessageLogged = levelIndexIncludingMargin;
+			
+				// Reset the maxQueueLevel so can determine what next peak is
+				maxQueueLevel = level;
+			}
 		}
+	
+		/**
+		 * Gets a batch of objects from the queue, waiting if necessary until an
+		 * object becomes available. Then keeps reading objects until either
+		 * maxSize objects have been read or maxDelayMsec has elapsed.
+		 * 
+		 * @param maxSize
+		 * @param maxDelayMsec
+		 * @return List of objects to be stored. Will contain at least one object.
+		 */
+		private List<Object> getBatch(int maxSize, long maxDelayMsec) {
+			List<Object> objects = new ArrayList<Object>(maxSize);
+			objects.add(get());
+		
+			long deadline = System.currentTimeMillis() + maxDelayMsec;
+			while (objects.size() < maxSize) {
+				// Get whatever is already in the queue without waiting
+				if (queue.drainTo(objects, maxSize - objects.size()) > 0)
+					continue;
+			
+				// Queue is empty so wait a bit for more data
+				long remainingMsec = deadline - System.currentTimeMillis();
+				if (remainingMsec <= 0)
+					break;
+				try {
+					Object o = queue.poll(remainingMsec, TimeUnit.MILLISECONDS);
+					if (o == null)
+						break;
+					objects.add(o);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
 		
-		// Return whether was successful in adding object to queue
-		return success;
+			logIfQueueLevelDecreased();
+		
+			return objects;
+		}
+	
+		/**
+		 * Returns whether queue has any elements in it that should be stored.
+		 * @return true if queue has data that should be stored to db
+		 */
+		private boolean hasData() {
+			return !queue.isEmpty();
+		}
 	}
 	
 	/**
-	 * Gets the next object from the head of the queue, waiting if
-	 * necessary until an object becomes available. If the capacity
-	 * level drops significantly from when last logged then that
-	 * info is logged to indicate that the situation is getting better. 
-	 * When the queue level drops down below 10% of a specified level
-	 * then an e-mail mail message is sent out indicating such. That way
-	 * a supervisor can see that the queue is being cleared out.
-	 * @return The object to be stored in the database
+	 * Increments the count of objects written for the class of the object.
+	 * 
+	 * @param o
+	 *            The object that was written
 	 */
-	private Object get() {
-		// Get the next object from the head of the queue
-		Object o = null;
-		do {
-			try {
-				o = queue.take();
-			} catch (InterruptedException e) {
-				// If interrupted simply try again
-			}
-		} while (o == null);
-		
-		// Log if went below a capacity level
-		// See if queue dropped to 10% less than the previously logged level.
-		// Use a margin of 10% so that don't get flood of messages if queue
-		// oscillating around a level.
-		double level = queueLevel();
-		int levelIndexIncludingMargin = indexOfLevel(level + 0.10);
-		if (levelIndexIncludingMargin < indexOfLevelWhenMessageLogged) {
-			logger.error(Markers.email(), "DataDbLogger queue emptying out somewhat " +
-					" for agencyId=" + agencyId +". It is now at " + 
-					String.format("%.1f", level*100) + "% capacity with " + queue.size() + 
-					" elements already in the queue. The maximum capacity was " +
-					String.format("%.1f", maxQueueLevel*100) + "%.");
-			indexOfLevelWhenMessageLogged = levelIndexIncludingMargin;
-			
-			// Reset the maxQueueLevel so can determine what next peak is
-			maxQueueLevel = level;
+	private void countWrite(Object o) {
+		String className = o.getClass().getSimpleName();
+		AtomicLong count = writeCountsByClass.get(className);
+		if (count == null) {
+			AtomicLong newCount = new AtomicLong();
+			count = writeCountsByClass.putIfAbsent(className, newCount);
+			if (count == null)
+				count = newCount;
 		}
-
-		// Return the result
-		return o;
+		count.incrementAndGet();
 	}
 	
 	/**
-	 * Returns whether queue has any elements in it that should be stored.
-	 * @return true if queue has data that should be stored to db
+	 * Returns the number of objects written to the db for each class since
+	 * the DataDbLogger was started.
+	 * 
+	 * @return Map keyed on class simple name of number of objects written
 	 */
-	private boolean queueHasData() {
-		return !queue.isEmpty();
+	public Map<String, Long> getWriteCountsByClass() {
+		Map<String, Long> counts = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : 
+				writeCountsByClass.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+	
+	/**
+	 * If enough time has elapsed then logs how many objects of each class
+	 * have been written since the last time logged and the rate. Synchronized
+	 * since called by all of the writer threads.
+	 */
+	private synchronized void logThroughputIfTime() {
+		long now = System.currentTimeMillis();
+		long elapsedMsec = now - timeThroughputLastLogged;
+		if (elapsedMsec < throughputLogIntervalSecs.getValue() * Time.MS_PER_SEC)
+			return;
+		
+		Map<String, Long> counts = getWriteCountsByClass();
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> entry : counts.entrySet()) {
+			Long previousCount = writeCountsWhenLastLogged.get(entry.getKey());
+			long written = entry.getValue() 
+					- (previousCount != null ? previousCount : 0);
+			sb.append(" ").append(entry.getKey()).append(": ").append(written)
+					.append(" (").append(String.format("%.1f", 
+							written * 1000.0 / elapsedMsec))
+					.append("/sec);");
+		}
+		logger.info("DataDbLogger for agencyId={} wrote in last {} secs:{} "
+				+ "{} objects still in queue.", agencyId, 
+				elapsedMsec / Time.MS_PER_SEC, sb, queueSize());
+		
+		writeCountsWhenLastLogged = counts;
+		timeThroughputLastLogged = now;
 	}
 	
 	/**
@@ -388,6 +771,7 @@ public class DataDbLogger {
 			logger.debug("Individually saving object {}", objectToBeStored);
 			session.save(objectToBeStored);
 			tx.commit();
+			countWrite(objectToBeStored);
 		} catch (HibernateException e) {
 			if (tx != null) {
 				try {
@@ -456,7 +840,7 @@ public class DataDbLogger {
 	 * commit is done. Therefore the need here isn't true Hibernate batch
 	 * processing. Instead, need to use a transaction for each batch.
 	 */
-	private void processBatchOfData() {
+	private void processBatchOfData(WriterQueue writerQueue) {
 		// Create an array for holding what is being written to db. If there
 		// is an exception with one of the objects, such as a constraint violation,
 		// then can try to write the objects one at a time to make sure that the
@@ -466,17 +850,20 @@ public class DataDbLogger {
 		
 		Transaction tx = null;
 		Session session = null;
+		// The factory used for this batch, so that if there is a connection
+		// problem it is only recreated if not already done by another thread
+		SessionFactory factory = sessionFactory;
 		
 		try {			
 			int batchingCounter = 0;
 			do {	
 				// Get the object to be stored from the queue
-				Object objectToBeStored = get();
+				Object objectToBeStored = writerQueue.get();
 				
 				objectsForThisBatch.add(objectToBeStored);
-			} while (queueHasData() && ++batchingCounter < HibernateUtils.BATCH_SIZE);
+			} while (writerQueue.hasData() && ++batchingCounter < HibernateUtils.BATCH_SIZE);
 			
-			session = sessionFactory.openSession();
+			session = factory.openSession();
 			tx = session.beginTransaction();			
 			for (Object objectToBeStored : objectsForThisBatch) {				
 				// Write the data to the session. This doesn't yet
@@ -491,8 +878,9 @@ public class DataDbLogger {
 			//System.err.println(new Date() + " Committing " 
 			//		+ objectsForThisBatch.size() + " objects. " + queueSize() 
 			//		+ " objects still in queue.");			
-			logger.debug("Committing {} objects. {} objects still in queue.", 
-					objectsForThisBatch.size(), queueSize());			
+			logger.debug("Committing {} objects. {} objects still in {} queue.", 
+					objectsForThisBatch.size(), writerQueue.queueSize(),
+					writerQueue.getName());			
 			IntervalTimer timer = new IntervalTimer();
 
 			// Actually do the commit
@@ -504,109 +892,236 @@ public class DataDbLogger {
 			logger.debug("Done committing. Took {} msec", timer.elapsedMsec());
 			
 			session.close();
-		} catch (HibernateException e) {
-			e.printStackTrace();
 			
-			// If there was a connection problem then create a whole session
-			// factory so that get new connections.
-			Throwable rootCause = HibernateUtils.getRootCause(e);
+			for (Object o : objectsForThisBatch)
+				countWrite(o);
+		} catch (HibernateException e) {
+			handleBatchException(e, factory, tx, session, objectsForThisBatch);
+		}
+	}
+	
+	/**
+	 * Reads a large batch of objects from the queue, groups them by class, and
+	 * writes them in a single transaction. The session is flushed after the
+	 * objects for each class have been saved so that Hibernate writes each
+	 * class using JDBC batches that contain inserts for only a single table.
+	 * This is much more efficient than interleaving the inserts for different
+	 * tables. If there is an exception then falls back to writing the objects
+	 * individually, just like processBatchOfData().
+	 */
+	private void processGroupedBatchOfData(WriterQueue writerQueue) {
+		List<Object> objectsForThisBatch = writerQueue.getBatch(
+				groupByClassMaxBatchSize.getValue(),
+				groupByClassMaxDelayMsec.getValue());
+		
+		// Group the objects by class, keeping the order of the objects
+		// within each class
+		Map<Class<?>, List<Object>> objectsByClass = 
+				new LinkedHashMap<Class<?>, List<Object>>();
+		for (Object o : objectsForThisBatch) {
+			List<Object> objectsForClass = objectsByClass.get(o.getClass());
+			if (objectsForClass == null) {
+				objectsForClass = new ArrayList<Object>();
+				objectsByClass.put(o.getClass(), objectsForClass);
+			}
+			objectsForClass.add(o);
+		}
+		
+		Transaction tx = null;
+		Session session = null;
+		SessionFactory factory = sessionFactory;
+		
+		try {
+			IntervalTimer timer = new IntervalTimer();
 			
-			if (rootCause instanceof SocketTimeoutException
-					|| (rootCause instanceof SQLException 
-							&& rootCause.getMessage().contains("statement closed"))) {
-				logger.error(Markers.email(),
-						"Had a connection problem to the database for agencyId={}. "
-						+ "Likely means that the db was rebooted or that the "
-						+ "connection to it was lost. Therefore creating a new "
-						+ "SessionFactory so get new connections.", agencyId);
-				HibernateUtils.clearSessionFactory();
-				sessionFactory = HibernateUtils.getSessionFactory(agencyId);
-			} else {
-				// Rollback the transaction since it likely was not committed.
-				// Otherwise can get an error when using Postgres "ERROR:
-				// current transaction is aborted, commands ignored until end of
-				// transaction block".
-				try {
-					if (tx != null)
-						tx.rollback();
-				} catch (HibernateException e2) {
-					logger.error(
-							"Error rolling back transaction after processing "
-									+ "batch of data via DataDbLogger.", e2);
-				}
-
-				// Close session here so that can process the objects
-				// individually
-				// using a new session.
-				try {
-					if (session != null)
-						session.close();
-				} catch (HibernateException e2) {
-					logger.error("Error closing session after processing "
-							+ "batch of data via DataDbLogger.", e2);
+			session = factory.openSession();
+			tx = session.beginTransaction();
+			for (Map.Entry<Class<?>, List<Object>> entry : 
+					objectsByClass.entrySet()) {
+				for (Object objectToBeStored : entry.getValue()) {
+					session.save(objectToBeStored);
 				}
-			
-				// If it is a SQLGrammarException then also log the SQL to
-				// help in debugging.
-				String additionaInfo = e instanceof SQLGrammarException ? 
-						" SQL=\"" + ((SQLGrammarException) e).getSQL() + "\""
-						: "";
-				Throwable cause = HibernateUtils.getRootCause(e);
-				logger.error("{} for database for project={} when batch writing "
-						+ "objects: {}. Will try to write each object "
-						+ "from batch individually. {}", 
-						e.getClass().getSimpleName(), agencyId,
-						cause.getMessage(), additionaInfo);
+				
+				// Write out the objects for this class as JDBC batches and
+				// clear the session so it doesn't grow
+				session.flush();
+				session.clear();
+				logger.debug("Flushed {} objects of class {}", 
+						entry.getValue().size(), 
+						entry.getKey().getSimpleName());
 			}
 			
-			// Write each object individually so that the valid ones will be
-			// successfully written.
-			for (Object o : objectsForThisBatch) {
-				boolean shouldKeepTrying = false;
-				do {
+			tx.commit();
+			session.close();
+			
+			logger.debug("Committed {} objects of {} classes. Took {} msec. "
+					+ "{} objects still in {} queue.", objectsForThisBatch.size(), 
+					objectsByClass.size(), timer.elapsedMsec(), 
+					writerQueue.queueSize(), writerQueue.getName());
+			
+			for (Object o : objectsForThisBatch)
+				countWrite(o);
+		} catch (HibernateException e) {
+			handleBatchException(e, factory, tx, session, objectsForThisBatch);
+		}
+	}
+	
+	/**
+	 * Called when there was an exception writing a batch of objects. If it is
+	 * a connection problem then the session factory is recreated, unless
+	 * another writer thread already did so for the same problem. Otherwise
+	 * the transaction is rolled back. Then each object of the batch is written
+	 * individually so that the valid ones are still written.
+	 * 
+	 * @param e
+	 *            the exception that occurred when writing the batch
+	 * @param factory
+	 *            the session factory that the session for the batch came from
+	 * @param tx
+	 *            the transaction for the batch, or null
+	 * @param session
+	 *            the session for the batch, or null
+	 * @param objectsForThisBatch
+	 *            the objects that were to be written
+	 */
+	private void handleBatchException(HibernateException e,
+			SessionFactory factory, Transaction tx, Session session,
+			List<Object> objectsForThisBatch) {
+		e.printStackTrace();
+		
+		// If there was a connection problem then create a whole session
+		// factory so that get new connections.
+		Throwable rootCause = HibernateUtils.getRootCause(e);
+		
+		if (rootCause instanceof SocketTimeoutException
+				|| (rootCause instanceof SQLException 
+						&& rootCause.getMessage().contains("statement closed"))) {
+			logger.error(Markers.email(),
+					"Had a connection problem to the database for agencyId={}. "
+					+ "Likely means that the db was rebooted or that the "
+					+ "connection to it was lost. Therefore creating a new "
+					+ "SessionFactory so get new connections.", agencyId);
+			synchronized (this) {
+				// Each writer thread can encounter the same connection
+				// problem. Only the first one should create a new session
+				// factory. Otherwise each thread would create yet another
+				// factory and connection pool and the others would never be
+				// closed.
+				if (sessionFactory == factory) {
+					// Only clear the cache if it still contains the old
+					// factory. Might have already been recreated elsewhere.
+					SessionFactory newFactory = 
+							HibernateUtils.getSessionFactory(agencyId);
+					if (newFactory == factory) {
+						HibernateUtils.clearSessionFactory();
+						newFactory = HibernateUtils.getSessionFactory(agencyId);
+					}
+					sessionFactory = newFactory;
+					
+					// Release the connections of the old factory
 					try {
-						processSingleObject(o);
-						shouldKeepTrying = false;
+						factory.close();
 					} catch (HibernateException e2) {
-						// Need to know if it is a problem with the database not
-						// being accessible or if there is a problem with the SQL/data.
-						// If there is a problem accessibility of the database then
-						// want to keep trying writing the old data. But if it is
-						// a problem with the SQL/data then only want to try to write
-						// the good data from the batch a single time to make sure 
-						// all good data is written.
-						if (shouldKeepTryingBecauseConnectionException(e2)) {
-							shouldKeepTrying = true;
-							logger.error("Encountered database connection " +
-									"exception so will sleep for {} msec and " +
-									"will then try again.", TIME_BETWEEN_RETRIES);
-							Time.sleep(TIME_BETWEEN_RETRIES);
-						}
-						
-						// Output message on what is going on
-						Throwable cause2 = HibernateUtils.getRootCause(e2);
-						logger.error(e2.getClass().getSimpleName() + " when individually writing object " +
-								o + ". " + 
-								(shouldKeepTrying?"Will keep trying. " : "") +
-								"msg=" + cause2.getMessage()); 
+						logger.error("Error closing old SessionFactory for "
+								+ "agencyId={}.", agencyId, e2);
 					}
-				} while (shouldKeepTrying);
+				}
 			}
+		} else {
+			// Rollback the transaction since it likely was not committed.
+			// Otherwise can get an error when using Postgres "ERROR:
+			// current transaction is aborted, commands ignored until end of
+			// transaction block".
+			try {
+				if (tx != null)
+					tx.rollback();
+			} catch (HibernateException e2) {
+				logger.error(
+						"Error rolling back transaction after processing "
+								+ "batch of data via DataDbLogger.", e2);
+			}
+
+			// Close session here so that can process the objects
+			// individually
+			// using a new session.
+			try {
+				if (session != null)
+					session.close();
+			} catch (HibernateException e2) {
+				logger.error("Error closing session after processing "
+						+ "batch of data via DataDbLogger.", e2);
+			}
+		
+			// If it is a SQLGrammarException then also log the SQL to
+			// help in debugging.
+			String additionaInfo = e instanceof SQLGrammarException ? 
+					" SQL=\"" + ((SQLGrammarException) e).getSQL() + "\""
+					: "";
+			Throwable cause = HibernateUtils.getRootCause(e);
+			logger.error("{} for database for project={} when batch writing "
+					+ "objects: {}. Will try to write each object "
+					+ "from batch individually. {}", 
+					e.getClass().getSimpleName(), agencyId,
+					cause.getMessage(), additionaInfo);
+		}
+		
+		// Write each object individually so that the valid ones will be
+		// successfully written.
+		for (Object o : objectsForThisBatch) {
+			boolean shouldKeepTrying = false;
+			do {
+				try {
+					processSingleObject(o);
+					shouldKeepTrying = false;
+				} catch (HibernateException e2) {
+					// Need to know if it is a problem with the database not
+					// being accessible or if there is a problem with the SQL/data.
+					// If there is a problem accessibility of the database then
+					// want to keep trying writing the old data. But if it is
+					// a problem with the SQL/data then only want to try to write
+					// the good data from the batch a single time to make sure 
+					// all good data is written.
+					if (shouldKeepTryingBecauseConnectionException(e2)) {
+						shouldKeepTrying = true;
+						logger.error("Encountered database connection " +
+								"exception so will sleep for {} msec and " +
+								"will then try again.", TIME_BETWEEN_RETRIES);
+						Time.sleep(TIME_BETWEEN_RETRIES);
+					}
+					
+					// Output message on what is going on
+					Throwable cause2 = HibernateUtils.getRootCause(e2);
+					logger.error(e2.getClass().getSimpleName() + " when individually writing object " +
+							o + ". " + 
+							(shouldKeepTrying?"Will keep trying. " : "") +
+							"msg=" + cause2.getMessage()); 
+				}
+			} while (shouldKeepTrying);
 		}
 	}
 	
 	/**
 	 * This is the main method for processing data. It simply keeps on calling
-	 * processBatchOfData() so that data is batched as efficiently as possible.
+	 * processBatchOfData(), or processGroupedBatchOfData() if
+	 * transitime.db.groupByClassWriter is set, so that data is batched as
+	 * efficiently as possible.
 	 * Exceptions are caught such that this method will continue to run
-	 * indefinitely.
+	 * indefinitely. Each writer thread of each WriterQueue runs this method.
+	 * 
+	 * @param writerQueue
+	 *            The queue to read the objects to be stored from
 	 */
-	private void processData() {
+	private void processData(WriterQueue writerQueue) {
 		while (true) {
 			try {
 				logger.debug("DataDbLogger.processData() processing batch of " +
 						"data to be stored in database.");
-				processBatchOfData();
+				if (groupByClassWriter.getValue())
+					processGroupedBatchOfData(writerQueue);
+				else
+					processBatchOfData(writerQueue);
+				
+				logThroughputIfTime();
 			} catch (Exception e) {
 				logger.error("Error writing data to database via DataDbLogger. " +
 						"Look for ERROR in log file to see if the database classes " +
@@ -123,6 +123,14 @@ public class HibernateUtils {
 				
 				dbUrl += "?connectTimeout=" + timeout + "&socketTimeout=" + timeout;
 			}
+			
+			// If mysql then have the driver rewrite batched inserts as 
+			// multi-row inserts. Otherwise each insert in a batch is still
+			// sent as a separate statement, which is very slow when writing
+			// large amounts of data such as the GTFS configuration.
+			if (DbSetupConfig.getDbType().equals("mysql"))
+				dbUrl += (dbUrl.contains("?") ? "&" : "?") 
+					+ "rewriteBatchedStatements=true";
 			config.setProperty("hibernate.connection.url", dbUrl);			
 		}
 		
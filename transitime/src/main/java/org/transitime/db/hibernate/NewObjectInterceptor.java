@@ -0,0 +1,100 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.db.hibernate;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.type.Type;
+
+/**
+ * A Hibernate Interceptor for when writing large numbers of newly created
+ * objects that have assigned, instead of generated, ids. When
+ * session.saveOrUpdate() is called, either directly or via a cascade,
+ * Hibernate cannot tell whether an object with an assigned id is new or
+ * already in the database so it does a SELECT for every single object to
+ * find out. For the GTFS configuration data, where the old data for the
+ * configRev is deleted before the new data is written, this means hundreds
+ * of thousands of unnecessary queries.
+ * <p>
+ * This interceptor tells Hibernate that an object of one of the specified
+ * classes is transient, meaning it needs to be inserted, unless the object
+ * has already been saved or was loaded via the session. Objects of other
+ * classes are handled by Hibernate as usual.
+ * <p>
+ * Since the interceptor keeps track of the objects saved and loaded it is
+ * stateful and a new one must be used for each session.
+ */
+public class NewObjectInterceptor extends EmptyInterceptor {
+
+	// The classes of the objects that are known to be new unless they
+	// were saved or loaded
+	private final Set<Class<?>> newObjectClasses;
+
+	// Objects that have been saved or loaded via the session. Uses identity
+	// since that is what matters and since the objects might not have
+	// equals() defined such that it is appropriate.
+	private final Set<Object> persistedObjects =
+			Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+	private static final long serialVersionUID = 6040961547282591873L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param newObjectClasses
+	 *            The classes whose objects should be considered new unless
+	 *            they have been saved or loaded via the session
+	 */
+	public NewObjectInterceptor(Set<Class<?>> newObjectClasses) {
+		this.newObjectClasses = newObjectClasses;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.EmptyInterceptor#isTransient(java.lang.Object)
+	 */
+	@Override
+	public Boolean isTransient(Object entity) {
+		if (!newObjectClasses.contains(entity.getClass()))
+			return null;
+
+		return persistedObjects.contains(entity) ? Boolean.FALSE : Boolean.TRUE;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.EmptyInterceptor#onSave(java.lang.Object, java.io.Serializable, java.lang.Object[], java.lang.String[], org.hibernate.type.Type[])
+	 */
+	@Override
+	public boolean onSave(Object entity, Serializable id, Object[] state,
+			String[] propertyNames, Type[] types) {
+		persistedObjects.add(entity);
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.hibernate.EmptyInterceptor#onLoad(java.lang.Object, java.io.Serializable, java.lang.Object[], java.lang.String[], org.hibernate.type.Type[])
+	 */
+	@Override
+	public boolean onLoad(Object entity, Serializable id, Object[] state,
+			String[] propertyNames, Type[] types) {
+		persistedObjects.add(entity);
+		return false;
+	}
+}
@@ -727,6 +727,79 @@ public class ArrivalDeparture implements Lifecycle, Serializable  {
 		return getArrivalsDeparturesFromDb(DbSetupConfig.getDbName(), beginTime,
 				endTime, sqlClause, firstResult, maxResults, arrivalOrDeparture);
 	}
+
+	/**
+	 * For reading in a large amount of data one page at a time using keyset
+	 * pagination instead of firstResult/maxResults offsets. With offsets the
+	 * database has to skip over all of the previous rows so each batch takes
+	 * longer than the previous one. With keyset pagination the next page
+	 * starts directly after the last row of the previous page, as determined
+	 * by its time and vehicleId, so each page takes the same amount of time.
+	 * <p>
+	 * Results are ordered by time and then vehicleId. Since a vehicle can
+	 * have multiple arrivals/departures with the same time the caller needs
+	 * to make sure that a page doesn't end partway through such a group of
+	 * rows, since the rest of the group would be skipped by the next page.
+	 * 
+	 * @param dbName
+	 *            Name of the database to retrieve data from. If set to null
+	 *            then will use db name configured by Java property
+	 *            transitime.db.dbName
+	 * @param beginTime
+	 * @param endTime
+	 * @param afterTime
+	 *            Time of last row of previous page. Null for first page.
+	 * @param afterVehicleId
+	 *            VehicleId of last row of previous page. Null for first page.
+	 * @param maxResults
+	 *            Size of page
+	 * @return List<ArrivalDeparture> or null if there is an exception
+	 */
+	public static List<ArrivalDeparture> getArrivalsDeparturesFromDbAfter(
+			String dbName, Date beginTime, Date endTime, Date afterTime,
+			String afterVehicleId, int maxResults) {
+		IntervalTimer timer = new IntervalTimer();
+		
+		// Get the database session. This is supposed to be pretty light weight
+		Session session = dbName != null ? 
+				HibernateUtils.getSession(dbName) : HibernateUtils.getSession();
+
+		// Create the query. Table name is case sensitive and needs to be the
+		// class name instead of the name of the db table.
+		String hql = "FROM ArrivalDeparture " +
+				"    WHERE time < :endDate";
+		if (afterTime == null)
+			hql += " AND time >= :beginDate";
+		else
+			hql += " AND (time > :afterTime "
+					+ "OR (time = :afterTime AND vehicleId > :afterVehicleId))";
+		hql += " ORDER BY time, vehicleId";
+		Query query = session.createQuery(hql);
+		
+		// Set the parameters for the query
+		query.setTimestamp("endDate", endTime);
+		if (afterTime == null) {
+			query.setTimestamp("beginDate", beginTime);
+		} else {
+			query.setTimestamp("afterTime", afterTime);
+			query.setString("afterVehicleId", afterVehicleId);
+		}
+		query.setMaxResults(maxResults);
+		
+		try {
+			@SuppressWarnings("unchecked")
+			List<ArrivalDeparture> arrivalsDeparatures = query.list();
+			logger.debug("Getting page of arrival/departures from database "
+					+ "took {} msec", timer.elapsedMsec());
+			return arrivalsDeparatures;
+		} catch (HibernateException e) {
+			// Log error to the Core logger
+			Core.getLogger().error(e.getMessage(), e);
+			return null;
+		} finally {
+			session.close();
+		}
+	}
 	
 	public String getVehicleId() {
 		return vehicleId;
@@ -208,6 +208,45 @@ public final class Block implements Serializable {
 		return query.list();
 	}
 
+	/**
+	 * Returns list of Block objects for the specified configRev and block IDs
+	 * with all of their trips already read in, including the trip patterns,
+	 * stop paths, schedule times, and travel times of the trips. Unlike
+	 * getTrips() the trips are not lazy loaded using the global session and
+	 * therefore there is no need to synchronize on lazyLoadingSyncObject.
+	 * This way multiple threads, each with their own session, can read in
+	 * blocks in parallel. Since the blocks are fully read in they can still
+	 * be used after the session is closed.
+	 * 
+	 * @param session
+	 * @param configRev
+	 * @param blockIds
+	 *            The block IDs of the blocks to read in. All service IDs for
+	 *            the blocks are read in.
+	 * @return List of Block objects
+	 * @throws HibernateException
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<Block> getBlocksWithTrips(Session session,
+			int configRev, Collection<String> blockIds)
+			throws HibernateException {
+		String hql = "FROM Blocks " +
+				"    WHERE configRev = :configRev" +
+				"      AND blockId IN (:blockIds)";
+		Query query = session.createQuery(hql);
+		query.setInteger("configRev", configRev);
+		query.setParameterList("blockIds", blockIds);
+		List<Block> blocks = query.list();
+		
+		// Read in the trips now, while the session is still open. Trip 
+		// patterns, stop paths, and travel times are eagerly fetched
+		// so are read in along with the trips.
+		for (Block block : blocks)
+			Hibernate.initialize(block.trips);
+		
+		return blocks;
+	}
+
 	/**
 	 * Deletes rev from the Blocks, Trips, and Block_to_Trip_joinTable
 	 * 
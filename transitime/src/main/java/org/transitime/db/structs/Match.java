@@ -342,6 +342,73 @@ public class Match implements Lifecycle, Serializable {
 		}
 	}
 
+	/**
+	 * For reading in a large amount of data one page at a time using keyset
+	 * pagination instead of firstResult/maxResults offsets. The next page
+	 * starts directly after the last row of the previous page, as determined
+	 * by its avlTime and vehicleId, so the database doesn't have to skip over
+	 * all the previous rows. Since avlTime and vehicleId are the primary key
+	 * no rows are skipped or repeated. Only matches that are not at a stop
+	 * are returned since for those arrivals/departures are used instead.
+	 * 
+	 * @param projectId
+	 * @param beginTime
+	 * @param endTime
+	 * @param afterTime
+	 *            avlTime of last row of previous page. Null for first page.
+	 * @param afterVehicleId
+	 *            vehicleId of last row of previous page. Null for first page.
+	 * @param maxResults
+	 *            Size of page
+	 * @return List of matches ordered by avlTime and vehicleId, or null if
+	 *         there is an exception
+	 */
+	public static List<Match> getMatchesNotAtStopFromDbAfter(
+			String projectId, Date beginTime, Date endTime, Date afterTime,
+			String afterVehicleId, int maxResults) {
+		IntervalTimer timer = new IntervalTimer();
+
+		// Get the database session. This is supposed to be pretty light weight
+		Session session = HibernateUtils.getSession(projectId);
+
+		// Create the query. Table name is case sensitive and needs to be the
+		// class name instead of the name of the db table.
+		String hql = "FROM Match " +
+				"    WHERE avlTime < :endDate " +
+				"      AND atStop = false";
+		if (afterTime == null)
+			hql += " AND avlTime >= :beginDate";
+		else
+			hql += " AND (avlTime > :afterTime "
+					+ "OR (avlTime = :afterTime AND vehicleId > :afterVehicleId))";
+		hql += " ORDER BY avlTime, vehicleId";
+		Query query = session.createQuery(hql);
+		
+		// Set the parameters for the query
+		query.setTimestamp("endDate", endTime);
+		if (afterTime == null) {
+			query.setTimestamp("beginDate", beginTime);
+		} else {
+			query.setTimestamp("afterTime", afterTime);
+			query.setString("afterVehicleId", afterVehicleId);
+		}
+		query.setMaxResults(maxResults);
+		
+		try {
+			@SuppressWarnings("unchecked")
+			List<Match> matches = query.list();
+			logger.debug("Getting page of matches from database took {} msec",
+					timer.elapsedMsec());
+			return matches;
+		} catch (HibernateException e) {
+			// Log error to the Core logger
+			Core.getLogger().error(e.getMessage(), e);
+			return null;
+		} finally {
+			session.close();
+		}
+	}
+
 
 	public String getVehicleId() {
 		return vehicleId;
@@ -0,0 +1,306 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.db.structs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.db.hibernate.HibernateUtils;
+import org.transitime.statistics.TimeHistogram;
+
+/**
+ * The running aggregate of the historic stop times and travel times for a
+ * trip/stop path. Used so that travel times can be updated incrementally,
+ * by folding in just the new data for the previous day, instead of having
+ * to reprocess all of the historic data every time.
+ * <p>
+ * The data is kept as TimeHistograms, one for the stop times and one for
+ * each travel time segment of the stop path, so that the amount of data
+ * stored doesn't grow with the number of days processed. The histograms are
+ * stored as serialized blobs.
+ * <p>
+ * Serializable since Hibernate requires such for composite keys.
+ */
+@Entity
+@Table(name="TravelTimeAggregates")
+public class TravelTimeAggregate implements Serializable {
+
+	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
+	@Id
+	private final String tripId;
+
+	@Column
+	@Id
+	private final int stopPathIndex;
+
+	// Part of the key so that if the stops for a trip change the old
+	// aggregate won't be used for the new stop
+	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
+	@Id
+	private final String stopId;
+
+	// The end time of the most recent data folded into the aggregate. Used
+	// to make sure the same data isn't folded in twice.
+	@Column
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date dataEndTime;
+
+	// Histogram of the stop times
+	@Column(length=maxHistogramBytes)
+	private TimeHistogram stopTimes;
+
+	// Histogram for each travel time segment of the stop path. If the number
+	// of segments changes, due to the stop path being changed, then the
+	// histograms are reset.
+	@Column(length=maxHistogramBytes)
+	private ArrayList<TimeHistogram> travelTimesBySegment;
+
+	// The histograms are serialized into blobs. Specify a large length so
+	// that a sufficiently large blob type is used.
+	private static final int maxHistogramBytes = 100000;
+
+	// Needed because serializable due to Hibernate requirement
+	private static final long serialVersionUID = -3175394563702932153L;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(TravelTimeAggregate.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates an empty aggregate for the trip/stop path
+	 *
+	 * @param tripId
+	 * @param stopPathIndex
+	 * @param stopId
+	 */
+	public TravelTimeAggregate(String tripId, int stopPathIndex,
+			String stopId) {
+		this.tripId = tripId;
+		this.stopPathIndex = stopPathIndex;
+		this.stopId = stopId;
+		this.dataEndTime = null;
+		this.stopTimes = new TimeHistogram();
+		this.travelTimesBySegment = new ArrayList<TimeHistogram>();
+	}
+
+	/**
+	 * Needed because Hibernate requires no-arg constructor. Hibernate then
+	 * sets the fields.
+	 */
+	protected TravelTimeAggregate() {
+		this.tripId = null;
+		this.stopPathIndex = -1;
+		this.stopId = null;
+		this.dataEndTime = null;
+		this.stopTimes = null;
+		this.travelTimesBySegment = null;
+	}
+
+	/**
+	 * Reads in all of the TravelTimeAggregates from the database.
+	 *
+	 * @param session
+	 * @return List of all the aggregates
+	 * @throws HibernateException
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<TravelTimeAggregate> getTravelTimeAggregates(
+			Session session) throws HibernateException {
+		logger.info("Reading TravelTimeAggregates...");
+		String hql = "FROM TravelTimeAggregate";
+		Query query = session.createQuery(hql);
+		List<TravelTimeAggregate> aggregates = query.list();
+		logger.info("Read {} TravelTimeAggregates", aggregates.size());
+		return aggregates;
+	}
+
+	/**
+	 * Decays the existing data so that newer data counts for more than older
+	 * data.
+	 *
+	 * @param decayFactor
+	 *            Between 0.0 and 1.0. A value of 1.0 means no decay.
+	 */
+	public void decay(double decayFactor) {
+		stopTimes.decay(decayFactor);
+		for (TimeHistogram histogram : travelTimesBySegment)
+			histogram.decay(decayFactor);
+	}
+
+	/**
+	 * Folds the new stop times into the aggregate
+	 *
+	 * @param stopTimesMsec
+	 */
+	public void addStopTimes(List<Integer> stopTimesMsec) {
+		stopTimes.addAll(stopTimesMsec);
+	}
+
+	/**
+	 * Folds the new travel times into the aggregate. If the number of travel
+	 * time segments is different from what was previously aggregated, which
+	 * can happen if the stop path changed, then the old data is discarded
+	 * since it is no longer applicable.
+	 *
+	 * @param travelTimesBySegmentMsec
+	 *            The outer List is by travel time segment and the inner List
+	 *            has a value per single trip
+	 */
+	public void addTravelTimes(List<List<Integer>> travelTimesBySegmentMsec) {
+		if (travelTimesBySegmentMsec.size() != travelTimesBySegment.size()) {
+			if (!travelTimesBySegment.isEmpty())
+				logger.info("Number of travel time segments changed from {} "
+						+ "to {} for tripId={} stopPathIndex={} so discarding "
+						+ "old travel time data.",
+						travelTimesBySegment.size(),
+						travelTimesBySegmentMsec.size(), tripId,
+						stopPathIndex);
+			travelTimesBySegment = new ArrayList<TimeHistogram>(
+					travelTimesBySegmentMsec.size());
+			for (int i = 0; i < travelTimesBySegmentMsec.size(); ++i)
+				travelTimesBySegment.add(new TimeHistogram());
+		}
+
+		for (int segIdx = 0; segIdx < travelTimesBySegmentMsec.size(); ++segIdx)
+			travelTimesBySegment.get(segIdx).addAll(
+					travelTimesBySegmentMsec.get(segIdx));
+	}
+
+	/**
+	 * @return true if there is no travel time nor stop time data left, such
+	 *         as when all the data has decayed away
+	 */
+	public boolean isEmpty() {
+		if (!stopTimes.isEmpty())
+			return false;
+		for (TimeHistogram histogram : travelTimesBySegment)
+			if (!histogram.isEmpty())
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return true if there is travel time data for every segment
+	 */
+	public boolean hasTravelTimes() {
+		if (travelTimesBySegment.isEmpty())
+			return false;
+		for (TimeHistogram histogram : travelTimesBySegment)
+			if (histogram.isEmpty())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Records the end time of the data that was folded into the aggregate.
+	 *
+	 * @param dataEndTime
+	 */
+	public void setDataEndTime(Date dataEndTime) {
+		this.dataEndTime = dataEndTime;
+	}
+
+	public String getTripId() {
+		return tripId;
+	}
+
+	public int getStopPathIndex() {
+		return stopPathIndex;
+	}
+
+	public String getStopId() {
+		return stopId;
+	}
+
+	public Date getDataEndTime() {
+		return dataEndTime;
+	}
+
+	public TimeHistogram getStopTimes() {
+		return stopTimes;
+	}
+
+	public List<TimeHistogram> getTravelTimesBySegment() {
+		return travelTimesBySegment;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((stopId == null) ? 0 : stopId.hashCode());
+		result = prime * result + stopPathIndex;
+		result = prime * result + ((tripId == null) ? 0 : tripId.hashCode());
+		return result;
+	}
+
+	/**
+	 * Only compares the key since that is what Hibernate needs for a
+	 * composite id.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		TravelTimeAggregate other = (TravelTimeAggregate) obj;
+		if (stopId == null) {
+			if (other.stopId != null)
+				return false;
+		} else if (!stopId.equals(other.stopId))
+			return false;
+		if (stopPathIndex != other.stopPathIndex)
+			return false;
+		if (tripId == null) {
+			if (other.tripId != null)
+				return false;
+		} else if (!tripId.equals(other.tripId))
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "TravelTimeAggregate ["
+				+ "tripId=" + tripId
+				+ ", stopPathIndex=" + stopPathIndex
+				+ ", stopId=" + stopId
+				+ ", dataEndTime=" + dataEndTime
+				+ ", stopTimes=" + stopTimes
+				+ ", travelTimesBySegment=" + travelTimesBySegment
+				+ "]";
+	}
+}
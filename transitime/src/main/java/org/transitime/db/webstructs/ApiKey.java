@@ -64,6 +64,11 @@ public class ApiKey implements Serializable {
 	@Column(length=1000)
 	private final String description;
 
+	// Maximum number of API requests per minute for the key. If null then
+	// the key is not limited other than by the limit per IP address.
+	@Column
+	private final Integer maxRequestsPerMinute;
+
 	// Because Hibernate requires objects with composite IDs to be Serializable
 	private static final long serialVersionUID = 903194461306815545L;
 
@@ -84,6 +89,7 @@ public class ApiKey implements Serializable {
 		this.email = email;
 		this.phone = phone;
 		this.description = description;
+		this.maxRequestsPerMinute = null;
 	}
 
 	/**
@@ -97,6 +103,7 @@ public class ApiKey implements Serializable {
 		this.email = null;
 		this.phone = null;
 		this.description = null;
+		this.maxRequestsPerMinute = null;
 	}
 
 	/**
@@ -163,6 +170,7 @@ public class ApiKey implements Serializable {
 				+ ", email=" + email
 				+ ", phone=" + phone 
 				+ ", description=" + description 
+				+ ", maxRequestsPerMinute=" + maxRequestsPerMinute
 				+ "]";
 	}
 
@@ -189,4 +197,12 @@ public class ApiKey implements Serializable {
 	public String getDescription() {
 		return description;
 	}
+
+	/**
+	 * @return Maximum number of API requests per minute for the key, or null
+	 *         if the key is not limited
+	 */
+	public Integer getMaxRequestsPerMinute() {
+		return maxRequestsPerMinute;
+	}
 }
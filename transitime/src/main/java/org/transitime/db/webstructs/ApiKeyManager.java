@@ -49,6 +49,11 @@ public class ApiKeyManager {
 	// For preventing too frequent db reads
 	private long lastTimeKeysReadIntoCache = 0;
 
+	// How often the cache is reread from the db even if no unknown key was
+	// encountered so that changes to the keys, such as a changed
+	// maxRequestsPerMinute quota, are picked up
+	private static final long CACHE_REFRESH_MSEC = 5 * Time.MS_PER_MIN;
+
 	// This is a singleton class
 	private static ApiKeyManager singleton = new ApiKeyManager();
 
@@ -85,6 +90,8 @@ public class ApiKeyManager {
 	 * database in case it was just added. But won't do so more than every few
 	 * seconds since more frequent access could allow an app with a bad key to
 	 * cause the db to be queried to often putting an unneeded burden on the db.
+	 * Also rereads the keys every CACHE_REFRESH_MSEC so that changes to
+	 * existing keys are picked up.
 	 * <p>
 	 * Synchronized because can have simultaneous access and using a cache.
 	 * 
@@ -93,6 +100,18 @@ public class ApiKeyManager {
 	 * @return True if key is valid
 	 */
 	public synchronized boolean isKeyValid(String key) {
+		// Periodically reread the keys so that changes are picked up. If
+		// there is a problem then the keys already in the cache are still
+		// used.
+		if (System.currentTimeMillis() > lastTimeKeysReadIntoCache
+				+ CACHE_REFRESH_MSEC) {
+			try {
+				readKeysIntoCache();
+			} catch (Exception e) {
+				logger.error("Problem rereading the API keys.", e);
+			}
+		}
+
 		try {
 			// If key is already in cache return true
 			if (apiKeyCache.get(key) != null)
@@ -105,13 +124,9 @@ public class ApiKeyManager {
 			if (System.currentTimeMillis() < lastTimeKeysReadIntoCache + 3
 					* Time.MS_PER_SEC)
 				return false;
-			lastTimeKeysReadIntoCache = System.currentTimeMillis();
 
 			// Key wasn't in cache so update the cache in case it was added
-			apiKeyCache.clear();
-			for (ApiKey apiKey : getApiKeys()) {
-				apiKeyCache.put(apiKey.getKey(), apiKey);
-			}
+			readKeysIntoCache();
 
 			return apiKeyCache.get(key) != null;
 		} catch (Exception e) {
@@ -120,6 +135,33 @@ public class ApiKeyManager {
 		}
 	}
 
+	/**
+	 * Rereads all of the keys from the db into the cache. The cache is only
+	 * replaced once the keys have been successfully read. Should only be
+	 * called while synchronized.
+	 */
+	private void readKeysIntoCache() {
+		lastTimeKeysReadIntoCache = System.currentTimeMillis();
+
+		List<ApiKey> apiKeys = getApiKeys();
+		apiKeyCache.clear();
+		for (ApiKey apiKey : apiKeys) {
+			apiKeyCache.put(apiKey.getKey(), apiKey);
+		}
+	}
+
+	/**
+	 * Returns the ApiKey for the key from the cache. Doesn't read from the
+	 * database so the key should already have been validated using
+	 * isKeyValid().
+	 * 
+	 * @param key
+	 * @return The ApiKey, or null if not in the cache
+	 */
+	public synchronized ApiKey getApiKey(String key) {
+		return apiKeyCache.get(key);
+	}
+
 	/**
 	 * Gets the API keys from the database. Gets the session for db access. The
 	 * session is specified by parameters in CoreConfig including
@@ -0,0 +1,389 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.gtfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.StringConfigValue;
+import org.transitime.db.structs.Agency;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Calendar;
+import org.transitime.db.structs.CalendarDate;
+import org.transitime.db.structs.FareAttribute;
+import org.transitime.db.structs.FareRule;
+import org.transitime.db.structs.Frequency;
+import org.transitime.db.structs.Route;
+import org.transitime.db.structs.Stop;
+import org.transitime.db.structs.Transfer;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * A snapshot of the configuration data read in by DbConfig that is written
+ * to a file so that when the core system is restarted the data can be read
+ * from the file instead of from the database. Reading all the data from the
+ * database, especially the trips for all blocks, can take minutes for a
+ * large agency. Reading the snapshot file is much quicker.
+ * <p>
+ * There is a separate file for each configRev and travelTimesRev. The
+ * travelTimesRev is needed because the trips contain their travel times,
+ * and UpdateTravelTimes changes the travel times of the trips of a configRev
+ * by creating a new travelTimesRev. Since the data for a configRev and
+ * travelTimesRev never changes the file doesn't need to be updated once it
+ * has been written. Once a file has been written the files for other
+ * revisions are deleted since they are no longer needed. The file starts
+ * with a header containing FORMAT_VERSION, the agencyId, the configRev, and
+ * the travelTimesRev. If the header doesn't match, or the file
+ * can't be read because the classes have changed, then the snapshot is
+ * considered stale and the data is read from the database instead. The
+ * data is written using Java serialization so that objects shared between
+ * blocks, such as trip patterns, are only written once.
+ * <p>
+ * Only the lists of data are stored. The maps used for looking up the data
+ * are recreated by DbConfig when the snapshot is read in.
+ */
+public class ConfigSnapshot {
+
+	private final int configRev;
+	private final int travelTimesRev;
+	private final List<Block> blocks;
+	private final List<Route> routes;
+	private final List<TripPattern> tripPatterns;
+	private final List<Stop> stops;
+	private final List<Agency> agencies;
+	private final List<Calendar> calendars;
+	private final List<CalendarDate> calendarDates;
+	private final List<FareAttribute> fareAttributes;
+	private final List<FareRule> fareRules;
+	private final List<Frequency> frequencies;
+	private final List<Transfer> transfers;
+
+	// Should be incremented whenever what is written to the file changes
+	private static final int FORMAT_VERSION = 2;
+
+	private static StringConfigValue snapshotDirectory =
+			new StringConfigValue("transitime.core.configSnapshotDirectory",
+					null,
+					"Directory where a snapshot file of the configuration "
+					+ "data is stored for each configRev and "
+					+ "travelTimesRev so that when the core system is "
+					+ "restarted the configuration can be read from the "
+					+ "file instead of from the database, which is much "
+					+ "faster. If not set then snapshots are not used.");
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ConfigSnapshot.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor. Called by DbConfig when creating a snapshot of its data
+	 * and when a snapshot is read in from a file.
+	 */
+	ConfigSnapshot(int configRev, int travelTimesRev, List<Block> blocks,
+			List<Route> routes, List<TripPattern> tripPatterns,
+			List<Stop> stops,
+			List<Agency> agencies, List<Calendar> calendars,
+			List<CalendarDate> calendarDates,
+			List<FareAttribute> fareAttributes, List<FareRule> fareRules,
+			List<Frequency> frequencies, List<Transfer> transfers) {
+		this.configRev = configRev;
+		this.travelTimesRev = travelTimesRev;
+		this.blocks = blocks;
+		this.routes = routes;
+		this.tripPatterns = tripPatterns;
+		this.stops = stops;
+		this.agencies = agencies;
+		this.calendars = calendars;
+		this.calendarDates = calendarDates;
+		this.fareAttributes = fareAttributes;
+		this.fareRules = fareRules;
+		this.frequencies = frequencies;
+		this.transfers = transfers;
+	}
+
+	/**
+	 * @return true if transitime.core.configSnapshotDirectory is set
+	 */
+	public static boolean isEnabled() {
+		String dir = snapshotDirectory.getValue();
+		return dir != null && !dir.isEmpty();
+	}
+
+	/**
+	 * Returns the beginning of the names of the snapshot files for the
+	 * agency.
+	 *
+	 * @param agencyId
+	 * @return the file name prefix
+	 */
+	private static String getFileNamePrefix(String agencyId) {
+		return agencyId + "_configRev";
+	}
+
+	/**
+	 * Returns the snapshot file for the agency, configRev, and
+	 * travelTimesRev.
+	 *
+	 * @param agencyId
+	 * @param configRev
+	 * @param travelTimesRev
+	 * @return the file
+	 */
+	private static File getFile(String agencyId, int configRev,
+			int travelTimesRev) {
+		return new File(snapshotDirectory.getValue(),
+				getFileNamePrefix(agencyId) + configRev + "_travelTimesRev"
+						+ travelTimesRev + ".snapshot");
+	}
+
+	/**
+	 * Reads in the snapshot for the agency, configRev, and travelTimesRev.
+	 *
+	 * @param agencyId
+	 * @param configRev
+	 * @param travelTimesRev
+	 * @return The snapshot, or null if there is no snapshot file or it is
+	 *         stale or couldn't be read
+	 */
+	@SuppressWarnings("unchecked")
+	static ConfigSnapshot read(String agencyId, int configRev,
+			int travelTimesRev) {
+		File file = getFile(agencyId, configRev, travelTimesRev);
+		if (!file.exists()) {
+			logger.info("No config snapshot file {} so reading config data "
+					+ "from database.", file);
+			return null;
+		}
+
+		IntervalTimer timer = new IntervalTimer();
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+
+			// Make sure that the snapshot is the right one
+			int formatVersion = in.readInt();
+			String fileAgencyId = in.readUTF();
+			int fileConfigRev = in.readInt();
+			int fileTravelTimesRev = in.readInt();
+			if (formatVersion != FORMAT_VERSION
+					|| !fileAgencyId.equals(agencyId)
+					|| fileConfigRev != configRev
+					|| fileTravelTimesRev != travelTimesRev) {
+				logger.warn("Config snapshot file {} is stale. It has "
+						+ "formatVersion={} agencyId={} configRev={} "
+						+ "travelTimesRev={} but expected formatVersion={} "
+						+ "agencyId={} configRev={} travelTimesRev={}. "
+						+ "Therefore reading config data from database.",
+						file, formatVersion, fileAgencyId, fileConfigRev,
+						fileTravelTimesRev, FORMAT_VERSION, agencyId,
+						configRev, travelTimesRev);
+				return null;
+			}
+
+			ConfigSnapshot snapshot = new ConfigSnapshot(configRev,
+					travelTimesRev,
+					(List<Block>) in.readObject(),
+					(List<Route>) in.readObject(),
+					(List<TripPattern>) in.readObject(),
+					(List<Stop>) in.readObject(),
+					(List<Agency>) in.readObject(),
+					(List<Calendar>) in.readObject(),
+					(List<CalendarDate>) in.readObject(),
+					(List<FareAttribute>) in.readObject(),
+					(List<FareRule>) in.readObject(),
+					(List<Frequency>) in.readObject(),
+					(List<Transfer>) in.readObject());
+			logger.info("Read config snapshot file {} with {} blocks. Took "
+					+ "{} msec.", file, snapshot.blocks.size(),
+					timer.elapsedMsec());
+			return snapshot;
+		} catch (Exception e) {
+			// Can happen if classes have changed since file was written.
+			// Not fatal since can simply read the data from the db.
+			logger.error("Could not read config snapshot file {} so reading "
+					+ "config data from database instead. {}", file,
+					e.getMessage(), e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					logger.error("Exception closing {}", file, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the snapshot files of the agency other than the specified one.
+	 * Called once a new snapshot file has been written since the files for
+	 * other revisions are then no longer needed.
+	 *
+	 * @param agencyId
+	 * @param currentFile
+	 *            The file to keep
+	 */
+	private static void deleteOtherSnapshots(String agencyId,
+			File currentFile) {
+		File[] files = currentFile.getParentFile().listFiles();
+		if (files == null)
+			return;
+
+		String prefix = getFileNamePrefix(agencyId);
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(prefix) && name.endsWith(".snapshot")
+					&& !file.equals(currentFile)) {
+				if (file.delete())
+					logger.info("Deleted old config snapshot file {}", file);
+				else
+					logger.error("Could not delete old config snapshot file "
+							+ "{}", file);
+			}
+		}
+	}
+
+	/**
+	 * Writes the snapshot to the file for the agency, configRev, and
+	 * travelTimesRev. First writes to a temporary file and then renames it
+	 * so that a partially written file is never read in. Once written the
+	 * snapshot files for other revisions are deleted.
+	 *
+	 * @param agencyId
+	 */
+	void write(String agencyId) {
+		IntervalTimer timer = new IntervalTimer();
+		File file = getFile(agencyId, configRev, travelTimesRev);
+		File tmpFile = new File(file.getPath() + ".tmp");
+		ObjectOutputStream out = null;
+		try {
+			file.getParentFile().mkdirs();
+			out = new ObjectOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmpFile)));
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(agencyId);
+			out.writeInt(configRev);
+			out.writeInt(travelTimesRev);
+
+			// Write out the lists as ArrayLists since they might be
+			// unmodifiable or Hibernate lists
+			out.writeObject(new ArrayList<Block>(blocks));
+			out.writeObject(new ArrayList<Route>(routes));
+			out.writeObject(new ArrayList<TripPattern>(tripPatterns));
+			out.writeObject(new ArrayList<Stop>(stops));
+			out.writeObject(new ArrayList<Agency>(agencies));
+			out.writeObject(new ArrayList<Calendar>(calendars));
+			out.writeObject(new ArrayList<CalendarDate>(calendarDates));
+			out.writeObject(new ArrayList<FareAttribute>(fareAttributes));
+			out.writeObject(new ArrayList<FareRule>(fareRules));
+			out.writeObject(new ArrayList<Frequency>(frequencies));
+			out.writeObject(new ArrayList<Transfer>(transfers));
+			out.close();
+			out = null;
+
+			if (!tmpFile.renameTo(file)) {
+				logger.error("Could not rename {} to {}", tmpFile, file);
+				tmpFile.delete();
+				return;
+			}
+			logger.info("Wrote config snapshot file {} of {} bytes. Took {} "
+					+ "msec.", file, file.length(), timer.elapsedMsec());
+
+			deleteOtherSnapshots(agencyId, file);
+		} catch (IOException e) {
+			// Not fatal since config data can still be read from db
+			logger.error("Could not write config snapshot file {}. {}", file,
+					e.getMessage(), e);
+			tmpFile.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					logger.error("Exception closing {}", tmpFile, e);
+				}
+				tmpFile.delete();
+			}
+		}
+	}
+
+	public int getConfigRev() {
+		return configRev;
+	}
+
+	public int getTravelTimesRev() {
+		return travelTimesRev;
+	}
+
+	public List<Block> getBlocks() {
+		return blocks;
+	}
+
+	public List<Route> getRoutes() {
+		return routes;
+	}
+
+	public List<TripPattern> getTripPatterns() {
+		return tripPatterns;
+	}
+
+	public List<Stop> getStops() {
+		return stops;
+	}
+
+	public List<Agency> getAgencies() {
+		return agencies;
+	}
+
+	public List<Calendar> getCalendars() {
+		return calendars;
+	}
+
+	public List<CalendarDate> getCalendarDates() {
+		return calendarDates;
+	}
+
+	public List<FareAttribute> getFareAttributes() {
+		return fareAttributes;
+	}
+
+	public List<FareRule> getFareRules() {
+		return fareRules;
+	}
+
+	public List<Frequency> getFrequencies() {
+		return frequencies;
+	}
+
+	public List<Transfer> getTransfers() {
+		return transfers;
+	}
+}
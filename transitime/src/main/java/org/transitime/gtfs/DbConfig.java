@@ -22,15 +22,24 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.applications.Core;
+import org.transitime.configData.CoreConfig;
 import org.transitime.core.ServiceUtils;
+import org.transitime.core.TripPatternSpatialIndex;
 import org.transitime.db.hibernate.HibernateUtils;
 import org.transitime.db.structs.ActiveRevisions;
 import org.transitime.db.structs.Agency;
@@ -51,6 +60,7 @@ import org.transitime.db.structs.TripPattern;
 import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.MapKey;
 import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
 
 /**
  * Reads all the configuration data from the database. The data is based on GTFS
@@ -72,6 +82,11 @@ public class DbConfig {
 	// Keeps track of which revision of config data was read in
 	private int configRev;
 
+	// The travelTimesRev that was active when the config data was read in.
+	// Identifies the travel times of the trips in a config snapshot. Is -1
+	// if not known.
+	private int travelTimesRev = -1;
+
 	// Following is for all the data read from the database
 	private List<Block> blocks;
 
@@ -101,6 +116,9 @@ public class DbConfig {
 	// Contains
 	private Map<String, List<Trip>> individualTripsByShortNameMap =
 			new HashMap<String, List<Trip>>();
+	// True if all the blocks and trips were read in at startup, in which
+	// case trips never need to be read from the db
+	private boolean schedulePreloaded = false;
 
 	private List<Agency> agencies;
 	private List<Calendar> calendars;
@@ -117,6 +135,11 @@ public class DbConfig {
 	// Keyed by stop_code
 	private Map<Integer, Stop> stopsByStopCode;
 	
+	// Spatial index of the stop path segments of all trip patterns so that
+	// spatial matching can quickly find the segments near a location. Null
+	// if not configured to be used.
+	private TripPatternSpatialIndex tripPatternSpatialIndex = null;
+	
 	// Remember the session. This is a bit odd because usually
 	// close sessions but want to keep it open so can do lazy loading
 	// and so that can read in TripPatterns later using the same session.
@@ -177,6 +200,26 @@ public class DbConfig {
 		// Remember which revision of data is being used
 		this.configRev = configRev;
 
+		// If there is a snapshot of the config data for the configRev and
+		// the travelTimesRev then use it since that is much faster than
+		// reading from the db. The travelTimesRev is needed because the
+		// travel times of the trips can be updated for the same configRev.
+		if (ConfigSnapshot.isEnabled()) {
+			ActiveRevisions activeRevisions = ActiveRevisions.get(agencyId);
+			travelTimesRev = activeRevisions != null ? 
+					activeRevisions.getTravelTimesRev() : -1;
+		}
+		if (ConfigSnapshot.isEnabled() && travelTimesRev >= 0) {
+			ConfigSnapshot snapshot = 
+					ConfigSnapshot.read(agencyId, configRev, travelTimesRev);
+			if (snapshot != null) {
+				setData(snapshot);
+				logger.info("Finished reading configuration data from "
+						+ "snapshot. Took {} msec.", timer.elapsedMsec());
+				return;
+			}
+		}
+		
 		// Do the low-level processing
 		try {
 			actuallyReadData(configRev);
@@ -198,6 +241,14 @@ public class DbConfig {
 		// Let user know what is going on
 		logger.info("Finished reading configuration data from database . "
 				+ "Took {} msec.", timer.elapsedMsec());
+		
+		// Write out snapshot so that next time the core is started the data
+		// doesn't need to be read from the db. Only done if schedule was
+		// preloaded since otherwise the trips of the blocks would need to
+		// be lazy loaded in order to be written out.
+		if (ConfigSnapshot.isEnabled() && travelTimesRev >= 0
+				&& schedulePreloaded)
+			createSnapshot().write(agencyId);
 	}
 
 	/**
@@ -464,6 +515,16 @@ public class DbConfig {
 		return tripPatternsByRouteMap.get(routeId);
 	}
 
+	/**
+	 * Returns the spatial index of the stop path segments of all the trip
+	 * patterns.
+	 * 
+	 * @return the spatial index, or null if not configured to use one
+	 */
+	public TripPatternSpatialIndex getTripPatternSpatialIndex() {
+		return tripPatternSpatialIndex;
+	}
+	
 	/**
 	 * Returns cached map of all Trips. Can be slow first time accessed because
 	 * it can take a while to read in all trips including all sub-data.
@@ -505,8 +566,9 @@ public class DbConfig {
 	public Trip getTrip(String tripIdOrShortName) {
 		Trip trip = individualTripsMap.get(tripIdOrShortName);
 
-		// If trip not read in yet, do so now
-		if (trip == null) {
+		// If trip not read in yet, do so now. But if schedule was preloaded
+		// then all trips are already in individualTripsMap.
+		if (trip == null && !schedulePreloaded) {
 			logger.debug("Trip for tripIdOrShortName={} not read from db yet "
 					+ "so reading it now.", tripIdOrShortName);
 			
@@ -589,6 +651,13 @@ public class DbConfig {
 			}
 		}
 
+		// If schedule was preloaded then all trips were already put into
+		// the map so there is no such trip
+		if (schedulePreloaded) {
+			logger.debug("No trip with tripShortName={}", tripShortName);
+			return null;
+		}
+		
 		logger.info("FIXME tripShortName={} not yet read from db so reading it in now", tripShortName);
 		
 		// Trips for the short name not read in yet, do so now
@@ -695,6 +764,14 @@ public class DbConfig {
 		logger.debug("Reading routes took {} msec", timer.elapsedMsec());
 
 		tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
+		createTripPatternSpatialIndexIfConfigured();
+		
+		// If configured to do so, replace the blocks with ones that have
+		// all their trips already read in so that nothing needs to be
+		// lazy loaded when matching vehicles. Also needed for writing out
+		// a config snapshot since it must contain the trips.
+		if (CoreConfig.preloadSchedule() || ConfigSnapshot.isEnabled())
+			preloadSchedule();
 		
 		timer = new IntervalTimer();
 		List<Stop> stopsList = Stop.getStops(globalSession, configRev);
@@ -707,26 +784,317 @@ public class DbConfig {
 		agencies = Agency.getAgencies(globalSession, configRev);
 		calendars = Calendar.getCalendars(globalSession, configRev);
 		calendarDates = CalendarDate.getCalendarDates(globalSession, configRev);
+		calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
+		
+		fareAttributes =
+				FareAttribute.getFareAttributes(globalSession, configRev);
+		fareRules = FareRule.getFareRules(globalSession, configRev);
+		frequencies = Frequency.getFrequencies(globalSession, configRev);
+		transfers = Transfer.getTransfers(globalSession, configRev);
+
+		logger.debug("Reading everything else took {} msec",
+				timer.elapsedMsec());
+	}
+
+	/**
+	 * Reads in all blocks along with all of their trips, trip patterns, stop
+	 * paths, schedule times, and travel times. Uses multiple threads, each
+	 * with its own session, so that the data is read in far more quickly than
+	 * when it is lazy loaded serially via the global session. The blocks
+	 * replace the ones already read in so that Block.getTrips() never needs
+	 * to lazy load data. The trips are also put into the trip maps so that
+	 * getTrip() and getTrips() don't need to read from the db.
+	 * <p>
+	 * Needs to be called after the blocks and trip patterns have been read in
+	 * via the global session. The trips are set to use those trip patterns so
+	 * that there is only a single copy of each one.
+	 * 
+	 * @throws HibernateException
+	 */
+	private void preloadSchedule() throws HibernateException {
+		IntervalTimer timer = new IntervalTimer();
+		int numberThreads = CoreConfig.getPreloadScheduleThreads();
+		logger.info("Preloading schedule data for {} blocks using {} "
+				+ "threads...", blocks.size(), numberThreads);
+
+		// Divide the block IDs into batches so that the threads can each
+		// read in a batch at a time. Use several batches per thread so that
+		// the work is spread out evenly. A block ID can be used for several
+		// service IDs so use a set to only read in each one once.
+		Set<String> uniqueBlockIds = new LinkedHashSet<String>();
+		for (Block block : blocks)
+			uniqueBlockIds.add(block.getId());
+		List<String> blockIds = new ArrayList<String>(uniqueBlockIds);
+		int batchSize = Math.max(1, blockIds.size() / (4 * numberThreads));
+		
+		ExecutorService executor = Executors.newFixedThreadPool(
+				numberThreads, new NamedThreadFactory("preloadSchedule"));
+		List<Future<List<Block>>> futures = new ArrayList<Future<List<Block>>>();
+		for (int i = 0; i < blockIds.size(); i += batchSize) {
+			final List<String> batch = blockIds.subList(i,
+					Math.min(i + batchSize, blockIds.size()));
+			futures.add(executor.submit(new Callable<List<Block>>() {
+				@Override
+				public List<Block> call() throws Exception {
+					Session session = HibernateUtils.getSession(agencyId);
+					try {
+						return Block.getBlocksWithTrips(session, configRev,
+								batch);
+					} finally {
+						session.close();
+					}
+				}
+			}));
+		}
+		
+		List<Block> preloadedBlocks = new ArrayList<Block>(blocks.size());
+		try {
+			for (Future<List<Block>> future : futures)
+				preloadedBlocks.addAll(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HibernateException("Interrupted while preloading "
+					+ "schedule data", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof HibernateException)
+				throw (HibernateException) e.getCause();
+			throw new HibernateException("Exception while preloading "
+					+ "schedule data", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		// Use the trip patterns read in via the global session, which are
+		// the ones used for the spatial index, so that there is only a
+		// single copy of each trip pattern
+		Map<String, TripPattern> tripPatternsById = 
+				new HashMap<String, TripPattern>();
+		for (List<TripPattern> tripPatternsForRoute : 
+				tripPatternsByRouteMap.values()) {
+			for (TripPattern tripPattern : tripPatternsForRoute)
+				tripPatternsById.put(tripPattern.getId(), tripPattern);
+		}
+		Map<String, Trip> preloadedTripsMap = new HashMap<String, Trip>();
+		for (Block block : preloadedBlocks) {
+			for (Trip trip : block.getTrips()) {
+				TripPattern tripPattern = 
+						tripPatternsById.get(trip.getTripPattern().getId());
+				if (tripPattern != null)
+					trip.setTripPattern(tripPattern);
+				preloadedTripsMap.put(trip.getId(), trip);
+			}
+		}
+
+		// Replace the blocks, keeping the original order. If for some reason
+		// a block wasn't preloaded then use the original lazy loaded one.
+		Map<String, Map<String, Block>> preloadedBlocksByServiceMap =
+				putBlocksIntoMap(preloadedBlocks);
+		List<Block> newBlocks = new ArrayList<Block>(blocks.size());
+		for (Block block : blocks) {
+			Map<String, Block> blocksForService = 
+					preloadedBlocksByServiceMap.get(block.getServiceId());
+			Block preloadedBlock = blocksForService != null ? 
+					blocksForService.get(block.getId()) : null;
+			if (preloadedBlock != null) {
+				newBlocks.add(preloadedBlock);
+			} else {
+				logger.error("Block serviceId={} blockId={} was not "
+						+ "preloaded so it will be lazy loaded instead.", 
+						block.getServiceId(), block.getId());
+				newBlocks.add(block);
+			}
+		}
+		blocks = Collections.unmodifiableList(newBlocks);
+		blocksByServiceMap = putBlocksIntoMap(blocks);
+		blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
+		
+		// Put the trips into the maps so that they don't need to be read in
+		setPreloadedTrips(preloadedTripsMap);
 		
-		calendarDatesMap = new HashMap<Long, List<CalendarDate>>();
+		logger.info("Preloaded {} blocks with {} trips. Took {} msec.", 
+				preloadedBlocks.size(), preloadedTripsMap.size(), 
+				timer.elapsedMsec());
+	}
+
+	/**
+	 * Puts all of the trips of the blocks into the trip maps and marks the
+	 * schedule as preloaded so that getTrip(), getTrips(), and
+	 * getTripUsingTripShortName() never need to read from the db.
+	 * 
+	 * @param preloadedTripsMap
+	 *            All trips of all blocks, keyed on trip ID
+	 */
+	private void setPreloadedTrips(Map<String, Trip> preloadedTripsMap) {
+		tripsMap = Collections.unmodifiableMap(preloadedTripsMap);
+		individualTripsMap.putAll(preloadedTripsMap);
+		for (Trip trip : preloadedTripsMap.values()) {
+			if (trip.getShortName() == null)
+				continue;
+			List<Trip> tripsForShortName = 
+					individualTripsByShortNameMap.get(trip.getShortName());
+			if (tripsForShortName == null) {
+				tripsForShortName = new ArrayList<Trip>(1);
+				individualTripsByShortNameMap.put(trip.getShortName(),
+						tripsForShortName);
+			}
+			tripsForShortName.add(trip);
+		}
+		schedulePreloaded = true;
+	}
+
+	/**
+	 * Creates a snapshot of the config data so that it can be written to a
+	 * file. Should only be called once the schedule has been preloaded so
+	 * that the blocks contain their trips.
+	 * 
+	 * @return the snapshot
+	 */
+	private ConfigSnapshot createSnapshot() {
+		List<TripPattern> allTripPatterns = new ArrayList<TripPattern>();
+		for (List<TripPattern> tripPatternsForRoute : 
+				tripPatternsByRouteMap.values()) {
+			allTripPatterns.addAll(tripPatternsForRoute);
+		}
+		
+		return new ConfigSnapshot(configRev, travelTimesRev, blocks, routes,
+				allTripPatterns, new ArrayList<Stop>(stopsMap.values()),
+				agencies, calendars, calendarDates, fareAttributes, fareRules,
+				frequencies, transfers);
+	}
+
+	/**
+	 * Sets the configuration data using a snapshot that was read from a file
+	 * instead of reading it from the database. The blocks in the snapshot
+	 * already contain all of their trips so the schedule is treated as
+	 * preloaded. There is no global session since nothing needs to be lazy
+	 * loaded.
+	 * 
+	 * @param snapshot
+	 */
+	private void setData(ConfigSnapshot snapshot) {
+		configRev = snapshot.getConfigRev();
+		travelTimesRev = snapshot.getTravelTimesRev();
+		
+		blocks = Collections.unmodifiableList(snapshot.getBlocks());
+		blocksByServiceMap = putBlocksIntoMap(blocks);
+		blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
+
+		routes = snapshot.getRoutes();
+		routesByRouteIdMap = putRoutesIntoMapByRouteId(routes);
+		routesByRouteShortNameMap = putRoutesIntoMapByRouteShortName(routes);
+
+		tripPatternsByRouteMap = 
+				putTripPatternsIntoMap(snapshot.getTripPatterns());
+		createTripPatternSpatialIndexIfConfigured();
+
+		Map<String, Trip> preloadedTripsMap = new HashMap<String, Trip>();
+		for (Block block : blocks) {
+			for (Trip trip : block.getTrips())
+				preloadedTripsMap.put(trip.getId(), trip);
+		}
+		setPreloadedTrips(preloadedTripsMap);
+
+		List<Stop> stopsList = snapshot.getStops();
+		stopsMap = putStopsIntoMap(stopsList);
+		stopsByStopCode = putStopsIntoMapByStopCode(stopsList);
+		routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
+
+		agencies = snapshot.getAgencies();
+		calendars = snapshot.getCalendars();
+		calendarDates = snapshot.getCalendarDates();
+		calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
+		fareAttributes = snapshot.getFareAttributes();
+		fareRules = snapshot.getFareRules();
+		frequencies = snapshot.getFrequencies();
+		transfers = snapshot.getTransfers();
+	}
+
+	/**
+	 * Creates the spatial index of the trip patterns if configured to use one.
+	 * Needs to be called after tripPatternsByRouteMap is set.
+	 */
+	private void createTripPatternSpatialIndexIfConfigured() {
+		if (CoreConfig.useSpatialIndexForMatching()) {
+			List<TripPattern> allTripPatterns = new ArrayList<TripPattern>();
+			for (List<TripPattern> tripPatternsForRoute : 
+					tripPatternsByRouteMap.values()) {
+				allTripPatterns.addAll(tripPatternsForRoute);
+			}
+			tripPatternSpatialIndex = new TripPatternSpatialIndex(
+					allTripPatterns, CoreConfig.getSpatialIndexCellSize());
+		}
+	}
+
+	/**
+	 * Converts the calendar dates into a map keyed on the time of the date.
+	 * 
+	 * @param calendarDates
+	 * @return map of calendar dates keyed on time
+	 */
+	private static Map<Long, List<CalendarDate>> putCalendarDatesIntoMap(
+			List<CalendarDate> calendarDates) {
+		Map<Long, List<CalendarDate>> map =
+				new HashMap<Long, List<CalendarDate>>();
 		for (CalendarDate calendarDate : calendarDates) {
 			Long time = calendarDate.getTime();
-			List<CalendarDate> calendarDatesForDate = calendarDatesMap.get(time);
+			List<CalendarDate> calendarDatesForDate = map.get(time);
 			if (calendarDatesForDate == null) {
 				calendarDatesForDate = new ArrayList<CalendarDate>(1);
-				calendarDatesMap.put(time, calendarDatesForDate);
+				map.put(time, calendarDatesForDate);
 			}
 			calendarDatesForDate.add(calendarDate);
 		}
+		return map;
+	}
+
+	/**
+	 * Sets the configuration data using GTFS data that was processed just
+	 * into memory instead of reading it from the database. Useful for when
+	 * there is no database, such as when benchmarking the core system using
+	 * a synthetic agency. Since there is no global session all of the trips
+	 * are made available directly instead of being lazy loaded.
+	 * 
+	 * @param gtfsData
+	 *            GTFS data already processed via GtfsData.processData()
+	 */
+	public void setData(GtfsData gtfsData) {
+		IntervalTimer timer = new IntervalTimer();
+
+		configRev = gtfsData.getConfigRevision().getConfigRev();
 		
-		fareAttributes =
-				FareAttribute.getFareAttributes(globalSession, configRev);
-		fareRules = FareRule.getFareRules(globalSession, configRev);
-		frequencies = Frequency.getFrequencies(globalSession, configRev);
-		transfers = Transfer.getTransfers(globalSession, configRev);
+		blocks = gtfsData.getBlocks();
+		blocksByServiceMap = putBlocksIntoMap(blocks);
+		blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
 
-		logger.debug("Reading everything else took {} msec",
-				timer.elapsedMsec());
+		routes = gtfsData.getRoutes();
+		routesByRouteIdMap = putRoutesIntoMapByRouteId(routes);
+		routesByRouteShortNameMap = putRoutesIntoMapByRouteShortName(routes);
+
+		tripPatternsByRouteMap = putTripPatternsIntoMap(
+				new ArrayList<TripPattern>(gtfsData.getTripPatterns()));
+		createTripPatternSpatialIndexIfConfigured();
+		
+		List<Stop> stopsList = new ArrayList<Stop>(gtfsData.getStops());
+		stopsMap = putStopsIntoMap(stopsList);
+		stopsByStopCode = putStopsIntoMapByStopCode(stopsList);
+		routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
+
+		tripsMap = new HashMap<String, Trip>();
+		for (Trip trip : gtfsData.getTrips())
+			tripsMap.put(trip.getId(), trip);
+		individualTripsMap.putAll(tripsMap);
+
+		agencies = gtfsData.getAgencies();
+		calendars = gtfsData.getCalendars();
+		calendarDates = gtfsData.getCalendarDates();
+		calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
+		fareAttributes = gtfsData.getFareAttributes();
+		fareRules = gtfsData.getFareRules();
+		frequencies = new ArrayList<Frequency>(gtfsData.getFrequencies());
+		transfers = gtfsData.getTransfers();
+
+		logger.info("Set configuration data for configRev={} from GTFS data "
+				+ "in memory. Took {} msec.", configRev, timer.elapsedMsec());
 	}
 
 	/************************** Getter Methods ***************************/
@@ -972,6 +1340,13 @@ public class DbConfig {
 		return serviceIds;
 	}
 	
+	/**
+	 * @return the agencyId that the config data is for
+	 */
+	public String getAgencyId() {
+		return agencyId;
+	}
+	
 	/**
 	 * There can be multiple agencies but usually there will be just one. For
 	 * getting timezone and such want to be able to easily access the main
@@ -17,12 +17,21 @@
  */
 package org.transitime.gtfs;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
 import org.hibernate.HibernateException;
+import org.hibernate.Interceptor;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.db.hibernate.HibernateUtils;
+import org.transitime.db.hibernate.NewObjectInterceptor;
 import org.transitime.db.structs.Agency;
 import org.transitime.db.structs.Block;
 import org.transitime.db.structs.Calendar;
@@ -32,6 +41,7 @@ import org.transitime.db.structs.FareRule;
 import org.transitime.db.structs.Frequency;
 import org.transitime.db.structs.Route;
 import org.transitime.db.structs.Stop;
+import org.transitime.db.structs.StopPath;
 import org.transitime.db.structs.Transfer;
 import org.transitime.db.structs.TravelTimesForTrip;
 import org.transitime.db.structs.Trip;
@@ -40,6 +50,13 @@ import org.transitime.utils.IntervalTimer;
 
 /**
  * Writes the GTFS data contained in a GtfsData object to the database.
+ * <p>
+ * The old data for the configRev is deleted before the new data is written
+ * so all of the configuration objects are new. If the session was created
+ * with the interceptor from createInterceptor() then Hibernate is told
+ * this so that it doesn't need to do a SELECT for every object to determine
+ * whether it already exists. How long deleting and writing each table takes
+ * is logged so that can see where the time goes.
  * 
  * @author SkiBu Smith
  *
@@ -48,6 +65,20 @@ public class DbWriter {
 
 	private final GtfsData gtfsData;
 	private int counter = 0;
+	
+	// How long each table took to delete and write, in order. For logging.
+	private final Map<String, Long> tableTimesMsec = 
+			new LinkedHashMap<String, Long>();
+	
+	// The configuration classes that are always newly created when the
+	// GTFS data is processed and that have assigned ids
+	private static final Set<Class<?>> newConfigClasses = 
+			new HashSet<Class<?>>(Arrays.<Class<?>> asList(Agency.class,
+					Block.class, Calendar.class, CalendarDate.class,
+					FareAttribute.class, FareRule.class, Frequency.class,
+					Route.class, Stop.class, StopPath.class, Transfer.class,
+					Trip.class, TripPattern.class));
+	
 	private static final Logger logger = LoggerFactory
 			.getLogger(DbWriter.class);
 
@@ -57,6 +88,19 @@ public class DbWriter {
 		this.gtfsData = gtfsData;
 	}
 	
+	/**
+	 * Creates the Interceptor that should be used for the session that the
+	 * data is written with. It tells Hibernate that the configuration
+	 * objects are new, unless they have already been saved or were read
+	 * from the database, so that Hibernate doesn't do a SELECT for each
+	 * one. A new interceptor is needed for each session.
+	 * 
+	 * @return The interceptor for the session
+	 */
+	public static Interceptor createInterceptor() {
+		return new NewObjectInterceptor(newConfigClasses);
+	}
+	
 	/**
 	 * Actually writes data to database (once transaction closed).
 	 * Uses Hibernate batching so don't use as much memory.
@@ -74,6 +118,44 @@ public class DbWriter {
 		}
 	}
 	
+	/**
+	 * Writes all of the objects and then flushes the session so that the
+	 * data is actually written. Logs how long it took.
+	 * 
+	 * @param session
+	 * @param tableName
+	 *            For logging
+	 * @param objects
+	 */
+	private void writeObjects(Session session, String tableName,
+			Collection<?> objects) {
+		IntervalTimer timer = new IntervalTimer();
+		logger.info("Saving {} {} to database...", objects.size(), tableName);
+		for (Object object : objects) {
+			writeObject(session, object);
+		}
+		
+		// Flush so that the time includes actually writing the data
+		session.flush();
+		session.clear();
+		
+		recordTime(tableName, timer);
+	}
+	
+	/**
+	 * Adds the elapsed time to the total for the table and logs it.
+	 * 
+	 * @param tableName
+	 * @param timer
+	 */
+	private void recordTime(String tableName, IntervalTimer timer) {
+		long elapsedMsec = timer.elapsedMsec();
+		Long previousMsec = tableTimesMsec.get(tableName);
+		tableTimesMsec.put(tableName, 
+				previousMsec == null ? elapsedMsec : previousMsec + elapsedMsec);
+		logger.info("Processing {} took {} msec", tableName, elapsedMsec);
+	}
+	
 	/**
 	 * Goes through the collections in GtfsData and writes the objects
 	 * to the database.
@@ -87,6 +169,7 @@ public class DbWriter {
 		// to do so successfully (without reading in objects and then
 		// deleting them, which takes too much time and memory). Therefore
 		// deleting of this data is done here before writing the data.
+		IntervalTimer deleteTimer = new IntervalTimer();
 		logger.info("Deleting old blocks and associated trips from rev {} of "
 				+ "database...", configRev);
 		Block.deleteFromRev(session, configRev);
@@ -105,72 +188,32 @@ public class DbWriter {
 				configRev);
 		TravelTimesForTrip.deleteFromRev(session, configRev);
 		
-		// Now write the data to the database.
-		// First write the Blocks. This will also write the Trips, TripPatterns,
-		// Paths, and TravelTimes since those all have been configured to be
-		// cascade=CascadeType.SAVE_UPDATE .
-		logger.info("Saving {} blocks (plus associated trips) to database...", 
-				gtfsData.getBlocks().size());
-		int c = 0;
-		for (Block block : gtfsData.getBlocks()) {
-			logger.info("Saving block #{} with blockId={} serviceId={} blockId={}",
-					++c, block.getId(), block.getServiceId(), block.getId());
-			writeObject(session, block);
-		}
-		
-		logger.info("Saving routes to database...");
 		Route.deleteFromRev(session, configRev);
-		for (Route route : gtfsData.getRoutes()) {
-			writeObject(session, route);
-		}
-		
-		logger.info("Saving stops to database...");
 		Stop.deleteFromRev(session, configRev);
-		for (Stop stop : gtfsData.getStops()) {
-			writeObject(session, stop);
-		}
-		
-		logger.info("Saving agencies to database...");
 		Agency.deleteFromRev(session, configRev);
-		for (Agency agency : gtfsData.getAgencies()) {
-			writeObject(session, agency);
-		}
-
-		logger.info("Saving calendars to database...");
 		Calendar.deleteFromRev(session, configRev);
-		for (Calendar calendar : gtfsData.getCalendars()) {
-			writeObject(session, calendar);
-		}
-		
-		logger.info("Saving calendar dates to database...");
 		CalendarDate.deleteFromRev(session, configRev);
-		for (CalendarDate calendarDate : gtfsData.getCalendarDates()) {
-			writeObject(session, calendarDate);
-		}
-		
-		logger.info("Saving fare rules to database...");
 		FareRule.deleteFromRev(session, configRev);
-		for (FareRule fareRule : gtfsData.getFareRules()) {
-			writeObject(session, fareRule);
-		}
-		
-		logger.info("Saving fare attributes to database...");
 		FareAttribute.deleteFromRev(session, configRev);
-		for (FareAttribute fareAttribute : gtfsData.getFareAttributes()) {
-			writeObject(session, fareAttribute);
-		}
-		
-		logger.info("Saving frequencies to database...");
 		Frequency.deleteFromRev(session, configRev);
-		for (Frequency frequency : gtfsData.getFrequencies()) {
-			writeObject(session, frequency);
-		}
-		
-		logger.info("Saving transfers to database...");
 		Transfer.deleteFromRev(session, configRev);
-		for (Transfer transfer : gtfsData.getTransfers()) {
-			writeObject(session, transfer);
-		}
+		recordTime("deleting old data", deleteTimer);
+		
+		// Now write the data to the database.
+		// First write the Blocks. This will also write the Trips, TripPatterns,
+		// Paths, and TravelTimes since those all have been configured to be
+		// cascade=CascadeType.SAVE_UPDATE .
+		writeObjects(session, "blocks (plus associated trips)", 
+				gtfsData.getBlocks());
+		writeObjects(session, "routes", gtfsData.getRoutes());
+		writeObjects(session, "stops", gtfsData.getStops());
+		writeObjects(session, "agencies", gtfsData.getAgencies());
+		writeObjects(session, "calendars", gtfsData.getCalendars());
+		writeObjects(session, "calendar dates", gtfsData.getCalendarDates());
+		writeObjects(session, "fare rules", gtfsData.getFareRules());
+		writeObjects(session, "fare attributes", gtfsData.getFareAttributes());
+		writeObjects(session, "frequencies", gtfsData.getFrequencies());
+		writeObjects(session, "transfers", gtfsData.getTransfers());
 		
 		// Write out the ConfigRevision data
 		writeObject(session, gtfsData.getConfigRevision());
@@ -206,7 +249,8 @@ public class DbWriter {
 		} 
 
 		// Let user know what is going on
-		logger.info("Finished writing GTFS data to database . Took {} msec.",
-				timer.elapsedMsec());		
+		logger.info("Finished writing GTFS data to database . Took {} msec. "
+				+ "Time in msec by table: {}", timer.elapsedMsec(), 
+				tableTimesMsec);		
 	}
 }
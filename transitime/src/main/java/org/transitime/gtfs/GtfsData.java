@@ -29,12 +29,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Pattern;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
-import org.hibernate.SessionFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.config.DoubleConfigValue;
@@ -94,6 +99,8 @@ import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.MapKey;
 import org.transitime.utils.StringUtils;
 import org.transitime.utils.Time;
+import org.transitime.utils.csv.CsvBaseReader;
+import org.transitime.utils.threading.NamedThreadFactory;
 
 /**
  * Contains all the GTFS data processed into Java lists and such. Also combines
@@ -108,7 +115,8 @@ public class GtfsData {
 	private final String gtfsDirectoryName;
 	private final String supplementDir;
 
-	// The session used throughout the class
+	// The session used throughout the class. Null if processing the data
+	// just into memory without a database.
 	private final Session session;
 	
 	// Various params set by constructor
@@ -249,6 +257,16 @@ public class GtfsData {
 					+ "stops for the trips with the same headsign differ by "
 					+ "less than this amount.");
 	
+	private static IntegerConfigValue numThreads =
+			new IntegerConfigValue("transitime.gtfs.numThreads", 
+					4,
+					"Number of threads to use for processing the GTFS data. "
+					+ "Independent files, such as calendars, fares, "
+					+ "transfers, stops, and shapes, are read in "
+					+ "concurrently and the stops are matched to the shapes "
+					+ "for multiple trip patterns at once. If 1 then "
+					+ "everything is processed in order in a single thread.");
+	
 	// Logging
 	public static final Logger logger = 
 			LoggerFactory.getLogger(GtfsData.class);
@@ -289,6 +307,83 @@ public class GtfsData {
 			double maxTravelTimeSegmentLength,
 			boolean trimPathBeforeFirstStopOfTrip,
 			TitleFormatter titleFormatter) {
+		// Get the database session. Using one session for the whole process.
+		// Uses the DbWriter interceptor so that Hibernate knows that the
+		// config objects are new and doesn't query for each one.
+		this(HibernateUtils.getSessionFactory(projectId).withOptions()
+				.interceptor(DbWriter.createInterceptor()).openSession(),
+				configRev, notes, zipFileLastModifiedTime, shouldStoreNewRevs,
+				projectId, gtfsDirectoryName, supplementDir,
+				pathOffsetDistance, maxStopToPathDistance,
+				maxDistanceForEliminatingVertices, defaultWaitTimeAtStopMsec,
+				maxSpeedKph, maxTravelTimeSegmentLength,
+				trimPathBeforeFirstStopOfTrip, titleFormatter);
+	}
+
+	/**
+	 * Constructor for processing the GTFS data just into memory, without
+	 * using a database. Useful for when need the fully processed
+	 * configuration but there is no database, such as when benchmarking the
+	 * core system against a synthetic agency. Since there are no historic
+	 * travel times the travel times are determined from the schedule, and
+	 * processData() doesn't write anything to a database. The processed data
+	 * can then be made available to the core system via DbConfig.setData().
+	 * 
+	 * @param configRev
+	 * @param projectId
+	 * @param gtfsDirectoryName
+	 * @param pathOffsetDistance
+	 * @param maxStopToPathDistance
+	 * @param maxDistanceForEliminatingVertices
+	 * @param defaultWaitTimeAtStopMsec
+	 * @param maxSpeedKph
+	 * @param maxTravelTimeSegmentLength
+	 * @param trimPathBeforeFirstStopOfTrip
+	 * @param titleFormatter
+	 */
+	public GtfsData(int configRev, 
+			String projectId,
+			String gtfsDirectoryName, 
+			double pathOffsetDistance,
+			double maxStopToPathDistance,
+			double maxDistanceForEliminatingVertices,
+			int defaultWaitTimeAtStopMsec,
+			double maxSpeedKph,
+			double maxTravelTimeSegmentLength,
+			boolean trimPathBeforeFirstStopOfTrip,
+			TitleFormatter titleFormatter) {
+		this(null, configRev, null, null, false, projectId,
+				gtfsDirectoryName, null, pathOffsetDistance,
+				maxStopToPathDistance, maxDistanceForEliminatingVertices,
+				defaultWaitTimeAtStopMsec, maxSpeedKph,
+				maxTravelTimeSegmentLength, trimPathBeforeFirstStopOfTrip,
+				titleFormatter);
+	}
+
+	/**
+	 * Constructor that does the actual work.
+	 * 
+	 * @param session
+	 *            The database session to use, or null if processing the data
+	 *            just into memory
+	 */
+	private GtfsData(Session session,
+			int configRev, 
+			String notes,
+			Date zipFileLastModifiedTime,
+			boolean shouldStoreNewRevs,
+			String projectId,
+			String gtfsDirectoryName, 
+			String supplementDir, 
+			double pathOffsetDistance,
+			double maxStopToPathDistance,
+			double maxDistanceForEliminatingVertices,
+			int defaultWaitTimeAtStopMsec,
+			double maxSpeedKph,
+			double maxTravelTimeSegmentLength,
+			boolean trimPathBeforeFirstStopOfTrip,
+			TitleFormatter titleFormatter) {
+		this.session = session;
 		this.agencyId = projectId;
 		this.notes = notes;
 		this.zipFileLastModifiedTime = zipFileLastModifiedTime;
@@ -304,27 +399,29 @@ public class GtfsData {
 		this.trimPathBeforeFirstStopOfTrip = trimPathBeforeFirstStopOfTrip;
 		this.titleFormatter = titleFormatter;
 		
-		// Get the database session. Using one session for the whole process.
-		SessionFactory sessionFactory = 
-				HibernateUtils.getSessionFactory(getAgencyId());
-		session = sessionFactory.openSession();
-		
-		// Deal with the ActiveRevisions. First, store the original travel times
-		// rev since need it to read in old travel time data. 		
-		ActiveRevisions originalRevs = ActiveRevisions.get(session); 
-		originalTravelTimesRev = originalRevs.getTravelTimesRev();
-		
-		// If should store the new revs in database (make them active)
-		// then use the originalRevs read from db since they will be
-		// written out when session is closed
-		if (shouldStoreNewRevs) {
-			// Use the originalRevs object which was read from the db.
-			// When revs is updated then originalRevs is updated and
-			// Hibernate will store the changes to originalRevs to
-			// the db when the session is closed.
-			revs = originalRevs;
+		if (session != null) {
+			// Deal with the ActiveRevisions. First, store the original travel
+			// times rev since need it to read in old travel time data.
+			ActiveRevisions originalRevs = ActiveRevisions.get(session); 
+			originalTravelTimesRev = originalRevs.getTravelTimesRev();
+			
+			// If should store the new revs in database (make them active)
+			// then use the originalRevs read from db since they will be
+			// written out when session is closed
+			if (shouldStoreNewRevs) {
+				// Use the originalRevs object which was read from the db.
+				// When revs is updated then originalRevs is updated and
+				// Hibernate will store the changes to originalRevs to
+				// the db when the session is closed.
+				revs = originalRevs;
+			} else {
+				// Don't need to store new revs in db so use a transient
+				// object
+				revs = new ActiveRevisions();
+			}
 		} else {
-			// Don't need to store new revs in db so use a transient object
+			// Just processing into memory so there are no original revs
+			originalTravelTimesRev = -1;
 			revs = new ActiveRevisions();
 		}
 		
@@ -971,6 +1068,23 @@ public class GtfsData {
 		return processedGtfsStopTimesForTrip;
 	}
 	
+	/**
+	 * Adds the GtfsStopTime to the gtfsStopTimesForTripMap so later can
+	 * create Trips and TripPatterns.
+	 * 
+	 * @param gtfsStopTime
+	 */
+	private void addGtfsStopTimeForTrip(GtfsStopTime gtfsStopTime) {
+		String tripId = gtfsStopTime.getTripId();
+		List<GtfsStopTime> gtfsStopTimesForTrip = 
+				gtfsStopTimesForTripMap.get(tripId);
+		if (gtfsStopTimesForTrip == null) {
+			gtfsStopTimesForTrip = new ArrayList<GtfsStopTime>();
+			gtfsStopTimesForTripMap.put(tripId, gtfsStopTimesForTrip);
+		}
+		gtfsStopTimesForTrip.add(gtfsStopTime);
+	}
+	
 	/**
 	 * Reads the data from stop_times.txt and puts it into
 	 * gtfsStopTimesForTripMap map. Also processes the data to determine Trips
@@ -1007,70 +1121,19 @@ public class GtfsData {
 		// Let user know what is going on
 		logger.info("Processing stop_times.txt data...");
 		
-		// Read in the stop_times.txt GTFS data from file. Use a large initial
-		// array size so when reading in data won't have to constantly increase
-		// array size and do array copying. SFMTA for example has 1,100,000
-		// stop times so starting with a value of 500,000 certainly should be 
-		// reasonable.
-		GtfsStopTimesReader stopTimesReader = 
-				new GtfsStopTimesReader(gtfsDirectoryName);
-		Collection<GtfsStopTime> gtfsStopTimes = stopTimesReader.get(500000);
-
-		// Handle possible supplemental stop_times.txt file.
-		// Match the supplemental data to the main data using both
+		// Read in possible supplemental stop_times.txt file first so that it
+		// can be applied to the main stop_times.txt data as it is streamed
+		// in. Match the supplemental data to the main data using both
 		// trip_id and stop_id.
+		final Map<MapKey, GtfsStopTime> supplementMap =
+				new HashMap<MapKey, GtfsStopTime>();
 		if (supplementDir != null) {
 			GtfsStopTimesSupplementReader stopTimesSupplementReader =
 					new GtfsStopTimesSupplementReader(supplementDir);
-			List<GtfsStopTime> stopTimesSupplement =
-					stopTimesSupplementReader.get();
-			
-			if (stopTimesSupplement.size() > 0) {
-				// Put original shapes into map for quick searching
-				Map<MapKey, GtfsStopTime> map =
-						new HashMap<MapKey, GtfsStopTime>();
-				for (GtfsStopTime gtfsStopTime : gtfsStopTimes) {
-					MapKey key =
-							new MapKey(gtfsStopTime.getTripId(),
-									gtfsStopTime.getStopId());
-					map.put(key, gtfsStopTime);
-				}
-					
-				// Modify main GtfsShape objects using supplemental data
-				for (GtfsStopTime stopTimeSupplement : stopTimesSupplement) {
-					MapKey key =
-							new MapKey(stopTimeSupplement.getTripId(),
-									stopTimeSupplement.getStopId());
-
-					// Handle depending on whether the supplemental data 
-					// indicates the point is to be deleted, added, or modified
-					if (stopTimeSupplement.shouldDelete()) {
-						// The supplemental shape indicates that the point 
-						// should be deleted
-						GtfsStopTime oldStopTime = map.remove(key);
-						if (oldStopTime == null) {
-							logger.error("Supplement stop_times.txt file for "
-									+ "trip_id={} and stop_id={} specifies "
-									+ "that the stop time should be removed "
-									+ "but it is not actually configured in "
-									+ "the regular stop_times.txt file",
-									stopTimeSupplement.getTripId(), 
-									stopTimeSupplement.getStopId());
-						}
-					} else if (map.get(key) != null) {
-						// The stop time is already in map so modify it
-						GtfsStopTime combinedShape =
-								new GtfsStopTime(map.get(key),
-										stopTimeSupplement);
-						map.put(key, combinedShape);
-					} else {
-						// The stop time is not already in map so add it
-						map.put(key, stopTimeSupplement);
-					}
-				}
-				
-				// Use the new combined shapes
-				gtfsStopTimes = map.values();
+			for (GtfsStopTime stopTimeSupplement : 
+					stopTimesSupplementReader.get()) {
+				supplementMap.put(new MapKey(stopTimeSupplement.getTripId(),
+						stopTimeSupplement.getStopId()), stopTimeSupplement);
 			}
 		}
 		
@@ -1078,18 +1141,53 @@ public class GtfsData {
 		// and TripPatterns. Keyed by tripId
 		gtfsStopTimesForTripMap = new HashMap<String, List<GtfsStopTime>>();
 
-		// Put the GtfsStopTimes into the map
-		for (GtfsStopTime gtfsStopTime : gtfsStopTimes) {
-			// Add the GtfsStopTime to the map so later can create Trips and 
-			// TripPatterns
-			String tripId = gtfsStopTime.getTripId();
-			List<GtfsStopTime> gtfsStopTimesForTrip = 
-					gtfsStopTimesForTripMap.get(tripId);
-			if (gtfsStopTimesForTrip == null) {
-				gtfsStopTimesForTrip = new ArrayList<GtfsStopTime>();
-				gtfsStopTimesForTripMap.put(tripId, gtfsStopTimesForTrip);
+		// Read in the stop_times.txt GTFS data from file. For a large agency
+		// there can be many millions of stop times so stream them in,
+		// putting each one directly into the gtfsStopTimesForTripMap, 
+		// instead of first reading them all into a list. 
+		GtfsStopTimesReader stopTimesReader = 
+				new GtfsStopTimesReader(gtfsDirectoryName);
+		stopTimesReader.stream(
+				new CsvBaseReader.CsvObjectHandler<GtfsStopTime>() {
+					@Override
+					public void handleObject(GtfsStopTime gtfsStopTime) {
+						// Handle supplemental data for the stop time
+						if (!supplementMap.isEmpty()) {
+							GtfsStopTime stopTimeSupplement = 
+									supplementMap.remove(new MapKey(
+											gtfsStopTime.getTripId(),
+											gtfsStopTime.getStopId()));
+							if (stopTimeSupplement != null) {
+								// The supplemental data indicates that the 
+								// stop time should be deleted
+								if (stopTimeSupplement.shouldDelete())
+									return;
+								
+								// Modify the stop time
+								gtfsStopTime = new GtfsStopTime(gtfsStopTime,
+										stopTimeSupplement);
+							}
+						}
+						
+						addGtfsStopTimeForTrip(gtfsStopTime);
+					}
+				});
+		
+		// Handle the supplemental stop times that weren't for stop times in
+		// the main stop_times.txt file
+		for (GtfsStopTime stopTimeSupplement : supplementMap.values()) {
+			if (stopTimeSupplement.shouldDelete()) {
+				logger.error("Supplement stop_times.txt file for "
+						+ "trip_id={} and stop_id={} specifies "
+						+ "that the stop time should be removed "
+						+ "but it is not actually configured in "
+						+ "the regular stop_times.txt file",
+						stopTimeSupplement.getTripId(), 
+						stopTimeSupplement.getStopId());
+			} else {
+				// The stop time is not in main file so add it
+				addGtfsStopTimeForTrip(stopTimeSupplement);
 			}
-			gtfsStopTimesForTrip.add(gtfsStopTime);
 		}
 		
 		// Go through the stop times for each tripId. Sort them and look for
@@ -1770,25 +1868,18 @@ public class GtfsData {
 	}
 	
 	/**
-	 * Reads in shapes.txt file and processes the information into 
-	 * StopPath objects. Using the term "StopPath" instead of "Shape" to
-	 * be more descriptive of what the data is really for. 
+	 * Reads in shapes.txt file, combining it with the supplemental
+	 * shapes.txt file if there is one. Doesn't depend on any other data so
+	 * can be done concurrently with processing the other files.
+	 * 
+	 * @return the shapes
 	 */
-	private void processPaths() {
-		// Make sure needed data is already read in. This method 
-		// converts the shapes into Paths such that each path ends
-		// at a stop. Therefore need to have read in stop info first.
-		if (stopsMap == null || stopsMap.isEmpty()) {
-			logger.error("processStopData() must be called before " + 
-					"GtfsData.processPaths() is. Exiting.");
-			System.exit(-1);
-		}
-
+	private Collection<GtfsShape> readShapes() {
 		// For logging how long things take
 		IntervalTimer timer = new IntervalTimer();
 
 		// Let user know what is going on
-		logger.info("Processing shapes.txt data...");
+		logger.info("Reading shapes.txt data...");
 		
 		// Read in the shapes.txt GTFS data from file
 		GtfsShapesReader shapesReader = new GtfsShapesReader(gtfsDirectoryName);
@@ -1850,6 +1941,37 @@ public class GtfsData {
 			}
 		}
 		
+		// Let user know what is going on
+		logger.info("Finished reading shapes.txt data. Took {} msec.",
+				timer.elapsedMsec());		
+
+		return gtfsShapes;
+	}
+	
+	/**
+	 * Processes the shapes read in from the shapes.txt file into StopPath
+	 * objects. Using the term "StopPath" instead of "Shape" to be more
+	 * descriptive of what the data is really for.
+	 * 
+	 * @param gtfsShapes
+	 *            The shapes, as read in by readShapes()
+	 */
+	private void processPaths(Collection<GtfsShape> gtfsShapes) {
+		// Make sure needed data is already read in. This method 
+		// converts the shapes into Paths such that each path ends
+		// at a stop. Therefore need to have read in stop info first.
+		if (stopsMap == null || stopsMap.isEmpty()) {
+			logger.error("processStopData() must be called before " + 
+					"GtfsData.processPaths() is. Exiting.");
+			System.exit(-1);
+		}
+
+		// For logging how long things take
+		IntervalTimer timer = new IntervalTimer();
+
+		// Let user know what is going on
+		logger.info("Processing shapes.txt data...");
+		
 		// Process all the shapes into stopPaths
 		StopPathProcessor pathProcessor = 
 				new StopPathProcessor(
@@ -1859,7 +1981,8 @@ public class GtfsData {
 						pathOffsetDistance,
 						maxStopToPathDistance, 
 						maxDistanceForEliminatingVertices,
-						trimPathBeforeFirstStopOfTrip);
+						trimPathBeforeFirstStopOfTrip,
+						numThreads.getValue());
 		pathProcessor.processPathSegments();
 						
 		// Let user know what is going on
@@ -2602,6 +2725,48 @@ public class GtfsData {
 		return matches;
 	}
 	
+	/**
+	 * Runs the task in the executor. If the executor is null then the task is
+	 * run right away in the calling thread.
+	 * 
+	 * @param executor
+	 *            The executor, or null if using just the calling thread
+	 * @param task
+	 * @return Future for getting the result of the task
+	 */
+	private static <T> Future<T> submit(ExecutorService executor,
+			Callable<T> task) {
+		FutureTask<T> futureTask = new FutureTask<T>(task);
+		if (executor == null)
+			futureTask.run();
+		else
+			executor.execute(futureTask);
+		return futureTask;
+	}
+	
+	/**
+	 * Waits for the task to complete. The task is done so its results,
+	 * such as the members it set, can then be safely used by the calling
+	 * thread.
+	 * 
+	 * @param future
+	 * @return the result of the task
+	 * @throws RuntimeException
+	 *             if the task threw an exception or was interrupted
+	 */
+	private static <T> T waitFor(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while processing GTFS "
+					+ "data", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Exception while processing GTFS "
+					+ "data", e.getCause());
+		}
+	}
+	
 	/**
 	 * Does all the work. Processes the data and store it in internal structures
 	 */
@@ -2613,27 +2778,84 @@ public class GtfsData {
 		logger.info("Processing GTFS data from {} ...",
 				gtfsDirectoryName);
 
-		// Note. The order of how these are processed in important because
-		// some data sets rely on others in order to be fully processed.
-		// If the order is wrong then the methods below will log an error and
-		// exit.
-		processRouteData();
-		processStopData();		
-		processCalendarDates();
-		processCalendars();
-		processServiceIds();
-		processTripsData();	
-		processFrequencies();
-		processStopTimesData();		
-		processRouteMaps(); 
-		processBlocks();
-		processPaths();
-		processAgencyData();
-		
-		// Following are simple objects that don't require combining tables
-		processFareAttributes();
-		processFareRules();
-		processTransfers();
+		// The files that don't depend on other data are processed
+		// concurrently by the executor. If only using a single thread then
+		// the executor is null and submit() simply runs the task right away.
+		ExecutorService executor = numThreads.getValue() > 1 ? 
+				Executors.newFixedThreadPool(numThreads.getValue(), 
+						new NamedThreadFactory("gtfsData")) : null;
+		try {
+			// Following are simple objects that don't require combining 
+			// tables
+			Future<Void> fareAttributesFuture = submit(executor, 
+					new Callable<Void>() {
+						@Override
+						public Void call() {
+							processFareAttributes();
+							return null;
+						}
+					});
+			Future<Void> transfersFuture = submit(executor, 
+					new Callable<Void>() {
+						@Override
+						public Void call() {
+							processTransfers();
+							return null;
+						}
+					});
+			
+			// Reading in the shapes can take a while so start right away
+			Future<Collection<GtfsShape>> shapesFuture = submit(executor, 
+					new Callable<Collection<GtfsShape>>() {
+						@Override
+						public Collection<GtfsShape> call() {
+							return readShapes();
+						}
+					});
+			
+			// The calendars share the date formatter, which is not thread
+			// safe, so process them in a single task
+			Future<Void> calendarsFuture = submit(executor, 
+					new Callable<Void>() {
+						@Override
+						public Void call() {
+							processCalendarDates();
+							processCalendars();
+							processServiceIds();
+							return null;
+						}
+					});
+			Future<Void> stopsFuture = submit(executor, 
+					new Callable<Void>() {
+						@Override
+						public Void call() {
+							processStopData();
+							return null;
+						}
+					});
+			
+			// Note. The order of how these are processed in important 
+			// because some data sets rely on others in order to be fully 
+			// processed. If the order is wrong then the methods below will
+			// log an error and exit.
+			processRouteData();
+			waitFor(calendarsFuture);
+			processTripsData();	
+			processFrequencies();
+			waitFor(stopsFuture);
+			processStopTimesData();		
+			processRouteMaps(); 
+			processBlocks();
+			processPaths(waitFor(shapesFuture));
+			processAgencyData();
+			
+			waitFor(fareAttributesFuture);
+			processFareRules();
+			waitFor(transfersFuture);
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+		}
 		
 		// Sometimes will be using a partial configuration. For example, for 
 		// MBTA commuter rail only want to use the trips defined for 
@@ -2665,6 +2887,13 @@ public class GtfsData {
 		gtfsTripsMap = null;
 		gtfsStopTimesForTripMap = null;
 		
+		// If just processing into memory then done
+		if (session == null) {
+			logger.info("Finished processing GTFS data from {} into memory. "
+					+ "Took {} msec.", gtfsDirectoryName, timer.elapsedMsec());
+			return;
+		}
+		
 		// Now that have read in all the data into collections output it
 		// to database.
 		try {
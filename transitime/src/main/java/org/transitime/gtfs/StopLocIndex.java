@@ -0,0 +1,298 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.gtfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.Route;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * A grid based spatial index of the stops of all of the trip patterns of a
+ * configuration. Used by StopsByLoc so that finding the stops near a
+ * location only needs to look at the grid cells near the location instead
+ * of at every stop of every trip pattern. The index is immutable once
+ * created so it can be used by multiple threads at once.
+ */
+class StopLocIndex {
+
+	// The DbConfig and configRev that the index was created for. So can tell
+	// if index needs to be recreated because the configuration has changed.
+	private final DbConfig dbConfig;
+	private final int configRev;
+
+	// The stops, keyed on the grid cell
+	private final Map<Long, List<StopEntry>> stopsByCell =
+			new HashMap<Long, List<StopEntry>>();
+
+	// Size of the grid cells in degrees
+	private final double cellLatDegrees;
+	private final double cellLonDegrees;
+
+	// Size of the grid cells in meters. Only approximate for longitude since
+	// cellLonDegrees is based on the average latitude of the stops. Should be
+	// on the order of the distances used when querying for nearby stops.
+	private static final double CELL_SIZE_METERS = 400.0;
+
+	// For converting meters to degrees
+	private static final double METERS_PER_DEGREE = 110996.45;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(StopLocIndex.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * A trip pattern along with its route and direction. The indices
+	 * indicate the order of the route, direction, and trip pattern in the
+	 * configuration so that results can be returned in the same order as
+	 * when looking at every route.
+	 */
+	static class TripPatternEntry {
+		final TripPattern tripPattern;
+		final int routeIndex;
+		final int directionIndex;
+		final int tripPatternIndex;
+
+		private TripPatternEntry(TripPattern tripPattern, int routeIndex,
+				int directionIndex, int tripPatternIndex) {
+			this.tripPattern = tripPattern;
+			this.routeIndex = routeIndex;
+			this.directionIndex = directionIndex;
+			this.tripPatternIndex = tripPatternIndex;
+		}
+
+		/**
+		 * @return true if other is for the same route and direction
+		 */
+		boolean sameDirection(TripPatternEntry other) {
+			return routeIndex == other.routeIndex
+					&& directionIndex == other.directionIndex;
+		}
+	}
+
+	/**
+	 * A stop of a trip pattern
+	 */
+	private static class StopEntry {
+		private final Location location;
+		private final TripPatternEntry tripPatternEntry;
+
+		private StopEntry(Location location, TripPatternEntry tripPatternEntry) {
+			this.location = location;
+			this.tripPatternEntry = tripPatternEntry;
+		}
+	}
+
+	/**
+	 * For ordering the trip patterns the same way as in the configuration
+	 */
+	private static final Comparator<TripPatternEntry> configOrderComparator =
+			new Comparator<TripPatternEntry>() {
+				@Override
+				public int compare(TripPatternEntry e1, TripPatternEntry e2) {
+					if (e1.routeIndex != e2.routeIndex)
+						return e1.routeIndex < e2.routeIndex ? -1 : 1;
+					if (e1.directionIndex != e2.directionIndex)
+						return e1.directionIndex < e2.directionIndex ? -1 : 1;
+					if (e1.tripPatternIndex != e2.tripPatternIndex)
+						return e1.tripPatternIndex < e2.tripPatternIndex ? -1 : 1;
+					return 0;
+				}
+			};
+
+	/**
+	 * Creates the index for all of the stops of all of the trip patterns of
+	 * all of the routes of the configuration.
+	 *
+	 * @param dbConfig
+	 */
+	StopLocIndex(DbConfig dbConfig) {
+		IntervalTimer timer = new IntervalTimer();
+		this.dbConfig = dbConfig;
+		this.configRev = dbConfig.getConfigRev();
+
+		// Determine the size of the cells. Longitude degrees are smaller
+		// than latitude degrees away from the equator so use the average
+		// latitude of the stops to determine size of a longitude cell.
+		List<Route> routes = dbConfig.getRoutes();
+		double latSum = 0.0;
+		int numStops = 0;
+		for (Route route : routes) {
+			for (String directionId : route.getDirectionIds()) {
+				for (TripPattern tripPattern : 
+						route.getTripPatterns(directionId)) {
+					for (StopPath stopPath : tripPattern.getStopPaths()) {
+						latSum += stopPath.getStopLocation().getLat();
+						++numStops;
+					}
+				}
+			}
+		}
+		double avgLat = numStops > 0 ? latSum / numStops : 0.0;
+		cellLatDegrees = CELL_SIZE_METERS / METERS_PER_DEGREE;
+		cellLonDegrees = CELL_SIZE_METERS
+				/ (METERS_PER_DEGREE * Math.cos(Math.toRadians(avgLat)));
+
+		// Add all of the stops to the grid
+		for (int routeIdx = 0; routeIdx < routes.size(); ++routeIdx) {
+			Route route = routes.get(routeIdx);
+			List<String> directionIds = route.getDirectionIds();
+			for (int dirIdx = 0; dirIdx < directionIds.size(); ++dirIdx) {
+				List<TripPattern> tripPatterns =
+						route.getTripPatterns(directionIds.get(dirIdx));
+				for (int tpIdx = 0; tpIdx < tripPatterns.size(); ++tpIdx) {
+					TripPattern tripPattern = tripPatterns.get(tpIdx);
+					TripPatternEntry tripPatternEntry = new TripPatternEntry(
+							tripPattern, routeIdx, dirIdx, tpIdx);
+					for (StopPath stopPath : tripPattern.getStopPaths()) {
+						Location loc = stopPath.getStopLocation();
+						Long key = cellKey(latCell(loc.getLat()),
+								lonCell(loc.getLon()));
+						List<StopEntry> stopsForCell = stopsByCell.get(key);
+						if (stopsForCell == null) {
+							stopsForCell = new ArrayList<StopEntry>(4);
+							stopsByCell.put(key, stopsForCell);
+						}
+						stopsForCell.add(new StopEntry(loc, tripPatternEntry));
+					}
+				}
+			}
+		}
+
+		logger.info("Created StopLocIndex of {} stops of trip patterns in {} "
+				+ "grid cells. Took {} msec.", numStops, stopsByCell.size(),
+				timer.elapsedMsec());
+	}
+
+	/**
+	 * @param dbConfig
+	 * @return true if the index was created for the current configuration
+	 *         of the DbConfig
+	 */
+	boolean isFor(DbConfig dbConfig) {
+		return this.dbConfig == dbConfig
+				&& configRev == dbConfig.getConfigRev();
+	}
+
+	private int latCell(double lat) {
+		return (int) Math.floor(lat / cellLatDegrees);
+	}
+
+	private int lonCell(double lon) {
+		return (int) Math.floor(lon / cellLonDegrees);
+	}
+
+	private static Long cellKey(int latCell, int lonCell) {
+		return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns the trip patterns that have at least one stop within
+	 * maxDistance of the location. The trip patterns are in the same order
+	 * as the routes, directions, and trip patterns of the configuration.
+	 *
+	 * @param loc
+	 * @param maxDistance
+	 * @return List of trip patterns near the location. Will not be null.
+	 */
+	List<TripPatternEntry> getTripPatternsNear(Location loc,
+			double maxDistance) {
+		// Determine which cells need to be looked at. Add an extra cell on
+		// each side so that don't miss any stops due to how the distances
+		// are approximated. The width of a longitude cell in meters depends
+		// on the latitude so it is determined for the latitude of the
+		// location instead of using the average latitude of the agency.
+		// Otherwise for an agency that covers a large range of latitudes
+		// could miss stops far from the average latitude.
+		long latCellsAway = (long) Math.ceil(maxDistance / CELL_SIZE_METERS) + 1;
+		double lonCellMeters = cellLonDegrees * METERS_PER_DEGREE
+				* Math.cos(Math.toRadians(loc.getLat()));
+		long lonCellsAway = lonCellMeters > 0.0 ? 
+				(long) Math.ceil(maxDistance / lonCellMeters) + 1 : 
+				Integer.MAX_VALUE;
+		int centerLatCell = latCell(loc.getLat());
+		int centerLonCell = lonCell(loc.getLon());
+
+		// For determining whether trip pattern already added to results.
+		// Uses identity since the TripPatternEntry objects are unique.
+		Set<TripPatternEntry> added = Collections.newSetFromMap(
+				new IdentityHashMap<TripPatternEntry, Boolean>());
+		List<TripPatternEntry> results = new ArrayList<TripPatternEntry>();
+		double cellsToLookAt = 
+				(2.0 * latCellsAway + 1) * (2.0 * lonCellsAway + 1);
+		if (cellsToLookAt > stopsByCell.size()) {
+			// Distance is so large that simpler to look at all of the cells
+			for (List<StopEntry> stopsForCell : stopsByCell.values())
+				addTripPatternsNear(stopsForCell, loc, maxDistance, added,
+						results);
+		} else {
+			for (long latCell = centerLatCell - latCellsAway;
+					latCell <= centerLatCell + latCellsAway; ++latCell) {
+				for (long lonCell = centerLonCell - lonCellsAway;
+						lonCell <= centerLonCell + lonCellsAway; ++lonCell) {
+					List<StopEntry> stopsForCell = stopsByCell.get(
+							cellKey((int) latCell, (int) lonCell));
+					if (stopsForCell != null)
+						addTripPatternsNear(stopsForCell, loc, maxDistance,
+								added, results);
+				}
+			}
+		}
+
+		Collections.sort(results, configOrderComparator);
+		return results;
+	}
+
+	/**
+	 * Adds to results the trip patterns of the stops that are within
+	 * maxDistance of the location, if they are not already in results.
+	 *
+	 * @param stops
+	 * @param loc
+	 * @param maxDistance
+	 * @param added
+	 *            The trip patterns already in results
+	 * @param results
+	 */
+	private static void addTripPatternsNear(List<StopEntry> stops,
+			Location loc, double maxDistance, Set<TripPatternEntry> added,
+			List<TripPatternEntry> results) {
+		for (StopEntry stopEntry : stops) {
+			// Check whether already added first since that is cheaper than
+			// determining the distance
+			if (!added.contains(stopEntry.tripPatternEntry)
+					&& stopEntry.location.distance(loc) <= maxDistance) {
+				added.add(stopEntry.tripPatternEntry);
+				results.add(stopEntry.tripPatternEntry);
+			}
+		}
+	}
+}
@@ -22,6 +22,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +38,7 @@ import org.transitime.db.structs.Vector;
 import org.transitime.gtfs.gtfsStructs.GtfsShape;
 import org.transitime.utils.Geo;
 import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.threading.NamedThreadFactory;
 
 /**
  * Part of GtfsData class. Processes the shapes.txt data and converts
@@ -51,6 +57,7 @@ public class StopPathProcessor {
 	private final double maxStopToPathDistance;
 	private final double maxDistanceForEliminatingVertices;
 	private final boolean trimPathBeforeFirstStopOfTrip;
+	private final int numThreads;
 	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(StopPathProcessor.class);
@@ -75,6 +82,9 @@ public class StopPathProcessor {
 	 *            trip. This can be useful because sometimes a single shape is
 	 *            used for multiple trip patterns or the shapes simply have some
 	 *            problem points at the beginning (like sfmta 21-Hayes.
+	 * @param numThreads
+	 *            How many threads to use for matching the stops to the
+	 *            shapes. If 1 then all done in the calling thread.
 	 */
 	public StopPathProcessor(Collection<GtfsShape> gtfsShapes, 
 			Map<String, Stop> stopsMap, 
@@ -82,7 +92,8 @@ public class StopPathProcessor {
 			double offsetDistance,
 			double maxStopToPathDistance,
 			double maxDistanceForEliminatingVertices,
-			boolean trimPathBeforeFirstStopOfTrip) {
+			boolean trimPathBeforeFirstStopOfTrip,
+			int numThreads) {
 		// Create a GtfsShapes Map where can look up
 		// GtfsShapes by shapeId.
 		gtfsShapesMap = new HashMap<String, List<GtfsShape>>(gtfsShapes.size());
@@ -108,6 +119,7 @@ public class StopPathProcessor {
 		this.maxStopToPathDistance = maxStopToPathDistance;
 		this.maxDistanceForEliminatingVertices = maxDistanceForEliminatingVertices;
 		this.trimPathBeforeFirstStopOfTrip = trimPathBeforeFirstStopOfTrip;
+		this.numThreads = numThreads;
 	}
 	
 	/**
@@ -605,7 +617,7 @@ public class StopPathProcessor {
 	}
 
 	/**
-	 * Determines the path segments for each trip pattern. If shapes.txt
+	 * Determines the path segments for the trip pattern. If shapes.txt
 	 * GTFS file has a shape for the trip pattern then that data is used. 
 	 * Otherwise will simply connect the stops with straight line stopPaths.
 	 * 
@@ -618,35 +630,80 @@ public class StopPathProcessor {
 	 * stop and the path ends at the stop. The path segments are also
 	 * filtered so that segments that are too short or too long are 
 	 * adjusted.
+	 * 
+	 * @param tripPattern
+	 */
+	private void processPathSegments(TripPattern tripPattern) {
+		// Determine the GtfsShape associated with the TripPattern
+		String shapeId = tripPattern.getShapeId();
+		List<GtfsShape> gtfsShapesForTripPattern = gtfsShapesMap.get(shapeId);
+		
+		// If no shape defined then simply connect the stops
+		if (gtfsShapesForTripPattern == null) {
+			// Create stopPaths by connecting the stops
+			connectStopsSinceNoShapes(tripPattern);
+		} else {
+			// Determine list of shapes associated with the trip pattern.
+			// The stopPaths are offset to the right by the offsetDistance
+			// if needed. This is useful if the shapes.txt data is street
+			// centerline data.
+			List<Location> offsetLocations = 
+					getOffsetLocations(gtfsShapesMap.get(shapeId));
+					
+			// Create stopPaths by finding best match to shapes
+			determinePathSegmentsMatchingStopsToShapes(offsetLocations, 
+					tripPattern);
+		}
+	}
+	
+	/**
+	 * Determines the path segments for each trip pattern. See
+	 * processPathSegments(TripPattern).
+	 * <p>
+	 * Matching the stops to the shapes is expensive for a large agency.
+	 * Since each trip pattern has its own StopPaths, and the shapes and
+	 * stops are only read, the trip patterns can be processed in parallel
+	 * using numThreads threads. The results are the same no matter which
+	 * order the trip patterns are processed in.
 	 */
 	public void processPathSegments() {
 		// For logging how long things take
 		IntervalTimer timer = new IntervalTimer();
 
 		// Let user know what is going on
-		logger.info("Processing and filtering path segment data...");
+		logger.info("Processing and filtering path segment data using {} "
+				+ "threads...", numThreads);
 		
 		// Need to process stopPaths for every trip pattern...
-		for (TripPattern tripPattern : tripPatterns) {
-			// Determine the GtfsShape associated with the TripPattern
-			String shapeId = tripPattern.getShapeId();
-			List<GtfsShape> gtfsShapesForTripPattern = gtfsShapesMap.get(shapeId);
+		if (numThreads <= 1) {
+			for (TripPattern tripPattern : tripPatterns)
+				processPathSegments(tripPattern);
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(
+					numThreads, new NamedThreadFactory("stopPathProcessor"));
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (final TripPattern tripPattern : tripPatterns) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						processPathSegments(tripPattern);
+						return null;
+					}
+				}));
+			}
 			
-			// If no shape defined then simply connect the stops
-			if (gtfsShapesForTripPattern == null) {
-				// Create stopPaths by connecting the stops
-				connectStopsSinceNoShapes(tripPattern);
-			} else {
-				// Determine list of shapes associated with the trip pattern.
-				// The stopPaths are offset to the right by the offsetDistance
-				// if needed. This is useful if the shapes.txt data is street
-				// centerline data.
-				List<Location> offsetLocations = 
-						getOffsetLocations(gtfsShapesMap.get(shapeId));
-						
-				// Create stopPaths by finding best match to shapes
-				determinePathSegmentsMatchingStopsToShapes(offsetLocations, 
-						tripPattern);
+			try {
+				for (Future<Void> future : futures)
+					future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while processing "
+						+ "path segments", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Exception while processing "
+						+ "path segments", e.getCause());
+			} finally {
+				executor.shutdownNow();
 			}
 		}
 		
@@ -23,7 +23,6 @@ import java.util.List;
 import org.transitime.applications.Core;
 import org.transitime.core.dataCache.PredictionDataCache;
 import org.transitime.db.structs.Location;
-import org.transitime.db.structs.Route;
 import org.transitime.db.structs.StopPath;
 import org.transitime.db.structs.TripPattern;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
@@ -44,6 +43,10 @@ public class StopsByLoc {
 	// time to get there plus less travel time on the bus. 
 	private final static double BIAS_TO_NEXT_STOP_OFFSET = 40.0;
 	
+	// Spatial index of the stops for the current configuration. Created 
+	// when first needed.
+	private static volatile StopLocIndex stopLocIndex = null;
+	
 	/********************** Member Functions **************************/
 
 	/**
@@ -175,10 +178,65 @@ public class StopsByLoc {
 		return true;
 	}
 	
+	/**
+	 * Returns the spatial index of the stops for the current configuration.
+	 * Creates it if it doesn't exist yet or if the configuration has
+	 * changed.
+	 * 
+	 * @param dbConfig
+	 * @return the index
+	 */
+	private static StopLocIndex getStopLocIndex(DbConfig dbConfig) {
+		StopLocIndex index = stopLocIndex;
+		if (index == null || !index.isFor(dbConfig)) {
+			synchronized (StopsByLoc.class) {
+				index = stopLocIndex;
+				if (index == null || !index.isFor(dbConfig)) {
+					index = new StopLocIndex(dbConfig);
+					stopLocIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * Determines the best stop for a direction of a route from the closest
+	 * stops of each of its trip patterns and adds it to the results.
+	 * 
+	 * @param matchesForDirection
+	 * @param results
+	 */
+	private static void addBestStopForDirection(
+			List<StopInfo> matchesForDirection, List<StopInfo> results) {
+		if (matchesForDirection.size() >= 1 
+				&& matchesAreForSameStop(matchesForDirection)) {
+			// There is just a single stop so use it
+			results.add(matchesForDirection.get(0));
+		} else if (matchesForDirection.size() > 1) {
+			// Matches are for different stops so determine best stop 
+			// based on predictions
+			StopInfo stopInfo = determineBestStopBasedOnPredictions(
+					matchesForDirection);
+			
+			if (stopInfo != null)
+				results.add(stopInfo);
+		}
+	}
+	
 	/**
 	 * Gets list of stops that are within maxDistance of the specified location.
-	 * Looks at every trip pattern so can deal with complicated cases such as
-	 * routes with school service stops just for part of the day.
+	 * Looks at every trip pattern that has a stop within maxDistance so can
+	 * deal with complicated cases such as routes with school service stops
+	 * just for part of the day. Uses a spatial index of the stops so that only
+	 * the trip patterns near the location need to be looked at.
+	 * <p>
+	 * Need to look at trip patterns separately since don't just want to match
+	 * to a closest stop that happens to not be in service at the time (such
+	 * as a special school stop) and then not get predictions for the route.
+	 * So for each direction for each trip pattern find closest stop. Then
+	 * look at predictions for those stops. Use the stop that provides the
+	 * most useful predictions.
 	 * 
 	 * @param loc
 	 * @param maxDistance
@@ -188,60 +246,31 @@ public class StopsByLoc {
 		// For returning the results
 		List<StopInfo> results = new ArrayList<StopInfo>();
 		
-		// Find closest stops for every route...
+		// Determine the trip patterns that are near the location. They are
+		// ordered by route and direction so can handle each direction at once.
 		DbConfig dbConfig = Core.getInstance().getDbConfig();
-		for (Route route : dbConfig.getRoutes()) {
-			// If the specified location is not within the distance of the route
-			// then can skip this route
-			if (!route.getExtent().isWithinDistance(loc, maxDistance))
-				continue;
-			
-			// Need to look at trip patterns separately since don't just want
-			// to match to a closest stop that happens to not be in service
-			// at the time (such as a special school stop) and then not get
-			// predictions for the route. So for each direction for each
-			// trip pattern find closest stop. Then look at predictions
-			// for those stops. Use the stop that provides the most useful
-			// predictions.
-			for (String directionId : route.getDirectionIds()) {
-				// So can look at matches for all trip patterns for direction
-				// at once.
-				List<StopInfo> matchesForDirection = 
-						new ArrayList<StopInfo>();
-				
-				List<TripPattern> tripPatternsForDirection = 
-						route.getTripPatterns(directionId);
-				for (TripPattern tripPattern : tripPatternsForDirection) {
-					// Determine the closest stop for the trip pattern
-					StopInfo stopInfo = 
-							determineClosestStop(tripPattern, loc, maxDistance);
-					
-					// If valid stop found then go on to next trip pattern
-					if (stopInfo == null)
-						continue;
-					
-					// So can look at matches for all trip patterns for direction
-					// at once.					
-					matchesForDirection.add(stopInfo);
-				}
-				
-				// Now that have matches for all trip patterns for the direction
-				// need to determine which is the best one.
-				if (matchesForDirection.size() >= 1 
-						&& matchesAreForSameStop(matchesForDirection)) {
-					// There is just a single stop so use it
-					results.add(matchesForDirection.get(0));
-				} else if (matchesForDirection.size() > 1) {
-					// Matches are for different stops so determine best stop 
-					// based on predictions
-					StopInfo stopInfo = determineBestStopBasedOnPredictions(
-							matchesForDirection);
-					
-					if (stopInfo != null)
-						results.add(stopInfo);
-				}
+		List<StopLocIndex.TripPatternEntry> tripPatternEntries = 
+				getStopLocIndex(dbConfig).getTripPatternsNear(loc, maxDistance);
+		
+		// So can look at matches for all trip patterns for direction at once
+		List<StopInfo> matchesForDirection = new ArrayList<StopInfo>();
+		StopLocIndex.TripPatternEntry previousEntry = null;
+		for (StopLocIndex.TripPatternEntry entry : tripPatternEntries) {
+			// If on to a new direction then determine best stop for the
+			// previous one
+			if (previousEntry != null && !entry.sameDirection(previousEntry)) {
+				addBestStopForDirection(matchesForDirection, results);
+				matchesForDirection.clear();
 			}
+			previousEntry = entry;
+			
+			// Determine the closest stop for the trip pattern
+			StopInfo stopInfo = 
+					determineClosestStop(entry.tripPattern, loc, maxDistance);
+			if (stopInfo != null)
+				matchesForDirection.add(stopInfo);
 		}
+		addBestStopForDirection(matchesForDirection, results);
 		
 		// Ah, done
 		return results;
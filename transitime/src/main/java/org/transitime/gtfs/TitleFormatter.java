@@ -22,8 +22,10 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
@@ -90,10 +92,11 @@ public class TitleFormatter {
 	// It can be nice to know which regexs actually make a difference
 	// so that if one isn't doing anything anymore it could be removed
 	// and processing could then be sped up a bit since doing a 
-	// regex for each title is expensive.
+	// regex for each title is expensive. A concurrent set since titles
+	// can be processed by multiple threads at once.
 	private boolean logUnusedRegexs;
-	private HashSet<String> regexesThatMadeDifference = 
-			new HashSet<String>();
+	private Set<String> regexesThatMadeDifference = 
+			Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	
 	private List<RegexInfo> regexReplaceList = 
 			new ArrayList<RegexInfo>();
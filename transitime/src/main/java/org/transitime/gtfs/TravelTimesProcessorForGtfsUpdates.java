@@ -17,6 +17,7 @@
 package org.transitime.gtfs;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -699,6 +700,9 @@ public class TravelTimesProcessorForGtfsUpdates {
 	 * default travel times are created by looking at the schedule
 	 * times and interpolating.
 	 * 
+	 * @param session
+	 *            For reading existing travel times. Null if there is no
+	 *            database.
 	 * @param gtfsData
 	 */
 	public void process(Session session, GtfsData gtfsData) {
@@ -722,10 +726,13 @@ public class TravelTimesProcessorForGtfsUpdates {
 		logger.info("Processing travel time data...");
 
 		// Read existing data from db and put into travelTimesFromDbMap member.
-		// Map is keyed on trip pattern ID.
+		// Map is keyed on trip pattern ID. If there is no session because
+		// processing the data just into memory then there is no existing
+		// data.
 		Map<String, List<TravelTimesForTrip>> travelTimesFromDbMap = 
-				TravelTimesForTrip.getTravelTimesForTrips(session, 
-						originalTravelTimesRev);
+				session != null ? TravelTimesForTrip.getTravelTimesForTrips(
+						session, originalTravelTimesRev)
+						: new HashMap<String, List<TravelTimesForTrip>>();
 
 		int originalNumberTravelTimes =
 				numberOfTravelTimes(travelTimesFromDbMap);
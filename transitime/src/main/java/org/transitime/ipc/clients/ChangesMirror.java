@@ -0,0 +1,235 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.clients;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.ipc.data.IpcChanges;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * A client side mirror of data from the core system, such as vehicles or
+ * predictions, that is kept up to date by requesting only the changes since
+ * the last update via RMI. This way a client such as the API that frequently
+ * needs all of the data doesn't have the core system serialize all of the
+ * data for each request.
+ * <p>
+ * The data is grouped by key, such as vehicle ID or route/stop. Changes for a
+ * key replace all of the data for that key. The mirror is updated when data
+ * is requested and it is older than transitime.ipc.changesMirrorMaxAgeMsec.
+ * Data that has expired, such as predictions for times that have passed, is
+ * removed when the mirror is updated since the core system doesn't
+ * necessarily report a change for it.
+ *
+ * @param <T>
+ *            Type of the data, such as IpcVehicleComplete
+ */
+public abstract class ChangesMirror<T extends Serializable> {
+
+	protected final String agencyId;
+
+	// The mirrored data, keyed on the key of the data. Replaced when all the
+	// data is received so that readers never see a partial mirror.
+	private volatile Map<String, List<T>> dataByKeyMap =
+			new ConcurrentHashMap<String, List<T>>();
+
+	// From the last IpcChanges received. Used to request the next changes.
+	private long trackerId = 0;
+	private long sequence = 0;
+
+	// When mirror last updated. So can determine if need to update again.
+	private volatile long lastUpdateTime = 0;
+
+	private static BooleanConfigValue useChangesMirrors =
+			new BooleanConfigValue("transitime.ipc.useChangesMirrors",
+					false,
+					"If true then clients such as the GTFS-realtime feeds "
+					+ "keep a local mirror of the vehicles and predictions "
+					+ "that is updated by requesting only the changes from "
+					+ "the core system instead of all of the data.");
+
+	private static IntegerConfigValue changesMirrorMaxAgeMsec =
+			new IntegerConfigValue("transitime.ipc.changesMirrorMaxAgeMsec",
+					1000,
+					"How old in msec the data in a changes mirror can be "
+					+ "before it is updated when the data is requested.");
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ChangesMirror.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param agencyId
+	 */
+	protected ChangesMirror(String agencyId) {
+		this.agencyId = agencyId;
+	}
+
+	/**
+	 * @return true if clients should use mirrors instead of requesting all
+	 *         of the data
+	 */
+	public static boolean isEnabled() {
+		return useChangesMirrors.getValue();
+	}
+
+	/**
+	 * Requests the changes from the core system via RMI.
+	 *
+	 * @param trackerId
+	 * @param sequence
+	 * @return the changes
+	 * @throws RemoteException
+	 */
+	protected abstract IpcChanges<T> getChanges(long trackerId, long sequence)
+			throws RemoteException;
+
+	/**
+	 * Returns the key for the data, such as the vehicle ID.
+	 *
+	 * @param data
+	 * @return the key
+	 */
+	protected abstract String getKey(T data);
+
+	/**
+	 * Removes the expired parts of the data, such as predictions for times
+	 * that have passed. By default nothing expires.
+	 *
+	 * @param data
+	 * @param now
+	 *            Current epoch time in msec
+	 * @return true if all of the data has expired and it should therefore be
+	 *         removed from the mirror
+	 */
+	protected boolean removeExpired(T data, long now) {
+		return false;
+	}
+
+	/**
+	 * Removes the expired data from the mirror, including the keys that no
+	 * longer have any data. Only called while synchronized by updateIfOld().
+	 *
+	 * @param now
+	 *            Current epoch time in msec
+	 */
+	private void removeExpiredData(long now) {
+		for (Map.Entry<String, List<T>> entry : dataByKeyMap.entrySet()) {
+			List<T> dataForKey = entry.getValue();
+			List<T> remaining = null;
+			for (int i = 0; i < dataForKey.size(); ++i) {
+				T data = dataForKey.get(i);
+				if (removeExpired(data, now)) {
+					// Only create new list once something has expired
+					if (remaining == null)
+						remaining = new ArrayList<T>(dataForKey.subList(0, i));
+				} else if (remaining != null) {
+					remaining.add(data);
+				}
+			}
+
+			if (remaining == null)
+				continue;
+			if (remaining.isEmpty())
+				dataByKeyMap.remove(entry.getKey());
+			else
+				entry.setValue(remaining);
+		}
+	}
+
+	/**
+	 * Groups the data by key.
+	 *
+	 * @param dataList
+	 * @return Map of the data keyed on the key
+	 */
+	private Map<String, List<T>> groupByKey(List<T> dataList) {
+		Map<String, List<T>> dataByKey = new HashMap<String, List<T>>();
+		for (T data : dataList) {
+			String key = getKey(data);
+			List<T> dataForKey = dataByKey.get(key);
+			if (dataForKey == null) {
+				dataForKey = new ArrayList<T>(1);
+				dataByKey.put(key, dataForKey);
+			}
+			dataForKey.add(data);
+		}
+		return dataByKey;
+	}
+
+	/**
+	 * Updates the mirror with the changes from the core system if the mirror
+	 * is older than transitime.ipc.changesMirrorMaxAgeMsec. Synchronized so
+	 * that only a single thread updates the mirror at a time.
+	 *
+	 * @throws RemoteException
+	 */
+	private synchronized void updateIfOld() throws RemoteException {
+		if (System.currentTimeMillis() - lastUpdateTime
+				< changesMirrorMaxAgeMsec.getValue())
+			return;
+
+		IntervalTimer timer = new IntervalTimer();
+		IpcChanges<T> changes = getChanges(trackerId, sequence);
+
+		Map<String, List<T>> changedByKey = groupByKey(changes.getChanged());
+		if (changes.isComplete()) {
+			// Received all the data so replace the whole mirror
+			dataByKeyMap = new ConcurrentHashMap<String, List<T>>(changedByKey);
+		} else {
+			dataByKeyMap.putAll(changedByKey);
+			for (String key : changes.getRemovedKeys())
+				dataByKeyMap.remove(key);
+		}
+		removeExpiredData(System.currentTimeMillis());
+
+		trackerId = changes.getTrackerId();
+		sequence = changes.getSequence();
+		lastUpdateTime = System.currentTimeMillis();
+
+		logger.debug("Updated {} for agencyId={} with {}. Took {} msec",
+				getClass().getSimpleName(), agencyId, changes,
+				timer.elapsedMsec());
+	}
+
+	/**
+	 * Returns all of the mirrored data, first updating the mirror if it is
+	 * old.
+	 *
+	 * @return List of all the data
+	 * @throws RemoteException
+	 */
+	protected List<T> getAll() throws RemoteException {
+		updateIfOld();
+
+		List<T> all = new ArrayList<T>();
+		for (List<T> dataForKey : dataByKeyMap.values())
+			all.addAll(dataForKey);
+		return all;
+	}
+}
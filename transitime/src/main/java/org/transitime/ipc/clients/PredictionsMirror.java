@@ -0,0 +1,114 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.clients;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.transitime.ipc.data.IpcChanges;
+import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.utils.Time;
+
+/**
+ * A client side mirror of all of the predictions for an agency. Kept up to
+ * date by requesting just the predictions for route/stops that have changed
+ * via PredictionsInterface.getAllPredictionsChangedSince().
+ *
+ */
+public class PredictionsMirror extends
+		ChangesMirror<IpcPredictionsForRouteStopDest> {
+
+	// Keyed by agencyId
+	private static Map<String, PredictionsMirror> predictionsMirrorMap =
+			new HashMap<String, PredictionsMirror>();
+
+	/********************** Member Functions **************************/
+
+	private PredictionsMirror(String agencyId) {
+		super(agencyId);
+	}
+
+	/**
+	 * Gets the singleton instance for the agency.
+	 *
+	 * @param agencyId
+	 * @return the PredictionsMirror for the agency
+	 */
+	public static PredictionsMirror get(String agencyId) {
+		synchronized (predictionsMirrorMap) {
+			PredictionsMirror predictionsMirror =
+					predictionsMirrorMap.get(agencyId);
+			if (predictionsMirror == null) {
+				predictionsMirror = new PredictionsMirror(agencyId);
+				predictionsMirrorMap.put(agencyId, predictionsMirror);
+			}
+			return predictionsMirror;
+		}
+	}
+
+	@Override
+	protected IpcChanges<IpcPredictionsForRouteStopDest> getChanges(
+			long trackerId, long sequence) throws RemoteException {
+		return PredictionsInterfaceFactory.get(agencyId)
+				.getAllPredictionsChangedSince(trackerId, sequence);
+	}
+
+	@Override
+	protected String getKey(IpcPredictionsForRouteStopDest preds) {
+		return preds.getRouteStopKey();
+	}
+
+	/**
+	 * Removes the predictions for times that have passed. If no predictions
+	 * remain for the route/stop then it is removed from the mirror.
+	 */
+	@Override
+	protected boolean removeExpired(IpcPredictionsForRouteStopDest preds,
+			long now) {
+		preds.removeExpiredPredictions(now);
+		return preds.getPredictionsForRouteStop().isEmpty();
+	}
+
+	/**
+	 * Returns all predictions, same as PredictionsInterface.getAllPredictions()
+	 * but using the mirror.
+	 *
+	 * @param predictionMaxFutureSecs
+	 *            How far into the future predictions should be returned for
+	 * @return List of all IpcPredictionsForRouteStopDest that have predictions
+	 * @throws RemoteException
+	 */
+	public List<IpcPredictionsForRouteStopDest> getAllPredictions(
+			int predictionMaxFutureSecs) throws RemoteException {
+		long maxSystemTimeForPrediction = System.currentTimeMillis()
+				+ predictionMaxFutureSecs * Time.MS_PER_SEC;
+
+		List<IpcPredictionsForRouteStopDest> allPredictions =
+				new ArrayList<IpcPredictionsForRouteStopDest>();
+		for (IpcPredictionsForRouteStopDest preds : getAll()) {
+			IpcPredictionsForRouteStopDest clonedPreds = preds.getClone(
+					Integer.MAX_VALUE, maxSystemTimeForPrediction,
+					preds.getDistanceToStop());
+			if (!clonedPreds.getPredictionsForRouteStop().isEmpty())
+				allPredictions.add(clonedPreds);
+		}
+		return allPredictions;
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.clients;
+
+import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.transitime.ipc.data.IpcChanges;
+import org.transitime.ipc.data.IpcVehicleComplete;
+
+/**
+ * A client side mirror of all of the vehicles for an agency. Kept up to date
+ * by requesting just the vehicles that have changed via
+ * VehiclesInterface.getCompleteChangedSince().
+ *
+ */
+public class VehiclesMirror extends ChangesMirror<IpcVehicleComplete> {
+
+	// Keyed by agencyId
+	private static Map<String, VehiclesMirror> vehiclesMirrorMap =
+			new HashMap<String, VehiclesMirror>();
+
+	/********************** Member Functions **************************/
+
+	private VehiclesMirror(String agencyId) {
+		super(agencyId);
+	}
+
+	/**
+	 * Gets the singleton instance for the agency.
+	 *
+	 * @param agencyId
+	 * @return the VehiclesMirror for the agency
+	 */
+	public static VehiclesMirror get(String agencyId) {
+		synchronized (vehiclesMirrorMap) {
+			VehiclesMirror vehiclesMirror = vehiclesMirrorMap.get(agencyId);
+			if (vehiclesMirror == null) {
+				vehiclesMirror = new VehiclesMirror(agencyId);
+				vehiclesMirrorMap.put(agencyId, vehiclesMirror);
+			}
+			return vehiclesMirror;
+		}
+	}
+
+	@Override
+	protected IpcChanges<IpcVehicleComplete> getChanges(long trackerId,
+			long sequence) throws RemoteException {
+		return VehiclesInterfaceFactory.get(agencyId).getCompleteChangedSince(
+				trackerId, sequence);
+	}
+
+	@Override
+	protected String getKey(IpcVehicleComplete vehicle) {
+		return vehicle.getId();
+	}
+
+	/**
+	 * Returns all vehicles, same as VehiclesInterface.getComplete() but using
+	 * the mirror.
+	 *
+	 * @return Collection of all vehicles
+	 * @throws RemoteException
+	 */
+	public Collection<IpcVehicleComplete> getVehicles() throws RemoteException {
+		return getAll();
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * For reading Ipc objects that were written using CompactDataOutput.
+ */
+class CompactDataInput {
+
+	private final DataInput in;
+
+	// Times were written relative to this time
+	private final long baseTime;
+
+	// The strings read in so far, in the order of their index
+	private final List<String> dictionary = new ArrayList<String>();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the CompactDataInput and reads the base time from the stream.
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	CompactDataInput(DataInput in) throws IOException {
+		this.in = in;
+		this.baseTime = in.readLong();
+	}
+
+	/**
+	 * Reads an unsigned value written using 7 bits per byte
+	 *
+	 * @return the value
+	 * @throws IOException
+	 */
+	private long readVarLong() throws IOException {
+		long value = 0;
+		int shift = 0;
+		while (true) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+			shift += 7;
+			if (shift > 63)
+				throw new IOException("Malformed variable length value");
+		}
+	}
+
+	/**
+	 * Reverses the zigzag encoding
+	 */
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Reads a string, either in full or as an index into the dictionary.
+	 *
+	 * @return the string, which can be null
+	 * @throws IOException
+	 */
+	String readString() throws IOException {
+		long code = readVarLong();
+		if (code == 0)
+			return null;
+
+		if (code == 1) {
+			String s = in.readUTF();
+			dictionary.add(s);
+			return s;
+		}
+
+		long index = code - 2;
+		if (index >= dictionary.size())
+			throw new IOException("String index " + index
+					+ " is not in dictionary of size " + dictionary.size());
+		return dictionary.get((int) index);
+	}
+
+	/**
+	 * Reads an enum written by CompactDataOutput.writeEnum().
+	 *
+	 * @param enumType
+	 * @return the enum, or null if null was written
+	 * @throws IOException
+	 *             if the name is not valid for the enum type
+	 */
+	<E extends Enum<E>> E readEnum(Class<E> enumType) throws IOException {
+		String name = readString();
+		if (name == null)
+			return null;
+
+		try {
+			return Enum.valueOf(enumType, name);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Value " + name + " is not valid for "
+					+ enumType.getSimpleName());
+		}
+	}
+
+	int readInt() throws IOException {
+		return (int) unzigzag(readVarLong());
+	}
+
+	/**
+	 * @return the value, which can be null
+	 * @throws IOException
+	 */
+	Integer readNullableInt() throws IOException {
+		long code = readVarLong();
+		return code != 0 ? Integer.valueOf((int) unzigzag(code - 1)) : null;
+	}
+
+	/**
+	 * @return the epoch time, or 0 if the time was not set
+	 * @throws IOException
+	 */
+	long readTime() throws IOException {
+		long code = readVarLong();
+		return code != 0 ? baseTime + unzigzag(code - 1) : 0;
+	}
+
+	float readFloat() throws IOException {
+		return in.readFloat();
+	}
+
+	double readDouble() throws IOException {
+		return in.readDouble();
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * For writing Ipc objects in the compact form used by IpcCompactList.
+ * Strings, such as route, stop, and trip IDs, are only written in full the
+ * first time they are encountered. After that just their index into a
+ * dictionary for the stream is written. Integers are written with a variable
+ * length so that small values only take a byte or two. Times are written
+ * relative to a base time since the times in a response are usually close
+ * to each other. Read in using CompactDataInput.
+ */
+class CompactDataOutput {
+
+	private final DataOutput out;
+
+	// Times are written relative to this time
+	private final long baseTime;
+
+	// The strings written so far and their index
+	private final Map<String, Integer> dictionary =
+			new HashMap<String, Integer>();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the CompactDataOutput and writes the base time to the stream.
+	 *
+	 * @param out
+	 * @param baseTime
+	 *            Times are written relative to this time. Should be close to
+	 *            the times that will be written.
+	 * @throws IOException
+	 */
+	CompactDataOutput(DataOutput out, long baseTime) throws IOException {
+		this.out = out;
+		this.baseTime = baseTime;
+		out.writeLong(baseTime);
+	}
+
+	/**
+	 * Writes an unsigned value using 7 bits per byte, with the high bit
+	 * indicating that more bytes follow.
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	private void writeVarLong(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Zigzag encodes the value so that small negative values are also small
+	 * when written as a variable length value.
+	 */
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Writes the string. If it was already written then only its index into
+	 * the dictionary is written.
+	 *
+	 * @param s
+	 *            Can be null
+	 * @throws IOException
+	 */
+	void writeString(String s) throws IOException {
+		if (s == null) {
+			writeVarLong(0);
+			return;
+		}
+
+		Integer index = dictionary.get(s);
+		if (index != null) {
+			writeVarLong(index + 2);
+		} else {
+			writeVarLong(1);
+			out.writeUTF(s);
+			dictionary.put(s, dictionary.size());
+		}
+	}
+
+	/**
+	 * Writes the name of the enum, via the dictionary
+	 *
+	 * @param e
+	 *            Can be null
+	 * @throws IOException
+	 */
+	void writeEnum(Enum<?> e) throws IOException {
+		writeString(e != null ? e.name() : null);
+	}
+
+	void writeInt(int value) throws IOException {
+		writeVarLong(zigzag(value));
+	}
+
+	/**
+	 * @param value
+	 *            Can be null
+	 * @throws IOException
+	 */
+	void writeNullableInt(Integer value) throws IOException {
+		writeVarLong(value != null ? zigzag(value) + 1 : 0);
+	}
+
+	/**
+	 * Writes the epoch time relative to the base time. A time of 0, which is
+	 * used to indicate that a time is not set, is written as a single byte.
+	 *
+	 * @param time
+	 * @throws IOException
+	 */
+	void writeTime(long time) throws IOException {
+		writeVarLong(time != 0 ? zigzag(time - baseTime) + 1 : 0);
+	}
+
+	void writeFloat(float value) throws IOException {
+		out.writeFloat(value);
+	}
+
+	void writeDouble(double value) throws IOException {
+		out.writeDouble(value);
+	}
+}
@@ -223,6 +223,52 @@ public class IpcAvl implements Serializable {
 		throw new InvalidObjectException("Must use proxy instead");
 	}
 
+	/**
+	 * Writes the object in the compact form used by IpcCompactList
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeCompact(CompactDataOutput out) throws IOException {
+		out.writeString(vehicleId);
+		out.writeTime(time);
+		out.writeFloat(latitude);
+		out.writeFloat(longitude);
+		out.writeFloat(speed);
+		out.writeFloat(heading);
+		out.writeString(source);
+		out.writeString(assignmentId);
+		out.writeEnum(assignmentType);
+		out.writeString(driverId);
+		out.writeString(licensePlate);
+		out.writeInt(passengerCount);
+	}
+
+	/**
+	 * Reads in an object written by writeCompact()
+	 * 
+	 * @param in
+	 * @return the IpcAvl
+	 * @throws IOException
+	 */
+	static IpcAvl readCompact(CompactDataInput in) throws IOException {
+		String vehicleId = in.readString();
+		long time = in.readTime();
+		float latitude = in.readFloat();
+		float longitude = in.readFloat();
+		float speed = in.readFloat();
+		float heading = in.readFloat();
+		String source = in.readString();
+		String assignmentId = in.readString();
+		AssignmentType assignmentType = in.readEnum(AssignmentType.class);
+		String driverId = in.readString();
+		String licensePlate = in.readString();
+		int passengerCount = in.readInt();
+		return new IpcAvl(vehicleId, time, latitude, longitude, speed,
+				heading, source, assignmentId, assignmentType, driverId,
+				licensePlate, passengerCount);
+	}
+
 	public String getVehicleId() {
 		return vehicleId;
 	}
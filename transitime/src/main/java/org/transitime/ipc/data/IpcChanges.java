@@ -0,0 +1,109 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.data;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Represents the changes to data, such as vehicles or predictions, since the
+ * sequence number last received by a client. Allows a client to keep a local
+ * mirror of the data up to date without having to request all of the data
+ * each time. If the client's sequence number could not be used, such as when
+ * the core system was restarted, then complete is true and all of the data
+ * is provided so that the client replaces its mirror.
+ *
+ * @param <T>
+ *            Type of the data, such as IpcVehicleComplete
+ */
+public class IpcChanges<T extends Serializable> implements Serializable {
+
+	// Identifies the source of the sequence numbers. Changes when the core
+	// system is restarted.
+	private final long trackerId;
+
+	// The sequence number to provide when requesting the next changes
+	private final long sequence;
+
+	// If true then the changed list contains all of the data and the client
+	// should replace its mirror instead of updating it
+	private final boolean complete;
+
+	// The data that has been added or changed
+	private final List<T> changed;
+
+	// The keys of the data that has been removed
+	private final List<String> removedKeys;
+
+	private static final long serialVersionUID = -3893452376417393254L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param trackerId
+	 *            Identifies the source of the sequence numbers
+	 * @param sequence
+	 *            The sequence number to provide when requesting the next
+	 *            changes
+	 * @param complete
+	 *            If true then changed contains all of the data
+	 * @param changed
+	 *            The data that has been added or changed
+	 * @param removedKeys
+	 *            The keys of the data that has been removed
+	 */
+	public IpcChanges(long trackerId, long sequence, boolean complete,
+			List<T> changed, List<String> removedKeys) {
+		this.trackerId = trackerId;
+		this.sequence = sequence;
+		this.complete = complete;
+		this.changed = changed;
+		this.removedKeys = removedKeys;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcChanges ["
+				+ "trackerId=" + trackerId
+				+ ", sequence=" + sequence
+				+ ", complete=" + complete
+				+ ", changed=" + changed.size()
+				+ ", removedKeys=" + removedKeys.size()
+				+ "]";
+	}
+
+	public long getTrackerId() {
+		return trackerId;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public List<T> getChanged() {
+		return changed;
+	}
+
+	public List<String> getRemovedKeys() {
+		return removedKeys;
+	}
+
+}
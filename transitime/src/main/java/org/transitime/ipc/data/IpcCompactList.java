@@ -0,0 +1,134 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A List of Ipc objects that is serialized in a compact form for when large
+ * numbers of objects, such as all of the vehicles or predictions for an
+ * agency, are returned by an RMI call. With default serialization each
+ * object writes its own block data and every ID string is written for every
+ * object, unless it happens to be the very same String object. Instead, the
+ * objects are written one after another via CompactDataOutput so that each
+ * distinct string is only written once per response and numbers take only
+ * as many bytes as needed.
+ * <p>
+ * Since this class is a List the RMI interfaces don't need to change. A
+ * server simply returns an IpcCompactList instead of an ArrayList.
+ *
+ * @param <T>
+ *            Type of the Ipc objects
+ */
+public abstract class IpcCompactList<T> extends ArrayList<T> implements
+		Externalizable {
+
+	private static final short currentSerializationVersion = 0;
+
+	private static final long serialVersionUID = 3981567385006591843L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Needed for Externalizable
+	 */
+	protected IpcCompactList() {
+		super();
+	}
+
+	/**
+	 * @param objects
+	 *            The objects to put into the list
+	 */
+	protected IpcCompactList(Collection<? extends T> objects) {
+		super(objects);
+	}
+
+	/**
+	 * Writes the object in compact form
+	 *
+	 * @param out
+	 * @param object
+	 * @throws IOException
+	 */
+	abstract void writeElement(CompactDataOutput out, T object)
+			throws IOException;
+
+	/**
+	 * Reads in an object written by writeElement()
+	 *
+	 * @param in
+	 * @return the object
+	 * @throws IOException
+	 */
+	abstract T readElement(CompactDataInput in) throws IOException;
+
+	/**
+	 * Returns the time that the times of the object are written relative
+	 * to. Should be a time that is typical for the object.
+	 *
+	 * @param object
+	 * @return epoch time
+	 */
+	abstract long getBaseTime(T object);
+
+	/* (non-Javadoc)
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeShort(currentSerializationVersion);
+
+		int size = size();
+		long baseTime = size > 0 ? getBaseTime(get(0)) : 0;
+		CompactDataOutput compactOut = new CompactDataOutput(out, baseTime);
+		compactOut.writeInt(size);
+		for (int i = 0; i < size; ++i)
+			writeElement(compactOut, get(i));
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	@Override
+	public void readExternal(ObjectInput in) throws IOException,
+			ClassNotFoundException {
+		// If reading from a newer version of protocol then don't
+		// know how to handle it so throw exception
+		short readVersion = in.readShort();
+		if (currentSerializationVersion < readVersion) {
+			throw new IOException("Serialization error when reading "
+					+ getClass().getSimpleName()
+					+ " object. Read version=" + readVersion
+					+ " but currently using software version="
+					+ currentSerializationVersion);
+		}
+
+		CompactDataInput compactIn = new CompactDataInput(in);
+		int size = compactIn.readInt();
+		clear();
+		ensureCapacity(size);
+		for (int i = 0; i < size; ++i)
+			add(readElement(compactIn));
+	}
+}
@@ -154,10 +154,10 @@ public class IpcPrediction implements Serializable {
 	}
 
 	/**
-	 * Constructor used for when deserializing a proxy object. Declared private
-	 * because only used internally by the proxy class.
+	 * Constructor used for when deserializing a proxy object or a compact
+	 * list. Package-private so that tests can also create objects.
 	 */
-	private IpcPrediction(String vehicleId, String routeId, String stopId,
+	IpcPrediction(String vehicleId, String routeId, String stopId,
 			int gtfsStopSeq, String tripId, String tripPatternId,
 			String blockId, long predictionTime, long actualPredictionTime,
 			boolean atEndOfTrip, boolean schedBasedPred, long avlTime,
@@ -353,6 +353,70 @@ public class IpcPrediction implements Serializable {
 		throw new InvalidObjectException("Must use proxy instead");
 	}
 
+	/**
+	 * Writes the object in the compact form used by IpcCompactList. Like the
+	 * SerializationProxy the trip and the actualPredictionTime are not
+	 * written since they are only used on the server side.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeCompact(CompactDataOutput out) throws IOException {
+		int flags = (atEndOfTrip ? 1 : 0)
+				| (schedBasedPred ? 2 : 0)
+				| (affectedByWaitStop ? 4 : 0)
+				| (isDelayed ? 8 : 0)
+				| (lateAndSubsequentTripSoMarkAsUncertain ? 16 : 0)
+				| (isArrival ? 32 : 0);
+
+		out.writeInt(flags);
+		out.writeString(vehicleId);
+		out.writeString(routeId);
+		out.writeString(stopId);
+		out.writeInt(gtfsStopSeq);
+		out.writeString(tripId);
+		out.writeString(tripPatternId);
+		out.writeString(blockId);
+		out.writeTime(predictionTime);
+		out.writeTime(avlTime);
+		out.writeTime(creationTime);
+		out.writeTime(tripStartEpochTime);
+		out.writeString(driverId);
+		out.writeInt(passengerCount);
+		out.writeFloat(passengerFullness);
+	}
+
+	/**
+	 * Reads in an object written by writeCompact()
+	 * 
+	 * @param in
+	 * @return the IpcPrediction
+	 * @throws IOException
+	 */
+	static IpcPrediction readCompact(CompactDataInput in) throws IOException {
+		int flags = in.readInt();
+		String vehicleId = in.readString();
+		String routeId = in.readString();
+		String stopId = in.readString();
+		int gtfsStopSeq = in.readInt();
+		String tripId = in.readString();
+		String tripPatternId = in.readString();
+		String blockId = in.readString();
+		long predictionTime = in.readTime();
+		long avlTime = in.readTime();
+		long creationTime = in.readTime();
+		long tripStartEpochTime = in.readTime();
+		String driverId = in.readString();
+		short passengerCount = (short) in.readInt();
+		float passengerFullness = in.readFloat();
+		return new IpcPrediction(vehicleId, routeId, stopId, gtfsStopSeq,
+				tripId, tripPatternId, blockId, predictionTime, 0,
+				(flags & 1) != 0, (flags & 2) != 0, avlTime, creationTime,
+				tripStartEpochTime, (flags & 4) != 0, driverId,
+				passengerCount, passengerFullness, (flags & 8) != 0,
+				(flags & 16) != 0, (flags & 32) != 0);
+	}
+
 	@Override
 	public String toString() {
 		return "IpcPrediction [" 
@@ -22,7 +22,7 @@ import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 
 import org.transitime.applications.Core;
@@ -31,10 +31,19 @@ import org.transitime.db.structs.Stop;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.TripPattern;
 import org.transitime.utils.Geo;
-import org.transitime.utils.TrimmableArrayList;
 
 /**
  * Contains list of predictions for a route/stop/destination. 
+ * <p>
+ * On the server this object is shared by the threads updating predictions
+ * and the threads reading them for the API. To avoid readers needing to
+ * synchronize the list of predictions is copy-on-write. The list is never
+ * modified once it has been set. Instead, an update creates a new list and
+ * then replaces the old one with a single volatile write. Therefore a reader
+ * simply gets the current list and can use it as a coherent snapshot of the
+ * predictions without any locking, even while another thread is updating
+ * them. Updates are synchronized so that they don't interfere with each
+ * other.
  *
  * @author SkiBu Smith
  *
@@ -58,10 +67,10 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	// For when providing predictions based on location
 	private final double distanceToStop;
 	
-	// The predictions associated with the route/stop/dest
-	private final List<IpcPrediction> predictionsForRouteStopDest;
-
-	private final static int INITIAL_CAPACITY = 5;
+	// The predictions associated with the route/stop/dest. Copy-on-write so
+	// the list is never modified once set. Instead it is replaced with an
+	// updated list. Volatile so that readers see the latest list.
+	private volatile List<IpcPrediction> predictionsForRouteStopDest;
 	
 	private static final long serialVersionUID = 5875028328864504842L;
 
@@ -99,7 +108,7 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 				trip != null ? trip.getDirectionId() : null;
 		this.distanceToStop = distanceToStop;
 		this.predictionsForRouteStopDest = 
-				new TrimmableArrayList<IpcPrediction>(INITIAL_CAPACITY);
+				Collections.<IpcPrediction> emptyList();
 	}
 	
 	/**
@@ -130,8 +139,8 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		this.headsign = tripPattern.getHeadsign();
 		this.directionId = tripPattern.getDirectionId();
 		this.distanceToStop = distanceToStop;
-		this.predictionsForRouteStopDest = new TrimmableArrayList<IpcPrediction>(0);
-
+		this.predictionsForRouteStopDest = 
+				Collections.<IpcPrediction> emptyList();
 	}
 	
 	/**
@@ -160,25 +169,30 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		this.directionId = toClone.directionId;
 		this.distanceToStop = distanceToStop;
 		
-		// Copy all the prediction info. Do while synchronized since another
-		// thread could otherwise be changing the data.
-		synchronized (toClone) {	
-			int size = Math.min(toClone.predictionsForRouteStopDest.size(),
-					maxPredictionsPerStop);
-			this.predictionsForRouteStopDest = new ArrayList<IpcPrediction>(size);			
-			for (int i=0; i<size; ++i) {
-				IpcPrediction prediction = toClone.predictionsForRouteStopDest.get(i);
-				// If prediction exceeds max time then done
-				if (prediction.getPredictionTime() > maxSystemTimeForPrediction)
-					break;
-				this.predictionsForRouteStopDest.add(i, prediction);
-			}
-		}
+		// Get a snapshot of the predictions. Since the list is copy-on-write
+		// it won't change even if another thread is updating the predictions
+		// so don't need to synchronize.
+		List<IpcPrediction> preds = toClone.predictionsForRouteStopDest;
+		
+		// Determine how many of the predictions to use
+		int maxSize = Math.min(preds.size(), maxPredictionsPerStop);
+		int size = 0;
+		while (size < maxSize 
+				&& preds.get(size).getPredictionTime() <= maxSystemTimeForPrediction)
+			++size;
+		
+		// If using all of the predictions then can simply share the immutable
+		// list instead of copying it
+		if (size == preds.size())
+			this.predictionsForRouteStopDest = preds;
+		else
+			this.predictionsForRouteStopDest = 
+					new ArrayList<IpcPrediction>(preds.subList(0, size));
 	}
 	
 	/**
-	 * Constructor used for when deserializing a proxy object. Declared private
-	 * because only used internally by the proxy class.
+	 * Constructor used for when deserializing a proxy object or a compact
+	 * list. Package-private so that tests can also create objects.
 	 * 
 	 * @param routeId
 	 * @param routeShortName
@@ -192,7 +206,7 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	 * @param distanceToStop
 	 * @param predictions
 	 */
-	private IpcPredictionsForRouteStopDest(String routeId,
+	IpcPredictionsForRouteStopDest(String routeId,
 			String routeShortName, String routeName, int routeOrder,
 			String stopId, String stopName, Integer stopCode,
 			String destination, String directionId, double distanceToStop,
@@ -242,7 +256,8 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		this.headsign = null;
 		this.directionId = directionId;
 		this.distanceToStop = distanceToStop;
-		this.predictionsForRouteStopDest = new TrimmableArrayList<IpcPrediction>(0);
+		this.predictionsForRouteStopDest = 
+				Collections.<IpcPrediction> emptyList();
 	}
 	
 	/**
@@ -372,9 +387,66 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	}
 
 	/**
-	 * Gets a copy of this object. This is done with the object being
-	 * copied synchronized so that the predictions remain coherent. Limits
-	 * number of predictions to maxPredictionsPerStop.
+	 * Writes the object, including its predictions, in the compact form used
+	 * by IpcCompactList.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeCompact(CompactDataOutput out) throws IOException {
+		out.writeString(routeId);
+		out.writeString(routeShortName);
+		out.writeString(routeName);
+		out.writeInt(routeOrder);
+		out.writeString(stopId);
+		out.writeString(stopName);
+		out.writeNullableInt(stopCode);
+		out.writeString(headsign);
+		out.writeString(directionId);
+		out.writeDouble(distanceToStop);
+
+		// Get a snapshot of the predictions. Since the list is copy-on-write
+		// it won't change even if another thread is updating the predictions.
+		List<IpcPrediction> preds = predictionsForRouteStopDest;
+		out.writeInt(preds.size());
+		for (IpcPrediction pred : preds)
+			pred.writeCompact(out);
+	}
+
+	/**
+	 * Reads in an object written by writeCompact()
+	 * 
+	 * @param in
+	 * @return the IpcPredictionsForRouteStopDest
+	 * @throws IOException
+	 */
+	static IpcPredictionsForRouteStopDest readCompact(CompactDataInput in)
+			throws IOException {
+		String routeId = in.readString();
+		String routeShortName = in.readString();
+		String routeName = in.readString();
+		int routeOrder = in.readInt();
+		String stopId = in.readString();
+		String stopName = in.readString();
+		Integer stopCode = in.readNullableInt();
+		String headsign = in.readString();
+		String directionId = in.readString();
+		double distanceToStop = in.readDouble();
+
+		int numberPreds = in.readInt();
+		List<IpcPrediction> preds = new ArrayList<IpcPrediction>(numberPreds);
+		for (int i = 0; i < numberPreds; ++i)
+			preds.add(IpcPrediction.readCompact(in));
+
+		return new IpcPredictionsForRouteStopDest(routeId, routeShortName,
+				routeName, routeOrder, stopId, stopName, stopCode, headsign,
+				directionId, distanceToStop, preds);
+	}
+
+	/**
+	 * Gets a copy of this object. Uses a snapshot of the predictions so that
+	 * they remain coherent. Limits number of predictions to
+	 * maxPredictionsPerStop.
 	 * 
 	 * @param maxPredictionsPerStop
 	 * @param distanceFromStop
@@ -393,9 +465,9 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	}
 	
 	/**
-	 * Gets a copy of this object. This is done with the object being copied
-	 * synchronized so that the predictions remain coherent. Limits number of
-	 * predictions to maxPredictionsPerStop.
+	 * Gets a copy of this object. Uses a snapshot of the predictions so that
+	 * they remain coherent. Limits number of predictions to
+	 * maxPredictionsPerStop.
 	 * 
 	 * @param maxPredictionsPerStop
 	 *            Won't copy more then this number of predictions
@@ -414,45 +486,64 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	}
 	
 	/**
-	 * Removes a prediction.
-	 * <p>
-	 * Not sure if really need to synchronize removal of predictions
-	 * from list since it is only a single operation. But synching
-	 * it is certainly the safe thing to do.
+	 * Removes a prediction. Synchronized so that doesn't interfere with other
+	 * threads updating the predictions.
 	 * 
 	 * @param oldPrediction
 	 */
 	public synchronized void removePrediction(IpcPrediction oldPrediction) {
-		predictionsForRouteStopDest.remove(oldPrediction);
+		if (!predictionsForRouteStopDest.contains(oldPrediction))
+			return;
+		
+		List<IpcPrediction> newPreds = 
+				new ArrayList<IpcPrediction>(predictionsForRouteStopDest);
+		newPreds.remove(oldPrediction);
+		predictionsForRouteStopDest = newPreds;
 	}
 
+	/**
+	 * Returns the number of predictions at the beginning of the list that
+	 * are older than the current time. Since the predictions are ordered by
+	 * time these are all of the expired predictions.
+	 * 
+	 * @param preds
+	 * @param currentTime
+	 * @return number of expired predictions
+	 */
+	private static int numberExpired(List<IpcPrediction> preds,
+			long currentTime) {
+		int numberExpired = 0;
+		while (numberExpired < preds.size() 
+				&& preds.get(numberExpired).getPredictionTime() < currentTime)
+			++numberExpired;
+		return numberExpired;
+	}
+	
 	/**
 	 * Removes predictions that are older than the current time. Useful for when
-	 * getting predictions. Synchronized because don't want predictions list to
-	 * be changing by another thread when removing predictions.
+	 * getting predictions. Since this is called for every API request first
+	 * checks the current snapshot of the predictions without locking and only
+	 * synchronizes and replaces the list if there actually are expired
+	 * predictions.
 	 * 
 	 * @param currentTime
 	 *            Should use PredictionDataCache.systemTime.get() so that works
 	 *            even when in playback mode.
 	 */
-	public synchronized void removeExpiredPredictions(long currentTime) {
-		Iterator<IpcPrediction> iterator = predictionsForRouteStopDest.iterator();
-		while (iterator.hasNext()) {
-			IpcPrediction currentPrediction = iterator.next();
-
-			// Remove predictions that are expired. It makes sense to do this 
-			// here when adding predictions since only need to take out 
-			// predictions if more are being added.
-			if (currentPrediction.getPredictionTime() < currentTime) {
-				iterator.remove();
-			} else {
-				// The subsequent predictions are later so if this one is
-				// into the future then the remaining ones are too. 
-				// Therefore done.
-				return;
+	public void removeExpiredPredictions(long currentTime) {
+		// Usually there aren't any expired predictions so check without 
+		// locking first
+		if (numberExpired(predictionsForRouteStopDest, currentTime) == 0)
+			return;
+		
+		synchronized (this) {
+			List<IpcPrediction> preds = predictionsForRouteStopDest;
+			int numberExpired = numberExpired(preds, currentTime);
+			if (numberExpired > 0) {
+				predictionsForRouteStopDest = new ArrayList<IpcPrediction>(
+						preds.subList(numberExpired, preds.size()));
 			}
 		}
-		
 	}
 	
 	/**
@@ -460,7 +551,9 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	 * vehicle.
 	 * <p>
 	 * Synchronized because there are multiple steps in removing old predictions
-	 * and creating new ones.
+	 * and creating new ones. The steps are done on a new list that then
+	 * replaces the current one so that readers never see a partially updated
+	 * list.
 	 * 
 	 * @param newPredsForRouteStopDest
 	 *            The new predictions for the vehicle
@@ -478,38 +571,36 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		// Determine which vehicle we are updating predictions for
 		String vehicleId = newPredsForRouteStopDest.get(0).getVehicleId();
 		
-		// Go through current predictions and get rid of existing ones for
-		// this vehicle or ones that have expired
-		Iterator<IpcPrediction> iterator = predictionsForRouteStopDest.iterator();
-		while (iterator.hasNext()) {
-			IpcPrediction currentPrediction = iterator.next();
-
+		// Go through current predictions and copy the ones that are not for
+		// this vehicle and that have not expired into the new list
+		List<IpcPrediction> newPreds = new ArrayList<IpcPrediction>(
+				predictionsForRouteStopDest.size() 
+				+ newPredsForRouteStopDest.size());
+		for (IpcPrediction currentPrediction : predictionsForRouteStopDest) {
 			// Remove existing predictions for this vehicle
-			if (currentPrediction.getVehicleId().equals(vehicleId)) {
-				iterator.remove();
+			if (currentPrediction.getVehicleId().equals(vehicleId))
 				continue;
-			}
 			
 			// Remove predictions that are expired. It makes sense to do this 
 			// here when adding predictions since only need to take out 
 			// predictions if more are being added.
-			if (currentPrediction.getPredictionTime() < currentTime) {
-				iterator.remove();
+			if (currentPrediction.getPredictionTime() < currentTime)
 				continue;
-			}
+			
+			newPreds.add(currentPrediction);
 		}
 
 		// Go through list and insert the new predictions into the 
 		// appropriate places
 		for (IpcPrediction newPredForRouteStop : newPredsForRouteStopDest) {
 			boolean insertedPrediction = false;
-			for (int i=0; i<predictionsForRouteStopDest.size(); ++i) {
+			for (int i=0; i<newPreds.size(); ++i) {
 				// If the new prediction is before the previous prediction
 				// in currentPredsForRouteStop then insert it.
 				if (newPredForRouteStop.getPredictionTime() < 
-						predictionsForRouteStopDest.get(i).getPredictionTime()) {			
+						newPreds.get(i).getPredictionTime()) {			
 					// Actually add the prediction to the list
-					predictionsForRouteStopDest.add(i, newPredForRouteStop);
+					newPreds.add(i, newPredForRouteStop);
 					insertedPrediction = true;
 					
 					// Done with the inner for loop so break out of loop
@@ -521,9 +612,12 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 			// If didn't find that the prediction was before one of the 
 			// existing ones then insert it onto the end
 			if (!insertedPrediction) {
-				predictionsForRouteStopDest.add(newPredForRouteStop);
+				newPreds.add(newPredForRouteStop);
 			}
 		}
+		
+		// Atomically replace the predictions with the new list
+		predictionsForRouteStopDest = newPreds;
 	}
 	
 	@Override
@@ -603,11 +697,38 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		return distanceToStop;
 	}
 	
+	/**
+	 * Returns a snapshot of the predictions. The list won't change even if
+	 * the predictions are updated by another thread so it doesn't need to be
+	 * copied or synchronized. It is unmodifiable.
+	 * 
+	 * @return the predictions
+	 */
 	public List<IpcPrediction> getPredictionsForRouteStop() {
-		return predictionsForRouteStopDest;
+		return Collections.unmodifiableList(predictionsForRouteStopDest);
 	}
 
 	public int getRouteOrder() {
 		return routeOrder;
 	}
+	
+	/**
+	 * Returns a key that identifies a route/stop. Used for the removed keys
+	 * of IpcChanges so that clients can keep a mirror of the predictions
+	 * keyed by route/stop.
+	 * 
+	 * @param routeShortName
+	 * @param stopId
+	 * @return key for the route/stop
+	 */
+	public static String getRouteStopKey(String routeShortName, String stopId) {
+		return routeShortName + "|" + stopId;
+	}
+	
+	/**
+	 * @return key that identifies the route/stop of this object
+	 */
+	public String getRouteStopKey() {
+		return getRouteStopKey(routeShortName, stopId);
+	}
 }
@@ -0,0 +1,69 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A List of IpcPredictionsForRouteStopDest objects, including their
+ * predictions, that is serialized in a compact form. For returning
+ * predictions via RMI.
+ */
+public class IpcPredictionsList extends
+		IpcCompactList<IpcPredictionsForRouteStopDest> {
+
+	private static final long serialVersionUID = 2480383937413960152L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Needed for Externalizable
+	 */
+	public IpcPredictionsList() {
+		super();
+	}
+
+	/**
+	 * @param predictions
+	 *            The predictions to put into the list
+	 */
+	public IpcPredictionsList(
+			Collection<IpcPredictionsForRouteStopDest> predictions) {
+		super(predictions);
+	}
+
+	@Override
+	void writeElement(CompactDataOutput out,
+			IpcPredictionsForRouteStopDest predictions) throws IOException {
+		predictions.writeCompact(out);
+	}
+
+	@Override
+	IpcPredictionsForRouteStopDest readElement(CompactDataInput in)
+			throws IOException {
+		return IpcPredictionsForRouteStopDest.readCompact(in);
+	}
+
+	@Override
+	long getBaseTime(IpcPredictionsForRouteStopDest predictions) {
+		List<IpcPrediction> preds = predictions.getPredictionsForRouteStop();
+		return preds.isEmpty() ? 0 : preds.get(0).getPredictionTime();
+	}
+}
@@ -98,7 +98,8 @@ public class IpcVehicleComplete extends IpcVehicleGtfsRealtime {
 	}
 	
 	/**
-	 * Constructor used for when deserializing a proxy object. 
+	 * Constructor used for when deserializing a proxy object or a compact
+	 * list. Package-private so that tests can also create objects.
 	 *
 	 * @param blockId
 	 * @param blockAssignmentMethod
@@ -129,7 +130,7 @@ public class IpcVehicleComplete extends IpcVehicleGtfsRealtime {
 	 * @param distanceOfNextStopFromTripStart
 	 * @param distanceAlongTrip
 	 */
-	private IpcVehicleComplete(String blockId,
+	IpcVehicleComplete(String blockId,
 			BlockAssignmentMethod blockAssignmentMethod, IpcAvl avl,
 			float pathHeading, String routeId, String routeShortName,
 			String routeName, String tripId, String tripPatternId,
@@ -267,6 +268,98 @@ public class IpcVehicleComplete extends IpcVehicleGtfsRealtime {
 		throw new InvalidObjectException("Must use proxy instead");
 	}
 
+	/**
+	 * Writes the object, including the data of the super classes, in the
+	 * compact form used by IpcCompactList
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeCompact(CompactDataOutput out) throws IOException {
+		TemporalDifference realTimeSchedAdh = getRealTimeSchedAdh();
+		int flags = (isPredictable() ? 1 : 0)
+				| (isForSchedBasedPred() ? 2 : 0)
+				| (isDelayed() ? 4 : 0)
+				| (isLayover() ? 8 : 0)
+				| (isAtStop() ? 16 : 0);
+
+		out.writeInt(flags);
+		out.writeString(getBlockId());
+		out.writeEnum(getBlockAssignmentMethod());
+		getAvl().writeCompact(out);
+		out.writeFloat(getHeading());
+		out.writeString(getRouteId());
+		out.writeString(getRouteShortName());
+		out.writeString(getRouteName());
+		out.writeString(getTripId());
+		out.writeString(getTripPatternId());
+		out.writeString(getDirectionId());
+		out.writeString(getHeadsign());
+		out.writeNullableInt(realTimeSchedAdh != null ? 
+				Integer.valueOf(realTimeSchedAdh.getTemporalDifference()) : null);
+		out.writeTime(getLayoverDepartureTime());
+		out.writeString(getNextStopId());
+		out.writeString(getNextStopName());
+		out.writeString(getVehicleType());
+		out.writeTime(getTripStartEpochTime());
+		out.writeString(getAtOrNextStopId());
+		out.writeNullableInt(getAtOrNextGtfsStopSeq());
+		out.writeString(originStopId);
+		out.writeString(destinationId);
+		out.writeDouble(distanceToNextStop);
+		out.writeDouble(distanceOfNextStopFromTripStart);
+		out.writeDouble(distanceAlongTrip);
+	}
+
+	/**
+	 * Reads in an object written by writeCompact()
+	 * 
+	 * @param in
+	 * @return the IpcVehicleComplete
+	 * @throws IOException
+	 */
+	static IpcVehicleComplete readCompact(CompactDataInput in)
+			throws IOException {
+		int flags = in.readInt();
+		String blockId = in.readString();
+		BlockAssignmentMethod blockAssignmentMethod = 
+				in.readEnum(BlockAssignmentMethod.class);
+		IpcAvl avl = IpcAvl.readCompact(in);
+		float heading = in.readFloat();
+		String routeId = in.readString();
+		String routeShortName = in.readString();
+		String routeName = in.readString();
+		String tripId = in.readString();
+		String tripPatternId = in.readString();
+		String directionId = in.readString();
+		String headsign = in.readString();
+		Integer realTimeSchedAdhMsec = in.readNullableInt();
+		long layoverDepartureTime = in.readTime();
+		String nextStopId = in.readString();
+		String nextStopName = in.readString();
+		String vehicleType = in.readString();
+		long tripStartEpochTime = in.readTime();
+		String atOrNextStopId = in.readString();
+		Integer atOrNextGtfsStopSeq = in.readNullableInt();
+		String originStopId = in.readString();
+		String destinationId = in.readString();
+		double distanceToNextStop = in.readDouble();
+		double distanceOfNextStopFromTripStart = in.readDouble();
+		double distanceAlongTrip = in.readDouble();
+
+		TemporalDifference realTimeSchedAdh = realTimeSchedAdhMsec != null ? 
+				new TemporalDifference(realTimeSchedAdhMsec.intValue()) : null;
+		return new IpcVehicleComplete(blockId, blockAssignmentMethod, avl,
+				heading, routeId, routeShortName, routeName, tripId,
+				tripPatternId, directionId, headsign, (flags & 1) != 0,
+				(flags & 2) != 0, realTimeSchedAdh, (flags & 4) != 0,
+				(flags & 8) != 0, layoverDepartureTime, nextStopId,
+				nextStopName, vehicleType, tripStartEpochTime,
+				(flags & 16) != 0, atOrNextStopId, atOrNextGtfsStopSeq,
+				originStopId, destinationId, distanceToNextStop,
+				distanceOfNextStopFromTripStart, distanceAlongTrip);
+	}
+
 	public String getOriginStopId() {
 		return originStopId;
 	}
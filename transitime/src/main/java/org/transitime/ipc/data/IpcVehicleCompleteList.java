@@ -0,0 +1,63 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * A List of IpcVehicleComplete objects that is serialized in a compact form.
+ * For returning the vehicles of an agency via RMI.
+ */
+public class IpcVehicleCompleteList extends IpcCompactList<IpcVehicleComplete> {
+
+	private static final long serialVersionUID = -5212487604474627125L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Needed for Externalizable
+	 */
+	public IpcVehicleCompleteList() {
+		super();
+	}
+
+	/**
+	 * @param vehicles
+	 *            The vehicles to put into the list
+	 */
+	public IpcVehicleCompleteList(Collection<IpcVehicleComplete> vehicles) {
+		super(vehicles);
+	}
+
+	@Override
+	void writeElement(CompactDataOutput out, IpcVehicleComplete vehicle)
+			throws IOException {
+		vehicle.writeCompact(out);
+	}
+
+	@Override
+	IpcVehicleComplete readElement(CompactDataInput in) throws IOException {
+		return IpcVehicleComplete.readCompact(in);
+	}
+
+	@Override
+	long getBaseTime(IpcVehicleComplete vehicle) {
+		return vehicle.getGpsTime();
+	}
+}
@@ -224,4 +224,15 @@ public interface ConfigInterface extends Remote {
 	public List<String> getBlockIds(String serviceId)
 			throws RemoteException;	
 
+	/**
+	 * Returns the configuration revision of the configuration data currently
+	 * being used. Since the configuration data only changes when the
+	 * configRev changes clients can use it to determine whether data they
+	 * have already obtained is still current.
+	 * 
+	 * @return the configRev
+	 * @throws RemoteException
+	 */
+	public int getConfigRev() throws RemoteException;
+	
 }
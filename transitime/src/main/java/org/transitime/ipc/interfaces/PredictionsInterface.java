@@ -22,6 +22,7 @@ import java.rmi.RemoteException;
 import java.util.List;
 
 import org.transitime.db.structs.Location;
+import org.transitime.ipc.data.IpcChanges;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
 
 /**
@@ -125,4 +126,27 @@ public interface PredictionsInterface extends Remote {
 	 */
 	public List<IpcPredictionsForRouteStopDest> getAllPredictions(
 			int predictionMaxFutureSecs) throws RemoteException;
+	
+	/**
+	 * Returns the predictions for just the route/stops whose predictions have
+	 * changed since the last time the client got changes. Allows a client to
+	 * keep a mirror of all predictions without having to get all of them
+	 * each time. For each changed route/stop the predictions for all of its
+	 * destinations are returned. Route/stops that no longer have predictions
+	 * are identified by IpcPredictionsForRouteStopDest.getRouteStopKey() in
+	 * the removed keys.
+	 * 
+	 * @param trackerId
+	 *            The tracker ID from the last IpcChanges received. Use 0 for
+	 *            the first request.
+	 * @param sequence
+	 *            The sequence number from the last IpcChanges received. Use 0
+	 *            for the first request.
+	 * @return The predictions for the changed route/stops. If the trackerId
+	 *         and sequence could not be used then all predictions are
+	 *         returned and IpcChanges.isComplete() is true.
+	 * @throws RemoteException
+	 */
+	public IpcChanges<IpcPredictionsForRouteStopDest> getAllPredictionsChangedSince(
+			long trackerId, long sequence) throws RemoteException;
 }
@@ -22,6 +22,7 @@ import java.rmi.RemoteException;
 import java.util.Collection;
 
 import org.transitime.ipc.data.IpcActiveBlock;
+import org.transitime.ipc.data.IpcChanges;
 import org.transitime.ipc.data.IpcVehicleComplete;
 import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
 import org.transitime.ipc.data.IpcVehicle;
@@ -61,6 +62,26 @@ public interface VehiclesInterface extends Remote {
 	 */
 	public Collection<IpcVehicleComplete> getComplete() throws RemoteException;
 
+	/**
+	 * Gets from server IpcCompleteVehicle info for just the vehicles that have
+	 * changed since the last time the client got changes. Allows a client to
+	 * keep a mirror of the vehicles without having to get all of them each
+	 * time.
+	 * 
+	 * @param trackerId
+	 *            The tracker ID from the last IpcChanges received. Use 0 for
+	 *            the first request.
+	 * @param sequence
+	 *            The sequence number from the last IpcChanges received. Use 0
+	 *            for the first request.
+	 * @return The changed vehicles and IDs of removed vehicles. If the
+	 *         trackerId and sequence could not be used then all vehicles are
+	 *         returned and IpcChanges.isComplete() is true.
+	 * @throws RemoteException
+	 */
+	public IpcChanges<IpcVehicleComplete> getCompleteChangedSince(
+			long trackerId, long sequence) throws RemoteException;
+
 	/**
 	 * Gets from server IpcCompleteVehicle info for all vehicles.
 	 * 
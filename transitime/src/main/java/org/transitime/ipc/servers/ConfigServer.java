@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +50,12 @@ import org.transitime.ipc.rmi.AbstractServer;
 /**
  * Implements ConfigInterface to serve up configuration information to RMI
  * clients. 
+ * <p>
+ * Since the configuration data only changes when a new configRev is loaded
+ * the larger responses, such as for routes, stops, blocks, trip patterns,
+ * and schedules, are memoized so that the Ipc objects don't need to be
+ * recreated for every request. The memoized responses are discarded when
+ * the configRev changes.
  * 
  * @author SkiBu Smith
  * 
@@ -58,12 +65,57 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 	// Should only be accessed as singleton class
 	private static ConfigServer singleton;
 	
+	// The memoized responses for the current configRev
+	private volatile ResponseCache responseCache = new ResponseCache(-1);
+	
 
 	private static final Logger logger = 
 			LoggerFactory.getLogger(ConfigServer.class);
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * The memoized responses for a configRev, keyed on the method and the
+	 * parameters. Only responses for valid parameters are stored so that
+	 * the number of responses is limited by the size of the configuration.
+	 */
+	private static class ResponseCache {
+		private final int configRev;
+		private final ConcurrentHashMap<String, Object> responses =
+				new ConcurrentHashMap<String, Object>();
+		
+		private ResponseCache(int configRev) {
+			this.configRev = configRev;
+		}
+		
+		@SuppressWarnings("unchecked")
+		private <T> T get(String key) {
+			return (T) responses.get(key);
+		}
+		
+		private <T> T put(String key, T response) {
+			if (response != null)
+				responses.put(key, response);
+			return response;
+		}
+	}
+	
+	/**
+	 * Returns the memoized responses for the current configRev. If the
+	 * configRev has changed then a new empty cache is used.
+	 * 
+	 * @return the ResponseCache
+	 */
+	private ResponseCache getResponseCache() {
+		int configRev = Core.getInstance().getDbConfig().getConfigRev();
+		ResponseCache cache = responseCache;
+		if (cache.configRev != configRev) {
+			cache = new ResponseCache(configRev);
+			responseCache = cache;
+		}
+		return cache;
+	}
+	
 	/**
 	 * Starts up the ConfigServer so that RMI calls can query for configuration
 	 * data. This will automatically cause the object to continue to run and
@@ -124,6 +176,12 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 	 */
 	@Override
 	public Collection<IpcRouteSummary> getRoutes() throws RemoteException {
+		// If already created the response then simply return it
+		ResponseCache cache = getResponseCache();
+		Collection<IpcRouteSummary> cachedRoutes = cache.get("routes");
+		if (cachedRoutes != null)
+			return cachedRoutes;
+		
 		// Get the db route info
 		DbConfig dbConfig = Core.getInstance().getDbConfig();
 		Collection<org.transitime.db.structs.Route> dbRoutes = 
@@ -138,7 +196,7 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 		}
 		
 		// Return the collection of ipc routes
-		return ipcRoutes;
+		return cache.put("routes", ipcRoutes);
 	}
 
 	/* (non-Javadoc)
@@ -152,12 +210,33 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 		if (dbRoute == null)
 			return null;
 		
+		// If no optional parameters then can use the memoized route. Don't
+		// memoize for the optional parameters since they could be anything.
+		if (directionId == null && stopId == null && tripPatternId == null)
+			return getIpcRoute(getResponseCache(), dbRoute);
+		
 		// Convert db route into an ipc route and return it
 		IpcRoute ipcRoute =
 				new IpcRoute(dbRoute, directionId, stopId, tripPatternId);
 		return ipcRoute;
 	}
 
+	/**
+	 * Returns the memoized IpcRoute, without any optional parameters, for
+	 * the route. Creates it if it hasn't been created yet.
+	 * 
+	 * @param cache
+	 * @param dbRoute
+	 * @return the IpcRoute
+	 */
+	private IpcRoute getIpcRoute(ResponseCache cache, Route dbRoute) {
+		String key = "route|" + dbRoute.getId();
+		IpcRoute ipcRoute = cache.get(key);
+		if (ipcRoute == null)
+			ipcRoute = cache.put(key, new IpcRoute(dbRoute, null, null, null));
+		return ipcRoute;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see org.transitime.ipc.interfaces.ConfigInterface#getRoutes(java.util.List)
@@ -166,6 +245,7 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 	public List<IpcRoute> getRoutes(List<String> routeIdsOrShortNames)
 			throws RemoteException {
 		List<IpcRoute> routes = new ArrayList<IpcRoute>();
+		ResponseCache cache = getResponseCache();
 
 		// If no route specified then return data for all routes
 		if (routeIdsOrShortNames == null || routeIdsOrShortNames.isEmpty()) {
@@ -173,7 +253,7 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 			List<org.transitime.db.structs.Route> dbRoutes =
 					dbConfig.getRoutes();
 			for (Route dbRoute : dbRoutes) {
-				IpcRoute ipcRoute = new IpcRoute(dbRoute, null, null, null);
+				IpcRoute ipcRoute = getIpcRoute(cache, dbRoute);
 				routes.add(ipcRoute);
 			}
 		} else {
@@ -184,7 +264,7 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 				if (dbRoute == null)
 					continue;
 
-				IpcRoute ipcRoute = new IpcRoute(dbRoute, null, null, null);
+				IpcRoute ipcRoute = getIpcRoute(cache, dbRoute);
 				routes.add(ipcRoute);
 			}
 		}
@@ -203,11 +283,18 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 		if (dbRoute == null)
 			return null;
 		
+		// If already created the response then simply return it
+		ResponseCache cache = getResponseCache();
+		String key = "stops|" + dbRoute.getId();
+		IpcDirectionsForRoute cachedStopsForRoute = cache.get(key);
+		if (cachedStopsForRoute != null)
+			return cachedStopsForRoute;
+		
 		// Convert db route into an ipc route
 		IpcDirectionsForRoute ipcStopsForRoute = new IpcDirectionsForRoute(dbRoute);
 		
 		// Return the ipc route
-		return ipcStopsForRoute;
+		return cache.put(key, ipcStopsForRoute);
 	}
 
 	/* (non-Javadoc)
@@ -223,7 +310,14 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 		if (dbBlock == null)
 			return null;
 		
-		return new IpcBlock(dbBlock);
+		// If already created the response then simply return it
+		ResponseCache cache = getResponseCache();
+		String key = "block|" + serviceId + "|" + blockId;
+		IpcBlock cachedBlock = cache.get(key);
+		if (cachedBlock != null)
+			return cachedBlock;
+		
+		return cache.put(key, new IpcBlock(dbBlock));
 	}
 
 	/* (non-Javadoc)
@@ -232,6 +326,13 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 	@Override
 	public Collection<IpcBlock> getBlocks(String blockId)
 			throws RemoteException {
+		// If already created the response then simply return it
+		ResponseCache cache = getResponseCache();
+		String key = "blocks|" + blockId;
+		Collection<IpcBlock> cachedBlocks = cache.get(key);
+		if (cachedBlocks != null)
+			return cachedBlocks;
+		
 		// For returning results
 		Collection<IpcBlock> ipcBlocks = new ArrayList<IpcBlock>();
 		
@@ -244,8 +345,11 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 			ipcBlocks.add(new IpcBlock(dbBlock));
 		}
 		
-		// Return result
-		return ipcBlocks;
+		// Return result. Only memoize if there are blocks for the blockId so
+		// that invalid blockIds don't fill up the cache.
+		if (ipcBlocks.isEmpty())
+			return ipcBlocks;
+		return cache.put(key, ipcBlocks);
 	}
 	
 	/* (non-Javadoc)
@@ -282,6 +386,13 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 		if (dbRoute == null)
 			return null;
 
+		// If already created the response then simply return it
+		ResponseCache cache = getResponseCache();
+		String key = "tripPatterns|" + dbRoute.getId();
+		List<IpcTripPattern> cachedTripPatterns = cache.get(key);
+		if (cachedTripPatterns != null)
+			return cachedTripPatterns;
+		
 		List<TripPattern> dbTripPatterns = 
 				dbConfig.getTripPatternsForRoute(dbRoute.getId());
 		if (dbTripPatterns == null)
@@ -291,7 +402,7 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 		for (TripPattern dbTripPattern : dbTripPatterns) {
 			tripPatterns.add(new IpcTripPattern(dbTripPattern));
 		}
-		return tripPatterns;
+		return cache.put(key, tripPatterns);
 	}
 
 	/* (non-Javadoc)
@@ -313,6 +424,13 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 		if (dbRoute == null)
 			return null;
 
+		// If already created the response then simply return it
+		ResponseCache cache = getResponseCache();
+		String key = "schedules|" + dbRoute.getId();
+		List<IpcSchedule> cachedSchedules = cache.get(key);
+		if (cachedSchedules != null)
+			return cachedSchedules;
+		
 		// Determine the blocks for the route for all service IDs
 		List<Block> blocksForRoute = Core.getInstance().getDbConfig()
 				.getBlocksForRoute(dbRoute.getId());
@@ -320,7 +438,7 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 		// Convert blocks to list of IpcSchedule objects and return
 		List<IpcSchedule> ipcSchedules = 
 				IpcSchedule.createSchedules(dbRoute, blocksForRoute);
-		return ipcSchedules;
+		return cache.put(key, ipcSchedules);
 	}
 	
 	/* (non-Javadoc)
@@ -436,4 +554,12 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 		return blockIds;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.ConfigInterface#getConfigRev()
+	 */
+	@Override
+	public int getConfigRev() throws RemoteException {
+		return Core.getInstance().getDbConfig().getConfigRev();
+	}
+
 }
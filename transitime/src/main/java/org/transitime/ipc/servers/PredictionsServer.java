@@ -17,7 +17,6 @@
 package org.transitime.ipc.servers;
 
 import java.rmi.RemoteException;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -29,7 +28,9 @@ import org.transitime.core.dataCache.PredictionDataCache;
 import org.transitime.db.structs.Location;
 import org.transitime.gtfs.StopsByLoc;
 import org.transitime.gtfs.StopsByLoc.StopInfo;
+import org.transitime.ipc.data.IpcChanges;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.ipc.data.IpcPredictionsList;
 import org.transitime.ipc.interfaces.PredictionsInterface;
 import org.transitime.ipc.rmi.AbstractServer;
 import org.transitime.utils.IntervalTimer;
@@ -103,8 +104,8 @@ public class PredictionsServer
 	@Override
 	public List<IpcPredictionsForRouteStopDest> get(String routeIdOrShortName,
 			String stopId, int predictionsPerStop) throws RemoteException {
-		return predictionDataCache.getPredictions(routeIdOrShortName, null,
-				stopId, predictionsPerStop);
+		return new IpcPredictionsList(predictionDataCache.getPredictions(
+				routeIdOrShortName, null, stopId, predictionsPerStop));
 	}
 
 	/* (non-Javadoc)
@@ -113,7 +114,8 @@ public class PredictionsServer
 	@Override
 	public List<IpcPredictionsForRouteStopDest> get(List<RouteStop> routeStops,
 			int predictionsPerStop) throws RemoteException {
-		return predictionDataCache.getPredictions(routeStops, predictionsPerStop);
+		return new IpcPredictionsList(predictionDataCache.getPredictions(
+				routeStops, predictionsPerStop));
 	}
 
 	/* (non-Javadoc)
@@ -126,8 +128,18 @@ public class PredictionsServer
 		long maxSystemTimeForPrediction = Core.getInstance().getSystemTime() + 
 				predictionMaxFutureSecs*Time.MS_PER_SEC;
 
-		return predictionDataCache.getAllPredictions(Integer.MAX_VALUE, 
-				maxSystemTimeForPrediction);
+		return new IpcPredictionsList(predictionDataCache.getAllPredictions(
+				Integer.MAX_VALUE, maxSystemTimeForPrediction));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.PredictionsInterface#getAllPredictionsChangedSince(long, long)
+	 */
+	@Override
+	public IpcChanges<IpcPredictionsForRouteStopDest> getAllPredictionsChangedSince(
+			long trackerId, long sequence) {
+		return predictionDataCache.getPredictionChangesSince(trackerId, 
+				sequence);
 	}
 
 	// If stops are relatively close then should order routes based on route
@@ -179,9 +191,10 @@ public class PredictionsServer
 			double maxDistance, int predictionsPerStop) throws RemoteException {
 		IntervalTimer timer = new IntervalTimer();
 		
-		// For returning the results
+		// For returning the results. Uses IpcPredictionsList so that
+		// serialized compactly.
 		List<IpcPredictionsForRouteStopDest> results = 
-				new ArrayList<IpcPredictionsForRouteStopDest>();
+				new IpcPredictionsList();
 		
 		// Determine which stops are near the location
 		List<StopInfo> stopInfos = StopsByLoc.getStops(loc, maxDistance);
@@ -17,7 +17,6 @@
 
 package org.transitime.ipc.servers;
 
-import java.io.Serializable;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -32,7 +31,9 @@ import org.transitime.db.structs.Block;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.VehicleConfig;
 import org.transitime.ipc.data.IpcBlock;
+import org.transitime.ipc.data.IpcChanges;
 import org.transitime.ipc.data.IpcVehicleComplete;
+import org.transitime.ipc.data.IpcVehicleCompleteList;
 import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
 import org.transitime.ipc.data.IpcVehicle;
 import org.transitime.ipc.data.IpcActiveBlock;
@@ -117,6 +118,15 @@ public class VehiclesServer extends AbstractServer
 		return getCompleteSerializableCollection(vehicleDataCache.getVehicles());
 	}
 
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.VehiclesInterface#getCompleteChangedSince(long, long)
+	 */
+	@Override
+	public IpcChanges<IpcVehicleComplete> getCompleteChangedSince(
+			long trackerId, long sequence) throws RemoteException {
+		return vehicleDataCache.getVehicleChangesSince(trackerId, sequence);
+	}
+
 	/* (non-Javadoc)
 	 * @see org.transitime.ipc.interfaces.VehiclesInterface#getGtfsRealtime()
 	 */
@@ -245,6 +255,10 @@ public class VehiclesServer extends AbstractServer
 	 * Collection that is not serializable. For such non-serializable
 	 * collections this method returns a serializable version. If vehicles
 	 * parameter is null then an empty array is returned.
+	 * <p>
+	 * Since these collections can contain all of the vehicles for an agency
+	 * an IpcVehicleCompleteList is used so that they are serialized in a
+	 * compact form.
 	 * 
 	 * @param vehicles
 	 *            Original, possible not serializable, collection of vehicles.
@@ -255,13 +269,9 @@ public class VehiclesServer extends AbstractServer
 			Collection<IpcVehicleComplete> vehicles) {
 		// If vehicles is null then return empty array.
 		if (vehicles == null)
-			return new ArrayList<IpcVehicleComplete>();
+			return new IpcVehicleCompleteList();
 		
-		if (vehicles instanceof Serializable) { 
-			return vehicles;
-		} else {
-			return new ArrayList<IpcVehicleComplete>(vehicles);
-		}			
+		return new IpcVehicleCompleteList(vehicles);
 	}
 
 	/* (non-Javadoc)
@@ -24,8 +24,9 @@ import org.transitime.utils.EmailSender;
 import org.transitime.utils.StringUtils;
 
 /**
- * For monitoring access to database. Examines size of the db logging queue
- * to make sure that writes are not getting backed up.
+ * For monitoring access to database. Examines size of the db logging queues
+ * to make sure that writes are not getting backed up. Triggered if any of
+ * the queues, including the separate per class ones, is too full.
  *
  * @author SkiBu Smith
  *
@@ -71,13 +72,26 @@ public class DatabaseQueueMonitor extends MonitorBase {
 		
 		DataDbLogger dbLogger = core.getDbLogger();
 		
+		// Describe each of the queues, the default one plus any separate
+		// per class queues, so can see which one is backing up
+		StringBuilder queuesInfo = new StringBuilder();
+		for (DataDbLogger.WriterQueue writerQueue : dbLogger.getQueues()) {
+			queuesInfo.append(" Queue ").append(writerQueue.getName())
+					.append(" fraction=")
+					.append(StringUtils.twoDigitFormat(writerQueue.queueLevel()))
+					.append(" items=").append(writerQueue.queueSize())
+					.append(";");
+		}
+		
+		// The queue level is for the fullest queue
+		double queueLevel = dbLogger.queueLevel();
 		setMessage("Database queue fraction=" 
-				+ StringUtils.twoDigitFormat(dbLogger.queueLevel())
+				+ StringUtils.twoDigitFormat(queueLevel)
 				+ " while max allowed fraction=" 
 				+ StringUtils.twoDigitFormat(maxQueueFraction.getValue()) 
 				+ ", and items in queue=" + dbLogger.queueSize()
-				+ ".",
-				dbLogger.queueLevel());
+				+ "." + queuesInfo,
+				queueLevel);
 		
 		// Determine the threshold for triggering. If already triggered
 		// then lower the threshold by maxQueueFractionGap in order
@@ -87,7 +101,7 @@ public class DatabaseQueueMonitor extends MonitorBase {
 		if (wasTriggered())
 			threshold -= maxQueueFractionGap.getValue();
 		
-		return dbLogger.queueLevel() > threshold; 
+		return queueLevel > threshold; 
 	}
 
 	/* (non-Javadoc)
@@ -0,0 +1,307 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.statistics;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact histogram of times, such as travel times or stop times, for
+ * keeping running aggregates of data instead of all of the individual data
+ * points. The times are put into bins of BIN_WIDTH_MSEC. Each bin has a
+ * weight, which is the number of data points in the bin, but it can be
+ * decayed so that older data counts for less than newer data.
+ * <p>
+ * Provides the same statistics as Statistics.filteredMean() and
+ * Statistics.biasedFilteredMean() but determined from the histogram. The
+ * results are therefore accurate to within the bin width. When filtering
+ * outliers an entire bin is filtered out at once instead of a single data
+ * point at a time.
+ * <p>
+ * Only the bins that actually have data are stored and they are stored in
+ * arrays of primitives so that the histogram is small when serialized.
+ */
+public class TimeHistogram implements Serializable {
+
+	// Sorted bin numbers. A bin contains times from
+	// (bin-0.5)*BIN_WIDTH_MSEC to (bin+0.5)*BIN_WIDTH_MSEC.
+	private int[] bins = new int[0];
+
+	// Weight of each bin
+	private float[] weights = new float[0];
+
+	// Times are only precise to this amount
+	private static final int BIN_WIDTH_MSEC = 1000;
+
+	// If decay makes the weight of a bin less than this then the bin is
+	// removed so that the histogram doesn't keep growing
+	private static final float MIN_WEIGHT = 0.01f;
+
+	private static final long serialVersionUID = 2796021738845916582L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates an empty histogram
+	 */
+	public TimeHistogram() {
+	}
+
+	/**
+	 * Adds the time to the histogram with a weight of 1.0
+	 *
+	 * @param timeMsec
+	 */
+	public void add(int timeMsec) {
+		int bin = (int) Math.round((double) timeMsec / BIN_WIDTH_MSEC);
+		int index = Arrays.binarySearch(bins, bin);
+		if (index >= 0) {
+			weights[index] += 1.0f;
+			return;
+		}
+
+		// Need to insert a new bin
+		int insertionIndex = -index - 1;
+		int[] newBins = new int[bins.length + 1];
+		float[] newWeights = new float[weights.length + 1];
+		System.arraycopy(bins, 0, newBins, 0, insertionIndex);
+		System.arraycopy(weights, 0, newWeights, 0, insertionIndex);
+		newBins[insertionIndex] = bin;
+		newWeights[insertionIndex] = 1.0f;
+		System.arraycopy(bins, insertionIndex, newBins, insertionIndex + 1,
+				bins.length - insertionIndex);
+		System.arraycopy(weights, insertionIndex, newWeights,
+				insertionIndex + 1, weights.length - insertionIndex);
+		bins = newBins;
+		weights = newWeights;
+	}
+
+	/**
+	 * Adds all the times to the histogram
+	 *
+	 * @param timesMsec
+	 */
+	public void addAll(List<Integer> timesMsec) {
+		for (int timeMsec : timesMsec)
+			add(timeMsec);
+	}
+
+	/**
+	 * Multiplies the weights by the decay factor so that older data counts
+	 * for less. Bins whose weight becomes insignificant are removed.
+	 *
+	 * @param decayFactor
+	 *            Between 0.0 and 1.0. A value of 1.0 means no decay.
+	 */
+	public void decay(double decayFactor) {
+		if (decayFactor >= 1.0)
+			return;
+
+		int numberRemaining = 0;
+		for (int i = 0; i < bins.length; ++i) {
+			float weight = (float) (weights[i] * decayFactor);
+			if (weight >= MIN_WEIGHT) {
+				bins[numberRemaining] = bins[i];
+				weights[numberRemaining] = weight;
+				++numberRemaining;
+			}
+		}
+		if (numberRemaining != bins.length) {
+			bins = Arrays.copyOf(bins, numberRemaining);
+			weights = Arrays.copyOf(weights, numberRemaining);
+		}
+	}
+
+	/**
+	 * @return true if there is no data in the histogram
+	 */
+	public boolean isEmpty() {
+		return bins.length == 0;
+	}
+
+	/**
+	 * @return total weight of all the bins, which is the number of data
+	 *         points if there has been no decay
+	 */
+	public double getWeight() {
+		double total = 0.0;
+		for (float weight : weights)
+			total += weight;
+		return total;
+	}
+
+	/**
+	 * Returns the time for the bin
+	 *
+	 * @param index
+	 * @return time in msec
+	 */
+	private static int time(int bin) {
+		return bin * BIN_WIDTH_MSEC;
+	}
+
+	/**
+	 * Returns the mean of the bins that have not been filtered out
+	 *
+	 * @param activeWeights
+	 *            weights of the bins, with 0.0 for bins that have been
+	 *            filtered out
+	 * @param totalWeight
+	 * @return the mean time in msec
+	 */
+	private double mean(float[] activeWeights, double totalWeight) {
+		double sum = 0.0;
+		for (int i = 0; i < bins.length; ++i)
+			sum += (double) time(bins[i]) * activeWeights[i];
+		return sum / totalWeight;
+	}
+
+	/**
+	 * Filters out the outliers, one bin at a time, in the same way as
+	 * Statistics.filteredMean(). Modifies activeWeights so that the weight
+	 * of bins filtered out is 0.0.
+	 *
+	 * @param activeWeights
+	 * @param fractionalLimit
+	 *            See Statistics.filteredMean()
+	 * @return the total weight of the bins that remain
+	 */
+	private double filter(float[] activeWeights, double fractionalLimit) {
+		double totalWeight = getWeight();
+		while (totalWeight > 2.0) {
+			int mean = (int) Math.round(mean(activeWeights, totalWeight));
+
+			// Find the worst bin that is beyond the fractionalLimit of the
+			// mean
+			int worstOffenderDeltaFromMean = 0;
+			int worstOffenderIndex = -1;
+			for (int i = 0; i < bins.length; ++i) {
+				if (activeWeights[i] == 0.0f)
+					continue;
+
+				int value = time(bins[i]);
+				int deltaFromMean = Math.abs(value - mean);
+				double fraction = (double) value / mean;
+				if (fraction > 1.0)
+					fraction = 1.0 / fraction;
+				if (deltaFromMean > worstOffenderDeltaFromMean
+						&& fraction < fractionalLimit) {
+					worstOffenderDeltaFromMean = deltaFromMean;
+					worstOffenderIndex = i;
+				}
+			}
+
+			// If no outliers then done
+			if (worstOffenderIndex == -1)
+				break;
+
+			totalWeight -= activeWeights[worstOffenderIndex];
+			activeWeights[worstOffenderIndex] = 0.0f;
+		}
+
+		return totalWeight;
+	}
+
+	/**
+	 * Returns the mean after filtering out outliers. Equivalent to
+	 * Statistics.filteredMean().
+	 *
+	 * @param fractionalLimit
+	 *            See Statistics.filteredMean()
+	 * @return The mean in msec, after outliers have been filtered
+	 * @throws IllegalStateException
+	 *             if the histogram is empty
+	 */
+	public int filteredMean(double fractionalLimit) {
+		if (isEmpty())
+			throw new IllegalStateException("Histogram is empty");
+
+		float[] activeWeights = weights.clone();
+		double totalWeight = filter(activeWeights, fractionalLimit);
+		return (int) Math.round(mean(activeWeights, totalWeight));
+	}
+
+	/**
+	 * Returns the mean after filtering out outliers, biased by the specified
+	 * number of standard deviations. Equivalent to
+	 * Statistics.biasedFilteredMean().
+	 *
+	 * @param fractionalLimit
+	 *            See Statistics.biasedFilteredMean()
+	 * @param stdDevBias
+	 *            See Statistics.biasedFilteredMean()
+	 * @return The biased mean in msec
+	 * @throws IllegalStateException
+	 *             if the histogram is empty
+	 */
+	public int biasedFilteredMean(double fractionalLimit, double stdDevBias) {
+		if (isEmpty())
+			throw new IllegalStateException("Histogram is empty");
+
+		float[] activeWeights = weights.clone();
+		double totalWeight = filter(activeWeights, fractionalLimit);
+		double mean = mean(activeWeights, totalWeight);
+
+		// If only 1 or 2 data points left then simply return the mean
+		if (totalWeight <= 2.0)
+			return (int) Math.round(mean);
+
+		// Determine sample standard deviation of the remaining data
+		double sumSquaredDifferences = 0.0;
+		for (int i = 0; i < bins.length; ++i) {
+			double differenceFromMean = mean - time(bins[i]);
+			sumSquaredDifferences +=
+					activeWeights[i] * differenceFromMean * differenceFromMean;
+		}
+		double stdDev = Math.sqrt(sumSquaredDifferences / (totalWeight - 1.0));
+		return (int) Math.round(mean - stdDevBias * stdDev);
+	}
+
+	/**
+	 * Returns the time that the specified fraction of the data is at or
+	 * below.
+	 *
+	 * @param fraction
+	 *            Between 0.0 and 1.0. 0.5 means the median.
+	 * @return the time in msec
+	 * @throws IllegalStateException
+	 *             if the histogram is empty
+	 */
+	public int quantile(double fraction) {
+		if (isEmpty())
+			throw new IllegalStateException("Histogram is empty");
+
+		double target = fraction * getWeight();
+		double cumulative = 0.0;
+		for (int i = 0; i < bins.length; ++i) {
+			cumulative += weights[i];
+			if (cumulative >= target)
+				return time(bins[i]);
+		}
+		return time(bins[bins.length - 1]);
+	}
+
+	@Override
+	public String toString() {
+		return "TimeHistogram ["
+				+ "bins=" + bins.length
+				+ ", weight=" + getWeight()
+				+ "]";
+	}
+}
@@ -92,6 +92,20 @@ public abstract class CsvBaseReader<T> {
 		this.supplemental = false;
 	}
 	
+	/**
+	 * For processing the CSV objects one at a time, as they are read in,
+	 * instead of having all of them put into a List. See stream().
+	 */
+	public interface CsvObjectHandler<T> {
+		/**
+		 * Called for each CSV object read in. Objects that were filtered
+		 * out by handleRecord() are not passed to the handler.
+		 * 
+		 * @param csvObject
+		 */
+		public void handleObject(T csvObject);
+	}
+	
 	/**
 	 * Called for every record in file. Must be overridden by subclass since an
 	 * object of the appropriate type needs to be created.
@@ -104,10 +118,12 @@ public abstract class CsvBaseReader<T> {
 	
 	/**
 	 * Parse the CSV file. Reads in the header info and then each line. Calls
-	 * the abstract handleRecord() method for each record. Adds each resulting
-	 * CSV object to the gtfsObjecgts array.
+	 * the abstract handleRecord() method for each record. Passes each
+	 * resulting CSV object to the objectHandler.
+	 * 
+	 * @param objectHandler
 	 */
-	private void parse() {
+	private void parse(CsvObjectHandler<T> objectHandler) {
 		CSVRecord record = null;
 		try {
 			IntervalTimer timer = new IntervalTimer();
@@ -145,12 +161,10 @@ public abstract class CsvBaseReader<T> {
 			CSVFormat formatter = 
 					CSVFormat.DEFAULT.withHeader().withCommentMarker('-');
 			
-			// Parse the file
+			// Get ready to parse the file. The records are parsed as they
+			// are iterated over so only the current record is in memory.
 			Iterable<CSVRecord> records = formatter.parse(in);
 			
-			logger.debug("Finished CSV parsing of file {}. Took {} msec.", 
-					fileName, timer.elapsedMsec());
-
 			int lineNumberWhenLogged = 0;
 			timer = new IntervalTimer();
 			IntervalTimer loggingTimer = new IntervalTimer();
@@ -190,9 +204,9 @@ public abstract class CsvBaseReader<T> {
 					continue;
 				}
 				
-				// Add the newly created CSV object to the object list
+				// Hand the newly created CSV object to the handler
 				if (gtfsObject != null)
-					gtfsObjects.add(gtfsObject);		
+					objectHandler.handleObject(gtfsObject);		
 				
 				// Log info if it has been a while. Check only every 20,000
 				// lines to see if the 10 seconds has gone by. If so, then log
@@ -258,11 +272,30 @@ public abstract class CsvBaseReader<T> {
 	public List<T> get(int initialSize) {
 		gtfsObjects = new ArrayList<T>(initialSize);
 		
-		parse();
+		parse(new CsvObjectHandler<T>() {
+			@Override
+			public void handleObject(T csvObject) {
+				gtfsObjects.add(csvObject);
+			}
+		});
 		
 		return gtfsObjects;
 	}
 
+	/**
+	 * For processing very large files, such as stop_times.txt for a large
+	 * agency. Instead of creating a List of all the CSV objects each object
+	 * is passed to the handler as soon as it is read in. This way the raw
+	 * records and any objects that the handler doesn't keep can be garbage
+	 * collected right away.
+	 * 
+	 * @param objectHandler
+	 *            Called for each CSV object read in
+	 */
+	public void stream(CsvObjectHandler<T> objectHandler) {
+		parse(objectHandler);
+	}
+
 	
 	/**
 	 * @return the file name of the file being processed
@@ -280,6 +280,16 @@
         primary key (toStopId, fromStopId, configRev)
     );
 
+    create table TravelTimeAggregates (
+        tripId varchar(60) not null,
+        stopPathIndex integer not null,
+        stopId varchar(60) not null,
+        dataEndTime datetime(3),
+        stopTimes mediumblob,
+        travelTimesBySegment mediumblob,
+        primary key (tripId, stopPathIndex, stopId)
+    );
+
     create table TravelTimesForStopPaths (
         id integer not null auto_increment,
         configRev integer,
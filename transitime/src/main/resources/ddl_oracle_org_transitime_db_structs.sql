@@ -280,6 +280,16 @@
         primary key (toStopId, fromStopId, configRev)
     );
 
+    create table TravelTimeAggregates (
+        tripId varchar2(60 char) not null,
+        stopPathIndex number(10,0) not null,
+        stopId varchar2(60 char) not null,
+        dataEndTime timestamp,
+        stopTimes blob,
+        travelTimesBySegment blob,
+        primary key (tripId, stopPathIndex, stopId)
+    );
+
     create table TravelTimesForStopPaths (
         id number(10,0) not null,
         configRev number(10,0),
@@ -5,6 +5,7 @@
         applicationUrl varchar2(80 char),
         description varchar2(1000 char),
         email varchar2(80 char),
+        maxRequestsPerMinute number(10,0),
         phone varchar2(80 char),
         primary key (applicationName)
     );
@@ -280,6 +280,16 @@
         primary key (toStopId, fromStopId, configRev)
     );
 
+    create table TravelTimeAggregates (
+        tripId varchar(60) not null,
+        stopPathIndex int4 not null,
+        stopId varchar(60) not null,
+        dataEndTime timestamp,
+        stopTimes bytea,
+        travelTimesBySegment bytea,
+        primary key (tripId, stopPathIndex, stopId)
+    );
+
     create table TravelTimesForStopPaths (
         id int4 not null,
         configRev int4,
@@ -0,0 +1,5 @@
+-- Upgrades an existing web database created with an older version of
+-- ddl_postgres_org_transitime_db_webstructs.sql. Not needed for a database
+-- created with the current version of that file.
+
+    alter table ApiKeys add maxRequestsPerMinute int4;
@@ -0,0 +1,105 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.dataCache;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that ChangeTracker reports every change to a client that polls for
+ * the changes while other threads are making them.
+ */
+public class TestChangeTracker extends TestCase {
+
+	private static final int NUMBER_WRITERS = 4;
+	private static final int CHANGES_PER_WRITER = 50000;
+
+	public void testChangesSince() {
+		ChangeTracker<String> tracker = new ChangeTracker<String>();
+		assertEquals(0, tracker.getSequence());
+
+		tracker.changed("a");
+		tracker.changed("b");
+		long sequence = tracker.getSequence();
+		assertEquals(2, sequence);
+
+		tracker.changed("a");
+		List<String> keys = tracker.getKeysChangedSince(sequence);
+		assertEquals(1, keys.size());
+		assertEquals("a", keys.get(0));
+		assertEquals(2, tracker.getKeysChangedSince(0).size());
+		assertTrue(tracker.getKeysChangedSince(3).isEmpty());
+	}
+
+	public void testCanProvideChangesSince() {
+		ChangeTracker<String> tracker = new ChangeTracker<String>();
+		tracker.changed("a");
+
+		assertTrue(tracker.canProvideChangesSince(tracker.getTrackerId(), 0));
+		assertTrue(tracker.canProvideChangesSince(tracker.getTrackerId(), 1));
+		assertFalse(tracker.canProvideChangesSince(tracker.getTrackerId(), 2));
+		assertFalse(tracker.canProvideChangesSince(tracker.getTrackerId(), -1));
+		assertFalse(tracker.canProvideChangesSince(
+				tracker.getTrackerId() - 1, 0));
+	}
+
+	/**
+	 * Each writer changes distinct keys, each only once, while the reader
+	 * polls for the changes the way an API mirror does. If a change were
+	 * missed by a poll it would never be reported since the key doesn't
+	 * change again.
+	 */
+	public void testConcurrentChangesNeverMissed()
+			throws InterruptedException {
+		final ChangeTracker<String> tracker = new ChangeTracker<String>();
+
+		Thread[] writers = new Thread[NUMBER_WRITERS];
+		for (int i = 0; i < NUMBER_WRITERS; ++i) {
+			final int writer = i;
+			writers[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < CHANGES_PER_WRITER; ++j)
+						tracker.changed(writer + "-" + j);
+				}
+			};
+		}
+		for (Thread writer : writers)
+			writer.start();
+
+		Set<String> received = new HashSet<String>();
+		long clientSequence = 0;
+		boolean writersDone = false;
+		while (!writersDone) {
+			// Determine whether this is the last poll before getting the
+			// changes so that the last poll sees all of them
+			writersDone = true;
+			for (Thread writer : writers)
+				writersDone &= !writer.isAlive();
+
+			long sequence = tracker.getSequence();
+			received.addAll(tracker.getKeysChangedSince(clientSequence));
+			clientSequence = sequence;
+		}
+
+		assertEquals(NUMBER_WRITERS * CHANGES_PER_WRITER, clientSequence);
+		assertEquals(NUMBER_WRITERS * CHANGES_PER_WRITER, received.size());
+	}
+}
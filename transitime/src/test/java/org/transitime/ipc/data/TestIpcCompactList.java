@@ -0,0 +1,229 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.transitime.core.BlockAssignmentMethod;
+import org.transitime.core.TemporalDifference;
+import org.transitime.db.structs.AvlReport.AssignmentType;
+
+/**
+ * Makes sure that IpcVehicleCompleteList and IpcPredictionsList, which use
+ * the hand written compact serialization, result in exactly the same
+ * objects after being serialized and deserialized the way RMI does. Every
+ * field, including those of super classes and of contained objects, is
+ * compared so that a mismatch between the order that a writeCompact()
+ * writes fields and that the corresponding readCompact() reads them is
+ * caught.
+ */
+public class TestIpcCompactList extends TestCase {
+
+	// Fields that are intentionally not serialized since they are only
+	// used on the server side. Keyed on class name and field name.
+	private static final Set<String> NOT_SERIALIZED_FIELDS =
+			new HashSet<String>(Arrays.asList(
+					"IpcPrediction.trip",
+					"IpcPrediction.actualPredictionTime"));
+
+	private static final long BASE_TIME = 1420000000000L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Serializes and deserializes the object using ObjectOutputStream and
+	 * ObjectInputStream, just like RMI.
+	 */
+	private static Object roundTrip(Object object) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+
+		ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		return in.readObject();
+	}
+
+	/**
+	 * Compares every non-static field of the objects, including those of
+	 * the super classes. Transitime objects and lists are compared field by
+	 * field. Other values are compared using equals(), which also works
+	 * for NaN floats and doubles since they are boxed.
+	 */
+	private static void assertFieldsEqual(String path, Object expected,
+			Object actual) throws IllegalAccessException {
+		if (expected == null || actual == null) {
+			assertTrue(path + " expected " + expected + " but was " + actual,
+					expected == actual);
+			return;
+		}
+
+		if (expected instanceof List) {
+			List<?> expectedList = (List<?>) expected;
+			List<?> actualList = (List<?>) actual;
+			assertEquals(path + ".size()", expectedList.size(),
+					actualList.size());
+			for (int i = 0; i < expectedList.size(); ++i)
+				assertFieldsEqual(path + "[" + i + "]", expectedList.get(i),
+						actualList.get(i));
+			return;
+		}
+
+		Class<?> c = expected.getClass();
+		if (!c.getName().startsWith("org.transitime.")
+				|| c.isEnum()) {
+			assertEquals(path, expected, actual);
+			return;
+		}
+
+		assertEquals(path + " class", c, actual.getClass());
+		for (; c != Object.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers())
+						|| NOT_SERIALIZED_FIELDS.contains(c.getSimpleName()
+								+ "." + field.getName()))
+					continue;
+				field.setAccessible(true);
+				assertFieldsEqual(path + "." + field.getName(),
+						field.get(expected), field.get(actual));
+			}
+		}
+	}
+
+	private static IpcAvl createAvl(String vehicleId, long time) {
+		return new IpcAvl(vehicleId, time, 37.7749f, -122.4194f, Float.NaN,
+				270.5f, "GTFS-rt", "block" + vehicleId, AssignmentType.BLOCK_ID,
+				"driver " + vehicleId, "plate", 12);
+	}
+
+	private static IpcVehicleComplete createVehicle(String vehicleId,
+			String routeId, long time, TemporalDifference schedAdh) {
+		return new IpcVehicleComplete("block" + vehicleId,
+				BlockAssignmentMethod.AVL_FEED_BLOCK_ASSIGNMENT,
+				createAvl(vehicleId, time), 90.0f, routeId, "R" + routeId,
+				"Route " + routeId, "trip" + vehicleId, "pattern" + routeId,
+				"0", "Downtown", true, false, schedAdh, true, false,
+				time + 300000, "stop1", "First & Main", "bus",
+				time - 600000, true, "stop1", 7, "origin", "dest", 123.45,
+				6789.0, 6665.55);
+	}
+
+	/**
+	 * Creates a vehicle where everything that can be null is null and where
+	 * the times that can be 0 are 0.
+	 */
+	private static IpcVehicleComplete createVehicleWithNulls() {
+		IpcAvl avl = new IpcAvl(null, BASE_TIME, 0.0f, 0.0f, 0.0f, Float.NaN,
+				null, null, null, null, null, -1);
+		return new IpcVehicleComplete(null, null, avl, Float.NaN, null, null,
+				null, null, null, null, null, false, false, null, false, true,
+				0, null, null, null, 0, false, null, null, null, null,
+				Double.NaN, Double.NaN, Double.NaN);
+	}
+
+	private static IpcPrediction createPrediction(String vehicleId,
+			String routeId, String stopId, long predictionTime, long avlTime,
+			boolean isArrival) {
+		return new IpcPrediction(vehicleId, routeId, stopId, 4,
+				"trip" + vehicleId, "pattern" + routeId, "block" + vehicleId,
+				predictionTime, predictionTime - 1000, false, true, avlTime,
+				avlTime + 50, predictionTime - 1800000, true, "driver",
+				(short) 21, 0.75f, false, true, isArrival);
+	}
+
+	/**
+	 * Vehicles with repeated strings, in separate String objects so that
+	 * the dictionary can't rely on them being the same object, as well as
+	 * new strings, nulls, times of 0 and negative schedule adherence.
+	 */
+	public void testVehicleCompleteList() throws Exception {
+		List<IpcVehicleComplete> vehicles = new ArrayList<IpcVehicleComplete>();
+		vehicles.add(createVehicle("1001", new String("route1"), BASE_TIME,
+				new TemporalDifference(120000)));
+		vehicles.add(createVehicleWithNulls());
+		// Earlier than the base time, which is the time of the first vehicle
+		vehicles.add(createVehicle("1002", new String("route1"),
+				BASE_TIME - 45000, new TemporalDifference(-125000)));
+		vehicles.add(createVehicle("1003", "route2", BASE_TIME + 5000,
+				new TemporalDifference(0)));
+
+		IpcVehicleCompleteList list = new IpcVehicleCompleteList(vehicles);
+		Object result = roundTrip(list);
+
+		assertTrue(result instanceof IpcVehicleCompleteList);
+		assertFieldsEqual("vehicles", vehicles, result);
+	}
+
+	public void testEmptyVehicleCompleteList() throws Exception {
+		IpcVehicleCompleteList list = new IpcVehicleCompleteList(
+				new ArrayList<IpcVehicleComplete>());
+		Object result = roundTrip(list);
+
+		assertTrue(result instanceof IpcVehicleCompleteList);
+		assertTrue(((Collection<?>) result).isEmpty());
+	}
+
+	/**
+	 * Predictions for several route/stop/destinations, including one without
+	 * predictions and one with a null stop code and headsign.
+	 */
+	public void testPredictionsList() throws Exception {
+		List<IpcPrediction> preds1 = new ArrayList<IpcPrediction>();
+		preds1.add(createPrediction("1001", "route1", "stop1",
+				BASE_TIME + 60000, BASE_TIME - 10000, true));
+		preds1.add(createPrediction("1002", new String("route1"),
+				new String("stop1"), BASE_TIME + 420000, 0, false));
+
+		List<IpcPrediction> preds2 = new ArrayList<IpcPrediction>();
+		preds2.add(new IpcPrediction(null, "route2", "stop2", -1, null, null,
+				null, BASE_TIME + 90000, 0, true, false, 0, 0, 0, false,
+				null, (short) -1, Float.NaN, true, false, false));
+
+		List<IpcPredictionsForRouteStopDest> predictions =
+				new ArrayList<IpcPredictionsForRouteStopDest>();
+		predictions.add(new IpcPredictionsForRouteStopDest("route1", "1",
+				"Route 1", 0, "stop1", "First & Main", 12345, "Downtown",
+				"0", 25.5, preds1));
+		predictions.add(new IpcPredictionsForRouteStopDest(
+				new String("route1"), "1", "Route 1", 0, "stop3",
+				"Third & Main", null, null, null, Double.NaN,
+				new ArrayList<IpcPrediction>()));
+		predictions.add(new IpcPredictionsForRouteStopDest("route2", "2",
+				"Route 2", -3, "stop2", "Second & Main", -7, "Uptown", "1",
+				0.0, preds2));
+
+		IpcPredictionsList list = new IpcPredictionsList(predictions);
+		Object result = roundTrip(list);
+
+		assertTrue(result instanceof IpcPredictionsList);
+		assertFieldsEqual("predictions", predictions, result);
+	}
+}
@@ -1,6 +1,6 @@
 /*
  * This file is part of Transitime.org
- * 
+ *
  * Transitime.org is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License (GPL) as published by
  * the Free Software Foundation, either version 3 of the License, or
@@ -17,10 +17,23 @@
 
 package org.transitime.api.gtfsRealtime;
 
-import java.util.HashMap;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
 
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 
@@ -28,37 +41,286 @@ import com.google.transit.realtime.GtfsRealtime.FeedMessage;
  * For caching GTFS-realtime messages. Useful because the messages are huge and
  * take a lot of resources so if get multiple requests not too far apart then it
  * makes sense to return a cached version.
+ * <p>
+ * Along with the FeedMessage the cache keeps the serialized bytes, both
+ * plain and gzip compressed, so that they can be written out for each
+ * request without having to serialize the message again. Once a feed for an
+ * agency has been requested it is recreated in a background thread every
+ * transitime.api.gtfsRtRefreshSecs so that requests don't have to wait for
+ * it to be created. If no requests for the agency are received for
+ * transitime.api.gtfsRtIdleSecs then the background refreshing stops for
+ * that agency. The cache is thread safe and only a single thread creates the
+ * feed for an agency at a time so that simultaneous requests don't duplicate
+ * the work.
  *
  * @author SkiBu Smith
  *
  */
 public class DataCache {
 
-    private Map<String, CacheEntry> cacheMap = new HashMap<String, CacheEntry>();
+	// For logging and naming the background thread
+	private final String name;
+
+	private final FeedCreator feedCreator;
+
+	// The cached feeds, keyed by agencyId
+	private final ConcurrentMap<String, CachedFeed> cacheMap =
+			new ConcurrentHashMap<String, CachedFeed>();
+
+	// When feed for each agency last requested, keyed by agencyId. Only the
+	// feeds for agencies in this map are refreshed in the background.
+	private final ConcurrentMap<String, Long> lastRequestTimeMap =
+			new ConcurrentHashMap<String, Long>();
+
+	// So that only a single thread creates the feed for an agency at a time.
+	// Keyed by agencyId.
+	private final ConcurrentMap<String, Object> lockMap =
+			new ConcurrentHashMap<String, Object>();
 
-    /********************** Member Functions **************************/
+	// For refreshing the feeds in the background. Created when first needed.
+	private ScheduledExecutorService refreshExecutor = null;
 
-    private static class CacheEntry {
-	private long timeCreated;
-	private FeedMessage cachedFeedMessage;
-    }
+	// So that the check for whether the background refresh needs to be
+	// started is cheap for every request and doesn't need a lock
+	private final AtomicBoolean refreshStartChecked = new AtomicBoolean();
 
-    public FeedMessage get(String agencyId, int maxCacheSeconds) {
-	CacheEntry cacheEntry = cacheMap.get(agencyId);
-	if (cacheEntry == null)
-	    return null;
-	if (cacheEntry.timeCreated < System.currentTimeMillis() - maxCacheSeconds * Time.MS_PER_SEC) {
-	    cacheMap.remove(agencyId);
-	    return null;
+	private static IntegerConfigValue gtfsRtRefreshSecs =
+			new IntegerConfigValue("transitime.api.gtfsRtRefreshSecs",
+					10,
+					"How frequently in seconds the GTFS-realtime feeds are "
+					+ "recreated in the background once they have been "
+					+ "requested. Should be less than the max age of the "
+					+ "cached feeds so that requests don't need to wait for "
+					+ "a feed to be created. If 0 then the feeds are only "
+					+ "created when requested.");
+
+	private static IntegerConfigValue gtfsRtIdleSecs =
+			new IntegerConfigValue("transitime.api.gtfsRtIdleSecs",
+					5 * Time.SEC_PER_MIN,
+					"If the GTFS-realtime feed for an agency is not "
+					+ "requested for this many seconds then it is no longer "
+					+ "recreated in the background.");
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(DataCache.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * For creating the FeedMessage for an agency when the cache needs to be
+	 * updated.
+	 */
+	public interface FeedCreator {
+		public FeedMessage createMessage(String agencyId);
+	}
+
+	/**
+	 * A FeedMessage along with its serialized bytes so that the bytes can be
+	 * written out directly for each request. Immutable so can be shared by
+	 * multiple request threads.
+	 */
+	public static class CachedFeed {
+		private final long timeCreated;
+		private final FeedMessage feedMessage;
+		private final byte[] bytes;
+		private final byte[] gzippedBytes;
+
+		private CachedFeed(FeedMessage feedMessage) {
+			this.timeCreated = System.currentTimeMillis();
+			this.feedMessage = feedMessage;
+			this.bytes = feedMessage.toByteArray();
+			this.gzippedBytes = gzip(bytes);
+		}
+
+		/**
+		 * @param maxCacheSeconds
+		 * @return true if feed was created more than maxCacheSeconds ago
+		 */
+		private boolean isOlderThan(int maxCacheSeconds) {
+			return timeCreated < System.currentTimeMillis() - maxCacheSeconds
+					* Time.MS_PER_SEC;
+		}
+
+		public long getTimeCreated() {
+			return timeCreated;
+		}
+
+		public FeedMessage getFeedMessage() {
+			return feedMessage;
+		}
+
+		/**
+		 * @return The serialized FeedMessage. Should not be modified since
+		 *         it is shared.
+		 */
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return The gzip compressed serialized FeedMessage. Should not be
+		 *         modified since it is shared.
+		 */
+		public byte[] getGzippedBytes() {
+			return gzippedBytes;
+		}
+	}
+
+	/**
+	 * Returns gzip compressed copy of the bytes.
+	 *
+	 * @param bytes
+	 * @return the compressed bytes
+	 */
+	private static byte[] gzip(byte[] bytes) {
+		try {
+			ByteArrayOutputStream byteStream =
+					new ByteArrayOutputStream(bytes.length / 4 + 64);
+			GZIPOutputStream gzipStream = new GZIPOutputStream(byteStream);
+			gzipStream.write(bytes);
+			gzipStream.close();
+			return byteStream.toByteArray();
+		} catch (IOException e) {
+			// Shouldn't happen since only writing to memory
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param name
+	 *            For logging and naming the background thread
+	 * @param feedCreator
+	 *            For creating the FeedMessage for an agency
+	 */
+	public DataCache(String name, FeedCreator feedCreator) {
+		this.name = name;
+		this.feedCreator = feedCreator;
+	}
+
+	/**
+	 * Returns the cached feed for the agency. If there isn't one or it is
+	 * older than maxCacheSeconds then the feed is created. Also makes sure
+	 * that the feed will be refreshed in the background.
+	 *
+	 * @param agencyId
+	 * @param maxCacheSeconds
+	 * @return the cached feed
+	 */
+	public CachedFeed get(String agencyId, int maxCacheSeconds) {
+		lastRequestTimeMap.put(agencyId, System.currentTimeMillis());
+		startBackgroundRefreshIfNeeded();
+
+		CachedFeed cachedFeed = cacheMap.get(agencyId);
+		if (cachedFeed != null && !cachedFeed.isOlderThan(maxCacheSeconds))
+			return cachedFeed;
+
+		// Need to create the feed. Synchronize so that if another thread
+		// is already creating it then just use the one it created.
+		synchronized (getLock(agencyId)) {
+			cachedFeed = cacheMap.get(agencyId);
+			if (cachedFeed != null
+					&& !cachedFeed.isOlderThan(maxCacheSeconds))
+				return cachedFeed;
+
+			return createFeed(agencyId);
+		}
+	}
+
+	/**
+	 * Returns the object to synchronize on when creating the feed for the
+	 * agency.
+	 *
+	 * @param agencyId
+	 * @return the lock object for the agency
+	 */
+	private Object getLock(String agencyId) {
+		Object lock = lockMap.get(agencyId);
+		if (lock == null) {
+			Object newLock = new Object();
+			lock = lockMap.putIfAbsent(agencyId, newLock);
+			if (lock == null)
+				lock = newLock;
+		}
+		return lock;
 	}
-	return cacheEntry.cachedFeedMessage;
-    }
-    
-    public void put(String agencyId, FeedMessage feedMessage) {
-	CacheEntry cacheEntry = new CacheEntry();
-	cacheEntry.timeCreated = System.currentTimeMillis();
-	cacheEntry.cachedFeedMessage = feedMessage;
-	cacheMap.put(agencyId, cacheEntry);
-    }
-}
 
+	/**
+	 * Creates the feed for the agency and puts it into the cache. Should be
+	 * called while synchronized on the lock for the agency.
+	 *
+	 * @param agencyId
+	 * @return the newly created feed
+	 */
+	private CachedFeed createFeed(String agencyId) {
+		IntervalTimer timer = new IntervalTimer();
+		CachedFeed cachedFeed =
+				new CachedFeed(feedCreator.createMessage(agencyId));
+		cacheMap.put(agencyId, cachedFeed);
+		logger.debug("Creating {} for agencyId={} took {} msec. Size={} "
+				+ "bytes and gzipped size={} bytes", name, agencyId,
+				timer.elapsedMsec(), cachedFeed.getBytes().length,
+				cachedFeed.getGzippedBytes().length);
+		return cachedFeed;
+	}
+
+	/**
+	 * Starts the background thread that refreshes the feeds if it hasn't
+	 * already been started and background refreshing is configured. Called for
+	 * every request so after the first call it simply reads an AtomicBoolean.
+	 */
+	private void startBackgroundRefreshIfNeeded() {
+		// Only the first caller does the work
+		if (refreshStartChecked.get()
+				|| !refreshStartChecked.compareAndSet(false, true))
+			return;
+
+		int refreshSecs = gtfsRtRefreshSecs.getValue();
+		if (refreshSecs <= 0)
+			return;
+
+		refreshExecutor = Executors.newSingleThreadScheduledExecutor(
+				new NamedThreadFactory(name + "Refresh"));
+		refreshExecutor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				refreshFeeds();
+			}
+		}, refreshSecs, refreshSecs, TimeUnit.SECONDS);
+		logger.info("Started background refresh of {} every {} secs", name,
+				refreshSecs);
+	}
+
+	/**
+	 * Called in the background thread. Recreates the feeds for the agencies
+	 * that have been requested recently. Stops refreshing feeds for agencies
+	 * that haven't been requested within transitime.api.gtfsRtIdleSecs.
+	 */
+	private void refreshFeeds() {
+		long idleTime = System.currentTimeMillis() - gtfsRtIdleSecs.getValue()
+				* Time.MS_PER_SEC;
+		for (Map.Entry<String, Long> entry : lastRequestTimeMap.entrySet()) {
+			String agencyId = entry.getKey();
+			Long lastRequestTime = entry.getValue();
+			if (lastRequestTime < idleTime) {
+				// Agency no longer being requested so stop refreshing it
+				// and free up the memory
+				if (lastRequestTimeMap.remove(agencyId, lastRequestTime)) {
+					cacheMap.remove(agencyId);
+					logger.info("No longer refreshing {} for agencyId={} "
+							+ "since not requested recently", name, agencyId);
+				}
+				continue;
+			}
+
+			// Catch exceptions so that the background refreshing continues
+			// even if there is a problem with one of the feeds
+			try {
+				synchronized (getLock(agencyId)) {
+					createFeed(agencyId);
+				}
+			} catch (Exception e) {
+				logger.error("Exception when refreshing {} for agencyId={}",
+						name, agencyId, e);
+			}
+		}
+	}
+}
@@ -28,7 +28,9 @@ import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.api.utils.AgencyTimezoneCache;
+import org.transitime.ipc.clients.ChangesMirror;
 import org.transitime.ipc.clients.PredictionsInterfaceFactory;
+import org.transitime.ipc.clients.PredictionsMirror;
 import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
 import org.transitime.utils.IntervalTimer;
@@ -218,8 +220,14 @@ public class GtfsRtTripFeed {
 		// Get all the predictions, grouped by vehicle, from the server
 		List<IpcPredictionsForRouteStopDest> allPredictionsByStop;
 		try {
-			allPredictionsByStop = PredictionsInterfaceFactory.get(agencyId)
-					.getAllPredictions(PREDICTION_MAX_FUTURE_SECS);
+			// If configured to use mirror then only the changed predictions
+			// need to be obtained from the server
+			if (ChangesMirror.isEnabled())
+				allPredictionsByStop = PredictionsMirror.get(agencyId)
+						.getAllPredictions(PREDICTION_MAX_FUTURE_SECS);
+			else
+				allPredictionsByStop = PredictionsInterfaceFactory.get(agencyId)
+						.getAllPredictions(PREDICTION_MAX_FUTURE_SECS);
 		} catch (RemoteException e) {
 			logger.error("Exception when getting vehicles from RMI", e);
 			return null;
@@ -267,24 +275,36 @@ public class GtfsRtTripFeed {
 	}
 
 	// For getPossiblyCachedMessage()
-	private static final DataCache tripFeedDataCache = new DataCache();
+	private static final DataCache tripFeedDataCache = new DataCache(
+			"GtfsRtTripFeed", new DataCache.FeedCreator() {
+				public FeedMessage createMessage(String agencyId) {
+					return new GtfsRtTripFeed(agencyId).createMessage();
+				}
+			});
 	
 	/**
-	 * For caching Vehicle Positions feed messages.
+	 * For caching Trip Updates feed messages.
 	 * 
 	 * @param agencyId
 	 * @param cacheTime
 	 * @return
 	 */
 	public static FeedMessage getPossiblyCachedMessage(String agencyId, int cacheTime) {
-	    FeedMessage feedMessage = tripFeedDataCache.get(agencyId, cacheTime);
-	    if (feedMessage != null)
-	    	return feedMessage;
-	    
-	    GtfsRtTripFeed feed = new GtfsRtTripFeed(agencyId);
-	    feedMessage = feed.createMessage();
-	    tripFeedDataCache.put(agencyId, feedMessage);
-	    return feedMessage;
+	    return getPossiblyCachedFeed(agencyId, cacheTime).getFeedMessage();
+	}
+
+	/**
+	 * For caching Trip Updates feed messages. Returns the cached feed which
+	 * includes the already serialized message so that it can be written out
+	 * directly.
+	 * 
+	 * @param agencyId
+	 * @param cacheTime
+	 * @return
+	 */
+	public static DataCache.CachedFeed getPossiblyCachedFeed(String agencyId,
+			int cacheTime) {
+		return tripFeedDataCache.get(agencyId, cacheTime);
 	}
 
 }
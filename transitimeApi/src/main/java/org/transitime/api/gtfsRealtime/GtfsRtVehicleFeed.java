@@ -20,13 +20,16 @@ package org.transitime.api.gtfsRealtime;
 import java.rmi.RemoteException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.api.utils.AgencyTimezoneCache;
+import org.transitime.ipc.clients.ChangesMirror;
 import org.transitime.ipc.clients.VehiclesInterfaceFactory;
+import org.transitime.ipc.clients.VehiclesMirror;
 import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
 import org.transitime.ipc.interfaces.VehiclesInterface;
 import org.transitime.utils.Time;
@@ -192,7 +195,13 @@ public class GtfsRtVehicleFeed {
 				VehiclesInterfaceFactory.get(agencyId);
 		Collection<IpcVehicleGtfsRealtime> vehicles = null;
 		try {
-			vehicles = vehiclesInterface.getGtfsRealtime();
+			// If configured to use mirror then only the changed vehicles
+			// need to be obtained from the server
+			if (ChangesMirror.isEnabled())
+				vehicles = new ArrayList<IpcVehicleGtfsRealtime>(
+						VehiclesMirror.get(agencyId).getVehicles());
+			else
+				vehicles = vehiclesInterface.getGtfsRealtime();
 		} catch (RemoteException e) {
 			logger.error("Exception when getting vehicles from RMI", e);
 		}
@@ -211,7 +220,12 @@ public class GtfsRtVehicleFeed {
 	}
 
 	// For getPossiblyCachedMessage()
-	private static final DataCache vehicleFeedDataCache = new DataCache();
+	private static final DataCache vehicleFeedDataCache = new DataCache(
+			"GtfsRtVehicleFeed", new DataCache.FeedCreator() {
+				public FeedMessage createMessage(String agencyId) {
+					return new GtfsRtVehicleFeed(agencyId).createMessage();
+				}
+			});
 
 	/**
 	 * For caching Vehicle Positions feed messages.
@@ -222,13 +236,20 @@ public class GtfsRtVehicleFeed {
 	 */
 	public static FeedMessage getPossiblyCachedMessage(String agencyId,
 			int cacheTime) {
-		FeedMessage feedMessage = vehicleFeedDataCache.get(agencyId, cacheTime);
-		if (feedMessage != null)
-			return feedMessage;
-
-		GtfsRtVehicleFeed feed = new GtfsRtVehicleFeed(agencyId);
-		feedMessage = feed.createMessage();
-		vehicleFeedDataCache.put(agencyId, feedMessage);
-		return feedMessage;
+		return getPossiblyCachedFeed(agencyId, cacheTime).getFeedMessage();
+	}
+
+	/**
+	 * For caching Vehicle Positions feed messages. Returns the cached feed
+	 * which includes the already serialized message so that it can be
+	 * written out directly.
+	 * 
+	 * @param agencyId
+	 * @param cacheTime
+	 * @return
+	 */
+	public static DataCache.CachedFeed getPossiblyCachedFeed(String agencyId,
+			int cacheTime) {
+		return vehicleFeedDataCache.get(agencyId, cacheTime);
 	}
 }
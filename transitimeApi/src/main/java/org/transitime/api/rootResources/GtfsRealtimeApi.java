@@ -19,24 +19,29 @@ package org.transitime.api.rootResources;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.Callable;
 
 import javax.ws.rs.BeanParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 
+import org.transitime.api.utils.AsyncRequestExecutor;
 import org.transitime.api.utils.StandardParameters;
+import org.transitime.api.gtfsRealtime.DataCache.CachedFeed;
 import org.transitime.api.gtfsRealtime.GtfsRtTripFeed;
 import org.transitime.api.gtfsRealtime.GtfsRtVehicleFeed;
 import org.transitime.feed.gtfsRt.OctalDecoder;
 
-import com.google.transit.realtime.GtfsRealtime.FeedMessage;
-
 /**
  * Contains API commands for the GTFS-realtime API.
  *
@@ -50,6 +55,60 @@ public class GtfsRealtimeApi {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * Creates the response for a GTFS-realtime feed. For the standard binary
+	 * format the already serialized bytes of the cached feed are returned,
+	 * gzip compressed if the client accepts it, so that nothing needs to be
+	 * serialized for the request.
+	 * 
+	 * @param cachedFeed
+	 * @param humanFormatOutput
+	 *            if true then output GTFS-rt data in human readable format
+	 * @param acceptEncoding
+	 *            the Accept-Encoding header of the request
+	 * @return the response
+	 */
+	private static Response createResponse(final CachedFeed cachedFeed,
+			boolean humanFormatOutput, String acceptEncoding) {
+		if (!humanFormatOutput) {
+			// Standard binary output. Use MediaType.APPLICATION_OCTET_STREAM.
+			if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+				return Response.ok(cachedFeed.getGzippedBytes())
+						.type(MediaType.APPLICATION_OCTET_STREAM)
+						.header(HttpHeaders.CONTENT_ENCODING, "gzip")
+						.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+						.build();
+			} else {
+				return Response.ok(cachedFeed.getBytes())
+						.type(MediaType.APPLICATION_OCTET_STREAM)
+						.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+						.build();
+			}
+		}
+
+		// Output data in human readable format. Best to use
+		// MediaType.TEXT_PLAIN so that output is formatted properly in web
+		// browser instead of newlines being removed.
+		StreamingOutput stream = new StreamingOutput() {
+			public void write(OutputStream outputStream) throws IOException,
+					WebApplicationException {
+				try {
+					// First, convert the octal escaped message to regular UTF
+					// encoding.
+					String decodedMessage =
+							OctalDecoder.convertOctalEscapedString(cachedFeed
+									.getFeedMessage().toString());
+					outputStream.write(decodedMessage.getBytes());
+				} catch (Exception e) {
+					throw new WebApplicationException(e);
+				}
+			}
+		};
+
+		// Write out the data using the output stream
+		return Response.ok(stream).type(MediaType.TEXT_PLAIN).build();
+	}
+
 	/**
 	 * For getting GTFS-realtime Vehicle Positions data for all vehicles.
 	 * 
@@ -57,15 +116,20 @@ public class GtfsRealtimeApi {
 	 * @param format
 	 *            if set to "human" then will output GTFS-rt data in human
 	 *            readable format. Otherwise will output data in binary format.
-	 * @return
+	 * @param acceptEncoding
+	 *            if it includes "gzip" then binary output is gzip compressed
+	 * @param asyncResponse
+	 *            For returning the response from a separate thread
 	 * @throws WebApplicationException
 	 */
 	@Path("/command/gtfs-rt/vehiclePositions")
 	@GET
 	@Produces({ MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
-	public Response getGtfsRealtimeVehiclePositionsFeed(
+	public void getGtfsRealtimeVehiclePositionsFeed(
 			final @BeanParam StandardParameters stdParameters,
-			@QueryParam(value = "format") String format)
+			@QueryParam(value = "format") String format,
+			final @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+			@Suspended AsyncResponse asyncResponse)
 			throws WebApplicationException {
 
 		// Make sure request is valid
@@ -75,45 +139,28 @@ public class GtfsRealtimeApi {
 		// standard binary GTFS-realtime format.
 		final boolean humanFormatOutput = "human".equals(format);
 
-		// Determine the appropriate output format. For plain text best to use
-		// MediaType.TEXT_PLAIN so that output is formatted properly in web
-		// browser instead of newlines being removed. For binary output should
-		// use MediaType.APPLICATION_OCTET_STREAM.
-		String mediaType =
-				humanFormatOutput ? MediaType.TEXT_PLAIN
-						: MediaType.APPLICATION_OCTET_STREAM;
-
-		// Prepare a StreamingOutput object so can write using it
-		StreamingOutput stream = new StreamingOutput() {
-			public void write(OutputStream outputStream) throws IOException,
-					WebApplicationException {
+		// Get the feed. Usually already created and serialized by the
+		// background refresh so this is quick, but if the feed needs to be
+		// created then the data is obtained from the core system. Therefore
+		// handle the request asynchronously.
+		AsyncRequestExecutor.getInstance().execute(asyncResponse,
+				new Callable<Response>() {
+			@Override
+			public Response call() throws WebApplicationException {
+				CachedFeed cachedFeed;
 				try {
-					FeedMessage message =
-							GtfsRtVehicleFeed.getPossiblyCachedMessage(
+					cachedFeed =
+							GtfsRtVehicleFeed.getPossiblyCachedFeed(
 									stdParameters.getAgencyId(),
 									MAX_GTFS_RT_CACHE_SECS);
-
-					// Output in human readable format or in standard binary
-					// format
-					if (humanFormatOutput) {
-						// Output data in human readable format. First, convert
-						// the octal escaped message to regular UTF encoding.
-						String decodedMessage =
-								OctalDecoder.convertOctalEscapedString(message
-										.toString());
-						outputStream.write(decodedMessage.getBytes());
-					} else {
-						// Standard binary output
-						message.writeTo(outputStream);
-					}
 				} catch (Exception e) {
 					throw new WebApplicationException(e);
 				}
-			}
-		};
 
-		// Write out the data using the output stream
-		return Response.ok(stream).type(mediaType).build();
+				return createResponse(cachedFeed, humanFormatOutput,
+						acceptEncoding);
+			}
+		});
 	}
 
 	/**
@@ -123,15 +170,20 @@ public class GtfsRealtimeApi {
 	 * @param format
 	 *            if set to "human" then will output GTFS-rt data in human
 	 *            readable format. Otherwise will output data in binary format.
-	 * @return
+	 * @param acceptEncoding
+	 *            if it includes "gzip" then binary output is gzip compressed
+	 * @param asyncResponse
+	 *            For returning the response from a separate thread
 	 * @throws WebApplicationException
 	 */
 	@Path("/command/gtfs-rt/tripUpdates")
 	@GET
 	@Produces({ MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
-	public Response getGtfsRealtimeTripFeed(
+	public void getGtfsRealtimeTripFeed(
 			final @BeanParam StandardParameters stdParameters,
-			@QueryParam(value = "format") String format)
+			@QueryParam(value = "format") String format,
+			final @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+			@Suspended AsyncResponse asyncResponse)
 			throws WebApplicationException {
 
 		// Make sure request is valid
@@ -141,45 +193,28 @@ public class GtfsRealtimeApi {
 		// standard binary GTFS-realtime format.
 		final boolean humanFormatOutput = "human".equals(format);
 
-		// Determine the appropriate output format. For plain text best to use
-		// MediaType.TEXT_PLAIN so that output is formatted properly in web
-		// browser instead of newlines being removed. For binary output should
-		// use MediaType.APPLICATION_OCTET_STREAM.
-		String mediaType =
-				humanFormatOutput ? MediaType.TEXT_PLAIN
-						: MediaType.APPLICATION_OCTET_STREAM;
-
-		// Prepare a StreamingOutput object so can write using it
-		StreamingOutput stream = new StreamingOutput() {
-			public void write(OutputStream outputStream) throws IOException,
-					WebApplicationException {
+		// Get the feed. Usually already created and serialized by the
+		// background refresh so this is quick, but if the feed needs to be
+		// created then the data is obtained from the core system. Therefore
+		// handle the request asynchronously.
+		AsyncRequestExecutor.getInstance().execute(asyncResponse,
+				new Callable<Response>() {
+			@Override
+			public Response call() throws WebApplicationException {
+				CachedFeed cachedFeed;
 				try {
-					FeedMessage message =
-							GtfsRtTripFeed.getPossiblyCachedMessage(
+					cachedFeed =
+							GtfsRtTripFeed.getPossiblyCachedFeed(
 									stdParameters.getAgencyId(),
 									MAX_GTFS_RT_CACHE_SECS);
-
-					// Output in human readable format or in standard binary
-					// format
-					if (humanFormatOutput) {
-						// Output data in human readable format. First, convert
-						// the octal escaped message to regular UTF encoding.
-						String decodedMessage =
-								OctalDecoder.convertOctalEscapedString(message
-										.toString());
-						outputStream.write(decodedMessage.getBytes());
-					} else {
-						// Standard binary output
-						message.writeTo(outputStream);
-					}
 				} catch (Exception e) {
 					throw new WebApplicationException(e);
 				}
-			}
-		};
 
-		// Write out the data using the output stream
-		return Response.ok(stream).type(mediaType).build();
+				return createResponse(cachedFeed, humanFormatOutput,
+						acceptEncoding);
+			}
+		});
 	}
 
 }
@@ -23,6 +23,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.ws.rs.BeanParam;
 import javax.ws.rs.DefaultValue;
@@ -31,6 +32,8 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -57,6 +60,7 @@ import org.transitime.api.data.ApiVehicleConfigs;
 import org.transitime.api.data.ApiVehicles;
 import org.transitime.api.data.ApiVehiclesDetails;
 import org.transitime.api.predsByLoc.PredsByLoc;
+import org.transitime.api.utils.AsyncRequestExecutor;
 import org.transitime.api.utils.StandardParameters;
 import org.transitime.api.utils.WebUtils;
 import org.transitime.db.structs.Agency;
@@ -121,62 +125,74 @@ public class TransitimeApi {
 	 * @param numberPredictions
 	 *            For when determining which vehicles are generating the
 	 *            predictions so can label minor vehicles
-	 * @return The Response object already configured for the specified media
-	 *         type.
+	 * @param asyncResponse
+	 *            The Response object, already configured for the specified
+	 *            media type, is returned through this once the vehicles have
+	 *            been obtained from the server via a separate thread. This way
+	 *            a slow server doesn't tie up the threads of the web server.
 	 */
 	@Path("/command/vehicles")
 	@GET
 	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
 	public
-			Response
+			void
 			getVehicles(
-					@BeanParam StandardParameters stdParameters,
-					@QueryParam(value = "v") List<String> vehicleIds,
-					@QueryParam(value = "r") List<String> routesIdOrShortNames,
-					@QueryParam(value = "s") String stopId,
-					@QueryParam(value = "numPreds") @DefaultValue("2") int numberPredictions)
+					final @BeanParam StandardParameters stdParameters,
+					final @QueryParam(value = "v") List<String> vehicleIds,
+					final @QueryParam(value = "r") List<String> routesIdOrShortNames,
+					final @QueryParam(value = "s") String stopId,
+					final @QueryParam(value = "numPreds") @DefaultValue("2") int numberPredictions,
+					@Suspended AsyncResponse asyncResponse)
 					throws WebApplicationException {
 		// Make sure request is valid
 		stdParameters.validate();
 
-		try {
-			// Get Vehicle data from server
-			VehiclesInterface inter = stdParameters.getVehiclesInterface();
+		AsyncRequestExecutor.getInstance().execute(asyncResponse,
+				new Callable<Response>() {
+			@Override
+			public Response call() throws WebApplicationException {
+				try {
+					// Get Vehicle data from server
+					VehiclesInterface inter =
+							stdParameters.getVehiclesInterface();
+
+					Collection<IpcVehicle> vehicles;
+					if (!routesIdOrShortNames.isEmpty()
+							&& !routesIdOrShortNames.get(0).trim().isEmpty()) {
+						vehicles = inter.getForRoute(routesIdOrShortNames);
+					} else if (!vehicleIds.isEmpty()
+							&& !vehicleIds.get(0).trim().isEmpty()) {
+						vehicles = inter.get(vehicleIds);
+					} else {
+						vehicles = inter.get();
+					}
 
-			Collection<IpcVehicle> vehicles;
-			if (!routesIdOrShortNames.isEmpty()
-					&& !routesIdOrShortNames.get(0).trim().isEmpty()) {
-				vehicles = inter.getForRoute(routesIdOrShortNames);
-			} else if (!vehicleIds.isEmpty()
-					&& !vehicleIds.get(0).trim().isEmpty()) {
-				vehicles = inter.get(vehicleIds);
-			} else {
-				vehicles = inter.get();
+					// If the vehicles doesn't exist then throw exception such
+					// that Bad Request with an appropriate message is returned.
+					if (vehicles == null)
+						throw WebUtils.badRequestException("Invalid specifier "
+								+ "for vehicles");
+
+					// To determine how vehicles should be drawn in UI. If stop
+					// specified when getting vehicle info then only the
+					// vehicles being predicted for, should be highlighted. The
+					// others should be dimmed.
+					Map<String, UiMode> uiTypesForVehicles =
+							determineUiModesForVehicles(vehicles,
+									stdParameters, routesIdOrShortNames,
+									stopId, numberPredictions);
+
+					ApiVehicles apiVehicles =
+							new ApiVehicles(vehicles, uiTypesForVehicles);
+
+					// return ApiVehicles response
+					return stdParameters.createResponse(apiVehicles);
+				} catch (Exception e) {
+					// If problem getting data then return a Bad Request
+					throw WebUtils.badRequestException(e.getMessage());
+				}
 			}
-
-			// If the vehicles doesn't exist then throw exception such that
-			// Bad Request with an appropriate message is returned.
-			if (vehicles == null)
-				throw WebUtils.badRequestException("Invalid specifier for "
-						+ "vehicles");
-
-			// To determine how vehicles should be drawn in UI. If stop
-			// specified
-			// when getting vehicle info then only the vehicles being predicted
-			// for, should be highlighted. The others should be dimmed.
-			Map<String, UiMode> uiTypesForVehicles =
-					determineUiModesForVehicles(vehicles, stdParameters,
-							routesIdOrShortNames, stopId, numberPredictions);
-
-			ApiVehicles apiVehicles =
-					new ApiVehicles(vehicles, uiTypesForVehicles);
-
-			// return ApiVehicles response
-			return stdParameters.createResponse(apiVehicles);
-		} catch (Exception e) {
-			// If problem getting data then return a Bad Request
-			throw WebUtils.badRequestException(e.getMessage());
-		}
+		});
 	}
 
 	/**
@@ -457,69 +473,78 @@ public class TransitimeApi {
 	 *            stop code. Can specify multiple stops.
 	 * @param numberPredictions
 	 *            Maximum number of predictions to return. Default value is 3.
-	 * @return
+	 * @param asyncResponse
+	 *            For returning the response from a separate thread
 	 * @throws WebApplicationException
 	 */
 	@Path("/command/predictions")
 	@GET
 	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
 	public
-			Response
+			void
 			getPredictions(
-					@BeanParam StandardParameters stdParameters,
-					@QueryParam(value = "rs") List<String> routeStopStrs,
-					@QueryParam(value = "s") List<String> stopStrs,
-					@QueryParam(value = "numPreds") @DefaultValue("3") int numberPredictions)
+					final @BeanParam StandardParameters stdParameters,
+					final @QueryParam(value = "rs") List<String> routeStopStrs,
+					final @QueryParam(value = "s") List<String> stopStrs,
+					final @QueryParam(value = "numPreds") @DefaultValue("3") int numberPredictions,
+					@Suspended AsyncResponse asyncResponse)
 					throws WebApplicationException {
 		// Make sure request is valid
 		stdParameters.validate();
 
-		try {
-			// Get Prediction data from server
-			PredictionsInterface inter =
-					stdParameters.getPredictionsInterface();
-
-			// Create list of route/stops that should get predictions for
-			List<RouteStop> routeStopsList = new ArrayList<RouteStop>();
-			for (String routeStopStr : routeStopStrs) {
-				// Each route/stop is specified as a single string using "\"
-				// as a divider (e.g. "routeId|stopId")
-				String routeStopParams[] = routeStopStr.split("\\|");
-				String routeIdOrShortName;
-				String stopIdOrCode;
-				if (routeStopParams.length == 1) {
-					// Just stop specified
-					routeIdOrShortName = null;
-					stopIdOrCode = routeStopParams[0];
-				} else {
-					// Both route and stop specified
-					routeIdOrShortName = routeStopParams[0];
-					stopIdOrCode = routeStopParams[1];
+		AsyncRequestExecutor.getInstance().execute(asyncResponse,
+				new Callable<Response>() {
+			@Override
+			public Response call() throws WebApplicationException {
+				try {
+					// Get Prediction data from server
+					PredictionsInterface inter =
+							stdParameters.getPredictionsInterface();
+
+					// Create list of route/stops that should get predictions for
+					List<RouteStop> routeStopsList = new ArrayList<RouteStop>();
+					for (String routeStopStr : routeStopStrs) {
+						// Each route/stop is specified as a single string using "\"
+						// as a divider (e.g. "routeId|stopId")
+						String routeStopParams[] = routeStopStr.split("\\|");
+						String routeIdOrShortName;
+						String stopIdOrCode;
+						if (routeStopParams.length == 1) {
+							// Just stop specified
+							routeIdOrShortName = null;
+							stopIdOrCode = routeStopParams[0];
+						} else {
+							// Both route and stop specified
+							routeIdOrShortName = routeStopParams[0];
+							stopIdOrCode = routeStopParams[1];
+						}
+						RouteStop routeStop =
+								new RouteStop(routeIdOrShortName, stopIdOrCode);
+						routeStopsList.add(routeStop);
+					}
+					
+					// Add to list the stops that should get predictions for
+					for (String stopStr : stopStrs) {
+						// Use null for route identifier so get predictions for all 
+						// routes for the stop
+						RouteStop routeStop = new RouteStop(null, stopStr);
+						routeStopsList.add(routeStop);				
+					}
+					
+					// Actually get the predictions via IPC
+					List<IpcPredictionsForRouteStopDest> predictions =
+							inter.get(routeStopsList, numberPredictions);
+
+					// return ApiPredictions response
+					ApiPredictions predictionsData =
+							new ApiPredictions(predictions);
+					return stdParameters.createResponse(predictionsData);
+				} catch (Exception e) {
+					// If problem getting data then return a Bad Request
+					throw WebUtils.badRequestException(e.getMessage());
 				}
-				RouteStop routeStop =
-						new RouteStop(routeIdOrShortName, stopIdOrCode);
-				routeStopsList.add(routeStop);
 			}
-			
-			// Add to list the stops that should get predictions for
-			for (String stopStr : stopStrs) {
-				// Use null for route identifier so get predictions for all 
-				// routes for the stop
-				RouteStop routeStop = new RouteStop(null, stopStr);
-				routeStopsList.add(routeStop);				
-			}
-			
-			// Actually get the predictions via IPC
-			List<IpcPredictionsForRouteStopDest> predictions =
-					inter.get(routeStopsList, numberPredictions);
-
-			// return ApiPredictions response
-			ApiPredictions predictionsData = new ApiPredictions(predictions);
-			return stdParameters.createResponse(predictionsData);
-		} catch (Exception e) {
-			// If problem getting data then return a Bad Request
-			throw WebUtils.badRequestException(e.getMessage());
-		}
+		});
 	}
 
 	/**
@@ -543,20 +568,22 @@ public class TransitimeApi {
 	 *            m.
 	 * @param numberPredictions
 	 *            Maximum number of predictions to return. Default value is 3.
-	 * @return
+	 * @param asyncResponse
+	 *            For returning the response from a separate thread
 	 * @throws WebApplicationException
 	 */
 	@Path("/command/predictionsByLoc")
 	@GET
 	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
 	public
-			Response
+			void
 			getPredictions(
-					@BeanParam StandardParameters stdParameters,
-					@QueryParam(value = "lat") Double lat,
-					@QueryParam(value = "lon") Double lon,
-					@QueryParam(value = "maxDistance") @DefaultValue("1500.0") double maxDistance,
-					@QueryParam(value = "numPreds") @DefaultValue("3") int numberPredictions)
+					final @BeanParam StandardParameters stdParameters,
+					final @QueryParam(value = "lat") Double lat,
+					final @QueryParam(value = "lon") Double lon,
+					final @QueryParam(value = "maxDistance") @DefaultValue("1500.0") double maxDistance,
+					final @QueryParam(value = "numPreds") @DefaultValue("3") int numberPredictions,
+					@Suspended AsyncResponse asyncResponse)
 					throws WebApplicationException {
 		// Make sure request is valid
 		stdParameters.validate();
@@ -566,23 +593,30 @@ public class TransitimeApi {
 					+ "is " + PredsByLoc.MAX_MAX_DISTANCE + "m but "
 					+ maxDistance + "m was specified in the request.");
 
-		try {
-			// Get Prediction data from server
-			PredictionsInterface inter =
-					stdParameters.getPredictionsInterface();
-
-			// Get predictions by location
-			List<IpcPredictionsForRouteStopDest> predictions =
-					inter.get(new Location(lat, lon), maxDistance,
-							numberPredictions);
-
-			// return ApiPredictions response
-			ApiPredictions predictionsData = new ApiPredictions(predictions);
-			return stdParameters.createResponse(predictionsData);
-		} catch (Exception e) {
-			// If problem getting data then return a Bad Request
-			throw WebUtils.badRequestException(e.getMessage());
-		}
+		AsyncRequestExecutor.getInstance().execute(asyncResponse,
+				new Callable<Response>() {
+			@Override
+			public Response call() throws WebApplicationException {
+				try {
+					// Get Prediction data from server
+					PredictionsInterface inter =
+							stdParameters.getPredictionsInterface();
+
+					// Get predictions by location
+					List<IpcPredictionsForRouteStopDest> predictions =
+							inter.get(new Location(lat, lon), maxDistance,
+									numberPredictions);
+
+					// return ApiPredictions response
+					ApiPredictions predictionsData =
+							new ApiPredictions(predictions);
+					return stdParameters.createResponse(predictionsData);
+				} catch (Exception e) {
+					// If problem getting data then return a Bad Request
+					throw WebUtils.badRequestException(e.getMessage());
+				}
+			}
+		});
 	}
 
 	/**
@@ -604,6 +638,14 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// If response for the current configuration already created
+			// then simply return it
+			Response cachedResponse =
+					stdParameters.getCachedConfigResponse(routeIdsOrShortNames,
+					keepDuplicates);
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			
 			// Get agency info so can also return agency name
@@ -662,7 +704,7 @@ public class TransitimeApi {
 			}
 			
 			// Create and return response
-			return stdParameters.createResponse(routesData);
+			return stdParameters.createConfigResponse(routesData);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e.getMessage());
@@ -711,6 +753,10 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// Not cached using getCachedConfigResponse() since when a stop
+			// is specified the response includes the location of the next
+			// predicted vehicle, which is real-time data.
+
 			// Get Vehicle data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 
@@ -772,6 +818,13 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// If response for the current configuration already created
+			// then simply return it
+			Response cachedResponse =
+					stdParameters.getCachedConfigResponse(routesIdOrShortNames);
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get stops data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			IpcDirectionsForRoute stopsForRoute =
@@ -785,7 +838,7 @@ public class TransitimeApi {
 
 			// Create and return ApiDirections response
 			ApiDirections directionsData = new ApiDirections(stopsForRoute);
-			return stdParameters.createResponse(directionsData);
+			return stdParameters.createConfigResponse(directionsData);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e.getMessage());
@@ -817,6 +870,13 @@ public class TransitimeApi {
 			throw WebUtils.badRequestException("Must specify serviceId");
 
 		try {
+			// If response for the current configuration already created
+			// then simply return it
+			Response cachedResponse =
+					stdParameters.getCachedConfigResponse(blockId, serviceId);
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			IpcBlock ipcBlock = inter.getBlock(blockId, serviceId);
@@ -829,7 +889,7 @@ public class TransitimeApi {
 
 			// Create and return ApiBlock response
 			ApiBlock apiBlock = new ApiBlock(ipcBlock);
-			return stdParameters.createResponse(apiBlock);
+			return stdParameters.createConfigResponse(apiBlock);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e.getMessage());
@@ -857,6 +917,13 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// If response for the current configuration already created
+			// then simply return it
+			Response cachedResponse =
+					stdParameters.getCachedConfigResponse(blockId);
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			Collection<IpcBlock> ipcBlocks = inter.getBlocks(blockId);
@@ -869,7 +936,7 @@ public class TransitimeApi {
 
 			// Create and return ApiBlock response
 			ApiBlocksTerse apiBlocks = new ApiBlocksTerse(ipcBlocks);
-			return stdParameters.createResponse(apiBlocks);
+			return stdParameters.createConfigResponse(apiBlocks);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e.getMessage());
@@ -897,6 +964,13 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// If response for the current configuration already created
+			// then simply return it
+			Response cachedResponse =
+					stdParameters.getCachedConfigResponse(blockId);
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			Collection<IpcBlock> ipcBlocks = inter.getBlocks(blockId);
@@ -909,7 +983,7 @@ public class TransitimeApi {
 
 			// Create and return ApiBlock response
 			ApiBlocks apiBlocks = new ApiBlocks(ipcBlocks);
-			return stdParameters.createResponse(apiBlocks);
+			return stdParameters.createConfigResponse(apiBlocks);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e.getMessage());
@@ -1016,6 +1090,13 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// If response for the current configuration already created
+			// then simply return it
+			Response cachedResponse =
+					stdParameters.getCachedConfigResponse(tripId);
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			IpcTrip ipcTrip = inter.getTrip(tripId);
@@ -1029,7 +1110,7 @@ public class TransitimeApi {
 			// Create and return ApiBlock response.
 			// Include stop path info since just outputting single trip.
 			ApiTrip apiTrip = new ApiTrip(ipcTrip, true);
-			return stdParameters.createResponse(apiTrip);
+			return stdParameters.createConfigResponse(apiTrip);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e.getMessage());
@@ -1127,6 +1208,13 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// If response for the current configuration already created
+			// then simply return it
+			Response cachedResponse =
+					stdParameters.getCachedConfigResponse(routesIdOrShortNames);
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			List<IpcTripPattern> ipcTripPatterns =
@@ -1141,7 +1229,7 @@ public class TransitimeApi {
 			// Create and return ApiTripPatterns response
 			ApiTripPatterns apiTripPatterns =
 					new ApiTripPatterns(ipcTripPatterns);
-			return stdParameters.createResponse(apiTripPatterns);
+			return stdParameters.createConfigResponse(apiTripPatterns);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e.getMessage());
@@ -1171,6 +1259,13 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// If response for the current configuration already created
+			// then simply return it
+			Response cachedResponse =
+					stdParameters.getCachedConfigResponse(routesIdOrShortNames);
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			List<IpcSchedule> ipcSchedules =
@@ -1185,7 +1280,7 @@ public class TransitimeApi {
 			// Create and return ApiSchedules response
 			ApiSchedulesVertStops apiSchedules =
 					new ApiSchedulesVertStops(ipcSchedules);
-			return stdParameters.createResponse(apiSchedules);
+			return stdParameters.createConfigResponse(apiSchedules);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e.getMessage());
@@ -1215,6 +1310,13 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// If response for the current configuration already created
+			// then simply return it
+			Response cachedResponse =
+					stdParameters.getCachedConfigResponse(routesIdOrShortNames);
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			List<IpcSchedule> ipcSchedules =
@@ -1229,7 +1331,7 @@ public class TransitimeApi {
 			// Create and return ApiSchedules response
 			ApiSchedulesHorizStops apiSchedules =
 					new ApiSchedulesHorizStops(ipcSchedules);
-			return stdParameters.createResponse(apiSchedules);
+			return stdParameters.createConfigResponse(apiSchedules);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e.getMessage());
@@ -21,6 +21,7 @@ import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.ws.rs.BeanParam;
 import javax.ws.rs.DefaultValue;
@@ -29,6 +30,8 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -37,6 +40,7 @@ import org.transitime.api.data.ApiAgency;
 import org.transitime.api.data.ApiNearbyPredictionsForAgencies;
 import org.transitime.api.data.ApiPredictions;
 import org.transitime.api.predsByLoc.PredsByLoc;
+import org.transitime.api.utils.AsyncRequestExecutor;
 import org.transitime.api.utils.StandardParameters;
 import org.transitime.api.utils.WebUtils;
 import org.transitime.db.structs.Agency;
@@ -129,18 +133,21 @@ public class TransitimeNonAgencyApi {
 	 *            m.
 	 * @param numberPredictions
 	 *            Maximum number of predictions to return. Default value is 3.
-	 * @return
+	 * @param asyncResponse
+	 *            For returning the response once the predictions have been
+	 *            obtained from the agencies via a separate thread
 	 * @throws WebApplicationException
 	 */
 	@Path("/command/predictionsByLoc")
 	@GET
 	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
-	public Response getPredictions(
-			@BeanParam StandardParameters stdParameters,
-			@QueryParam(value = "lat") Double lat,
-			@QueryParam(value = "lon") Double lon,
-			@QueryParam(value = "maxDistance") @DefaultValue("1500.0") double maxDistance,
-			@QueryParam(value = "numPreds") @DefaultValue("3") int numberPredictions)
+	public void getPredictions(
+			final @BeanParam StandardParameters stdParameters,
+			final @QueryParam(value = "lat") Double lat,
+			final @QueryParam(value = "lon") Double lon,
+			final @QueryParam(value = "maxDistance") @DefaultValue("1500.0") double maxDistance,
+			final @QueryParam(value = "numPreds") @DefaultValue("3") int numberPredictions,
+			@Suspended AsyncResponse asyncResponse)
 			throws WebApplicationException {
 		// Make sure request is valid
 		stdParameters.validate();
@@ -150,39 +157,44 @@ public class TransitimeNonAgencyApi {
 					+ "is " + PredsByLoc.MAX_MAX_DISTANCE + "m but " + maxDistance
 					+ "m was specified in the request.");
 		
-		try {
-			ApiNearbyPredictionsForAgencies predsForAgencies = 
-					new ApiNearbyPredictionsForAgencies();
+		AsyncRequestExecutor.getInstance().execute(asyncResponse,
+				new Callable<Response>() {
+			@Override
+			public Response call() throws WebApplicationException {
+				try {
+					ApiNearbyPredictionsForAgencies predsForAgencies = 
+							new ApiNearbyPredictionsForAgencies();
+					
+					// For each nearby agency...
+					List<String> nearbyAgencies =
+							PredsByLoc.getNearbyAgencies(lat, lon, maxDistance);			
+					for (String agencyId : nearbyAgencies) {
+						// Get predictions by location for the agency
+						PredictionsInterface predictionsInterface =
+								PredictionsInterfaceFactory.get(agencyId);
+						List<IpcPredictionsForRouteStopDest> predictions =
+								predictionsInterface.get(new Location(lat, lon),
+										maxDistance, numberPredictions);
 			
-			// For each nearby agency...
-			List<String> nearbyAgencies =
-					PredsByLoc.getNearbyAgencies(lat, lon, maxDistance);			
-			for (String agencyId : nearbyAgencies) {
-				// Get predictions by location for the agency
-				PredictionsInterface predictionsInterface =
-						PredictionsInterfaceFactory.get(agencyId);
-				List<IpcPredictionsForRouteStopDest> predictions =
-						predictionsInterface.get(new Location(lat, lon),
-								maxDistance, numberPredictions);
-	
-				// Convert predictions to API object
-				ApiPredictions predictionsData = new ApiPredictions(predictions);
+						// Convert predictions to API object
+						ApiPredictions predictionsData = new ApiPredictions(predictions);
 
-				// Add additional agency related info so can describe the 
-				// agency in the API.
-				WebAgency webAgency = WebAgency.getCachedWebAgency(agencyId);
-				String agencyName = webAgency.getAgencyName();				
-				predictionsData.set(agencyId, agencyName);
-				
-				// Add the predictions for the agency to the predictions to
-				// be returned
-				predsForAgencies.addPredictionsForAgency(predictionsData);
+						// Add additional agency related info so can describe the 
+						// agency in the API.
+						WebAgency webAgency = WebAgency.getCachedWebAgency(agencyId);
+						String agencyName = webAgency.getAgencyName();				
+						predictionsData.set(agencyId, agencyName);
+						
+						// Add the predictions for the agency to the predictions to
+						// be returned
+						predsForAgencies.addPredictionsForAgency(predictionsData);
+					}
+					return stdParameters.createResponse(predsForAgencies);
+				} catch (Exception e) {
+					// If problem getting data then return a Bad Request
+					throw WebUtils.badRequestException(e.getMessage());
+				}
 			}
-			return stdParameters.createResponse(predsForAgencies);
-		} catch (Exception e) {
-			// If problem getting data then return a Bad Request
-			throw WebUtils.badRequestException(e.getMessage());
-		}
-
+		});
 	}
 }
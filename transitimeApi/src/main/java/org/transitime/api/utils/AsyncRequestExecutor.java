@@ -0,0 +1,148 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.api.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.utils.threading.NamedThreadFactory;
+
+/**
+ * For handling API requests asynchronously. The RMI calls to the core system
+ * are done by a bounded pool of threads instead of by the servlet container
+ * threads. This way if the core system is slow, such as during a long GC
+ * pause or a database stall, the requests pile up in the queue of this
+ * executor instead of using up all of the threads of the servlet container,
+ * which would make the whole API, including the requests that don't need to
+ * wait for the core system, unresponsive.
+ * <p>
+ * If the queue is full or a request isn't handled within the timeout then a
+ * 503 Service Unavailable response is returned.
+ */
+public class AsyncRequestExecutor {
+
+	// Number of threads for making the calls to the core systems
+	private static int NUMBER_THREADS = 25;
+
+	// How many requests can be waiting for a thread
+	private static int MAX_QUEUED_REQUESTS = 500;
+
+	// How long a request can take before a response is returned anyways
+	private static int TIMEOUT_MSEC = 20000;
+
+	// This is a singleton class
+	private static AsyncRequestExecutor singleton = new AsyncRequestExecutor();
+
+	private final ThreadPoolExecutor executor;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(AsyncRequestExecutor.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor private because singleton class
+	 */
+	private AsyncRequestExecutor() {
+		executor = new ThreadPoolExecutor(NUMBER_THREADS, NUMBER_THREADS,
+				60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS),
+				new NamedThreadFactory("asyncApiRequest"));
+		// So that threads don't stay around when the API is idle
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Get singleton instance.
+	 *
+	 * @return
+	 */
+	public static AsyncRequestExecutor getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Returns a 503 Service Unavailable response with the message
+	 *
+	 * @param message
+	 * @return
+	 */
+	private static Response serviceUnavailableResponse(String message) {
+		return WebUtils.badRequestException(
+				Status.SERVICE_UNAVAILABLE.getStatusCode(), message)
+				.getResponse();
+	}
+
+	/**
+	 * Handles the request by calling the task in a separate thread and
+	 * resuming the AsyncResponse with the Response returned by the task. If
+	 * the task throws an exception, such as a WebApplicationException, the
+	 * AsyncResponse is resumed with the exception so that it is handled the
+	 * same as if thrown by a synchronous resource method.
+	 *
+	 * @param asyncResponse
+	 *            The @Suspended AsyncResponse of the resource method
+	 * @param task
+	 *            Creates the Response for the request
+	 */
+	public void execute(final AsyncResponse asyncResponse,
+			final Callable<Response> task) {
+		asyncResponse.setTimeoutHandler(new TimeoutHandler() {
+			@Override
+			public void handleTimeout(AsyncResponse asyncResponse) {
+				logger.error("API request not handled within {} msec so "
+						+ "returning 503 response.", TIMEOUT_MSEC);
+				asyncResponse.resume(serviceUnavailableResponse("Request "
+						+ "timed out after " + TIMEOUT_MSEC + " msec"));
+			}
+		});
+		asyncResponse.setTimeout(TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					// If already timed out then don't bother with the task
+					if (asyncResponse.isDone())
+						return;
+
+					try {
+						asyncResponse.resume(task.call());
+					} catch (Throwable t) {
+						asyncResponse.resume(t);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.error("Queue of {} API requests is full so returning 503 "
+					+ "response.", MAX_QUEUED_REQUESTS);
+			asyncResponse.resume(serviceUnavailableResponse("Server is too "
+					+ "busy to handle request"));
+		}
+	}
+}
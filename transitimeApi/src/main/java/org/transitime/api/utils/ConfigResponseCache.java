@@ -0,0 +1,233 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.api.utils;
+
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.ws.rs.core.EntityTag;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.ipc.interfaces.ConfigInterface;
+
+/**
+ * Caches the rendered JSON or XML of responses for configuration data, such
+ * as routes, stops, blocks, and schedules. Since the configuration only
+ * changes when a new configRev is loaded by the core system the rendered
+ * bytes can be reused for identical requests until then. Each response also
+ * gets an ETag so that clients that already have the data can be sent a
+ * simple 304 Not Modified.
+ * <p>
+ * The configRev for an agency is obtained from the core system but it is
+ * only checked every CONFIG_REV_CHECK_MSEC so that the cache doesn't cause
+ * an RMI call for every request.
+ * <p>
+ * The memory used is limited by the total size of the cached responses. If
+ * the limit is exceeded then the least recently used responses are evicted.
+ */
+public class ConfigResponseCache {
+
+	// How long to use the configRev obtained from the core system before
+	// checking it again
+	private static final long CONFIG_REV_CHECK_MSEC = 10000;
+
+	// The maximum total size of the cached responses. If exceeded then the
+	// least recently used responses are evicted so that unusual requests
+	// cannot use up all of the memory.
+	private static final long MAX_BYTES = 50 * 1024 * 1024;
+
+	// Approximate memory used by each cache entry in addition to the bytes
+	// of the response and the key
+	private static final int ENTRY_OVERHEAD_BYTES = 200;
+
+	// This is a singleton class
+	private static ConfigResponseCache singleton = new ConfigResponseCache();
+
+	// The rendered responses, keyed on agency, media type, and the command
+	// along with its parameters. In access order so that the least recently
+	// used responses can be evicted. Synchronized on itself.
+	private final LinkedHashMap<String, CachedResponse> responses =
+			new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+
+	// Total size of the cached responses, as determined by size()
+	private long totalBytes = 0;
+
+	// The most recently obtained configRev, keyed on agency ID
+	private final Map<String, ConfigRevCheck> configRevs =
+			new ConcurrentHashMap<String, ConfigRevCheck>();
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ConfigResponseCache.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * A rendered response along with the configRev it is for
+	 */
+	public static class CachedResponse {
+		private final int configRev;
+		private final EntityTag entityTag;
+		private final byte[] bytes;
+
+		private CachedResponse(int configRev, byte[] bytes) {
+			this.configRev = configRev;
+			this.entityTag = new EntityTag(configRev + "-"
+					+ Integer.toHexString(Arrays.hashCode(bytes)));
+			this.bytes = bytes;
+		}
+
+		public EntityTag getEntityTag() {
+			return entityTag;
+		}
+
+		public byte[] getBytes() {
+			return bytes;
+		}
+	}
+
+	/**
+	 * Returns the approximate memory used by a cache entry
+	 *
+	 * @param key
+	 * @param cachedResponse
+	 * @return size in bytes
+	 */
+	private static long size(String key, CachedResponse cachedResponse) {
+		return cachedResponse.bytes.length + 2 * key.length()
+				+ ENTRY_OVERHEAD_BYTES;
+	}
+
+	/**
+	 * A configRev and when it was obtained from the core system
+	 */
+	private static class ConfigRevCheck {
+		private final int configRev;
+		private final long checkTime;
+
+		private ConfigRevCheck(int configRev, long checkTime) {
+			this.configRev = configRev;
+			this.checkTime = checkTime;
+		}
+	}
+
+	/**
+	 * Constructor private because singleton class
+	 */
+	private ConfigResponseCache() {
+	}
+
+	/**
+	 * Get singleton instance.
+	 *
+	 * @return
+	 */
+	public static ConfigResponseCache getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Returns the configRev currently being used by the core system for the
+	 * agency. Only asks the core system if haven't done so within the last
+	 * CONFIG_REV_CHECK_MSEC.
+	 *
+	 * @param agencyId
+	 * @param inter
+	 *            For getting the configRev from the core system
+	 * @return The configRev
+	 * @throws RemoteException
+	 */
+	public int getConfigRev(String agencyId, ConfigInterface inter)
+			throws RemoteException {
+		long now = System.currentTimeMillis();
+		ConfigRevCheck check = configRevs.get(agencyId);
+		if (check == null || now > check.checkTime + CONFIG_REV_CHECK_MSEC) {
+			check = new ConfigRevCheck(inter.getConfigRev(), now);
+			configRevs.put(agencyId, check);
+		}
+		return check.configRev;
+	}
+
+	/**
+	 * Returns the cached response for the key if there is one for the
+	 * specified configRev.
+	 *
+	 * @param key
+	 * @param configRev
+	 * @return The cached response, or null if there isn't one for the
+	 *         configRev
+	 */
+	public CachedResponse get(String key, int configRev) {
+		CachedResponse cachedResponse;
+		synchronized (responses) {
+			cachedResponse = responses.get(key);
+		}
+		if (cachedResponse == null || cachedResponse.configRev != configRev)
+			return null;
+		return cachedResponse;
+	}
+
+	/**
+	 * Caches the rendered response for the key and configRev. If the total
+	 * size of the cached responses then exceeds MAX_BYTES the least recently
+	 * used responses are evicted. A response that is larger than MAX_BYTES
+	 * by itself is not cached.
+	 *
+	 * @param key
+	 * @param configRev
+	 * @param bytes
+	 *            The rendered JSON or XML
+	 * @return The response, which can be used even if it wasn't cached
+	 */
+	public CachedResponse put(String key, int configRev, byte[] bytes) {
+		CachedResponse cachedResponse = new CachedResponse(configRev, bytes);
+		long size = size(key, cachedResponse);
+		if (size > MAX_BYTES) {
+			logger.warn("Config response of {} bytes for {} is too large to "
+					+ "be cached.", bytes.length, key);
+			return cachedResponse;
+		}
+
+		synchronized (responses) {
+			CachedResponse previous = responses.put(key, cachedResponse);
+			if (previous != null)
+				totalBytes -= size(key, previous);
+			totalBytes += size;
+
+			// Evict least recently used responses until within limit
+			int evicted = 0;
+			Iterator<Map.Entry<String, CachedResponse>> iterator =
+					responses.entrySet().iterator();
+			while (totalBytes > MAX_BYTES && iterator.hasNext()) {
+				Map.Entry<String, CachedResponse> entry = iterator.next();
+				totalBytes -= size(entry.getKey(), entry.getValue());
+				iterator.remove();
+				++evicted;
+			}
+			if (evicted > 0)
+				logger.info("Size of cached config responses exceeded {} "
+						+ "bytes so evicted {} responses.", MAX_BYTES, evicted);
+		}
+
+		return cachedResponse;
+	}
+}
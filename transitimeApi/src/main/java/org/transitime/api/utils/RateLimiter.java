@@ -0,0 +1,223 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.api.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sliding window rate limiter that uses a fixed amount of memory and
+ * constant time per request, and doesn't lock. For each key, such as an IP
+ * address, the number of requests in the current and in the previous time
+ * window are counted. The number of requests within the sliding window is
+ * then estimated as the count of the current window plus the count of the
+ * previous window weighted by how much of the previous window is still
+ * within the sliding window.
+ * <p>
+ * The state of a key is packed into a single long in an AtomicLongArray so
+ * that it can be updated with a compare and set. A key is hashed to a slot
+ * and a small number of subsequent slots are probed. A slot that hasn't been
+ * used in the previous two windows is simply reused for a new key so there
+ * is no need to clear out idle keys. If all probed slots are active then the
+ * least active one is taken over.
+ * <p>
+ * Since only a fingerprint of the key is stored two keys can on rare
+ * occasions share a slot, and if two threads concurrently add the same new
+ * key it can end up in two slots. Both simply mean that the limit is
+ * applied a bit loosely or strictly, which is fine for preventing abuse.
+ */
+public class RateLimiter {
+
+	// Layout of a slot, from the high bits to the low bits. A fingerprint of
+	// 0 means that the slot is empty.
+	private static final int FINGERPRINT_BITS = 20;
+	private static final int WINDOW_BITS = 16;
+	private static final int COUNT_BITS = 14;
+
+	private static final int CURR_SHIFT = 0;
+	private static final int PREV_SHIFT = COUNT_BITS;
+	private static final int WINDOW_SHIFT = 2 * COUNT_BITS;
+	private static final int FINGERPRINT_SHIFT = WINDOW_SHIFT + WINDOW_BITS;
+
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+	private static final long WINDOW_MASK = (1L << WINDOW_BITS) - 1;
+	private static final long FINGERPRINT_MASK = (1L << FINGERPRINT_BITS) - 1;
+
+	// Counts saturate at this value. A limit of at least this value is
+	// therefore treated as no limit at all.
+	public static final int MAX_COUNT = (int) COUNT_MASK;
+
+	// How many slots are looked at for a key
+	private static final int MAX_PROBES = 8;
+
+	private final AtomicLongArray slots;
+	private final int slotMask;
+	private final long windowMsec;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param numberSlots
+	 *            Maximum number of keys that are tracked at once. Rounded up
+	 *            to a power of 2. Each slot takes 8 bytes.
+	 * @param windowMsec
+	 *            Length of the sliding window
+	 */
+	public RateLimiter(int numberSlots, long windowMsec) {
+		int size = Integer.highestOneBit(Math.max(numberSlots, MAX_PROBES));
+		if (size < numberSlots)
+			size <<= 1;
+		this.slots = new AtomicLongArray(size);
+		this.slotMask = size - 1;
+		this.windowMsec = windowMsec;
+	}
+
+	private static long pack(long fingerprint, long window, long prev,
+			long curr) {
+		return (fingerprint << FINGERPRINT_SHIFT)
+				| ((window & WINDOW_MASK) << WINDOW_SHIFT)
+				| (prev << PREV_SHIFT) | (curr << CURR_SHIFT);
+	}
+
+	private static int fingerprint(long slot) {
+		return (int) ((slot >>> FINGERPRINT_SHIFT) & FINGERPRINT_MASK);
+	}
+
+	private static long window(long slot) {
+		return (slot >>> WINDOW_SHIFT) & WINDOW_MASK;
+	}
+
+	private static int prev(long slot) {
+		return (int) ((slot >>> PREV_SHIFT) & COUNT_MASK);
+	}
+
+	private static int curr(long slot) {
+		return (int) ((slot >>> CURR_SHIFT) & COUNT_MASK);
+	}
+
+	/**
+	 * Returns how many windows the slot is behind the current window. Since
+	 * only the low bits of the window are stored a slot that has been idle
+	 * for a very long time could appear recent, which only means that its
+	 * old counts are used once more.
+	 */
+	private static long windowsBehind(long slot, long window) {
+		return (window - window(slot)) & WINDOW_MASK;
+	}
+
+	/**
+	 * Records a request for the key if doing so doesn't exceed the limit.
+	 *
+	 * @param key
+	 *            Identifies the requester, such as the IP address
+	 * @param limit
+	 *            Maximum number of requests allowed within the sliding
+	 *            window. If it is MAX_COUNT or greater the request is always
+	 *            allowed and isn't tracked.
+	 * @param now
+	 *            Current epoch time in msec
+	 * @return true if the request is allowed, false if the limit would be
+	 *         exceeded
+	 */
+	public boolean tryAcquire(String key, int limit, long now) {
+		// Limits this large can't be counted so don't limit at all instead
+		// of throttling at MAX_COUNT
+		if (limit >= MAX_COUNT)
+			return true;
+
+		// Spread the bits of the hash code so that the index and the
+		// fingerprint come from independent bits
+		long hash = key.hashCode() * 0x9E3779B97F4A7C15L;
+		int index = (int) hash & slotMask;
+		int fingerprint = (int) (hash >>> (64 - FINGERPRINT_BITS)) | 1;
+
+		long windowNumber = now / windowMsec;
+		long window = windowNumber & WINDOW_MASK;
+		double fractionOfPrevWindow =
+				1.0 - (double) (now - windowNumber * windowMsec) / windowMsec;
+
+		while (true) {
+			// Look for the key. Also keep track of which slot to take over
+			// in case the key is not found.
+			int freeIndex = -1;
+			long freeSlot = 0;
+			int leastActiveIndex = index;
+			long leastActiveSlot = 0;
+			int leastActiveCount = Integer.MAX_VALUE;
+			int foundIndex = -1;
+			long slot = 0;
+			for (int i = 0; i < MAX_PROBES; ++i) {
+				int probeIndex = (index + i) & slotMask;
+				slot = slots.get(probeIndex);
+				if (slot != 0 && fingerprint(slot) == fingerprint) {
+					foundIndex = probeIndex;
+					break;
+				}
+
+				long behind = windowsBehind(slot, window);
+				if (slot == 0 || behind > 1) {
+					if (freeIndex < 0) {
+						freeIndex = probeIndex;
+						freeSlot = slot;
+					}
+				} else {
+					int count = curr(slot) + (behind == 0 ? prev(slot) : 0);
+					if (count < leastActiveCount) {
+						leastActiveCount = count;
+						leastActiveIndex = probeIndex;
+						leastActiveSlot = slot;
+					}
+				}
+			}
+
+			if (foundIndex >= 0) {
+				// Roll the counts forward to the current window
+				long behind = windowsBehind(slot, window);
+				int prev, curr;
+				if (behind == 0) {
+					prev = prev(slot);
+					curr = curr(slot);
+				} else if (behind == 1) {
+					prev = curr(slot);
+					curr = 0;
+				} else {
+					prev = 0;
+					curr = 0;
+				}
+
+				double estimate = curr + prev * fractionOfPrevWindow;
+				if (estimate + 1 > limit)
+					return false;
+
+				long newSlot = pack(fingerprint, window, prev, curr + 1);
+				if (slots.compareAndSet(foundIndex, slot, newSlot))
+					return true;
+			} else {
+				// Key not found so claim a slot for it
+				int claimIndex = freeIndex >= 0 ? freeIndex : leastActiveIndex;
+				long claimSlot = freeIndex >= 0 ? freeSlot : leastActiveSlot;
+				if (limit < 1)
+					return false;
+				if (slots.compareAndSet(claimIndex, claimSlot,
+						pack(fingerprint, window, 0, 1)))
+					return true;
+			}
+
+			// Another thread changed the slot so try again
+		}
+	}
+}
@@ -17,6 +17,12 @@
 
 package org.transitime.api.utils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.rmi.RemoteException;
+import java.util.Collection;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.HeaderParam;
@@ -25,10 +31,17 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.api.utils.ConfigResponseCache.CachedResponse;
 import org.transitime.db.webstructs.ApiKeyManager;
 import org.transitime.ipc.clients.CommandsInterfaceFactory;
 import org.transitime.ipc.clients.ConfigInterfaceFactory;
@@ -70,6 +83,26 @@ public class StandardParameters {
 	@Context
 	HttpServletRequest request;
 
+	// For evaluating the If-None-Match header of configuration requests
+	@Context
+	Request jaxrsRequest;
+
+	// For rendering configuration responses so that they can be cached
+	@Context
+	Providers providers;
+
+	// The configRev that was current when getCachedConfigResponse() was
+	// called. Used by createConfigResponse() so that the response is cached
+	// for the configRev that was current before the data was obtained.
+	private Integer configRev;
+
+	// The key for caching the response, as determined by
+	// getCachedConfigResponse()
+	private String configResponseKey;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(StandardParameters.class);
+
 	/********************** Member Functions **************************/
 
 	/**
@@ -171,6 +204,189 @@ public class StandardParameters {
 		return responseBuilder.build();
 	}
 
+	/**
+	 * For configuration commands. If the response for the request has already
+	 * been rendered for the current configRev then returns it. If the client
+	 * already has the data, as indicated by the If-None-Match header, then
+	 * the response is simply a 304 Not Modified. Should be called before
+	 * obtaining the data from the server. If null is returned the data should
+	 * be obtained and then createConfigResponse() should be called.
+	 * <p>
+	 * The command specific parameters must be passed in, always in the same
+	 * order for a command, since they determine the response. Only these
+	 * parameters are used for identifying the cached response so that
+	 * other parameters in the query string can't be used to fill up the
+	 * cache with duplicate responses.
+	 * 
+	 * @param commandParameters
+	 *            The values of the parameters of the command. Can be null or
+	 *            collections of values.
+	 * @return The response, or null if not already rendered
+	 * @throws WebApplicationException
+	 */
+	public Response getCachedConfigResponse(Object... commandParameters)
+			throws WebApplicationException {
+		String mediaType = getMediaType();
+		if (!isCacheable(mediaType))
+			return null;
+
+		ConfigResponseCache cache = ConfigResponseCache.getInstance();
+		try {
+			configRev = cache.getConfigRev(agencyId, getConfigInterface());
+		} catch (RemoteException e) {
+			logger.error("Exception getting configRev for agencyId={}", 
+					agencyId, e);
+			return null;
+		}
+
+		configResponseKey = 
+				getConfigResponseKey(mediaType, commandParameters);
+		CachedResponse cachedResponse = cache.get(configResponseKey, configRev);
+		if (cachedResponse == null)
+			return null;
+
+		return createResponse(cachedResponse, mediaType);
+	}
+
+	/**
+	 * For configuration commands. Like createResponse() but the response is
+	 * rendered into bytes that are cached so that identical requests can be
+	 * handled by getCachedConfigResponse() until the configRev changes.
+	 * 
+	 * @param object
+	 *            Object to be returned in XML or JSON
+	 * @return The created response in the proper media type.
+	 */
+	public Response createConfigResponse(Object object) {
+		String mediaType = getMediaType();
+		if (configRev == null || !isCacheable(mediaType))
+			return createResponse(object);
+
+		byte[] bytes;
+		try {
+			bytes = render(object, MediaType.valueOf(mediaType));
+		} catch (IOException e) {
+			logger.error("Exception rendering {}", 
+					object.getClass().getSimpleName(), e);
+			return createResponse(object);
+		}
+		if (bytes == null)
+			return createResponse(object);
+
+		CachedResponse cachedResponse = ConfigResponseCache.getInstance().put(
+				configResponseKey, configRev, bytes);
+		return createResponse(cachedResponse, mediaType);
+	}
+
+	/**
+	 * Creates the response for already rendered data. If the client already
+	 * has the data, as indicated by the If-None-Match header matching the
+	 * ETag, then a 304 Not Modified response without any data is created.
+	 * 
+	 * @param cachedResponse
+	 * @param mediaType
+	 * @return The created response
+	 */
+	private Response createResponse(CachedResponse cachedResponse,
+			String mediaType) {
+		ResponseBuilder responseBuilder =
+				jaxrsRequest.evaluatePreconditions(cachedResponse.getEntityTag());
+		if (responseBuilder == null)
+			responseBuilder = Response.ok(cachedResponse.getBytes());
+		responseBuilder.tag(cachedResponse.getEntityTag());
+		responseBuilder.header("Access-Control-Allow-Origin", "*");
+		responseBuilder.type(mediaType);
+		return responseBuilder.build();
+	}
+
+	/**
+	 * Renders the object into JSON or XML using the same MessageBodyWriter
+	 * that Jersey would use for the response.
+	 * 
+	 * @param object
+	 * @param mediaType
+	 * @return The rendered bytes, or null if there is no appropriate writer
+	 * @throws IOException
+	 */
+	private byte[] render(Object object, MediaType mediaType)
+			throws IOException {
+		@SuppressWarnings("unchecked")
+		Class<Object> type = (Class<Object>) object.getClass();
+		Annotation[] annotations = new Annotation[0];
+		MessageBodyWriter<Object> writer = 
+				providers.getMessageBodyWriter(type, type, annotations,
+						mediaType);
+		if (writer == null)
+			return null;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.writeTo(object, type, type, annotations, mediaType,
+				new MultivaluedHashMap<String, Object>(), out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Only JSON and XML responses are cached
+	 * 
+	 * @param mediaType
+	 * @return true if responses of the media type can be cached
+	 */
+	private static boolean isCacheable(String mediaType) {
+		return mediaType.equals(MediaType.APPLICATION_JSON)
+				|| mediaType.equals(MediaType.APPLICATION_XML);
+	}
+
+	/**
+	 * Appends the parameter value to the key. Each value is prefixed with
+	 * its length so that different parameter values can never result in the
+	 * same key.
+	 * 
+	 * @param sb
+	 * @param value
+	 */
+	private static void appendKeyValue(StringBuilder sb, Object value) {
+		if (value == null) {
+			sb.append("|-");
+		} else if (value instanceof Collection) {
+			Collection<?> values = (Collection<?>) value;
+			sb.append("|[").append(values.size());
+			for (Object element : values)
+				appendKeyValue(sb, element);
+		} else {
+			String str = value.toString();
+			sb.append('|').append(str.length()).append(':').append(str);
+		}
+	}
+
+	/**
+	 * Returns the key for caching the response. Consists of the agency,
+	 * media type, the command, and the values of the command parameters.
+	 * The query string is not used since it could contain any number of
+	 * additional parameters. The application key is not included so that
+	 * different users share the cached responses.
+	 * 
+	 * @param mediaType
+	 * @param commandParameters
+	 * @return the key
+	 */
+	private String getConfigResponseKey(String mediaType,
+			Object[] commandParameters) {
+		String uri = request.getRequestURI();
+		int commandIdx = uri.indexOf("/command/");
+		String command = commandIdx >= 0 ? uri.substring(commandIdx) : uri;
+		// Normalize so that matrix parameters and extra slashes in the path
+		// don't result in additional keys
+		command = command.replaceAll(";[^/]*", "").replaceAll("/+", "/");
+		if (command.endsWith("/"))
+			command = command.substring(0, command.length() - 1);
+		StringBuilder sb = new StringBuilder();
+		sb.append(agencyId).append(' ').append(mediaType).append(' ')
+				.append(command);
+		for (Object value : commandParameters)
+			appendKeyValue(sb, value);
+		return sb.toString();
+	}
+
 	/**
 	 * Gets the VehiclesInterface for the specified agencyId. If not valid then
 	 * throws WebApplicationException.
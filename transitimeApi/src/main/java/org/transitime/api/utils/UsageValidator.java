@@ -17,24 +17,22 @@
 
 package org.transitime.api.utils;
 
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 import javax.ws.rs.WebApplicationException;
 
+import org.transitime.db.webstructs.ApiKey;
+import org.transitime.db.webstructs.ApiKeyManager;
+import org.transitime.utils.Time;
+
 /**
  * For making sure that use of API doesn't exceed limits. Intended to deal with
  * bad applications that are requesting too much data or a denial of service
- * attack. Currently simply checks to make sure that for a given request IP
- * address that there aren't more than a certain number of requests per time
- * frame.
- * <p>
- * This check should probably be refined in the future.
+ * attack. Checks to make sure that for a given request IP address that there
+ * aren't more than a certain number of requests per time frame. Also, if the
+ * ApiKey has a maxRequestsPerMinute quota, makes sure that the quota is not
+ * exceeded for the key.
  * <p>
- * Note that a map is used to keep track of the last request times. Eventually
- * this map could take up quite a bit of memory if old requests are never
- * cleared out.
+ * The requests are counted using RateLimiter objects so the memory used is
+ * fixed no matter how many IP addresses make requests.
  * 
  * @author SkiBu Smith
  * 
@@ -45,13 +43,18 @@ public class UsageValidator {
 	private static int MAX_REQUESTS = 100;
 	private static int MAX_REQUESTS_TIME_MSEC = 10000;
 
+	// How many IP addresses and API keys can be tracked at once
+	private static int MAX_IP_ADDRESSES = 65536;
+	private static int MAX_API_KEYS = 4096;
+
 	// This is a singleton class
 	private static UsageValidator singleton = new UsageValidator();
 
-	// Keyed on IP address. Contains list of times API last called for the 
-	// IP address.
-	private Map<String, LinkedList<Long>> requestTimesPerIp = 
-			new ConcurrentHashMap<String, LinkedList<Long>>();
+	// For limiting requests per IP address and per API key
+	private final RateLimiter ipRateLimiter = new RateLimiter(
+			MAX_IP_ADDRESSES, MAX_REQUESTS_TIME_MSEC);
+	private final RateLimiter keyRateLimiter = new RateLimiter(MAX_API_KEYS,
+			Time.MS_PER_MIN);
 
 	/********************** Member Functions **************************/
 
@@ -73,11 +76,9 @@ public class UsageValidator {
 	/**
 	 * Makes sure that usage doesn't exceed limits. Intended to deal with bad
 	 * applications that are requesting too much data or a denial of service
-	 * attack. Currently simply checks to make sure that for a given request IP
-	 * address that there aren't more than a certain number of requests per time
-	 * frame.
-	 * <p>
-	 * Probably should be refined in the future.
+	 * attack. Checks to make sure that for a given request IP address that
+	 * there aren't more than a certain number of requests per time frame, and
+	 * that the quota for the API key, if it has one, is not exceeded.
 	 * 
 	 * @param stdParameters
 	 * @throws WebApplicationException
@@ -85,41 +86,36 @@ public class UsageValidator {
 	public void validateUsage(StandardParameters stdParameters)
 			throws WebApplicationException {
 
+		long currentTime = System.currentTimeMillis();
+
+		// Note that using special HTTP response 429, which is for Too Many
+		// Requests. See http://en.wikipedia.org/wiki/List_of_HTTP_status_codes
 		if (stdParameters.getRequest() != null) {
 			String requestIpAddress = stdParameters.getRequest()
 					.getRemoteAddr();
-
-			long currentTime = System.currentTimeMillis();
-
-			// Get the list of access times for the IP address. Can be empty.
-			LinkedList<Long> accessTimes = requestTimesPerIp
-					.get(requestIpAddress);
-			if (accessTimes == null) {
-				accessTimes = new LinkedList<Long>();
-				requestTimesPerIp.put(requestIpAddress, accessTimes);
+			if (!ipRateLimiter.tryAcquire(requestIpAddress, MAX_REQUESTS,
+					currentTime)) {
+				throw WebUtils.badRequestException(429, "Exceeded "
+						+ MAX_REQUESTS + " requests within "
+						+ MAX_REQUESTS_TIME_MSEC + " msec for IP address "
+						+ requestIpAddress);
 			}
+		}
 
-			// If number of requests already reached see if got too many
-			// within the time limit.
-			if (accessTimes.size() == MAX_REQUESTS) {
-				Long oldestAccessTime = accessTimes.getLast();
-				if (oldestAccessTime > currentTime - MAX_REQUESTS_TIME_MSEC) {
-					// Note that using special HTTP response 429, which is for
-					// Too Many Requests. See
-					// http://en.wikipedia.org/wiki/List_of_HTTP_status_codes
-					throw WebUtils.badRequestException(429, "Exceeded "
-							+ MAX_REQUESTS + " requests within "
-							+ MAX_REQUESTS_TIME_MSEC + " msec for IP address "
-							+ requestIpAddress);
+		// If the API key has a quota then make sure it isn't exceeded. The
+		// ApiKey is only available once the key has been validated and
+		// cached by ApiKeyManager.
+		String key = stdParameters.getKey();
+		if (key != null) {
+			ApiKey apiKey = ApiKeyManager.getInstance().getApiKey(key);
+			if (apiKey != null && apiKey.getMaxRequestsPerMinute() != null) {
+				int quota = apiKey.getMaxRequestsPerMinute();
+				if (!keyRateLimiter.tryAcquire(key, quota, currentTime)) {
+					throw WebUtils.badRequestException(429, "Exceeded quota "
+							+ "of " + quota + " requests per minute for "
+							+ "application key " + key);
 				}
 			}
-
-			// Add the current request time to the queue
-			accessTimes.addFirst(currentTime);
-
-			// Clean up queue of old requests that are beyond the time limit
-			while (accessTimes.getLast() < currentTime - MAX_REQUESTS_TIME_MSEC)
-				accessTimes.removeLast();
 		}
 	}
 }
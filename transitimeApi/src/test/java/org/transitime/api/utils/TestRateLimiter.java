@@ -0,0 +1,119 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.api.utils;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the sliding window counting of RateLimiter, including how the counts
+ * roll over from one window to the next, how slots of idle keys are reused
+ * and what happens with limits that are too large to be counted.
+ */
+public class TestRateLimiter extends TestCase {
+
+	private static final long WINDOW_MSEC = 60000;
+
+	// Start of a window so that the fraction of the window is easy to control
+	private static final long START_TIME = 1000 * WINDOW_MSEC;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Returns how many of the requests are allowed
+	 */
+	private static int acquire(RateLimiter limiter, String key, int limit,
+			long time, int requests) {
+		int allowed = 0;
+		for (int i = 0; i < requests; ++i)
+			if (limiter.tryAcquire(key, limit, time))
+				++allowed;
+		return allowed;
+	}
+
+	public void testLimitEnforced() {
+		RateLimiter limiter = new RateLimiter(64, WINDOW_MSEC);
+		assertEquals(10, acquire(limiter, "a", 10, START_TIME, 15));
+
+		// Other keys have their own counts
+		assertEquals(10, acquire(limiter, "b", 10, START_TIME + 1000, 15));
+		assertFalse(limiter.tryAcquire("a", 10, START_TIME + 2000));
+
+		// A limit of 0 never allows a request
+		assertFalse(limiter.tryAcquire("c", 0, START_TIME));
+	}
+
+	/**
+	 * Once in the next window the count of the previous window is weighted
+	 * by how much of the previous window is still within the sliding window.
+	 */
+	public void testWindowRollover() {
+		RateLimiter limiter = new RateLimiter(64, WINDOW_MSEC);
+		assertEquals(100, acquire(limiter, "a", 100, START_TIME, 100));
+		assertFalse(limiter.tryAcquire("a", 100, START_TIME + WINDOW_MSEC - 1));
+
+		// Halfway through the next window half of the previous count remains
+		long halfway = START_TIME + WINDOW_MSEC + WINDOW_MSEC / 2;
+		assertEquals(50, acquire(limiter, "a", 100, halfway, 100));
+
+		// At the start of the window after that only the 50 requests of the
+		// previous window count
+		long nextWindow = START_TIME + 2 * WINDOW_MSEC;
+		assertEquals(50, acquire(limiter, "a", 100, nextWindow, 100));
+
+		// After being idle for more than a window the old counts are gone
+		long muchLater = START_TIME + 10 * WINDOW_MSEC;
+		assertEquals(100, acquire(limiter, "a", 100, muchLater, 150));
+	}
+
+	/**
+	 * With more keys than slots the slots of keys that have been idle for
+	 * two windows are reused, while keys that are active keep their counts.
+	 */
+	public void testSlotReuse() {
+		// The minimum size, so that every key probes every slot
+		RateLimiter limiter = new RateLimiter(8, WINDOW_MSEC);
+		for (int i = 0; i < 8; ++i)
+			assertEquals(3, acquire(limiter, "old" + i, 3, START_TIME, 5));
+
+		// All slots are idle now so new keys get the full limit
+		long later = START_TIME + 2 * WINDOW_MSEC;
+		for (int i = 0; i < 8; ++i)
+			assertEquals(3, acquire(limiter, "new" + i, 3, later, 5));
+
+		// The new keys took over the slots and still have their counts
+		for (int i = 0; i < 8; ++i)
+			assertFalse(limiter.tryAcquire("new" + i, 3, later + 1000));
+	}
+
+	/**
+	 * Limits too large to be counted don't limit at all instead of
+	 * throttling at the largest count.
+	 */
+	public void testLargeLimits() {
+		RateLimiter limiter = new RateLimiter(64, WINDOW_MSEC);
+		int requests = RateLimiter.MAX_COUNT + 1000;
+		assertEquals(requests, acquire(limiter, "a", RateLimiter.MAX_COUNT,
+				START_TIME, requests));
+		assertEquals(requests, acquire(limiter, "b", Integer.MAX_VALUE,
+				START_TIME, requests));
+
+		// The largest limit that can be counted is still enforced
+		int limit = RateLimiter.MAX_COUNT - 1;
+		assertEquals(limit, acquire(limiter, "c", limit, START_TIME, requests));
+	}
+}
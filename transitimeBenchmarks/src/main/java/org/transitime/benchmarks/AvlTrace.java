@@ -0,0 +1,200 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.avl.AvlCsvReader;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.AvlReport.AssignmentType;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.Trip;
+import org.transitime.gtfs.DbConfig;
+import org.transitime.utils.Geo;
+import org.transitime.utils.Time;
+
+/**
+ * For obtaining the AVL reports that are replayed through the matching and
+ * prediction pipeline. Either reads recorded AVL data from a CSV file, in
+ * the format handled by AvlCsvReader, or creates synthetic AVL reports for
+ * vehicles following the schedule of the blocks for the current day.
+ */
+public class AvlTrace {
+
+	// Time between synthetic AVL reports for a vehicle
+	private static final int AVL_REPORTING_SECS = 30;
+
+	// Standard deviation in meters of noise added to synthetic locations
+	private static final double GPS_NOISE_METERS = 5.0;
+
+	// So that the synthetic data is the same every time
+	private static final long RANDOM_SEED = 42;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(AvlTrace.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Hidden constructor since only static methods.
+	 */
+	private AvlTrace() {
+	}
+
+	/**
+	 * Reads the recorded AVL reports from the CSV file.
+	 *
+	 * @param fileName
+	 * @return List of AVL reports, in the order they are in the file
+	 */
+	public static List<AvlReport> read(String fileName) {
+		List<AvlReport> avlReports = new AvlCsvReader(fileName).get();
+		logger.info("Read {} AVL reports from {}", avlReports.size(),
+				fileName);
+		return avlReports;
+	}
+
+	/**
+	 * Creates synthetic AVL reports for vehicles assigned to the blocks of
+	 * the configuration. The vehicles follow the schedule exactly, other
+	 * than for a bit of GPS noise, and report every AVL_REPORTING_SECS.
+	 *
+	 * @param dbConfig
+	 *            The configuration containing the blocks
+	 * @param maxVehicles
+	 *            Maximum number of vehicles to create AVL reports for
+	 * @param startSecsIntoDay
+	 *            When the AVL reports should start
+	 * @param durationSecs
+	 *            How long AVL reports should be created for
+	 * @return List of AVL reports, ordered by time
+	 */
+	public static List<AvlReport> createSynthetic(DbConfig dbConfig,
+			int maxVehicles, int startSecsIntoDay, int durationSecs) {
+		long startOfDay = Time.getStartOfDay(new Date(),
+				dbConfig.getFirstAgency().getTimeZone());
+		Random random = new Random(RANDOM_SEED);
+
+		// Use blocks that are active for the whole time period
+		List<Block> blocks = new ArrayList<Block>();
+		for (Block block : dbConfig.getBlocks()) {
+			if (blocks.size() >= maxVehicles)
+				break;
+			if (block.hasSchedule()
+					&& block.getStartTime() <= startSecsIntoDay
+					&& block.getEndTime() >= startSecsIntoDay + durationSecs)
+				blocks.add(block);
+		}
+
+		List<AvlReport> avlReports = new ArrayList<AvlReport>();
+		for (int secsIntoDay = startSecsIntoDay;
+				secsIntoDay < startSecsIntoDay + durationSecs;
+				secsIntoDay += AVL_REPORTING_SECS) {
+			for (Block block : blocks) {
+				Location loc = scheduledLocation(block, secsIntoDay);
+				if (loc == null)
+					continue;
+				Location noisyLoc = Geo.offset(loc,
+						random.nextGaussian() * GPS_NOISE_METERS,
+						random.nextGaussian() * GPS_NOISE_METERS);
+
+				AvlReport avlReport = new AvlReport("v" + block.getId(),
+						startOfDay + secsIntoDay * Time.MS_PER_SEC, noisyLoc,
+						Float.NaN, Float.NaN, "Synthetic");
+				avlReport.setAssignment(block.getId(), AssignmentType.BLOCK_ID);
+				avlReports.add(avlReport);
+			}
+		}
+
+		logger.info("Created {} synthetic AVL reports for {} vehicles",
+				avlReports.size(), blocks.size());
+		return avlReports;
+	}
+
+	/**
+	 * Determines where a vehicle following the schedule for the block would
+	 * be at the specified time. A vehicle between trips is at the first stop
+	 * of the next trip.
+	 *
+	 * @param block
+	 * @param secsIntoDay
+	 * @return The location, or null if block not active at the time
+	 */
+	private static Location scheduledLocation(Block block, int secsIntoDay) {
+		for (Trip trip : block.getTrips()) {
+			int numberStopPaths = trip.getNumberStopPaths();
+			int tripStartTime = trip.getScheduleTime(0).getTime();
+			if (secsIntoDay < tripStartTime)
+				return trip.getStopPath(0).getStopLocation();
+			if (secsIntoDay >= trip.getScheduleTime(numberStopPaths - 1)
+					.getTime())
+				continue;
+
+			// Vehicle is on this trip so determine which stop path it is on
+			// and how far along it it is
+			for (int i = 1; i < numberStopPaths; ++i) {
+				int arrivalTime = trip.getScheduleTime(i).getTime();
+				if (secsIntoDay < arrivalTime) {
+					int departureTime = trip.getScheduleTime(i - 1).getTime();
+					double fraction = (double) (secsIntoDay - departureTime)
+							/ (arrivalTime - departureTime);
+					return locationAlongPath(trip.getStopPath(i), fraction);
+				}
+			}
+		}
+
+		// Block already finished
+		return null;
+	}
+
+	/**
+	 * Returns the location the specified fraction of the way along the stop
+	 * path.
+	 *
+	 * @param stopPath
+	 * @param fraction
+	 *            Between 0.0 and 1.0
+	 * @return The location along the path
+	 */
+	private static Location locationAlongPath(StopPath stopPath,
+			double fraction) {
+		List<Location> locs = stopPath.getLocations();
+		double distanceRemaining = fraction * stopPath.getLength();
+		for (int i = 0; i < locs.size() - 1; ++i) {
+			Location l1 = locs.get(i);
+			Location l2 = locs.get(i + 1);
+			double segmentLength = Geo.distance(l1, l2);
+			if (distanceRemaining <= segmentLength && segmentLength > 0.0) {
+				double segmentFraction = distanceRemaining / segmentLength;
+				return new Location(
+						l1.getLat() + segmentFraction
+								* (l2.getLat() - l1.getLat()),
+						l1.getLon() + segmentFraction
+								* (l2.getLon() - l1.getLon()));
+			}
+			distanceRemaining -= segmentLength;
+		}
+		return stopPath.getStopLocation();
+	}
+}
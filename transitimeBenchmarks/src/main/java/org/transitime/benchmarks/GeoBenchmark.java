@@ -0,0 +1,117 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.Vector;
+import org.transitime.utils.Geo;
+
+/**
+ * Benchmarks for the low level geometry methods in Geo that are called for
+ * every segment of every stop path investigated when matching an AVL report.
+ * Uses random locations near random vectors with lengths typical of path
+ * segments. Each invocation processes all NUMBER_LOCATIONS locations so
+ * results are reported per location.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GeoBenchmark {
+
+	private static final int NUMBER_LOCATIONS = 1024;
+
+	private static final Location CENTER = new Location(37.7750, -122.4183);
+
+	private Location[] locations;
+	private Location[] otherLocations;
+	private Vector[] vectors;
+
+	/********************** Member Functions **************************/
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		locations = new Location[NUMBER_LOCATIONS];
+		otherLocations = new Location[NUMBER_LOCATIONS];
+		vectors = new Vector[NUMBER_LOCATIONS];
+		for (int i = 0; i < NUMBER_LOCATIONS; ++i) {
+			// Segment between 20m and 200m long somewhere within 10km
+			Location l1 = Geo.offset(CENTER, random.nextDouble() * 10000.0,
+					random.nextDouble() * 10000.0);
+			double length = 20.0 + random.nextDouble() * 180.0;
+			double angle = random.nextDouble() * 2 * Math.PI;
+			Location l2 = Geo.offset(l1, length * Math.cos(angle),
+					length * Math.sin(angle));
+			vectors[i] = new Vector(l1, l2);
+
+			// Location near the segment, like an AVL report
+			locations[i] = Geo.offset(l1,
+					random.nextDouble() * length * Math.cos(angle)
+							+ random.nextGaussian() * 20.0,
+					random.nextDouble() * length * Math.sin(angle)
+							+ random.nextGaussian() * 20.0);
+			otherLocations[i] = l2;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUMBER_LOCATIONS)
+	public void distanceBetweenLocations(Blackhole blackhole) {
+		for (int i = 0; i < NUMBER_LOCATIONS; ++i)
+			blackhole.consume(Geo.distance(locations[i], otherLocations[i]));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUMBER_LOCATIONS)
+	public void distanceToVector(Blackhole blackhole) {
+		for (int i = 0; i < NUMBER_LOCATIONS; ++i)
+			blackhole.consume(Geo.distance(locations[i], vectors[i]));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUMBER_LOCATIONS)
+	public void distanceIfMatch(Blackhole blackhole) {
+		for (int i = 0; i < NUMBER_LOCATIONS; ++i)
+			blackhole.consume(Geo.distanceIfMatch(locations[i], vectors[i]));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUMBER_LOCATIONS)
+	public void matchDistanceAlongVector(Blackhole blackhole) {
+		for (int i = 0; i < NUMBER_LOCATIONS; ++i)
+			blackhole.consume(Geo.matchDistanceAlongVector(locations[i],
+					vectors[i]));
+	}
+}
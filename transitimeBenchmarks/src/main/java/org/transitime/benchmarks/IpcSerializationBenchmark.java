@@ -0,0 +1,224 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.core.dataCache.PredictionDataCache;
+import org.transitime.core.dataCache.VehicleDataCache;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.ipc.data.IpcPredictionsList;
+import org.transitime.ipc.data.IpcVehicleComplete;
+import org.transitime.ipc.data.IpcVehicleCompleteList;
+import org.transitime.utils.Time;
+
+/**
+ * Benchmarks serializing and deserializing all of the vehicles and all of
+ * the predictions of an agency, as is done for the bulk RMI calls such as
+ * VehiclesInterface.getComplete(). Compares the default serialization of an
+ * ArrayList, which uses the SerializationProxy of each object, with the
+ * compact serialization of IpcVehicleCompleteList and IpcPredictionsList.
+ * <p>
+ * During setup the AVL reports are replayed through the pipeline so that the
+ * VehicleDataCache and PredictionDataCache are populated. The number of
+ * bytes of each serialized form is logged during setup. The CPU time per
+ * call is the result of the benchmark and the GC profiler of
+ * BenchmarkRunner reports the bytes allocated per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class IpcSerializationBenchmark {
+
+	// Directory of GTFS data to use. If empty then synthetic agency used.
+	@Param({""})
+	public String gtfsDirectory;
+
+	// CSV file of AVL data to replay. If empty then synthetic AVL reports
+	// are created.
+	@Param({""})
+	public String avlCsvFile;
+
+	// For configuring the synthetic agency
+	@Param({"10"})
+	public int routes;
+
+	@Param({"30"})
+	public int stopsPerRoute;
+
+	@Param({"8"})
+	public int vehiclesPerRoute;
+
+	// When the synthetic AVL reports are for
+	private static final int SYNTHETIC_AVL_START_SECS = 7 * Time.SEC_PER_HOUR;
+	private static final int SYNTHETIC_AVL_DURATION_SECS = Time.SEC_PER_HOUR;
+
+	// The data to serialize, both as a regular ArrayList and as compact lists
+	private ArrayList<IpcVehicleComplete> vehicles;
+	private IpcVehicleCompleteList compactVehicles;
+	private ArrayList<IpcPredictionsForRouteStopDest> predictions;
+	private IpcPredictionsList compactPredictions;
+
+	// The serialized data, for the deserialization benchmarks
+	private byte[] vehiclesBytes;
+	private byte[] compactVehiclesBytes;
+	private byte[] predictionsBytes;
+	private byte[] compactPredictionsBytes;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(IpcSerializationBenchmark.class);
+
+	/********************** Member Functions **************************/
+
+	@Setup
+	public void setup() throws IOException, ClassNotFoundException {
+		Core core = SyntheticAgency.createCore(gtfsDirectory, routes,
+				stopsPerRoute, vehiclesPerRoute);
+
+		List<AvlReport> avlReports;
+		if (avlCsvFile.isEmpty()) {
+			avlReports = AvlTrace.createSynthetic(core.getDbConfig(),
+					routes * vehiclesPerRoute, SYNTHETIC_AVL_START_SECS,
+					SYNTHETIC_AVL_DURATION_SECS);
+		} else {
+			avlReports = AvlTrace.read(avlCsvFile);
+		}
+		PipelineReplay.replay(core, avlReports);
+
+		// Get the resulting vehicles and predictions
+		vehicles = new ArrayList<IpcVehicleComplete>(
+				VehicleDataCache.getInstance().getVehicles());
+		compactVehicles = new IpcVehicleCompleteList(vehicles);
+		predictions = new ArrayList<IpcPredictionsForRouteStopDest>(
+				PredictionDataCache.getInstance().getAllPredictions(
+						Integer.MAX_VALUE, Long.MAX_VALUE));
+		compactPredictions = new IpcPredictionsList(predictions);
+
+		vehiclesBytes = serialize(vehicles);
+		compactVehiclesBytes = serialize(compactVehicles);
+		predictionsBytes = serialize(predictions);
+		compactPredictionsBytes = serialize(compactPredictions);
+
+		// Make sure the compact form results in the same data
+		if (!deserialize(compactVehiclesBytes).toString().equals(
+				deserialize(vehiclesBytes).toString())
+				|| !deserialize(compactPredictionsBytes).toString().equals(
+						deserialize(predictionsBytes).toString()))
+			throw new IllegalStateException("Compact serialization did not "
+					+ "result in the same data as default serialization.");
+
+		logger.info("Serialized {} vehicles into {} bytes by default and {} "
+				+ "bytes compactly. Serialized {} route/stop/destinations "
+				+ "of predictions into {} bytes by default and {} bytes "
+				+ "compactly.", vehicles.size(), vehiclesBytes.length,
+				compactVehiclesBytes.length, predictions.size(),
+				predictionsBytes.length, compactPredictionsBytes.length);
+	}
+
+	/**
+	 * Serializes the object the same way that RMI does, with a new
+	 * ObjectOutputStream for each call.
+	 *
+	 * @param object
+	 * @return the serialized bytes
+	 * @throws IOException
+	 */
+	private static byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream in =
+				new ObjectInputStream(new ByteArrayInputStream(bytes));
+		return in.readObject();
+	}
+
+	@Benchmark
+	public byte[] serializeVehiclesDefault() throws IOException {
+		return serialize(vehicles);
+	}
+
+	@Benchmark
+	public byte[] serializeVehiclesCompact() throws IOException {
+		return serialize(compactVehicles);
+	}
+
+	@Benchmark
+	public Object deserializeVehiclesDefault() throws IOException,
+			ClassNotFoundException {
+		return deserialize(vehiclesBytes);
+	}
+
+	@Benchmark
+	public Object deserializeVehiclesCompact() throws IOException,
+			ClassNotFoundException {
+		return deserialize(compactVehiclesBytes);
+	}
+
+	@Benchmark
+	public byte[] serializePredictionsDefault() throws IOException {
+		return serialize(predictions);
+	}
+
+	@Benchmark
+	public byte[] serializePredictionsCompact() throws IOException {
+		return serialize(compactPredictions);
+	}
+
+	@Benchmark
+	public Object deserializePredictionsDefault() throws IOException,
+			ClassNotFoundException {
+		return deserialize(predictionsBytes);
+	}
+
+	@Benchmark
+	public Object deserializePredictionsCompact() throws IOException,
+			ClassNotFoundException {
+		return deserialize(compactPredictionsBytes);
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.transitime.applications.Core;
+import org.transitime.core.ArrivalDepartureGeneratorFactory;
+import org.transitime.core.PredictionGeneratorFactory;
+import org.transitime.core.SpatialMatch;
+import org.transitime.core.SpatialMatcher;
+import org.transitime.core.TemporalMatch;
+import org.transitime.core.TemporalMatcher;
+import org.transitime.core.VehicleState;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.utils.Time;
+
+/**
+ * Benchmarks each stage of the matching and prediction pipeline separately:
+ * spatial matching, temporal matching, generating arrivals/departures, and
+ * generating predictions. Also benchmarks all of the stages together.
+ * <p>
+ * During setup the AVL reports are replayed through the pipeline via
+ * PipelineReplay to obtain a frame for each successful match. Each
+ * benchmark operation then runs a stage for the next frame, cycling through
+ * all of the frames, so that the results are the throughput for a single
+ * AVL report. Since the Core is a singleton and the replay changes the state
+ * of the vehicles each benchmark needs to be run in its own fork.
+ * <p>
+ * By default a synthetic agency and synthetic AVL reports are used. The
+ * gtfsDirectory and avlCsvFile parameters can be set to use the GTFS data
+ * and recorded AVL data of a real agency instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+	// Directory of GTFS data to use. If empty then synthetic agency used.
+	@Param({""})
+	public String gtfsDirectory;
+
+	// CSV file of AVL data to replay. If empty then synthetic AVL reports
+	// are created.
+	@Param({""})
+	public String avlCsvFile;
+
+	// For configuring the synthetic agency
+	@Param({"10"})
+	public int routes;
+
+	@Param({"30"})
+	public int stopsPerRoute;
+
+	@Param({"8"})
+	public int vehiclesPerRoute;
+
+	// When the synthetic AVL reports are for
+	private static final int SYNTHETIC_AVL_START_SECS = 7 * Time.SEC_PER_HOUR;
+	private static final int SYNTHETIC_AVL_DURATION_SECS = Time.SEC_PER_HOUR;
+
+	private Core core;
+	private PipelineReplay.Frame[] frames;
+	private VehicleState[] statesBeforeMatch;
+	private VehicleState[] statesAfterMatch;
+	private List<SpatialMatch>[] spatialMatches;
+	private int frameIndex = 0;
+
+	/********************** Member Functions **************************/
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() throws IOException {
+		core = SyntheticAgency.createCore(gtfsDirectory, routes,
+				stopsPerRoute, vehiclesPerRoute);
+
+		List<AvlReport> avlReports;
+		if (avlCsvFile.isEmpty()) {
+			avlReports = AvlTrace.createSynthetic(core.getDbConfig(),
+					routes * vehiclesPerRoute, SYNTHETIC_AVL_START_SECS,
+					SYNTHETIC_AVL_DURATION_SECS);
+		} else {
+			avlReports = AvlTrace.read(avlCsvFile);
+		}
+
+		List<PipelineReplay.Frame> frameList =
+				PipelineReplay.replay(core, avlReports);
+		if (frameList.isEmpty())
+			throw new IllegalStateException("Replaying the AVL reports did "
+					+ "not result in any successful matches to benchmark.");
+
+		// Create the VehicleStates and spatial matches for each frame up
+		// front so that only the stages themselves are measured
+		int numberFrames = frameList.size();
+		frames = frameList.toArray(new PipelineReplay.Frame[numberFrames]);
+		statesBeforeMatch = new VehicleState[numberFrames];
+		statesAfterMatch = new VehicleState[numberFrames];
+		spatialMatches = new List[numberFrames];
+		for (int i = 0; i < numberFrames; ++i) {
+			core.setSystemTime(frames[i].getAvlTime());
+			statesBeforeMatch[i] = frames[i].createStateBeforeMatch();
+			statesAfterMatch[i] = frames[i].createStateAfterMatch();
+			spatialMatches[i] =
+					SpatialMatcher.getSpatialMatches(statesBeforeMatch[i]);
+		}
+	}
+
+	/**
+	 * Moves on to the next frame and sets the system time to the time of
+	 * its AVL report.
+	 *
+	 * @return index of the frame to use
+	 */
+	private int nextFrame() {
+		if (++frameIndex >= frames.length)
+			frameIndex = 0;
+		core.setSystemTime(frames[frameIndex].getAvlTime());
+		return frameIndex;
+	}
+
+	@Benchmark
+	public List<SpatialMatch> spatialMatcher() {
+		int i = nextFrame();
+		return SpatialMatcher.getSpatialMatches(statesBeforeMatch[i]);
+	}
+
+	@Benchmark
+	public TemporalMatch temporalMatcher() {
+		int i = nextFrame();
+		return TemporalMatcher.getInstance().getBestTemporalMatch(
+				statesBeforeMatch[i], spatialMatches[i]);
+	}
+
+	@Benchmark
+	public long arrivalDepartureGenerator() {
+		int i = nextFrame();
+		VehicleState vehicleState = statesAfterMatch[i];
+		frames[i].resetArrivalState(vehicleState);
+		ArrivalDepartureGeneratorFactory.getInstance().generate(vehicleState);
+		return vehicleState.getLastArrivalTime();
+	}
+
+	@Benchmark
+	public List<IpcPrediction> predictionGenerator() {
+		int i = nextFrame();
+		return PredictionGeneratorFactory.getInstance().generate(
+				statesAfterMatch[i]);
+	}
+
+	@Benchmark
+	public List<IpcPrediction> allStages() {
+		int i = nextFrame();
+		List<SpatialMatch> matches =
+				SpatialMatcher.getSpatialMatches(statesBeforeMatch[i]);
+		TemporalMatcher.getInstance().getBestTemporalMatch(
+				statesBeforeMatch[i], matches);
+		VehicleState vehicleState = statesAfterMatch[i];
+		frames[i].resetArrivalState(vehicleState);
+		ArrivalDepartureGeneratorFactory.getInstance().generate(vehicleState);
+		return PredictionGeneratorFactory.getInstance().generate(vehicleState);
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.core.AvlProcessor;
+import org.transitime.core.BlockAssignmentMethod;
+import org.transitime.core.MatchProcessor;
+import org.transitime.core.RealTimeSchedAdhProcessor;
+import org.transitime.core.TemporalMatch;
+import org.transitime.core.VehicleState;
+import org.transitime.core.dataCache.VehicleStateManager;
+import org.transitime.db.structs.Arrival;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Block;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * Replays AVL reports through the matching and prediction pipeline and
+ * records a Frame for each AVL report of an already predictable vehicle
+ * that was successfully matched. The frames contain what is needed to
+ * reconstruct the VehicleState before and after the match so that each stage
+ * of the pipeline can then be benchmarked separately, over and over again,
+ * using realistic data.
+ * <p>
+ * The replay mirrors AvlProcessor.lowLevelProcessAvlReport() but skips the
+ * housekeeping done by AvlProcessor.processAvlReport(), such as caching the
+ * vehicle config, since that requires a database.
+ */
+public class PipelineReplay {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(PipelineReplay.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * The information for matching a single AVL report of an already
+	 * predictable vehicle. Creates new VehicleState objects so that the
+	 * stages can be run without affecting the vehicles of the replay.
+	 */
+	public static class Frame {
+		private final String vehicleId;
+		private final Block block;
+		private final String assignmentId;
+		private final AvlReport previousAvlReport;
+		private final TemporalMatch previousMatch;
+		private final AvlReport avlReport;
+		private final TemporalMatch match;
+
+		// The state that ArrivalDepartureGenerator.generate() modifies,
+		// as it was before the AVL report was processed
+		private final long lastArrivalTime;
+		private final Arrival arrivalToStoreToDb;
+
+		private Frame(String vehicleId, Block block, String assignmentId,
+				AvlReport previousAvlReport, TemporalMatch previousMatch,
+				AvlReport avlReport, long lastArrivalTime,
+				Arrival arrivalToStoreToDb, TemporalMatch match) {
+			this.vehicleId = vehicleId;
+			this.block = block;
+			this.assignmentId = assignmentId;
+			this.previousAvlReport = previousAvlReport;
+			this.previousMatch = previousMatch;
+			this.avlReport = avlReport;
+			this.lastArrivalTime = lastArrivalTime;
+			this.arrivalToStoreToDb = arrivalToStoreToDb;
+			this.match = match;
+		}
+
+		/**
+		 * @return The time of the AVL report. The system time should be set
+		 *         to this before running a stage.
+		 */
+		public long getAvlTime() {
+			return avlReport.getTime();
+		}
+
+		/**
+		 * Creates the VehicleState as it is when the new AVL report is to be
+		 * matched. For SpatialMatcher and TemporalMatcher.
+		 *
+		 * @return new VehicleState
+		 */
+		public VehicleState createStateBeforeMatch() {
+			VehicleState vehicleState = new VehicleState(vehicleId);
+			vehicleState.setAvlReport(previousAvlReport);
+			vehicleState.setBlock(block,
+					BlockAssignmentMethod.AVL_FEED_BLOCK_ASSIGNMENT,
+					assignmentId, true);
+			vehicleState.setMatch(previousMatch);
+			vehicleState.setAvlReport(avlReport);
+			resetArrivalState(vehicleState);
+			return vehicleState;
+		}
+
+		/**
+		 * Creates the VehicleState as it is after the new AVL report has been
+		 * matched. For generating arrivals/departures and predictions.
+		 *
+		 * @return new VehicleState
+		 */
+		public VehicleState createStateAfterMatch() {
+			VehicleState vehicleState = createStateBeforeMatch();
+			vehicleState.setMatch(match);
+			vehicleState.setRealTimeSchedAdh(RealTimeSchedAdhProcessor
+					.generate(vehicleState));
+			return vehicleState;
+		}
+
+		/**
+		 * ArrivalDepartureGenerator.generate() modifies the arrival info of
+		 * the VehicleState. This resets it so that the generator can be run
+		 * again with the same results.
+		 *
+		 * @param vehicleState
+		 */
+		public void resetArrivalState(VehicleState vehicleState) {
+			vehicleState.setLastArrivalTime(lastArrivalTime);
+			vehicleState.setArrivalToStoreToDb(arrivalToStoreToDb);
+		}
+	}
+
+	/**
+	 * Hidden constructor since only static methods.
+	 */
+	private PipelineReplay() {
+	}
+
+	/**
+	 * Processes the AVL reports through the pipeline, updating the state of
+	 * the vehicles, and returns the frames for the successful matches of
+	 * already predictable vehicles.
+	 *
+	 * @param core
+	 * @param avlReports
+	 *            AVL reports, ordered by time
+	 * @return The frames
+	 */
+	public static List<Frame> replay(Core core, List<AvlReport> avlReports) {
+		IntervalTimer timer = new IntervalTimer();
+		VehicleStateManager stateManager = VehicleStateManager.getInstance();
+		List<Frame> frames = new ArrayList<Frame>();
+
+		for (AvlReport avlReport : avlReports) {
+			core.setSystemTime(avlReport.getTime());
+
+			VehicleState vehicleState =
+					stateManager.getVehicleState(avlReport.getVehicleId());
+			synchronized (vehicleState) {
+				// Remember the state before this AVL report so that it can
+				// be reconstructed for the frame
+				Block block = vehicleState.getBlock();
+				String assignmentId = vehicleState.getAssignmentId();
+				boolean wasMatched = vehicleState.isPredictable()
+						&& vehicleState.lastMatchIsValid()
+						&& vehicleState.getMatch() != null;
+				AvlReport previousAvlReport = vehicleState.getAvlReport();
+				TemporalMatch previousMatch = vehicleState.getMatch();
+				long lastArrivalTime = vehicleState.getLastArrivalTime();
+				Arrival arrivalToStoreToDb =
+						vehicleState.getArrivalToStoreToDb();
+
+				vehicleState.setAvlReport(avlReport);
+
+				boolean matchAlreadyPredictableVehicle =
+						vehicleState.isPredictable()
+						&& !vehicleState.hasNewAssignment(avlReport);
+				if (matchAlreadyPredictableVehicle) {
+					AvlProcessor.getInstance().matchNewFixForPredictableVehicle(
+							vehicleState);
+				} else if (avlReport.hasValidAssignment()) {
+					AvlProcessor.getInstance().matchVehicleToAssignment(
+							vehicleState);
+				}
+
+				if (vehicleState.isPredictable()
+						&& vehicleState.lastMatchIsValid()) {
+					vehicleState.setRealTimeSchedAdh(RealTimeSchedAdhProcessor
+							.generate(vehicleState));
+					MatchProcessor.getInstance().generateResultsOfMatch(
+							vehicleState);
+
+					// Only create frame if an already predictable vehicle
+					// was successfully matched to the same block
+					if (matchAlreadyPredictableVehicle && wasMatched
+							&& vehicleState.getBlock() == block
+							&& vehicleState.getMatch() != null)
+						frames.add(new Frame(avlReport.getVehicleId(), block,
+								assignmentId, previousAvlReport,
+								previousMatch, avlReport, lastArrivalTime,
+								arrivalToStoreToDb, vehicleState.getMatch()));
+				}
+			}
+		}
+
+		logger.info("Replayed {} AVL reports and created {} frames. Took {} "
+				+ "msec.", avlReports.size(), frames.size(),
+				timer.elapsedMsec());
+		return frames;
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.db.structs.Location;
+import org.transitime.gtfs.DbConfig;
+import org.transitime.gtfs.GtfsData;
+import org.transitime.gtfs.TitleFormatter;
+import org.transitime.utils.Geo;
+import org.transitime.utils.Time;
+
+/**
+ * Creates a synthetic agency so that the core system can be benchmarked
+ * without a database and without needing the GTFS data for a real agency.
+ * The GTFS files are written to a temporary directory and are then processed
+ * into memory via GtfsData. The resulting configuration is used to create
+ * the Core singleton via Core.createCore(DbConfig).
+ * <p>
+ * The routes radiate out from a central point like spokes. Each route has
+ * stops every STOP_SPACING meters and the vehicles serving it alternate
+ * between outbound and inbound trips throughout the day. The service runs
+ * every day so that the schedule is valid for whatever day the benchmarks
+ * are run.
+ * <p>
+ * Instead of the synthetic agency a directory containing GTFS data for a real
+ * agency can be used, which is useful when replaying recorded AVL data.
+ */
+public class SyntheticAgency {
+
+	public static final String AGENCY_ID = "synthetic";
+	public static final String TIMEZONE = "America/Los_Angeles";
+
+	// The center of the agency, where all the routes start
+	private static final Location CENTER = new Location(37.7750, -122.4183);
+
+	// Distance in meters between stops and between shape points
+	private static final double STOP_SPACING = 400.0;
+	private static final double SHAPE_POINT_SPACING = 100.0;
+
+	// How far in meters the shape zigzags to the side of the route so that
+	// the stop paths have multiple segments with different headings
+	private static final double SHAPE_ZIGZAG = 15.0;
+
+	// Scheduled travel time between stops and layover at end of trips
+	private static final int SECS_BETWEEN_STOPS = 75;
+	private static final int LAYOVER_SECS = 5 * Time.SEC_PER_MIN;
+
+	// When service runs each day
+	private static final int SERVICE_START_SECS = 5 * Time.SEC_PER_HOUR;
+	private static final int SERVICE_END_SECS = 23 * Time.SEC_PER_HOUR;
+
+	private static final String SERVICE_ID = "everyday";
+
+	// Since Core is a singleton only want to create it once
+	private static boolean coreCreated = false;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(SyntheticAgency.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Hidden constructor since only static methods.
+	 */
+	private SyntheticAgency() {
+	}
+
+	/**
+	 * Sets the system properties needed so that the core system can run
+	 * without a database. Needs to be called before any of the core classes
+	 * with config values are loaded since config values are read in when
+	 * the classes are initialized.
+	 */
+	private static void setSystemProperties() {
+		System.setProperty("transitime.core.agencyId", AGENCY_ID);
+		System.setProperty("transitime.db.storeDataInDatabase", "false");
+	}
+
+	/**
+	 * Writes out the GTFS files for the synthetic agency to a temporary
+	 * directory.
+	 *
+	 * @param numberRoutes
+	 * @param stopsPerRoute
+	 * @param vehiclesPerRoute
+	 * @return Name of the directory containing the GTFS files
+	 * @throws IOException
+	 */
+	public static String writeGtfsFiles(int numberRoutes, int stopsPerRoute,
+			int vehiclesPerRoute) throws IOException {
+		File dir = File.createTempFile("syntheticGtfs", "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Could not create directory " + dir);
+		dir.deleteOnExit();
+
+		PrintWriter agency = createWriter(dir, "agency.txt",
+				"agency_id,agency_name,agency_url,agency_timezone");
+		agency.println(AGENCY_ID + ",Synthetic Transit,http://transitime.org,"
+				+ TIMEZONE);
+		agency.close();
+
+		PrintWriter calendar = createWriter(dir, "calendar.txt",
+				"service_id,monday,tuesday,wednesday,thursday,friday,"
+				+ "saturday,sunday,start_date,end_date");
+		calendar.println(SERVICE_ID + ",1,1,1,1,1,1,1,20150101,20301231");
+		calendar.close();
+
+		PrintWriter routes = createWriter(dir, "routes.txt",
+				"route_id,agency_id,route_short_name,route_long_name,"
+				+ "route_type");
+		PrintWriter stops = createWriter(dir, "stops.txt",
+				"stop_id,stop_code,stop_name,stop_lat,stop_lon");
+		PrintWriter shapes = createWriter(dir, "shapes.txt",
+				"shape_id,shape_pt_lat,shape_pt_lon,shape_pt_sequence");
+		PrintWriter trips = createWriter(dir, "trips.txt",
+				"route_id,service_id,trip_id,trip_headsign,direction_id,"
+				+ "block_id,shape_id");
+		PrintWriter stopTimes = createWriter(dir, "stop_times.txt",
+				"trip_id,arrival_time,departure_time,stop_id,stop_sequence");
+
+		int stopCode = 1;
+		for (int routeIdx = 0; routeIdx < numberRoutes; ++routeIdx) {
+			String routeId = "r" + routeIdx;
+			routes.println(routeId + "," + AGENCY_ID + "," + routeIdx
+					+ ",Route " + routeIdx + ",3");
+
+			// The route goes out from the center at an angle that depends
+			// on the route. Unit vector (dx, dy) is direction of route and
+			// (-dy, dx) is perpendicular to it.
+			double angle = 2 * Math.PI * routeIdx / numberRoutes;
+			double dx = Math.cos(angle);
+			double dy = Math.sin(angle);
+
+			// Stops. Start a bit away from center so that routes don't
+			// all share the same first stop location.
+			List<String> stopIds = new ArrayList<String>();
+			for (int stopIdx = 0; stopIdx < stopsPerRoute; ++stopIdx) {
+				double distance = STOP_SPACING * (stopIdx + 1);
+				Location loc = Geo.offset(CENTER, dx * distance, dy * distance);
+				String stopId = routeId + "_s" + stopIdx;
+				stopIds.add(stopId);
+				stops.println(stopId + "," + stopCode++ + ",Route " + routeIdx
+						+ " Stop " + stopIdx + "," + loc.getLat()
+						+ "," + loc.getLon());
+			}
+
+			// Shapes. The outbound shape zigzags between the stops and the
+			// inbound shape is the same points in reverse order.
+			List<Location> shapeLocs = new ArrayList<Location>();
+			double routeLength = STOP_SPACING * stopsPerRoute;
+			int sideOfRoute = 1;
+			for (double distance = STOP_SPACING; distance <= routeLength;
+					distance += SHAPE_POINT_SPACING) {
+				// Stay on the route at the stops so that they match well
+				double offset = Math.abs(distance % STOP_SPACING) < 1.0 ? 0.0
+						: SHAPE_ZIGZAG * sideOfRoute;
+				sideOfRoute = -sideOfRoute;
+				shapeLocs.add(Geo.offset(CENTER, dx * distance - dy * offset,
+						dy * distance + dx * offset));
+			}
+			writeShape(shapes, routeId + "_out", shapeLocs);
+			List<Location> reversedShapeLocs =
+					new ArrayList<Location>(shapeLocs.size());
+			for (int i = shapeLocs.size() - 1; i >= 0; --i)
+				reversedShapeLocs.add(shapeLocs.get(i));
+			writeShape(shapes, routeId + "_in", reversedShapeLocs);
+
+			// Trips. Each vehicle is a block that alternates between
+			// outbound and inbound trips throughout the day. The start
+			// times of the blocks are spread out evenly over a cycle.
+			int tripSecs = SECS_BETWEEN_STOPS * (stopsPerRoute - 1);
+			int cycleSecs = 2 * (tripSecs + LAYOVER_SECS);
+			for (int vehicleIdx = 0; vehicleIdx < vehiclesPerRoute;
+					++vehicleIdx) {
+				String blockId = routeId + "_b" + vehicleIdx;
+				int tripStartSecs = SERVICE_START_SECS + cycleSecs
+						* vehicleIdx / vehiclesPerRoute;
+				boolean outbound = true;
+				int tripIdx = 0;
+				while (tripStartSecs + tripSecs < SERVICE_END_SECS) {
+					String tripId = blockId + "_t" + tripIdx++;
+					String direction = outbound ? "0" : "1";
+					trips.println(routeId + "," + SERVICE_ID + "," + tripId
+							+ "," + (outbound ? "Outbound" : "Inbound") + ","
+							+ direction + "," + blockId + "," + routeId
+							+ (outbound ? "_out" : "_in"));
+					for (int i = 0; i < stopsPerRoute; ++i) {
+						String stopId = outbound ? stopIds.get(i)
+								: stopIds.get(stopsPerRoute - 1 - i);
+						String time = Time.timeOfDayStr(tripStartSecs + i
+								* SECS_BETWEEN_STOPS);
+						stopTimes.println(tripId + "," + time + "," + time
+								+ "," + stopId + "," + (i + 1));
+					}
+
+					tripStartSecs += tripSecs + LAYOVER_SECS;
+					outbound = !outbound;
+				}
+			}
+		}
+
+		routes.close();
+		stops.close();
+		shapes.close();
+		trips.close();
+		stopTimes.close();
+
+		logger.info("Wrote GTFS files for synthetic agency with {} routes, "
+				+ "{} stops per route, and {} vehicles per route to {}",
+				numberRoutes, stopsPerRoute, vehiclesPerRoute, dir);
+		return dir.getPath();
+	}
+
+	/**
+	 * Creates the file in the directory and writes out the header line.
+	 *
+	 * @param dir
+	 * @param fileName
+	 * @param header
+	 * @return The PrintWriter for writing out the rest of the file
+	 * @throws IOException
+	 */
+	private static PrintWriter createWriter(File dir, String fileName,
+			String header) throws IOException {
+		File file = new File(dir, fileName);
+		file.deleteOnExit();
+		PrintWriter writer = new PrintWriter(file, "UTF-8");
+		writer.println(header);
+		return writer;
+	}
+
+	/**
+	 * Writes out the points for a shape.
+	 *
+	 * @param shapes
+	 * @param shapeId
+	 * @param locs
+	 */
+	private static void writeShape(PrintWriter shapes, String shapeId,
+			List<Location> locs) {
+		for (int i = 0; i < locs.size(); ++i) {
+			Location loc = locs.get(i);
+			shapes.println(shapeId + "," + loc.getLat() + ","
+					+ loc.getLon() + "," + (i + 1));
+		}
+	}
+
+	/**
+	 * Processes the GTFS data in the directory into memory and creates the
+	 * Core singleton using the resulting configuration. Since the Core is a
+	 * singleton this only does something the first time it is called.
+	 *
+	 * @param gtfsDirectoryName
+	 *            Directory containing GTFS files, such as one created by
+	 *            writeGtfsFiles()
+	 * @return The Core singleton
+	 */
+	public static synchronized Core createCore(String gtfsDirectoryName) {
+		if (coreCreated)
+			return Core.getInstance();
+
+		setSystemProperties();
+
+		// Use same default parameters as GtfsFileProcessor
+		GtfsData gtfsData = new GtfsData(0, // configRev
+				AGENCY_ID,
+				gtfsDirectoryName,
+				0.0, // pathOffsetDistance
+				60.0, // maxStopToPathDistance
+				3.0, // maxDistanceForEliminatingVertices
+				10 * Time.MS_PER_SEC, // defaultWaitTimeAtStopMsec
+				97.0, // maxSpeedKph
+				200.0, // maxTravelTimeSegmentLength
+				false, // trimPathBeforeFirstStopOfTrip
+				new TitleFormatter(null, false));
+		gtfsData.processData();
+
+		DbConfig dbConfig = new DbConfig(AGENCY_ID);
+		dbConfig.setData(gtfsData);
+
+		Core core = Core.createCore(dbConfig);
+		coreCreated = true;
+		return core;
+	}
+
+	/**
+	 * Creates the Core singleton using a newly written synthetic agency, or
+	 * the GTFS data in gtfsDirectoryName if it is not empty.
+	 *
+	 * @param gtfsDirectoryName
+	 *            Directory of GTFS data to use instead of the synthetic
+	 *            agency. If null or empty then the synthetic agency is used.
+	 * @param numberRoutes
+	 * @param stopsPerRoute
+	 * @param vehiclesPerRoute
+	 * @return The Core singleton
+	 * @throws IOException
+	 */
+	public static Core createCore(String gtfsDirectoryName, int numberRoutes,
+			int stopsPerRoute, int vehiclesPerRoute) throws IOException {
+		if (gtfsDirectoryName == null || gtfsDirectoryName.isEmpty())
+			gtfsDirectoryName = writeGtfsFiles(numberRoutes, stopsPerRoute,
+					vehiclesPerRoute);
+		return createCore(gtfsDirectoryName);
+	}
+}
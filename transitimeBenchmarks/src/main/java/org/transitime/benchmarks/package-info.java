@@ -0,0 +1,50 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * JMH benchmarks for the matching and prediction pipeline of the core
+ * system. The benchmarks don't need a database. The configuration is
+ * processed from GTFS files directly into memory, either for a synthetic
+ * agency created by SyntheticAgency or for the GTFS data of a real agency.
+ * The AVL reports that drive the pipeline are either synthetic or recorded
+ * AVL data read in via AvlCsvReader.
+ * <p>
+ * GeoBenchmark measures the low level geometry methods. PipelineBenchmark
+ * measures each stage of the pipeline, SpatialMatcher, TemporalMatcher,
+ * ArrivalDepartureGenerator, and PredictionGenerator, separately so that the
+ * effect of an optimization on each stage can be seen.
+ * IpcSerializationBenchmark compares the default and the compact
+ * serialization of the vehicles and predictions returned by the bulk RMI
+ * calls.
+ * <p>
+ * Build with "mvn install -DskipTests" from the root directory and then run
+ * all the benchmarks with:
+ * <pre>
+ * java -jar transitimeBenchmarks/target/benchmarks.jar
+ * </pre>
+ * The standard JMH options can be used, such as a regular expression to
+ * select which benchmarks to run. The throughput in operations per second
+ * is reported for each benchmark. BenchmarkRunner also enables the JMH GC
+ * profiler so that the allocation rate, gc.alloc.rate.norm in bytes per
+ * operation, is reported as well. To replay recorded AVL data for a real
+ * agency use parameters such as:
+ * <pre>
+ * java -jar transitimeBenchmarks/target/benchmarks.jar PipelineBenchmark
+ *   -p gtfsDirectory=/path/to/gtfs -p avlCsvFile=/path/to/avl.csv
+ * </pre>
+ */
+package org.transitime.benchmarks;